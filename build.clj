@@ -207,6 +207,95 @@
       (throw (ex-info "Kotlin tests failed" {:exit (:exit result)})))
     (println "Kotlin tests completed successfully")))
 
+;; Stream subprocess runtime: the VideoStreamManager JVM only needs the
+;; Kotlin/Java classes and the few libraries they use, and its startup is
+;; dominated by class loading. stream-runtime writes a trimmed classpath and
+;; an AppCDS archive for it to target/stream; streams.config picks them up.
+
+(def stream-dir "target/stream")
+(def stream-jar (str stream-dir "/potatoclient-stream.jar"))
+(def stream-classpath-file (str stream-dir "/classpath.txt"))
+(def stream-archive (str stream-dir "/stream.jsa"))
+(def stream-probe-class "potatoclient.kotlin.StartupProbe")
+
+(defn- stream-jar!
+  "Jar only the compiled Kotlin and Java classes; CDS archives jars, not directories"
+  []
+  (let [classes (str stream-dir "/classes")]
+    (b/delete {:path classes})
+    (b/copy-dir {:src-dirs [class-dir]
+                 :target-dir classes
+                 :include "potatoclient/{kotlin,java}/**"})
+    (b/jar {:class-dir classes
+            :jar-file stream-jar})))
+
+(defn- stream-dependencies
+  "Jars of the basis the stream jar needs, transitively, according to jdeps"
+  []
+  (let [jars (filter #(str/ends-with? % ".jar") (:classpath-roots (get-basis)))
+        by-name (into {} (map (juxt #(.getName (io/file %)) identity) jars))
+        result (shell/sh "jdeps" "-summary" "-recursive" "--multi-release" "17"
+                         "--ignore-missing-deps"
+                         "--class-path" (str/join ":" jars)
+                         stream-jar)]
+    (when (not= 0 (:exit result))
+      (throw (ex-info "jdeps failed" {:output (:out result) :error (:err result)})))
+    ;; Lines look like "potatoclient-stream.jar -> gst1-java-core-1.4.0.jar"
+    (->> (str/split-lines (:out result))
+         (keep #(second (re-find #"->\s+(\S+\.jar)\s*$" %)))
+         (keep by-name)
+         distinct
+         sort)))
+
+(defn- run-startup-probe
+  "Run the startup probe on classpath with extra JVM options and parse its report"
+  [classpath & jvm-opts]
+  (let [result (apply shell/sh "java" (concat jvm-opts ["-Djava.awt.headless=true"
+                                                        "--enable-native-access=ALL-UNNAMED"
+                                                        "-cp" classpath
+                                                        stream-probe-class
+                                                        stream-jar]))]
+    (when (not= 0 (:exit result))
+      (throw (ex-info "Startup probe failed" {:output (:out result) :error (:err result)})))
+    (into {}
+          (for [[_ k v] (re-seq #"(\S+)=(\d+)" (:out result))]
+            [(keyword k) (parse-long v)]))))
+
+(defn- report-startup
+  "Print the median startup time and RSS of a few probe runs per variant"
+  [classpath]
+  (let [median (fn [xs] (nth (sort xs) (quot (count xs) 2)))
+        measure (fn [label & jvm-opts]
+                  (let [runs (repeatedly 5 #(apply run-startup-probe classpath jvm-opts))]
+                    (println (format "  %-14s startup %5d ms  main %4d ms  RSS %4d MB  classes %d"
+                                     label
+                                     (median (map :startup-ms runs))
+                                     (median (map :main-ms runs))
+                                     (quot (median (map :rss-bytes runs)) (* 1024 1024))
+                                     (median (map :classes runs))))))]
+    (println "Stream subprocess startup (median of 5):")
+    (measure "no archive" "-Xshare:auto")
+    (measure "AppCDS" (str "-XX:SharedArchiveFile=" stream-archive) "-Xshare:auto")))
+
+(defn stream-runtime
+  "Trimmed classpath and AppCDS archive for the stream subprocess.
+  Compiles first unless :compile? false; prints startup time and RSS with
+  and without the archive. The toggle-time counterpart at runtime is the
+  streams.core/startup-report of a running stream."
+  [{:keys [compile?] :or {compile? true}}]
+  (when compile?
+    (compile-all nil))
+  (b/delete {:path stream-dir})
+  (stream-jar!)
+  (let [classpath (str/join ":" (cons (.getAbsolutePath (io/file stream-jar))
+                                      (stream-dependencies)))]
+    (println "Stream classpath:" (count (str/split classpath #":")) "entries")
+    (spit stream-classpath-file classpath)
+    ;; The training run loads every stream class and warms up GStreamer
+    (run-startup-probe classpath (str "-XX:ArchiveClassesAtExit=" stream-archive))
+    (println "Wrote" stream-archive (quot (.length (io/file stream-archive)) 1024) "KB")
+    (report-startup classpath)))
+
 (defn compile-clj [_]
   (b/compile-clj {:basis (get-basis)
                   :src-dirs ["src"]
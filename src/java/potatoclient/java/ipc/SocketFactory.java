@@ -64,6 +64,25 @@ public class SocketFactory {
         return comm;
     }
 
+    /**
+     * Create an in-memory server for clients running in this JVM.
+     * No socket file is created; clients find it by the same path.
+     *
+     * @param socketPath Path the server would otherwise bind to
+     * @return The created server communicator
+     */
+    public static UnixSocketCommunicator createInMemoryServer(Path socketPath) {
+        String key = socketPath.toString();
+
+        if (activeSockets.containsKey(key)) {
+            throw new IllegalStateException("Socket already exists: " + key);
+        }
+
+        UnixSocketCommunicator comm = new UnixSocketCommunicator(socketPath, true, true);
+        activeSockets.put(key, comm);
+        return comm;
+    }
+
     /**
      * Create a client socket communicator.
      *
@@ -82,7 +101,9 @@ public class SocketFactory {
      * @return The created client communicator
      */
     public static UnixSocketCommunicator createClient(Path socketPath) {
-        UnixSocketCommunicator comm = new UnixSocketCommunicator(socketPath, false);
+        // Connect in memory when the server runs in this JVM
+        boolean inMemory = UnixSocketCommunicator.hasInMemoryEndpoint(socketPath);
+        UnixSocketCommunicator comm = new UnixSocketCommunicator(socketPath, false, inMemory);
         String key = "client-" + socketPath.toString() + "-" + System.nanoTime();
         activeSockets.put(key, comm);
         return comm;
@@ -138,6 +159,13 @@ public class SocketFactory {
         return activeSockets.size();
     }
 
+    /**
+     * Check if a server is listening at the path, through a socket file or in memory.
+     */
+    public static boolean endpointExists(Path socketPath) {
+        return Files.exists(socketPath) || UnixSocketCommunicator.hasInMemoryEndpoint(socketPath);
+    }
+
     /**
      * Check if a socket path is available (not in use).
      */
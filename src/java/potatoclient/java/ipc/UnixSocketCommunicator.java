@@ -9,6 +9,8 @@ import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
@@ -16,13 +18,22 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * Bidirectional Unix Domain Socket communicator using Java NIO (Java 16+).
  * Provides framed message communication with length-prefixed packets.
+ *
+ * In in-memory mode both ends live in the same JVM: the server registers
+ * under its socket path without creating a file, a client looks it up there,
+ * and each send hands the message bytes straight to the peer's queue.
  */
 public class UnixSocketCommunicator {
     private static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024; // 10MB max
     private static final int HEADER_SIZE = 4; // 4 bytes for message length
 
+    // In-memory servers waiting for or serving an in-process client
+    private static final ConcurrentMap<Path, UnixSocketCommunicator> inMemoryServers = new ConcurrentHashMap<>();
+
     private final Path socketPath;
     private final boolean isServer;
+    private final boolean inMemory;
+    private volatile UnixSocketCommunicator peer;
     private SocketChannel channel;
     private java.nio.channels.ServerSocketChannel serverChannel;  // Keep server channel for async accept
     private final AtomicBoolean running = new AtomicBoolean(false);
@@ -42,12 +53,36 @@ public class UnixSocketCommunicator {
      * @param isServer If true, acts as server (binds); if false, acts as client (connects)
      */
     public UnixSocketCommunicator(Path socketPath, boolean isServer) {
+        this(socketPath, isServer, false);
+    }
+
+    /**
+     * Create a communicator, optionally connected in memory instead of through a socket.
+     *
+     * @param socketPath Path to the Unix domain socket file, or the in-memory endpoint key
+     * @param isServer If true, acts as server (binds); if false, acts as client (connects)
+     * @param inMemory If true, both ends must be in this JVM and no socket is opened
+     */
+    public UnixSocketCommunicator(Path socketPath, boolean isServer, boolean inMemory) {
         this.socketPath = socketPath;
         this.isServer = isServer;
-        this.readBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE + HEADER_SIZE);
-        this.writeBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE + HEADER_SIZE);
-        this.readBuffer.order(ByteOrder.BIG_ENDIAN);
-        this.writeBuffer.order(ByteOrder.BIG_ENDIAN);
+        this.inMemory = inMemory;
+        if (inMemory) {
+            this.readBuffer = null;
+            this.writeBuffer = null;
+        } else {
+            this.readBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE + HEADER_SIZE);
+            this.writeBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE + HEADER_SIZE);
+            this.readBuffer.order(ByteOrder.BIG_ENDIAN);
+            this.writeBuffer.order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    /**
+     * Check whether an in-memory server is bound to the given path.
+     */
+    public static boolean hasInMemoryEndpoint(Path socketPath) {
+        return inMemoryServers.containsKey(socketPath);
     }
 
     /**
@@ -59,6 +94,11 @@ public class UnixSocketCommunicator {
             throw new IllegalStateException("Communicator already running");
         }
 
+        if (inMemory) {
+            startInMemory();
+            return;
+        }
+
         var address = UnixDomainSocketAddress.of(socketPath);
 
         if (isServer) {
@@ -102,6 +142,26 @@ public class UnixSocketCommunicator {
         }
     }
 
+    private void startInMemory() throws IOException {
+        if (isServer) {
+            if (inMemoryServers.putIfAbsent(socketPath, this) != null) {
+                running.set(false);
+                throw new IllegalStateException("In-memory endpoint already bound: " + socketPath);
+            }
+            return;
+        }
+
+        UnixSocketCommunicator server = inMemoryServers.get(socketPath);
+        if (server == null || !server.running.get()) {
+            running.set(false);
+            throw new IOException("No in-memory endpoint at " + socketPath);
+        }
+        peer = server;
+        server.peer = this;
+        server.connected.set(true);
+        connected.set(true);
+    }
+
     /**
      * Send a message through the socket.
      *
@@ -121,6 +181,18 @@ public class UnixSocketCommunicator {
             throw new IllegalArgumentException("Message too large: " + data.length + " bytes");
         }
 
+        if (inMemory) {
+            // Callers hand over freshly serialized arrays, so no copy is needed
+            UnixSocketCommunicator target = peer;
+            if (target == null || !target.running.get()) {
+                throw new IOException("In-memory peer disconnected");
+            }
+            if (!target.incomingQueue.offer(data)) {
+                System.err.println("Incoming queue full, dropping message");
+            }
+            return;
+        }
+
         writeLock.lock();
         try {
             writeBuffer.clear();
@@ -242,12 +314,30 @@ public class UnixSocketCommunicator {
      * Stop the communicator and close all resources.
      */
     public void stop() {
+        if (inMemory) {
+            // Unbind even when the peer already disconnected us
+            inMemoryServers.remove(socketPath, this);
+        }
+
         if (!running.getAndSet(false)) {
             return; // Already stopped
         }
 
         connected.set(false);
 
+        if (inMemory) {
+            // The peer sees the equivalent of EOF
+            UnixSocketCommunicator other = peer;
+            peer = null;
+            if (other != null) {
+                other.peer = null;
+                other.running.set(false);
+                other.connected.set(false);
+            }
+            incomingQueue.clear();
+            return;
+        }
+
         // Close the channel
         if (channel != null) {
             try {
@@ -310,6 +400,9 @@ public class UnixSocketCommunicator {
      * Check if the communicator is connected.
      */
     public boolean isConnected() {
+        if (inMemory) {
+            return connected.get() && peer != null;
+        }
         return connected.get() && channel != null && channel.isOpen();
     }
 
@@ -41,7 +41,7 @@
           domain))))) 
  (m/=> extract-domain* [:=> [:cat :string] :potatoclient.ui-specs/domain])
 
-(defn- get-config-dir
+(defn get-config-dir
   "Get the configuration directory path using platform-specific conventions"
   []
   (let [os-name (.toLowerCase ^String (System/getProperty "os.name"))]
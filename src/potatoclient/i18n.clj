@@ -149,8 +149,9 @@
 (defn init!
   "Initialize localization system"
   []
-  ;; Always load translations to ensure they're complete
-  (load-translations!)
+  ;; Load translations unless the startup orchestrator already did
+  (when (empty? @translations-atom)
+    (load-translations!))
   ;; Set initial locale
   (state/set-locale! (state/get-locale))
   ;; In dev mode, validate translations on startup
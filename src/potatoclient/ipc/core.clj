@@ -38,6 +38,7 @@
   "Schema for an IPC server instance."
   [:map
    [:stream-type StreamType]
+   [:channel :string]
    [:socket-path [:fn (partial instance? Path)]]
    [:communicator [:fn (partial instance? UnixSocketCommunicator)]]
    [:message-queue [:fn (partial instance? LinkedBlockingQueue)]]
@@ -60,18 +61,19 @@
   (.pid (ProcessHandle/current)))
 
 (defn- generate-socket-path
-  "Generate a socket path for a stream.
-  Creates a unique socket path based on PID and stream type.
+  "Generate a socket path for an IPC channel.
+  Creates a unique socket path based on PID and channel name.
 
   Args:
-    stream-type - One of :heat or :day
+    channel - Channel name, the stream type's name unless the stream
+              process was given another one
 
   Returns:
     Path - The generated socket path"
-  ^Path [stream-type]
-  (let [socket-name (str "ipc-" (get-current-pid) "-" (name stream-type))]
+  ^Path [channel]
+  (let [socket-name (str "ipc-" (get-current-pid) "-" channel)]
     (SocketFactory/generateSocketPath socket-name)))
-(m/=> generate-socket-path [:=> [:cat StreamType] [:fn (partial instance? Path)]])
+(m/=> generate-socket-path [:=> [:cat :string] [:fn (partial instance? Path)]])
 
 (defn- start-reader-thread
   "Start the thread that reads messages from the socket.
@@ -124,15 +126,23 @@
 
 (defn create-server
   "Create and start an IPC server for a stream.
-   Returns a server map with control functions."
-  [stream-type & {:keys [on-message await-binding?]
+   Returns a server map with control functions.
+   The socket is named after :channel, by default the stream type, so
+   several processes of one stream type can each have their own.
+   With :in-memory? the endpoint lives in this JVM only, for streams
+   running in-process; no socket file is created."
+  [stream-type & {:keys [channel on-message await-binding? in-memory?]
                   :or {await-binding? true}}]
-  (let [socket-path (generate-socket-path stream-type)
+  (let [channel (or channel (name stream-type))
+        socket-path (generate-socket-path channel)
         _ (Files/deleteIfExists socket-path)
-        communicator (SocketFactory/createServer ^Path socket-path)
+        communicator (if in-memory?
+                       (SocketFactory/createInMemoryServer ^Path socket-path)
+                       (SocketFactory/createServer ^Path socket-path))
         message-queue (LinkedBlockingQueue. ^int message-queue-capacity)
         running? (atom false)
         server {:stream-type stream-type
+                :channel channel
                 :socket-path socket-path
                 :communicator communicator
                 :message-queue message-queue
@@ -144,7 +154,7 @@
     (.start communicator)
 
     ;; Wait for socket to be bound if requested
-    (when await-binding?
+    (when (and await-binding? (not in-memory?))
       (let [retries (atom 10)]
         (while (and (not (Files/exists socket-path (make-array LinkOption 0)))
                     (pos? @retries))
@@ -284,24 +294,24 @@
 ;; ============================================================================
 
 (def ^:private servers
-  "Registry of active IPC servers indexed by stream type."
+  "Registry of active IPC servers indexed by channel."
   (atom {}))
 
 (defn get-server
-  "Get an existing server for a stream type.
+  "Get an existing server for a channel.
 
   Args:
-    stream-type - One of :heat or :day
+    channel - Channel name, or a stream type for its default channel
 
   Returns:
     The server instance if exists, nil otherwise"
-  [stream-type]
-  (get @servers stream-type))
-(m/=> get-server [:=> [:cat StreamType] [:maybe IpcServer]])
+  [channel]
+  (get @servers (if (keyword? channel) (name channel) channel)))
+(m/=> get-server [:=> [:cat [:or StreamType :string]] [:maybe IpcServer]])
 
 (defn create-and-register-server
   "Create a server and register it in the pool.
-  Stops any existing server for the same stream type before creating a new one.
+  Stops any existing server for the same channel before creating a new one.
 
   Args:
     stream-type - One of :heat or :day
@@ -310,12 +320,13 @@
   Returns:
     The newly created server instance"
   [stream-type & opts]
-  (when-let [existing (get-server stream-type)]
-    (stop-server existing)
-    (swap! servers dissoc stream-type))
-  (let [server (apply create-server stream-type opts)]
-    (swap! servers assoc stream-type server)
-    server))
+  (let [channel (or (:channel (apply hash-map opts)) (name stream-type))]
+    (when-let [existing (get-server channel)]
+      (stop-server existing)
+      (swap! servers dissoc channel))
+    (let [server (apply create-server stream-type opts)]
+      (swap! servers assoc channel server)
+      server)))
 (m/=> create-and-register-server [:=> [:cat StreamType [:* :any]] IpcServer])
 
 (defn stop-all-servers
@@ -325,7 +336,7 @@
   Returns:
     nil"
   []
-  (doseq [[_stream-type server] @servers]
+  (doseq [[_channel server] @servers]
     (logging/log-info (str "Stopping " (name (:stream-type server)) " server"))
     (stop-server server))
   (reset! servers {})
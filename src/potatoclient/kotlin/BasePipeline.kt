@@ -0,0 +1,277 @@
+package potatoclient.kotlin
+
+import org.freedesktop.gstreamer.Buffer
+import org.freedesktop.gstreamer.BufferFlags
+import org.freedesktop.gstreamer.Element
+import org.freedesktop.gstreamer.Pad
+import org.freedesktop.gstreamer.PadLinkException
+import org.freedesktop.gstreamer.PadProbeReturn
+import org.freedesktop.gstreamer.PadProbeType
+import org.freedesktop.gstreamer.Pipeline
+import org.freedesktop.gstreamer.State
+import org.freedesktop.gstreamer.elements.AppSrc
+import org.freedesktop.gstreamer.event.FlushStartEvent
+import org.freedesktop.gstreamer.event.FlushStopEvent
+import java.awt.Component
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * State and controls shared by [GStreamerPipeline] and [CompositePipeline].
+ *
+ * Pause, resume and flush keep the pipeline built: frames are dropped while
+ * paused and, after a flush, until the next keyframe. The decode-thread
+ * budget reopens the libav decoders in place, and stopping releases the
+ * pipeline and the native appsrc input pool. Subclasses build the pipeline
+ * and say which sources to flush and which decoders to reopen.
+ */
+abstract class BasePipeline(
+    protected val callback: GStreamerPipeline.EventCallback,
+    protected val settings: StreamSettings,
+) : VideoPipeline {
+    protected val pipelineLock = ReentrantLock()
+
+    @Volatile protected var pipeline: Pipeline? = null
+
+    @Volatile protected var selectedDecoder: String? = null
+
+    @Volatile protected var paused = false
+
+    // Decode-thread budget handed out by the main process (avdec_h264 only)
+    @Volatile protected var decodeThreads =
+        settings.get(GStreamerPipeline.DECODE_THREADS_PROPERTY)?.toIntOrNull()?.coerceAtLeast(1)
+            ?: Runtime.getRuntime().availableProcessors()
+
+    @Volatile protected var pendingVideoComponent: Component? = null
+
+    @Volatile protected var overlaySet = false
+
+    // Time-to-first-frame measurement for the current start path
+    protected val ttffPath = AtomicReference<String?>(null)
+
+    @Volatile protected var ttffStartMs = 0L
+
+    // Snapshot/thumbnail branch, idle unless requested
+    protected val frameTap = FrameTap("capture", callback)
+
+    // Native appsrc input pools, created on first push (guarded by pipelineLock)
+    protected var inputPool: BucketedBufferPool? = null
+
+    /**
+     * Flush every source, e.g. before resuming. Called with [pipelineLock] held.
+     */
+    protected abstract fun flushAllLocked()
+
+    /**
+     * Flush the primary stream's source after its WebSocket reconnected in
+     * place. Called with [pipelineLock] held.
+     */
+    protected abstract fun flushPrimaryLocked()
+
+    /**
+     * Decoders to reopen for the current budget, each with its thread count.
+     * Called with [pipelineLock] held.
+     */
+    protected abstract fun decoderThreadsLocked(): List<Pair<Element, Int>>
+
+    /**
+     * Drop the subclass's elements and counters. Called from [stop] with
+     * [pipelineLock] held, after the pipeline is disposed.
+     */
+    protected abstract fun clearLocked()
+
+    /**
+     * Start a time-to-first-frame measurement. The next rendered frame reports
+     * the elapsed time since [startMs] via [GStreamerPipeline.EventCallback.onFirstFrame].
+     */
+    override fun markTtffStart(
+        path: String,
+        startMs: Long,
+    ) {
+        ttffStartMs = startMs
+        ttffPath.set(path)
+    }
+
+    /**
+     * Pause the pipeline without tearing it down.
+     * Incoming frames are dropped until [resume] is called.
+     */
+    override fun pause() {
+        pipelineLock.lock()
+        try {
+            val p = pipeline ?: return
+            paused = true
+            p.pause()
+            callback.onLog("INFO", "Pipeline paused")
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    /**
+     * Resume a paused pipeline. The sources are flushed and playback restarts
+     * at the next keyframe, so no stale or broken frames are shown.
+     */
+    override fun resume(path: String) {
+        pipelineLock.lock()
+        try {
+            val p = pipeline ?: return
+            flushAllLocked()
+            markTtffStart(path)
+            paused = false
+            p.play()
+            callback.onLog("INFO", "Pipeline resumed, waiting for keyframe")
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    /**
+     * Flush the primary stream and wait for its next keyframe while staying in
+     * PLAYING, e.g. after the WebSocket reconnected in place.
+     */
+    override fun flush(path: String) {
+        pipelineLock.lock()
+        try {
+            if (pipeline == null) return
+            flushPrimaryLocked()
+            markTtffStart(path)
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    fun isPaused(): Boolean = paused
+
+    /**
+     * Apply a new decode-thread budget from the main process.
+     * libav only reads max-threads when the codec opens, so the decoders are
+     * reopened with [reopenDecoder] and playback restarts at the next keyframe.
+     */
+    override fun setDecodeThreads(threads: Int) {
+        val budget = threads.coerceAtLeast(1)
+        if (budget == decodeThreads) {
+            return
+        }
+        decodeThreads = budget
+        pipelineLock.lock()
+        try {
+            if (pipeline == null || selectedDecoder != "avdec_h264") {
+                return
+            }
+            for ((decoder, decoderThreads) in decoderThreadsLocked()) {
+                reopenDecoder(decoder, decoderThreads) {
+                    callback.onLog("INFO", "Decode threads of ${decoder.name} set to $decoderThreads")
+                }
+            }
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    override fun getDecodeThreads(): Int = decodeThreads
+
+    override fun frameTap(): FrameTap = frameTap
+
+    override fun stop() {
+        pipelineLock.lock()
+        try {
+            pipeline?.let {
+                it.stop()
+                it.dispose()
+            }
+            pipeline = null
+            selectedDecoder = null
+            frameTap.detach()
+            clearLocked()
+            paused = false
+            ttffPath.set(null)
+            pendingVideoComponent = null
+            overlaySet = false
+
+            // Release the input pools and log final statistics
+            inputPool?.let { pool ->
+                callback.onLog(
+                    "INFO",
+                    String.format(
+                        java.util.Locale.US,
+                        "Buffer pool final stats: %.1f%% hit rate %s",
+                        pool.hitRate(),
+                        pool.stats(),
+                    ),
+                )
+                pool.close()
+            }
+            inputPool = null
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    /**
+     * Pooled native buffer of at least [size] bytes. Called with [pipelineLock] held.
+     */
+    protected fun acquireBuffer(size: Int): Buffer {
+        val pool = inputPool ?: BucketedBufferPool().also { inputPool = it }
+        return pool.acquire(size)
+    }
+
+    /**
+     * Flush everything queued between [src] and the sink.
+     * The flush events are sent to the element rather than pushed onto its
+     * pad: basesrc then drops its own queue and restarts its streaming task
+     * after flush-stop, while events pushed onto the pad from another thread
+     * leave that task paused. A flushing seek is not an option because the
+     * live appsrc is not seekable and rejects it.
+     */
+    protected fun flushSource(src: AppSrc) {
+        src.sendEvent(FlushStartEvent())
+        src.sendEvent(FlushStopEvent(true))
+    }
+
+    /**
+     * Reopen a playing avdec_h264 [decoder] with [threads] worker threads.
+     *
+     * The decoder is not cycled through READY in place: a probe on its sink
+     * pad holds the streaming thread that feeds it, so no buffer is inside
+     * the decoder while it goes to READY, gets the new max-threads and syncs
+     * back with its parent. Re-linking the sink pad makes upstream resend its
+     * caps and segment, and buffers are dropped until the next keyframe.
+     * [onDone] runs on the streaming thread once the decoder is reopened;
+     * nothing happens before data flows, e.g. while paused.
+     */
+    protected fun reopenDecoder(
+        decoder: Element,
+        threads: Int,
+        onDone: () -> Unit,
+    ) {
+        val sinkPad = decoder.getStaticPad("sink") ?: return
+        val reopened = AtomicBoolean(false)
+        sinkPad.addProbe(
+            PadProbeType.BUFFER,
+            Pad.PROBE { pad, info ->
+                if (reopened.compareAndSet(false, true)) {
+                    decoder.setState(State.READY)
+                    decoder.set("max-threads", threads)
+                    decoder.syncStateWithParent()
+                    pad.peer?.let { peer ->
+                        peer.unlink(pad)
+                        try {
+                            peer.link(pad)
+                        } catch (e: PadLinkException) {
+                            callback.onLog("ERROR", "Failed to relink ${decoder.name}: ${e.message}")
+                            return@PROBE PadProbeReturn.REMOVE
+                        }
+                    }
+                    onDone()
+                    PadProbeReturn.DROP
+                } else if (info.buffer?.flags?.contains(BufferFlags.DELTA_UNIT) == true) {
+                    PadProbeReturn.DROP
+                } else {
+                    PadProbeReturn.REMOVE
+                }
+            },
+        )
+    }
+}
@@ -0,0 +1,165 @@
+package potatoclient.kotlin
+
+import com.sun.jna.Library
+import com.sun.jna.Pointer
+import com.sun.jna.Structure
+import com.sun.jna.ptr.PointerByReference
+import org.freedesktop.gstreamer.Buffer
+import org.freedesktop.gstreamer.glib.Natives
+import org.freedesktop.gstreamer.lowlevel.GstNative
+
+/**
+ * Size-bucketed native GstBufferPools for appsrc input buffers.
+ *
+ * Each bucket is a real GstBufferPool, so recycling is driven by GStreamer
+ * refcounts: once the last element downstream drops a pushed buffer it goes
+ * back to its pool on its own. The previous Java-side queue only ever got
+ * buffers back on error paths.
+ *
+ * Frames larger than the biggest bucket, or arriving while a bucket is
+ * exhausted, get an exact-size one-off buffer. Statistics count a hit only
+ * when a pool hands out a buffer it has handed out before.
+ *
+ * Not thread-safe; callers serialize access (GStreamerPipeline holds its
+ * pipeline lock).
+ */
+class BucketedBufferPool {
+    private class Bucket(
+        val size: Int,
+        val pool: Pointer,
+        val seen: HashSet<Long> = HashSet(),
+    )
+
+    private val buckets: List<Bucket> =
+        Constants.INPUT_POOL_BUCKETS.mapNotNull { (size, count) -> createPool(size, count)?.let { Bucket(size, it) } }
+
+    private val acquireParams = AcquireParams().apply { flags = ACQUIRE_FLAG_DONTWAIT }
+    private var hits = 0L
+    private var misses = 0L
+    private var exhausted = 0L
+    private var oversize = 0L
+
+    /**
+     * Get a writable buffer of exactly [size] bytes.
+     */
+    fun acquire(size: Int): Buffer {
+        val bucket = buckets.firstOrNull { it.size >= size }
+        if (bucket == null) {
+            oversize++
+            misses++
+            return Buffer(size)
+        }
+
+        val ref = PointerByReference()
+        if (API.gst_buffer_pool_acquire_buffer(bucket.pool, ref, acquireParams) != FLOW_OK) {
+            exhausted++
+            misses++
+            return Buffer(size)
+        }
+
+        val pointer = ref.value
+        if (bucket.seen.add(Pointer.nativeValue(pointer))) misses++ else hits++
+        API.gst_buffer_set_size(pointer, size.toLong())
+        return Natives.objectFor(pointer, Buffer::class.java, false, true)
+    }
+
+    fun stats(): Map<String, Long> =
+        mapOf(
+            "hits" to hits,
+            "misses" to misses,
+            "exhausted" to exhausted,
+            "oversize" to oversize,
+        )
+
+    fun hitRate(): Double = if (hits + misses > 0) hits * 100.0 / (hits + misses) else 0.0
+
+    /**
+     * Deactivate the pools and drop our references. Buffers still in flight
+     * keep their pool alive until they are released.
+     */
+    fun close() {
+        for (bucket in buckets) {
+            API.gst_buffer_pool_set_active(bucket.pool, false)
+            API.gst_object_unref(bucket.pool)
+        }
+    }
+
+    private fun createPool(
+        size: Int,
+        count: Int,
+    ): Pointer? {
+        val pool = API.gst_buffer_pool_new() ?: return null
+        val config = API.gst_buffer_pool_get_config(pool)
+        API.gst_buffer_pool_config_set_params(config, null, size, 0, count)
+        if (!API.gst_buffer_pool_set_config(pool, config) || !API.gst_buffer_pool_set_active(pool, true)) {
+            API.gst_object_unref(pool)
+            return null
+        }
+        return pool
+    }
+
+    /**
+     * GstBufferPoolAcquireParams
+     */
+    @Structure.FieldOrder("format", "start", "stop", "flags", "reserved")
+    class AcquireParams : Structure() {
+        @JvmField var format: Int = 0
+
+        @JvmField var start: Long = 0
+
+        @JvmField var stop: Long = 0
+
+        @JvmField var flags: Int = 0
+
+        @JvmField var reserved: Array<Pointer?> = arrayOfNulls(4)
+    }
+
+    /**
+     * The GstBufferPool calls gst1-java-core does not wrap.
+     * gssize is bound as a 64-bit long, which matches all supported targets.
+     */
+    @Suppress("FunctionName")
+    private interface BufferPoolApi : Library {
+        fun gst_buffer_pool_new(): Pointer?
+
+        fun gst_buffer_pool_get_config(pool: Pointer): Pointer
+
+        fun gst_buffer_pool_config_set_params(
+            config: Pointer,
+            caps: Pointer?,
+            size: Int,
+            minBuffers: Int,
+            maxBuffers: Int,
+        )
+
+        fun gst_buffer_pool_set_config(
+            pool: Pointer,
+            config: Pointer,
+        ): Boolean
+
+        fun gst_buffer_pool_set_active(
+            pool: Pointer,
+            active: Boolean,
+        ): Boolean
+
+        fun gst_buffer_pool_acquire_buffer(
+            pool: Pointer,
+            buffer: PointerByReference,
+            params: AcquireParams,
+        ): Int
+
+        fun gst_buffer_set_size(
+            buffer: Pointer,
+            size: Long,
+        )
+
+        fun gst_object_unref(obj: Pointer)
+    }
+
+    companion object {
+        private const val FLOW_OK = 0
+        private const val ACQUIRE_FLAG_DONTWAIT = 1 shl 1
+
+        private val API: BufferPoolApi by lazy { GstNative.load(BufferPoolApi::class.java) }
+    }
+}
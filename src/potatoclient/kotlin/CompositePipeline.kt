@@ -0,0 +1,546 @@
+package potatoclient.kotlin
+
+import org.freedesktop.gstreamer.Buffer
+import org.freedesktop.gstreamer.Bus
+import org.freedesktop.gstreamer.Caps
+import org.freedesktop.gstreamer.Element
+import org.freedesktop.gstreamer.ElementFactory
+import org.freedesktop.gstreamer.FlowReturn
+import org.freedesktop.gstreamer.Format
+import org.freedesktop.gstreamer.Pad
+import org.freedesktop.gstreamer.PadProbeReturn
+import org.freedesktop.gstreamer.PadProbeType
+import org.freedesktop.gstreamer.Pipeline
+import org.freedesktop.gstreamer.State
+import org.freedesktop.gstreamer.StateChangeReturn
+import org.freedesktop.gstreamer.elements.AppSrc
+import org.freedesktop.gstreamer.interfaces.VideoOverlay
+import java.awt.Component
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Heat and day streams decoded in one pipeline and shown in one window.
+ *
+ * Each stream gets its own branch (appsrc ! h264parse ! decoder ! videoconvert
+ * ! queue) feeding a compositor sink pad, and the compositor output goes to a
+ * single video sink. Compared to two stream processes this saves a JVM, a
+ * GStreamer instance, a window and a sink.
+ *
+ * The [Layout] is applied through the compositor pad properties and can be
+ * switched while playing. A stream that the current layout does not show is
+ * not fed to its decoder at all and restarts at the next keyframe once shown.
+ *
+ * appsrc stamps buffers with the pipeline running time so the live compositor
+ * can mix the two unrelated sources; per-frame stage timing from
+ * [LatencyTracker] is therefore not available in this mode.
+ */
+class CompositePipeline(
+    callback: GStreamerPipeline.EventCallback,
+    settings: StreamSettings = StreamSettings.SYSTEM,
+) : BasePipeline(callback, settings) {
+    enum class Layout(
+        val id: String,
+    ) {
+        SIDE_BY_SIDE("side-by-side"),
+        PIP("pip"),
+        DAY("day"),
+        HEAT("heat"),
+        ;
+
+        companion object {
+            fun fromId(id: String): Layout? = entries.firstOrNull { it.id == id }
+        }
+    }
+
+    /**
+     * One composited stream and its compositor sink pad.
+     */
+    private class Branch(
+        val id: String,
+        val width: Int,
+        val height: Int,
+    ) {
+        @Volatile var appsrc: AppSrc? = null
+
+        @Volatile var decoder: Element? = null
+
+        @Volatile var pad: Pad? = null
+
+        @Volatile var visible = true
+
+        @Volatile var awaitingKeyframe = true
+
+        val framesSkipped = AtomicLong(0)
+    }
+
+    private data class Placement(
+        val x: Int,
+        val y: Int,
+        val width: Int,
+        val height: Int,
+        val zorder: Int,
+    )
+
+    private val day =
+        Branch(
+            Constants.StreamConfig.DAY_STREAM_ID,
+            Constants.StreamConfig.DAY_STREAM_WIDTH,
+            Constants.StreamConfig.DAY_STREAM_HEIGHT,
+        )
+    private val heat =
+        Branch(
+            Constants.StreamConfig.HEAT_STREAM_ID,
+            Constants.StreamConfig.HEAT_STREAM_WIDTH,
+            Constants.StreamConfig.HEAT_STREAM_HEIGHT,
+        )
+    private val branches = listOf(day, heat)
+
+    @Volatile private var videosink: Element? = null
+
+    @Volatile private var layout =
+        settings.get(LAYOUT_PROPERTY)?.let { Layout.fromId(it) } ?: Layout.PIP
+
+    override fun initialize(videoComponent: Component?) {
+        pipelineLock.lock()
+        try {
+            if (!GStreamerPipeline.ensureInitialized(callback)) {
+                return
+            }
+            val gstPluginPath = GStreamerPipeline.pluginPath()
+
+            val p = Pipeline("composite-pipeline")
+            val compositor = make("compositor", "compositor") ?: return
+            compositor.set("background", COMPOSITOR_BACKGROUND_BLACK)
+            try {
+                // GStreamer 1.20+: do not wait for a branch that is not being fed
+                compositor.set("ignore-inactive-pads", true)
+            } catch (_: IllegalArgumentException) {
+                callback.onLog("DEBUG", "compositor has no ignore-inactive-pads, hidden streams may delay output")
+            }
+
+            val canvasCaps = make("capsfilter", "canvas-caps") ?: return
+            canvasCaps.set(
+                "caps",
+                Caps.fromString(
+                    "video/x-raw,width=${Constants.Composite.CANVAS_WIDTH}," +
+                        "height=${Constants.Composite.CANVAS_HEIGHT}," +
+                        "framerate=${Constants.Composite.FRAMERATE}/1",
+                ),
+            )
+            val outputConvert = make("videoconvert", "output-convert") ?: return
+            val sink = GStreamerPipeline.createVideoSink(callback, settings) ?: return
+            sink.set("sync", false)
+            sink.set("async", false)
+            if (sink.name.contains("imagesink")) {
+                sink.set("force-aspect-ratio", true)
+            }
+
+            p.addMany(compositor, canvasCaps, outputConvert, sink)
+            val tee =
+                if (settings.get(GStreamerPipeline.CAPTURE_PROPERTY) != "false") frameTap.attach(p) else null
+            if (!Element.linkMany(compositor, canvasCaps, *listOfNotNull(tee).toTypedArray(), outputConvert, sink)) {
+                callback.onLog("ERROR", "Failed to link compositor output")
+                p.dispose()
+                frameTap.detach()
+                return
+            }
+
+            // decodebin links through dynamic pads; the branches need a static decoder
+            val decoderOptions =
+                DecoderProbe
+                    .rankedDecoders(GStreamerPipeline.decoderOptions(), callback, settings.configDir()) {
+                        GStreamerPipeline.scanPluginPath(gstPluginPath, callback)
+                    }.filter { it != "decodebin" }
+
+            for (branch in branches) {
+                if (!buildBranch(p, compositor, branch, decoderOptions)) {
+                    p.dispose()
+                    frameTap.detach()
+                    branches.forEach { it.clear() }
+                    return
+                }
+            }
+
+            attachFirstFrameProbe(sink)
+
+            p.bus.connect(
+                Bus.ERROR { _, _, message ->
+                    callback.onLog("ERROR", "Pipeline error: $message")
+                },
+            )
+            p.bus.connect(
+                Bus.WARNING { _, _, message ->
+                    callback.onLog("WARN", "Pipeline warning: $message")
+                },
+            )
+
+            pipeline = p
+            videosink = sink
+            applyLayoutLocked()
+
+            if (videoComponent != null) {
+                pendingVideoComponent = videoComponent
+            }
+
+            p.set("latency", 0L)
+            p.set("delay", 0L)
+
+            when (p.play()) {
+                StateChangeReturn.FAILURE -> {
+                    callback.onLog("ERROR", "Failed to start composite pipeline")
+                    p.state = State.NULL
+                    p.dispose()
+                    pipeline = null
+                    videosink = null
+                    frameTap.detach()
+                    branches.forEach { it.clear() }
+                }
+                else -> {
+                    callback.onLog("INFO", "Composite pipeline started with ${layout.id} layout")
+                }
+            }
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    private fun buildBranch(
+        p: Pipeline,
+        compositor: Element,
+        branch: Branch,
+        decoderOptions: List<String>,
+    ): Boolean {
+        val src =
+            AppSrc("appsrc-${branch.id}").apply {
+                set("is-live", true)
+                set("format", Format.TIME)
+                set("caps", Caps.fromString(Constants.H264_CAPS))
+                set("max-bytes", 0L)
+                set("block", false)
+                set("emit-signals", false)
+                set("do-timestamp", true)
+            }
+        val parse = make("h264parse", "h264parse-${branch.id}") ?: return false
+        parse.set("config-interval", 1)
+        val decoder = createDecoder(branch, decoderOptions) ?: return false
+        val convert = make("videoconvert", "convert-${branch.id}") ?: return false
+        val queue = make("queue", "queue-${branch.id}") ?: return false
+        queue.apply {
+            set("leaky", 2) // Drop old buffers
+            set("max-size-buffers", Constants.QUEUE_MAX_BUFFERS)
+            set("max-size-time", Constants.QUEUE_MAX_TIME_NS)
+            set("max-size-bytes", 0L)
+        }
+
+        p.addMany(src, parse, decoder, convert, queue)
+        if (!Element.linkMany(src, parse, decoder, convert, queue)) {
+            callback.onLog("ERROR", "Failed to link ${branch.id} branch")
+            return false
+        }
+
+        val pad = compositor.getRequestPad("sink_%u")
+        queue.getStaticPad("src").link(pad)
+
+        branch.appsrc = src
+        branch.decoder = decoder
+        branch.pad = pad
+        return true
+    }
+
+    private fun createDecoder(
+        branch: Branch,
+        decoderOptions: List<String>,
+    ): Element? {
+        for (decoderName in decoderOptions) {
+            try {
+                val decoder = ElementFactory.make(decoderName, "decoder-${branch.id}") ?: continue
+                if (decoderName == "avdec_h264") {
+                    decoder.set("lowres", 0)
+                    decoder.set("skip-frame", 0)
+                    decoder.set("max-threads", threadsFor(branch))
+                }
+                selectedDecoder = decoderName
+                callback.onLog("INFO", "Using H264 decoder for ${branch.id}: $decoderName")
+                return decoder
+            } catch (e: Exception) {
+                callback.onLog("DEBUG", "Failed to create $decoderName: ${e.message}")
+            }
+        }
+        callback.onLog("ERROR", "Failed to create an H264 decoder for ${branch.id}")
+        return null
+    }
+
+    private fun make(
+        factory: String,
+        name: String,
+    ): Element? {
+        val element =
+            try {
+                ElementFactory.make(factory, name)
+            } catch (_: IllegalArgumentException) {
+                null
+            }
+        if (element == null) {
+            callback.onLog("ERROR", "Failed to create $factory element - check GStreamer installation")
+        }
+        return element
+    }
+
+    private fun threadsFor(branch: Branch): Int {
+        val pixels = branch.width * branch.height
+        val total = branches.sumOf { it.width * it.height }
+        return (decodeThreads.toDouble() * pixels / total).roundToInt().coerceAtLeast(1)
+    }
+
+    /**
+     * Count every composited frame reaching the sink and report the first one per start path.
+     */
+    private fun attachFirstFrameProbe(sink: Element) {
+        sink.getStaticPad("sink")?.addProbe(
+            PadProbeType.BUFFER,
+            Pad.PROBE { _, _ ->
+                callback.onFrameRendered()
+                if (ttffPath.get() != null) {
+                    ttffPath.getAndSet(null)?.let { path ->
+                        callback.onFirstFrame(path, System.currentTimeMillis() - ttffStartMs)
+                    }
+                }
+                PadProbeReturn.OK
+            },
+        )
+    }
+
+    /**
+     * Switch the layout while playing.
+     */
+    fun setLayout(newLayout: Layout) {
+        pipelineLock.lock()
+        try {
+            if (newLayout == layout) {
+                return
+            }
+            layout = newLayout
+            if (pipeline != null) {
+                applyLayoutLocked()
+                callback.onLog("INFO", "Composite layout set to ${newLayout.id}")
+            }
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    fun getLayout(): Layout = layout
+
+    private fun applyLayoutLocked() {
+        for (branch in branches) {
+            val pad = branch.pad ?: continue
+            val placement = placement(layout, branch)
+            if (placement == null) {
+                branch.visible = false
+                pad.set("alpha", 0.0)
+                continue
+            }
+            pad.set("xpos", placement.x)
+            pad.set("ypos", placement.y)
+            pad.set("width", placement.width)
+            pad.set("height", placement.height)
+            pad.set("zorder", placement.zorder)
+            pad.set("alpha", 1.0)
+            if (!branch.visible) {
+                // Nothing was decoded while hidden; restart at the next keyframe
+                flushBranchLocked(branch)
+                branch.visible = true
+            }
+        }
+    }
+
+    private fun placement(
+        layout: Layout,
+        branch: Branch,
+    ): Placement? {
+        val width = Constants.Composite.CANVAS_WIDTH
+        val height = Constants.Composite.CANVAS_HEIGHT
+        val isDay = branch === day
+        return when (layout) {
+            // Heat on the left, day on the right, as with two windows
+            Layout.SIDE_BY_SIDE ->
+                if (isDay) {
+                    fit(branch, width / 2, 0, width / 2, height)
+                } else {
+                    fit(branch, 0, 0, width / 2, height)
+                }
+            Layout.PIP ->
+                if (isDay) {
+                    fit(branch, 0, 0, width, height)
+                } else {
+                    val insetWidth = (width * Constants.Composite.PIP_WIDTH_FRACTION).toInt()
+                    val insetHeight = insetWidth * branch.height / branch.width
+                    Placement(
+                        width - insetWidth - Constants.Composite.PIP_MARGIN,
+                        height - insetHeight - Constants.Composite.PIP_MARGIN,
+                        insetWidth,
+                        insetHeight,
+                        1,
+                    )
+                }
+            Layout.DAY -> if (isDay) fit(branch, 0, 0, width, height) else null
+            Layout.HEAT -> if (isDay) null else fit(branch, 0, 0, width, height)
+        }
+    }
+
+    /**
+     * Scale [branch] to fit the box, keeping its aspect ratio, and center it.
+     */
+    private fun fit(
+        branch: Branch,
+        x: Int,
+        y: Int,
+        boxWidth: Int,
+        boxHeight: Int,
+    ): Placement {
+        val scale = min(boxWidth.toDouble() / branch.width, boxHeight.toDouble() / branch.height)
+        val width = (branch.width * scale).toInt()
+        val height = (branch.height * scale).toInt()
+        return Placement(x + (boxWidth - width) / 2, y + (boxHeight - height) / 2, width, height, 0)
+    }
+
+    override fun pushVideoData(
+        data: FragmentChain,
+        offset: Int,
+        arrivalNs: Long,
+        timestampMs: Long,
+    ) = push(day, data, offset)
+
+    /**
+     * Push the bytes of a heat stream message from [offset] on.
+     */
+    fun pushHeatData(
+        data: FragmentChain,
+        offset: Int,
+    ) = push(heat, data, offset)
+
+    private fun push(
+        branch: Branch,
+        data: FragmentChain,
+        offset: Int,
+    ) {
+        // Fast path - volatile reads only, no lock
+        if (pipeline == null || !callback.isRunning() || paused || !branch.visible) {
+            return
+        }
+
+        if (branch.awaitingKeyframe) {
+            if (!H264Utils.containsKeyframe(data, offset) &&
+                branch.framesSkipped.incrementAndGet() < Constants.KEYFRAME_WAIT_MAX_FRAMES
+            ) {
+                return
+            }
+            branch.awaitingKeyframe = false
+        }
+
+        if (!pipelineLock.tryLock()) {
+            return
+        }
+
+        var buffer: Buffer? = null
+        try {
+            val src = branch.appsrc
+            if (pipeline == null || src == null) {
+                return
+            }
+
+            buffer = acquireBuffer(data.size() - offset)
+            data.copyTo(buffer.map(true), offset)
+            buffer.unmap()
+
+            when (val ret = src.pushBuffer(buffer)) {
+                FlowReturn.OK -> {
+                    buffer = null
+                    if (!overlaySet && pendingVideoComponent != null) {
+                        setupVideoOverlay()
+                    }
+                }
+                FlowReturn.FLUSHING -> {
+                    // Pipeline is flushing, normal during shutdown
+                }
+                else -> {
+                    if (callback.isRunning()) {
+                        callback.onLog("ERROR", "Error pushing ${branch.id} buffer: $ret")
+                    }
+                }
+            }
+        } finally {
+            pipelineLock.unlock()
+            buffer?.dispose()
+        }
+    }
+
+    private fun setupVideoOverlay() {
+        val component = pendingVideoComponent ?: return
+        val sink = videosink ?: return
+        try {
+            val windowHandle = GStreamerPipeline.nativeWindowHandle(component)
+            if (windowHandle != 0L) {
+                VideoOverlay.wrap(sink).setWindowHandle(windowHandle)
+                overlaySet = true
+            } else {
+                callback.onLog("WARN", "Could not get native window handle for video component")
+            }
+        } catch (e: Exception) {
+            callback.onLog("ERROR", "Failed to setup video overlay: ${e.message}")
+        }
+    }
+
+    override fun flushAllLocked() = branches.forEach { flushBranchLocked(it) }
+
+    override fun flushPrimaryLocked() = flushBranchLocked(day)
+
+    /**
+     * Flush the heat branch after its WebSocket reconnected in place.
+     */
+    fun flushHeat() {
+        pipelineLock.lock()
+        try {
+            if (pipeline == null) return
+            flushBranchLocked(heat)
+        } finally {
+            pipelineLock.unlock()
+        }
+    }
+
+    private fun flushBranchLocked(branch: Branch) {
+        val src = branch.appsrc ?: return
+        flushSource(src)
+        branch.awaitingKeyframe = true
+        branch.framesSkipped.set(0)
+    }
+
+    override fun decoderThreadsLocked(): List<Pair<Element, Int>> =
+        branches.mapNotNull { branch -> branch.decoder?.let { it to threadsFor(branch) } }
+
+    override fun clearLocked() {
+        videosink = null
+        branches.forEach { it.clear() }
+    }
+
+    private fun Branch.clear() {
+        appsrc = null
+        decoder = null
+        pad = null
+        visible = true
+        awaitingKeyframe = true
+        framesSkipped.set(0)
+    }
+
+    companion object {
+        /**
+         * System property with the initial layout id, e.g. "side-by-side".
+         */
+        const val LAYOUT_PROPERTY = "potatoclient.composite.layout"
+
+        // GstCompositorBackground: 0 checker, 1 black
+        private const val COMPOSITOR_BACKGROUND_BLACK = 1
+    }
+}
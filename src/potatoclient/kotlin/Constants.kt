@@ -13,6 +13,15 @@ object Constants {
     const val QUEUE_MAX_BUFFERS = 5
     const val QUEUE_MAX_TIME_NS = 1_000_000_000L // 1 second
     const val FRAME_LOG_INTERVAL = 300
+    const val KEYFRAME_WAIT_MAX_FRAMES = 150L // Stop waiting for an IDR after ~5 s at 30 fps
+    const val SCALE_STEP_PX = 64 // Window-size-aware scaling renegotiates in steps of this width
+    const val JITTER_MIN_MS = 50L // Smallest latency budget of the opt-in jitter buffer
+    const val JITTER_QUEUE_HEADROOM_NS = 500_000_000L // Queue time beyond the largest jitter budget
+    const val THUMBNAIL_WIDTH = 160 // Default width of live thumbnails sent to the main process
+
+    // Metrics reporting
+    const val METRICS_REPORT_INTERVAL_MS = 5_000L
+    const val HEARTBEAT_INTERVAL_MS = 1_000L // Liveness record for the main process's stall watchdog
 
     // Thread pool sizes
     const val EVENT_THROTTLE_POOL_SIZE = 2
@@ -29,15 +38,39 @@ object Constants {
         const val HEAT_STREAM_WIDTH = 900
         const val HEAT_STREAM_HEIGHT = 720
 
+        const val DAY_STREAM_ID = "day"
+        const val DAY_STREAM_WIDTH = 1920
+        const val DAY_STREAM_HEIGHT = 1080
+
         const val DAY_STREAM_DISPLAY_WIDTH = 960
         const val DAY_STREAM_DISPLAY_HEIGHT = 540
     }
 
+    // Combined heat + day mode: compositor canvas and picture-in-picture inset
+    object Composite {
+        const val CANVAS_WIDTH = 1280
+        const val CANVAS_HEIGHT = 720
+        const val FRAMERATE = 30
+        const val PIP_WIDTH_FRACTION = 0.3
+        const val PIP_MARGIN = 16
+    }
+
     // WebSocket headers
     const val WS_USER_AGENT = "VideoStreamManager/1.0"
     const val WS_CACHE_CONTROL = "no-cache"
     const val WS_PRAGMA = "no-cache"
 
+    // Shared HttpClient (one per process, reused across reconnects)
+    const val HTTP_CLIENT_THREADS = 2
+    const val TLS_SESSION_CACHE_SIZE = 16
+    const val TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60
+
+    // Reconnect backoff (mirrors calculate-backoff-delay in the state ingress)
+    const val RECONNECT_BASE_DELAY_MS = 1_000L
+    const val RECONNECT_MAX_DELAY_MS = 30_000L
+    const val RECONNECT_MAX_DOUBLINGS = 5
+    const val RECONNECT_JITTER_FRACTION = 0.1
+
     // GStreamer pipeline
     const val H264_CAPS = "video/x-h264,stream-format=byte-stream,alignment=nal"
     const val GSTREAMER_APP_NAME = "VideoStreamManager"
@@ -47,7 +80,17 @@ object Constants {
     const val STRING_WRITER_INITIAL_SIZE = 512
     const val MAP_INITIAL_CAPACITY = 8
 
-    // Buffer pooling
-    const val BUFFER_POOL_SIZE = 10
-    const val MAX_BUFFER_SIZE = 2 * 1024 * 1024 // 2MB max frame size
+    // DVR ring: seconds of each stream kept in a memory-mapped file, capped by its size
+    const val DVR_RING_SECONDS = 30L
+    const val DVR_RING_MAX_BYTES = 64 * 1024 * 1024
+
+    // appsrc input buffer pools: bucket size to max buffers per bucket.
+    // Larger frames get exact-size one-off buffers.
+    val INPUT_POOL_BUCKETS =
+        listOf(
+            64 * 1024 to 16,
+            256 * 1024 to 8,
+            1024 * 1024 to 4,
+            4 * 1024 * 1024 to 2,
+        )
 }
@@ -0,0 +1,527 @@
+package potatoclient.kotlin
+
+import org.freedesktop.gstreamer.Buffer
+import org.freedesktop.gstreamer.Bus
+import org.freedesktop.gstreamer.Caps
+import org.freedesktop.gstreamer.Element
+import org.freedesktop.gstreamer.ElementFactory
+import org.freedesktop.gstreamer.Format
+import org.freedesktop.gstreamer.Gst
+import org.freedesktop.gstreamer.Pad
+import org.freedesktop.gstreamer.PadProbeReturn
+import org.freedesktop.gstreamer.PadProbeType
+import org.freedesktop.gstreamer.Pipeline
+import org.freedesktop.gstreamer.elements.AppSrc
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.channels.OverlappingFileLockException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.Properties
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * One-time H.264 decoder capability probe with a persisted ranking.
+ *
+ * Every available decoder decodes a small synthetic clip; decoders that
+ * output all frames are ranked by throughput and the result is stored in
+ * the config directory. Starts with a cached ranking build the fastest
+ * known-good decoder directly. Without one, a stream starts with the
+ * static order while the probe runs in the background; the standby
+ * process probes up front since nothing waits for it.
+ *
+ * The cache is keyed by GStreamer version and the installed candidate
+ * decoders, so a GStreamer upgrade or installing or removing a decoder
+ * re-probes. A lock file makes sure only one process probes at a time.
+ */
+object DecoderProbe {
+    private const val CACHE_FILE_NAME = "decoder-probe.properties"
+    private const val LOCK_FILE_NAME = "decoder-probe.lock"
+    private const val PROBE_TIMEOUT_MS = 5_000L
+    private const val MIN_DECODED_RATIO = 0.9
+
+    data class ProbeResult(
+        val decoder: String,
+        val framesDecoded: Int,
+        val startupMs: Long,
+        val framesPerSecond: Double,
+    )
+
+    @Volatile private var memoized: List<String>? = null
+    private val backgroundProbe = AtomicBoolean(false)
+
+    /**
+     * Return decoder candidates ordered by measured performance.
+     * Known-good decoders from the cache (or a fresh probe) come first,
+     * followed by the remaining [candidates] in their static order as fallbacks.
+     *
+     * On a cache miss the static order is returned right away and the probe
+     * runs on a background thread, unless [blocking] asks to wait for it.
+     *
+     * @param configDir directory of the cache, or null to use the static order
+     * @param beforeProbe invoked once before probing, e.g. to rescan plugins
+     */
+    fun rankedDecoders(
+        candidates: Array<String>,
+        callback: GStreamerPipeline.EventCallback,
+        configDir: File?,
+        blocking: Boolean = false,
+        beforeProbe: () -> Unit,
+    ): List<String> {
+        memoized?.let { return it }
+
+        val cacheFile = configDir?.let { File(it, CACHE_FILE_NAME) }
+        if (cacheFile == null) {
+            callback.onLog("DEBUG", "No config directory set, using static decoder order")
+            return candidates.toList()
+        }
+
+        val version = Gst.getVersionString()
+        val installedKey = installedKey(candidates)
+        loadRanking(cacheFile, version, installedKey, callback)?.let {
+            return remember(it, candidates)
+        }
+
+        if (blocking) {
+            return probeExclusive(cacheFile, version, installedKey, candidates, callback, beforeProbe)
+                ?.let { remember(it, candidates) }
+                ?: candidates.toList()
+        }
+
+        if (backgroundProbe.compareAndSet(false, true)) {
+            callback.onLog("INFO", "No cached decoder ranking, using static order while probing in the background")
+            Thread {
+                try {
+                    probeExclusive(cacheFile, version, installedKey, candidates, callback, beforeProbe)
+                        ?.let { remember(it, candidates) }
+                } catch (e: Exception) {
+                    callback.onLog("WARN", "Background decoder probe failed: ${e.message}")
+                } finally {
+                    backgroundProbe.set(false)
+                }
+            }.apply {
+                name = "decoder-probe"
+                isDaemon = true
+                priority = Thread.MIN_PRIORITY
+                start()
+            }
+        }
+        return candidates.toList()
+    }
+
+    /**
+     * Forget the persisted ranking so the next stream start probes again.
+     */
+    fun invalidate(configDir: File?) {
+        memoized = null
+        configDir?.let { File(it, CACHE_FILE_NAME).delete() }
+    }
+
+    private fun installedKey(candidates: Array<String>): String =
+        candidates.filter { ElementFactory.find(it) != null }.joinToString(",")
+
+    private fun remember(
+        ranking: List<String>,
+        candidates: Array<String>,
+    ): List<String> {
+        val ordered = ranking + candidates.filterNot { it in ranking }
+        memoized = ordered
+        return ordered
+    }
+
+    /**
+     * Probe and save the ranking while holding the lock file. Returns null
+     * if another process holds it; a ranking that process saved meanwhile
+     * is picked up instead of probing again.
+     */
+    private fun probeExclusive(
+        cacheFile: File,
+        version: String,
+        installedKey: String,
+        candidates: Array<String>,
+        callback: GStreamerPipeline.EventCallback,
+        beforeProbe: () -> Unit,
+    ): List<String>? {
+        val dir = cacheFile.parentFile ?: return null
+        return try {
+            Files.createDirectories(dir.toPath())
+            FileChannel
+                .open(
+                    File(dir, LOCK_FILE_NAME).toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                ).use { channel ->
+                    val lock = channel.tryLock()
+                    if (lock == null) {
+                        callback.onLog("INFO", "Another process is probing decoders, using static order")
+                        return null
+                    }
+                    lock.use {
+                        loadRanking(cacheFile, version, installedKey, callback) ?: run {
+                            beforeProbe()
+                            val results = probeAll(candidates, callback)
+                            saveRanking(cacheFile, version, installedKey, results, callback)
+                            results.map { it.decoder }
+                        }
+                    }
+                }
+        } catch (e: IOException) {
+            callback.onLog("WARN", "Failed to lock decoder probe cache: ${e.message}")
+            null
+        } catch (e: OverlappingFileLockException) {
+            // Another thread of this process holds the lock
+            null
+        }
+    }
+
+    private fun loadRanking(
+        file: File,
+        version: String,
+        installedKey: String,
+        callback: GStreamerPipeline.EventCallback,
+    ): List<String>? {
+        if (!file.isFile) {
+            return null
+        }
+        return try {
+            val props = Properties()
+            file.inputStream().use { props.load(it) }
+            if (props.getProperty("gstreamer.version") != version ||
+                props.getProperty("installed") != installedKey
+            ) {
+                callback.onLog("INFO", "Decoder probe cache is stale, re-probing")
+                return null
+            }
+            val ranking = props.getProperty("ranking").orEmpty().split(",").filter { it.isNotEmpty() }
+            callback.onLog("INFO", "Using cached decoder ranking: ${ranking.joinToString()}")
+            ranking
+        } catch (e: IOException) {
+            callback.onLog("WARN", "Failed to read decoder probe cache: ${e.message}")
+            null
+        } catch (e: IllegalArgumentException) {
+            callback.onLog("WARN", "Malformed decoder probe cache: ${e.message}")
+            null
+        }
+    }
+
+    private fun saveRanking(
+        file: File,
+        version: String,
+        installedKey: String,
+        results: List<ProbeResult>,
+        callback: GStreamerPipeline.EventCallback,
+    ) {
+        val props = Properties()
+        props.setProperty("gstreamer.version", version)
+        props.setProperty("installed", installedKey)
+        props.setProperty("probed-at", System.currentTimeMillis().toString())
+        props.setProperty("ranking", results.joinToString(",") { it.decoder })
+        results.forEach { r ->
+            props.setProperty("decoder.${r.decoder}.fps", String.format(java.util.Locale.US, "%.1f", r.framesPerSecond))
+            props.setProperty("decoder.${r.decoder}.startup-ms", r.startupMs.toString())
+        }
+        // Each process writes its own temp file, then swaps it in atomically,
+        // so readers never see a truncated or interleaved cache
+        val tmp = File(file.parentFile, "$CACHE_FILE_NAME.${ProcessHandle.current().pid()}.tmp")
+        try {
+            tmp.outputStream().use { props.store(it, "PotatoClient H.264 decoder probe results") }
+            Files.move(
+                tmp.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE,
+            )
+        } catch (e: IOException) {
+            tmp.delete()
+            callback.onLog("WARN", "Failed to write decoder probe cache: ${e.message}")
+        }
+    }
+
+    private fun probeAll(
+        candidates: Array<String>,
+        callback: GStreamerPipeline.EventCallback,
+    ): List<ProbeResult> {
+        callback.onLog("INFO", "Probing H.264 decoders (one-time)...")
+        val clip = ProbeClip.accessUnits()
+        val results =
+            candidates
+                .filter { ElementFactory.find(it) != null }
+                .mapNotNull { name ->
+                    try {
+                        probeDecoder(name, clip, callback)
+                    } catch (e: Exception) {
+                        callback.onLog("DEBUG", "Decoder probe failed for $name: ${e.message}")
+                        null
+                    }
+                }.sortedWith(compareByDescending<ProbeResult> { it.framesPerSecond }.thenBy { it.startupMs })
+
+        results.forEach { r ->
+            callback.onLog(
+                "INFO",
+                String.format(
+                    java.util.Locale.US,
+                    "Decoder %s: %.1f fps, first frame after %d ms",
+                    r.decoder,
+                    r.framesPerSecond,
+                    r.startupMs,
+                ),
+            )
+        }
+        return results
+    }
+
+    private fun probeDecoder(
+        name: String,
+        clip: List<ByteArray>,
+        callback: GStreamerPipeline.EventCallback,
+    ): ProbeResult? {
+        val startNs = System.nanoTime()
+        val pipeline = Pipeline("decoder-probe")
+        val decoded = AtomicInteger(0)
+        val firstFrameNs = AtomicLong(0)
+        val lastFrameNs = AtomicLong(0)
+        val failed = AtomicBoolean(false)
+        val done = CountDownLatch(1)
+
+        try {
+            val src =
+                AppSrc("probe-src").apply {
+                    set("caps", Caps.fromString(Constants.H264_CAPS))
+                    set("format", Format.TIME)
+                    set("block", true)
+                }
+            val decoder = ElementFactory.make(name, "probe-decoder") ?: return null
+            val sink =
+                ElementFactory.make("fakesink", "probe-sink").apply {
+                    set("sync", false)
+                    set("async", false)
+                }
+
+            sink.getStaticPad("sink").addProbe(
+                PadProbeType.BUFFER,
+                Pad.PROBE { _, _ ->
+                    val now = System.nanoTime()
+                    firstFrameNs.compareAndSet(0, now)
+                    lastFrameNs.set(now)
+                    if (decoded.incrementAndGet() >= clip.size) {
+                        done.countDown()
+                    }
+                    PadProbeReturn.OK
+                },
+            )
+
+            if (name == "decodebin") {
+                pipeline.addMany(src, decoder, sink)
+                src.link(decoder)
+                decoder.connect(
+                    Element.PAD_ADDED { _, pad ->
+                        val sinkPad = sink.getStaticPad("sink")
+                        if (!sinkPad.isLinked) {
+                            pad.link(sinkPad)
+                        }
+                    },
+                )
+            } else {
+                val parse = ElementFactory.make("h264parse", "probe-parse") ?: return null
+                pipeline.addMany(src, parse, decoder, sink)
+                Element.linkMany(src, parse, decoder, sink)
+            }
+
+            pipeline.bus.connect(
+                Bus.ERROR { _, _, message ->
+                    callback.onLog("DEBUG", "Decoder probe error for $name: $message")
+                    failed.set(true)
+                    done.countDown()
+                },
+            )
+            pipeline.bus.connect(Bus.EOS { done.countDown() })
+
+            pipeline.play()
+            clip.forEachIndexed { i, au ->
+                val buffer = Buffer(au.size)
+                buffer.map(true).put(au)
+                buffer.unmap()
+                buffer.presentationTimestamp = i * ProbeClip.FRAME_DURATION_NS
+                src.pushBuffer(buffer)
+            }
+            src.endOfStream()
+
+            done.await(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        } finally {
+            pipeline.stop()
+            pipeline.dispose()
+        }
+
+        val frames = decoded.get()
+        if (failed.get() || frames < clip.size * MIN_DECODED_RATIO || frames < 2) {
+            callback.onLog("INFO", "Decoder $name failed probe ($frames/${clip.size} frames)")
+            return null
+        }
+
+        val decodeNs = (lastFrameNs.get() - firstFrameNs.get()).coerceAtLeast(1)
+        return ProbeResult(
+            decoder = name,
+            framesDecoded = frames,
+            startupMs = TimeUnit.NANOSECONDS.toMillis(firstFrameNs.get() - startNs),
+            framesPerSecond = (frames - 1) * 1e9 / decodeNs,
+        )
+    }
+
+    /**
+     * Small synthetic H.264 clip embedded as code rather than a binary resource.
+     *
+     * Constrained-baseline, all-IDR frames made of I_PCM macroblocks with a
+     * moving gradient. I_PCM keeps the bitstream writer trivial while still
+     * exercising parsing, buffer allocation and output on every decoder.
+     */
+    private object ProbeClip {
+        const val FRAME_DURATION_NS = 33_333_333L
+        private const val WIDTH_MBS = 20 // 320 px
+        private const val HEIGHT_MBS = 15 // 240 px
+        private const val FRAME_COUNT = 60
+        private const val MB_TYPE_I_PCM = 25
+
+        fun accessUnits(): List<ByteArray> =
+            List(FRAME_COUNT) { i ->
+                val slice = nal(0x65, idrSlice(i))
+                if (i == 0) nal(0x67, sps()) + nal(0x68, pps()) + slice else slice
+            }
+
+        private fun sps(): ByteArray =
+            BitWriter()
+                .apply {
+                    bits(66, 8) // profile_idc: baseline
+                    bits(0xC0, 8) // constraint_set0/1: constrained baseline
+                    bits(30, 8) // level_idc 3.0
+                    ue(0) // seq_parameter_set_id
+                    ue(0) // log2_max_frame_num_minus4
+                    ue(2) // pic_order_cnt_type
+                    ue(1) // max_num_ref_frames
+                    bit(0) // gaps_in_frame_num_value_allowed_flag
+                    ue(WIDTH_MBS - 1)
+                    ue(HEIGHT_MBS - 1)
+                    bit(1) // frame_mbs_only_flag
+                    bit(1) // direct_8x8_inference_flag
+                    bit(0) // frame_cropping_flag
+                    bit(0) // vui_parameters_present_flag
+                    trailingBits()
+                }.toByteArray()
+
+        private fun pps(): ByteArray =
+            BitWriter()
+                .apply {
+                    ue(0) // pic_parameter_set_id
+                    ue(0) // seq_parameter_set_id
+                    bit(0) // entropy_coding_mode_flag: CAVLC
+                    bit(0) // bottom_field_pic_order_in_frame_present_flag
+                    ue(0) // num_slice_groups_minus1
+                    ue(0) // num_ref_idx_l0_default_active_minus1
+                    ue(0) // num_ref_idx_l1_default_active_minus1
+                    bit(0) // weighted_pred_flag
+                    bits(0, 2) // weighted_bipred_idc
+                    se(0) // pic_init_qp_minus26
+                    se(0) // pic_init_qs_minus26
+                    se(0) // chroma_qp_index_offset
+                    bit(0) // deblocking_filter_control_present_flag
+                    bit(0) // constrained_intra_pred_flag
+                    bit(0) // redundant_pic_cnt_present_flag
+                    trailingBits()
+                }.toByteArray()
+
+        private fun idrSlice(frame: Int): ByteArray =
+            BitWriter()
+                .apply {
+                    ue(0) // first_mb_in_slice
+                    ue(7) // slice_type: I (all slices)
+                    ue(0) // pic_parameter_set_id
+                    bits(0, 4) // frame_num
+                    ue(frame and 1) // idr_pic_id differs between consecutive IDRs
+                    bit(0) // no_output_of_prior_pics_flag
+                    bit(0) // long_term_reference_flag
+                    se(0) // slice_qp_delta
+                    repeat(WIDTH_MBS * HEIGHT_MBS) { mb ->
+                        ue(MB_TYPE_I_PCM)
+                        alignZero() // pcm_alignment_zero_bit
+                        val shade = 16 + ((mb + frame * 4) and 0xBF)
+                        repeat(256) { bits(shade, 8) } // luma
+                        repeat(128) { bits(128, 8) } // chroma
+                    }
+                    trailingBits()
+                }.toByteArray()
+
+        /**
+         * Wrap an RBSP into an Annex-B NAL unit with emulation prevention.
+         */
+        private fun nal(
+            header: Int,
+            rbsp: ByteArray,
+        ): ByteArray {
+            val out = ByteArrayOutputStream(rbsp.size + 16)
+            out.write(byteArrayOf(0, 0, 0, 1))
+            out.write(header)
+            var zeros = 0
+            for (b in rbsp) {
+                val v = b.toInt() and 0xFF
+                if (zeros >= 2 && v <= 3) {
+                    out.write(3)
+                    zeros = 0
+                }
+                out.write(v)
+                zeros = if (v == 0) zeros + 1 else 0
+            }
+            return out.toByteArray()
+        }
+    }
+
+    /**
+     * Minimal MSB-first bit writer with Exp-Golomb codes.
+     */
+    private class BitWriter {
+        private val out = ByteArrayOutputStream()
+        private var current = 0
+        private var bitCount = 0
+
+        fun bit(b: Int) {
+            current = (current shl 1) or (b and 1)
+            if (++bitCount == 8) {
+                out.write(current)
+                current = 0
+                bitCount = 0
+            }
+        }
+
+        fun bits(
+            value: Int,
+            n: Int,
+        ) {
+            for (i in n - 1 downTo 0) bit(value ushr i)
+        }
+
+        fun ue(value: Int) {
+            val v = value + 1
+            val len = 32 - Integer.numberOfLeadingZeros(v)
+            bits(0, len - 1)
+            bits(v, len)
+        }
+
+        fun se(value: Int) = ue(if (value > 0) 2 * value - 1 else -2 * value)
+
+        fun alignZero() {
+            while (bitCount != 0) bit(0)
+        }
+
+        fun trailingBits() {
+            bit(1)
+            alignZero()
+        }
+
+        fun toByteArray(): ByteArray = out.toByteArray()
+    }
+}
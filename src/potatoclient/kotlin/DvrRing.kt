@@ -0,0 +1,300 @@
+package potatoclient.kotlin
+
+import org.freedesktop.gstreamer.Buffer
+import org.freedesktop.gstreamer.Bus
+import org.freedesktop.gstreamer.Caps
+import org.freedesktop.gstreamer.Element
+import org.freedesktop.gstreamer.ElementFactory
+import org.freedesktop.gstreamer.FlowReturn
+import org.freedesktop.gstreamer.Format
+import org.freedesktop.gstreamer.Pipeline
+import org.freedesktop.gstreamer.State
+import org.freedesktop.gstreamer.elements.AppSrc
+import java.io.File
+import java.io.IOException
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Rolling recording of the last seconds of one stream's H.264 access units.
+ *
+ * Frames are copied into a memory-mapped ring file straight from the
+ * WebSocket fragment chunks, so the live path pays one copy into the page
+ * cache and no allocation beyond the index entry. The in-memory index keeps
+ * each frame's position, header timestamp and duration and whether it starts
+ * with SPS/IDR; it is bounded by [maxSeconds] and by the file size.
+ *
+ * Positions are logical byte offsets that only grow; a frame is intact while
+ * the writer has not reserved past `position + capacity`. Exports run on a
+ * background thread, copy one frame at a time and stop early if a frame was
+ * overwritten while they were reading it.
+ *
+ * [append] is called from the single WebSocket callback thread.
+ */
+class DvrRing private constructor(
+    private val streamId: String,
+    private val channel: FileChannel,
+    private val capacity: Int,
+    private val maxSeconds: Long,
+    private val callback: GStreamerPipeline.EventCallback,
+) : AutoCloseable {
+    private class Entry(
+        val position: Long,
+        val length: Int,
+        val timestampMs: Long,
+        val durationMs: Long,
+        val keyframe: Boolean,
+    )
+
+    private val ring: MappedByteBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity.toLong())
+    private val index = ArrayDeque<Entry>()
+    private val indexLock = Any()
+
+    // End of the last reserved region; bytes before reservedEnd - capacity are gone
+    @Volatile private var reservedEnd = 0L
+
+    @Volatile private var closed = false
+
+    /**
+     * Record the access unit in [data] from [offset] on.
+     */
+    fun append(
+        data: FragmentChain,
+        offset: Int,
+        timestampMs: Long,
+        durationMs: Long,
+    ) {
+        val length = data.size() - offset
+        if (closed || length <= 0 || length > capacity) {
+            return
+        }
+
+        // Frames never wrap: skip the tail of the file if this one does not fit
+        var position = reservedEnd
+        if (position % capacity + length > capacity) {
+            position = (position / capacity + 1) * capacity
+        }
+        val entry = Entry(position, length, timestampMs, durationMs, H264Utils.containsKeyframe(data, offset))
+
+        // Reserve before writing so exports reading the old bytes notice
+        reservedEnd = position + length
+        val physical = (position % capacity).toInt()
+        data.copyTo(ring.duplicate().position(physical).limit(physical + length), offset)
+
+        synchronized(indexLock) {
+            while (index.isNotEmpty() && isStale(index.first(), timestampMs)) {
+                index.removeFirst()
+            }
+            index.addLast(entry)
+        }
+    }
+
+    private fun isStale(
+        entry: Entry,
+        newestMs: Long,
+    ): Boolean = !isIntact(entry) || newestMs - entry.timestampMs > maxSeconds * MS_PER_SECOND
+
+    private fun isIntact(entry: Entry): Boolean = entry.position >= reservedEnd - capacity
+
+    /**
+     * Export up to [seconds] of the recording, starting at a keyframe, into
+     * [target] in the background. The container follows the extension
+     * (.mkv for Matroska, MP4 otherwise). [onDone] receives a summary.
+     */
+    fun export(
+        target: File,
+        seconds: Long,
+        onDone: (Map<String, Any>) -> Unit,
+    ) {
+        val frames = snapshot(seconds)
+        EXPORT_EXECUTOR.execute {
+            val started = System.nanoTime()
+            val result =
+                try {
+                    writeContainer(target, frames)
+                } catch (e: Exception) {
+                    mapOf("ok" to false, "error" to (e.message ?: e.javaClass.simpleName))
+                }
+            onDone(
+                result +
+                    mapOf(
+                        "stream" to streamId,
+                        "path" to target.absolutePath,
+                        "export-ms" to (System.nanoTime() - started) / NS_PER_MS,
+                    ),
+            )
+        }
+    }
+
+    private fun snapshot(seconds: Long): List<Entry> =
+        synchronized(indexLock) {
+            val newest = index.lastOrNull() ?: return emptyList()
+            val from = newest.timestampMs - seconds * MS_PER_SECOND
+            val start =
+                index.indexOfFirst { it.keyframe && it.timestampMs >= from }.takeIf { it >= 0 }
+                    ?: index.indexOfFirst { it.keyframe }.takeIf { it >= 0 }
+                    ?: return emptyList()
+            index.drop(start)
+        }
+
+    private fun writeContainer(
+        target: File,
+        frames: List<Entry>,
+    ): Map<String, Any> {
+        if (frames.isEmpty()) {
+            return mapOf("ok" to false, "error" to "No keyframe recorded yet")
+        }
+        target.absoluteFile.parentFile?.mkdirs()
+
+        val pipeline = Pipeline("dvr-export-$streamId")
+        val finished = CountDownLatch(1)
+        val error = AtomicReference<String?>(null)
+        pipeline.bus.connect(Bus.EOS { finished.countDown() })
+        pipeline.bus.connect(
+            Bus.ERROR { _, _, message ->
+                error.set(message)
+                finished.countDown()
+            },
+        )
+
+        var written = 0
+        var bytes = 0L
+        try {
+            val src =
+                AppSrc("dvr-src").apply {
+                    set("is-live", false)
+                    set("format", Format.TIME)
+                    set("caps", Caps.fromString(Constants.H264_CAPS))
+                    set("block", true)
+                    set("max-bytes", EXPORT_QUEUE_BYTES)
+                }
+            val parse = ElementFactory.make("h264parse", "dvr-parse")
+            val muxer = ElementFactory.make(if (target.name.endsWith(".mkv")) "matroskamux" else "mp4mux", "dvr-mux")
+            val sink = ElementFactory.make("filesink", "dvr-sink").apply { set("location", target.absolutePath) }
+            pipeline.addMany(src, parse, muxer, sink)
+            Element.linkMany(src, parse, muxer, sink)
+            pipeline.play()
+
+            val view = ring.duplicate()
+            val firstMs = frames.first().timestampMs
+            var lastPtsNs = 0L
+            for (frame in frames) {
+                if (closed || error.get() != null) {
+                    break
+                }
+                val buffer = Buffer(frame.length)
+                val physical = (frame.position % capacity).toInt()
+                buffer.map(true).put(view.duplicate().position(physical).limit(physical + frame.length))
+                buffer.unmap()
+                // The writer may have lapped us while copying
+                if (!isIntact(frame)) {
+                    buffer.dispose()
+                    callback.onLog("WARN", "DVR export of $streamId overtaken by the live stream, truncating")
+                    break
+                }
+                lastPtsNs = maxOf(lastPtsNs, (frame.timestampMs - firstMs) * NS_PER_MS)
+                buffer.presentationTimestamp = lastPtsNs
+                buffer.duration = frame.durationMs * NS_PER_MS
+                if (src.pushBuffer(buffer) != FlowReturn.OK) {
+                    break
+                }
+                written++
+                bytes += frame.length
+            }
+            src.endOfStream()
+
+            if (!finished.await(EXPORT_FINISH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                error.compareAndSet(null, "Timed out finishing ${target.name}")
+            }
+        } finally {
+            pipeline.state = State.NULL
+            pipeline.dispose()
+        }
+
+        val failure = error.get()
+        if (failure != null) {
+            target.delete()
+            return mapOf("ok" to false, "error" to failure, "frames" to written)
+        }
+        return mapOf(
+            "ok" to true,
+            "frames" to written,
+            "bytes" to bytes,
+            "duration-ms" to frames[(written - 1).coerceAtLeast(0)].timestampMs - frames.first().timestampMs,
+        )
+    }
+
+    /**
+     * Stop recording and delete the ring file. A running export finishes
+     * early with what it has copied so far.
+     */
+    override fun close() {
+        closed = true
+        synchronized(indexLock) {
+            index.clear()
+        }
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            callback.onLog("DEBUG", "Failed to close DVR ring for $streamId: ${e.message}")
+        }
+    }
+
+    companion object {
+        /**
+         * System property with the seconds to keep; 0 disables the ring.
+         */
+        const val SECONDS_PROPERTY = "potatoclient.dvr.seconds"
+
+        private const val MS_PER_SECOND = 1_000L
+        private const val NS_PER_MS = 1_000_000L
+        private const val EXPORT_QUEUE_BYTES = 4L * 1024 * 1024
+        private const val EXPORT_FINISH_TIMEOUT_MS = 10_000L
+
+        private val EXPORT_EXECUTOR: ExecutorService by lazy {
+            Executors.newSingleThreadExecutor { r ->
+                Thread(r, "DVR-Export").apply { isDaemon = true }
+            }
+        }
+
+        /**
+         * Map a ring file for [streamId] in the temp directory, or return
+         * null when recording is disabled or the file cannot be mapped.
+         */
+        fun create(
+            streamId: String,
+            callback: GStreamerPipeline.EventCallback,
+            settings: StreamSettings,
+        ): DvrRing? {
+            val seconds = settings.get(SECONDS_PROPERTY)?.toLongOrNull() ?: Constants.DVR_RING_SECONDS
+            if (seconds <= 0) {
+                return null
+            }
+            val file =
+                File(
+                    System.getProperty("java.io.tmpdir"),
+                    "potatoclient-dvr-$streamId-${ProcessHandle.current().pid()}.ring",
+                )
+            return try {
+                val channel =
+                    FileChannel.open(
+                        file.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE,
+                    )
+                DvrRing(streamId, channel, Constants.DVR_RING_MAX_BYTES, seconds, callback)
+            } catch (e: IOException) {
+                callback.onLog("WARN", "DVR ring disabled for $streamId: ${e.message}")
+                null
+            }
+        }
+    }
+}
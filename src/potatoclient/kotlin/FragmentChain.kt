@@ -0,0 +1,123 @@
+package potatoclient.kotlin
+
+import java.nio.ByteBuffer
+
+/**
+ * Read-only scatter view over one WebSocket message.
+ *
+ * Multi-fragment messages are accumulated as a chain of fixed-size chunks
+ * taken from [pool], so an oversized IDR frame only borrows extra chunks for
+ * as long as it is in flight instead of growing one contiguous buffer.
+ * Single-fragment messages are wrapped without copying.
+ *
+ * The view is only valid during the message callback; the owner calls
+ * [clear] afterwards, which hands pooled chunks back to the pool.
+ */
+class FragmentChain(
+    private val pool: ByteBufferPool,
+) {
+    private val chunks = ArrayList<ByteBuffer>(INITIAL_CHUNKS)
+    private var borrowed: ByteBuffer? = null
+    private var size = 0
+
+    /**
+     * Total number of readable bytes in the message.
+     */
+    fun size(): Int = size
+
+    fun isEmpty(): Boolean = size == 0
+
+    /**
+     * Present [data] as the whole message without copying.
+     * The buffer is not owned by the chain and is never released to the pool.
+     */
+    fun wrap(data: ByteBuffer) {
+        clear()
+        borrowed = data
+        size = data.remaining()
+    }
+
+    /**
+     * Copy a fragment to the tail of the chain, taking new chunks as needed.
+     * Consumes [data].
+     */
+    fun append(data: ByteBuffer) {
+        check(borrowed == null) { "Cannot append to a wrapped buffer" }
+        size += data.remaining()
+        while (data.hasRemaining()) {
+            var tail = chunks.lastOrNull()
+            if (tail == null || !tail.hasRemaining()) {
+                tail = pool.acquire()
+                chunks.add(tail)
+            }
+            if (data.remaining() <= tail.remaining()) {
+                tail.put(data)
+            } else {
+                val limit = data.limit()
+                data.limit(data.position() + tail.remaining())
+                tail.put(data)
+                data.limit(limit)
+            }
+        }
+    }
+
+    /**
+     * Absolute byte read at [index] within the message.
+     */
+    fun get(index: Int): Byte {
+        borrowed?.let { return it.get(it.position() + index) }
+        val chunkSize = pool.getBufferSize()
+        return chunks[index / chunkSize].get(index % chunkSize)
+    }
+
+    /**
+     * Absolute little-endian long read at [index] within the message.
+     */
+    fun getLongLE(index: Int): Long {
+        var value = 0L
+        for (i in 7 downTo 0) {
+            value = (value shl 8) or (get(index + i).toLong() and 0xFF)
+        }
+        return value
+    }
+
+    /**
+     * Gather bytes from [offset] to the end of the message into [target].
+     */
+    fun copyTo(
+        target: ByteBuffer,
+        offset: Int,
+    ) {
+        val single = borrowed
+        if (single != null) {
+            target.put(single.duplicate().position(single.position() + offset))
+            return
+        }
+        val chunkSize = pool.getBufferSize()
+        var index = offset / chunkSize
+        var skip = offset % chunkSize
+        while (index < chunks.size) {
+            val chunk = chunks[index]
+            // Written chunks have position == bytes written; view [skip, position)
+            target.put(chunk.duplicate().flip().position(skip))
+            skip = 0
+            index++
+        }
+    }
+
+    /**
+     * Return pooled chunks and forget the message.
+     */
+    fun clear() {
+        for (chunk in chunks) {
+            pool.release(chunk)
+        }
+        chunks.clear()
+        borrowed = null
+        size = 0
+    }
+
+    companion object {
+        private const val INITIAL_CHUNKS = 16
+    }
+}
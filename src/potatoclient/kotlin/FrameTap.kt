@@ -0,0 +1,349 @@
+package potatoclient.kotlin
+
+import org.freedesktop.gstreamer.Caps
+import org.freedesktop.gstreamer.Element
+import org.freedesktop.gstreamer.ElementFactory
+import org.freedesktop.gstreamer.FlowReturn
+import org.freedesktop.gstreamer.Pad
+import org.freedesktop.gstreamer.PadLinkException
+import org.freedesktop.gstreamer.PadProbeReturn
+import org.freedesktop.gstreamer.PadProbeType
+import org.freedesktop.gstreamer.Pipeline
+import org.freedesktop.gstreamer.elements.AppSink
+import java.awt.image.BufferedImage
+import java.awt.image.DataBufferInt
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import javax.imageio.ImageIO
+
+/**
+ * Decoded-frame capture for snapshots and live thumbnails.
+ *
+ * A `tee` in front of the display branch has only that branch until the
+ * first snapshot or thumbnail request, so an unused tap takes no part in
+ * caps or allocation negotiation. The request links
+ * `valve ! queue ! videoconvert ! BGRx ! appsink` to a new tee pad while
+ * the tee's sink pad is idle; the branch then stays. The valve stays closed
+ * (dropping in the tee's thread, no copy, no queue wake-up) until a snapshot
+ * is pending or thumbnails are subscribed; a probe behind it then lets
+ * through only the frames that are due, so the branch runs at the thumbnail
+ * rate rather than the stream rate.
+ *
+ * Thumbnails are sampled straight from the mapped frame into a small RGB24
+ * array on the appsink thread. Snapshots copy the frame once into an image
+ * and are encoded to PNG or JPEG on a background thread, so neither path
+ * runs on the decoding or rendering thread.
+ */
+class FrameTap(
+    private val name: String,
+    private val callback: GStreamerPipeline.EventCallback,
+) {
+    private class SnapshotRequest(
+        val target: File,
+        val requestedNs: Long,
+        val onDone: (Map<String, Any>) -> Unit,
+    )
+
+    @Volatile private var pipeline: Pipeline? = null
+
+    @Volatile private var tee: Element? = null
+
+    @Volatile private var valve: Element? = null
+
+    private val pendingSnapshots = ConcurrentLinkedQueue<SnapshotRequest>()
+
+    @Volatile private var thumbnailIntervalNs = 0L
+
+    @Volatile private var thumbnailWidth = Constants.THUMBNAIL_WIDTH
+
+    @Volatile private var onThumbnail: ((Map<String, Any>) -> Unit)? = null
+
+    @Volatile private var nextThumbnailNs = 0L
+
+    /**
+     * Add the tee to [pipeline] and return it to link between the decoder and
+     * the display branch, or null when it cannot be created. The capture
+     * branch is linked right away only if thumbnails are already subscribed.
+     */
+    fun attach(pipeline: Pipeline): Element? {
+        val newTee = ElementFactory.make("tee", "$name-tee")
+        if (newTee == null) {
+            callback.onLog("WARN", "Frame capture unavailable: tee missing")
+            return null
+        }
+        pipeline.add(newTee)
+        this.pipeline = pipeline
+        tee = newTee
+        if (thumbnailIntervalNs > 0L) {
+            linkBranch()
+        }
+        return newTee
+    }
+
+    /**
+     * Build the capture branch and link it to a new tee pad once the tee's
+     * sink pad is idle. Returns false when the tap is not attached or the
+     * branch cannot be built.
+     */
+    @Synchronized
+    private fun linkBranch(): Boolean {
+        if (valve != null) {
+            return true
+        }
+        val p = pipeline ?: return false
+        val t = tee ?: return false
+        val tapValve = ElementFactory.make("valve", "$name-valve")
+        val queue = ElementFactory.make("queue", "$name-queue")
+        val convert = ElementFactory.make("videoconvert", "$name-convert")
+        val caps = ElementFactory.make("capsfilter", "$name-caps")
+        if (tapValve == null || queue == null || convert == null || caps == null) {
+            callback.onLog("WARN", "Frame capture unavailable: valve or videoconvert missing")
+            return false
+        }
+        tapValve.set("drop", true)
+        queue.apply {
+            set("leaky", 2)
+            set("max-size-buffers", 1)
+            set("max-size-time", 0L)
+            set("max-size-bytes", 0L)
+        }
+        caps.set("caps", Caps.fromString("video/x-raw,format=BGRx"))
+        val sink =
+            AppSink("$name-sink").apply {
+                set("emit-signals", true)
+                set("max-buffers", 1)
+                set("drop", true)
+                set("sync", false)
+                set("async", false)
+                connect(AppSink.NEW_SAMPLE { onSample(it) })
+            }
+
+        p.addMany(tapValve, queue, convert, caps, sink)
+        if (!Element.linkMany(tapValve, queue, convert, caps, sink)) {
+            callback.onLog("WARN", "Failed to link frame capture branch")
+            p.removeMany(tapValve, queue, convert, caps, sink)
+            return false
+        }
+        for (element in listOf(sink, caps, convert, queue, tapValve)) {
+            element.syncStateWithParent()
+        }
+
+        // Rate limit behind the valve: only due frames reach the converter
+        tapValve.getStaticPad("src")?.addProbe(
+            PadProbeType.BUFFER,
+            Pad.PROBE { _, _ -> if (isDue(System.nanoTime())) PadProbeReturn.OK else PadProbeReturn.DROP },
+        )
+
+        // Link between two buffers; runs right away while the tee is idle, e.g. before playing
+        val valveSink = tapValve.getStaticPad("sink")
+        t.getStaticPad("sink")?.addProbe(
+            PadProbeType.IDLE,
+            Pad.PROBE { _, _ ->
+                val teePad = t.getRequestPad("src_%u")
+                try {
+                    teePad.link(valveSink)
+                    callback.onLog("DEBUG", "Frame capture branch linked")
+                } catch (e: PadLinkException) {
+                    callback.onLog("WARN", "Failed to link frame capture branch: ${e.message}")
+                    t.releaseRequestPad(teePad)
+                }
+                PadProbeReturn.REMOVE
+            },
+        )
+        valve = tapValve
+        updateValve()
+        return true
+    }
+
+    /**
+     * Forget the branch after the pipeline was torn down. Pending snapshots
+     * fail; thumbnail subscriptions carry over to the next pipeline.
+     */
+    fun detach() {
+        valve = null
+        tee = null
+        pipeline = null
+        while (true) {
+            val request = pendingSnapshots.poll() ?: break
+            request.onDone(failure(request, "Pipeline stopped"))
+        }
+    }
+
+    /**
+     * Capture the next decoded frame into [target]; the format follows the
+     * extension (.jpg/.jpeg for JPEG, PNG otherwise).
+     */
+    fun snapshot(
+        target: File,
+        onDone: (Map<String, Any>) -> Unit,
+    ) {
+        val request = SnapshotRequest(target, System.nanoTime(), onDone)
+        if (!linkBranch()) {
+            onDone(failure(request, "No video pipeline"))
+            return
+        }
+        pendingSnapshots.add(request)
+        updateValve()
+    }
+
+    /**
+     * Deliver thumbnails [width] pixels wide at [fps] to [listener];
+     * 0 fps stops them.
+     */
+    fun setThumbnails(
+        fps: Int,
+        width: Int,
+        listener: (Map<String, Any>) -> Unit,
+    ) {
+        thumbnailWidth = width.coerceIn(MIN_THUMBNAIL_WIDTH, MAX_THUMBNAIL_WIDTH)
+        onThumbnail = listener
+        thumbnailIntervalNs = if (fps > 0) NS_PER_SECOND / fps.coerceAtMost(MAX_THUMBNAIL_FPS) else 0L
+        nextThumbnailNs = 0L
+        if (thumbnailIntervalNs > 0L) {
+            linkBranch()
+        }
+        updateValve()
+    }
+
+    @Synchronized
+    private fun updateValve() {
+        valve?.set("drop", pendingSnapshots.isEmpty() && thumbnailIntervalNs == 0L)
+    }
+
+    private fun isDue(now: Long): Boolean {
+        if (pendingSnapshots.isNotEmpty()) {
+            return true
+        }
+        val interval = thumbnailIntervalNs
+        if (interval == 0L || now < nextThumbnailNs) {
+            return false
+        }
+        nextThumbnailNs = now + interval
+        return true
+    }
+
+    private fun onSample(sink: AppSink): FlowReturn {
+        val sample = sink.pullSample() ?: return FlowReturn.OK
+        try {
+            val structure = sample.caps.getStructure(0)
+            val width = structure.getInteger("width")
+            val height = structure.getInteger("height")
+            val buffer = sample.buffer
+            val pixels = buffer.map(false) ?: return FlowReturn.OK
+            try {
+                pixels.order(ByteOrder.LITTLE_ENDIAN)
+                if (thumbnailIntervalNs > 0L) {
+                    onThumbnail?.invoke(thumbnail(pixels, width, height))
+                }
+                if (pendingSnapshots.isNotEmpty()) {
+                    captureSnapshots(pixels, width, height)
+                }
+            } finally {
+                buffer.unmap()
+            }
+        } catch (e: Exception) {
+            callback.onLog("WARN", "Frame capture failed: ${e.message}")
+        } finally {
+            sample.dispose()
+            updateValve()
+        }
+        return FlowReturn.OK
+    }
+
+    // Nearest-neighbour sample of the BGRx frame into packed RGB24
+    private fun thumbnail(
+        pixels: ByteBuffer,
+        width: Int,
+        height: Int,
+    ): Map<String, Any> {
+        val thumbWidth = minOf(thumbnailWidth, width)
+        val thumbHeight = maxOf(1, height * thumbWidth / width)
+        val stride = width * BYTES_PER_PIXEL
+        val rgb = ByteArray(thumbWidth * thumbHeight * 3)
+        var out = 0
+        for (y in 0 until thumbHeight) {
+            val row = (y * height / thumbHeight) * stride
+            for (x in 0 until thumbWidth) {
+                val at = row + (x * width / thumbWidth) * BYTES_PER_PIXEL
+                rgb[out++] = pixels.get(at + 2)
+                rgb[out++] = pixels.get(at + 1)
+                rgb[out++] = pixels.get(at)
+            }
+        }
+        return mapOf(
+            "width" to thumbWidth,
+            "height" to thumbHeight,
+            "format" to "rgb24",
+            "pixels" to rgb,
+            "captured-at" to System.currentTimeMillis(),
+        )
+    }
+
+    private fun captureSnapshots(
+        pixels: ByteBuffer,
+        width: Int,
+        height: Int,
+    ) {
+        // One copy into the image; BGRx read little-endian is 0x00RRGGBB
+        val image = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+        val data = (image.raster.dataBuffer as DataBufferInt).data
+        pixels.asIntBuffer().get(data, 0, minOf(data.size, pixels.remaining() / BYTES_PER_PIXEL))
+        val requests = generateSequence { pendingSnapshots.poll() }.toList()
+        ENCODE_EXECUTOR.execute {
+            for (request in requests) {
+                request.onDone(encode(request, image))
+            }
+        }
+    }
+
+    private fun encode(
+        request: SnapshotRequest,
+        image: BufferedImage,
+    ): Map<String, Any> {
+        val captureMs = (System.nanoTime() - request.requestedNs) / NS_PER_MS
+        val started = System.nanoTime()
+        val format = if (request.target.name.matches(JPEG_NAME)) "jpeg" else "png"
+        return try {
+            request.target.absoluteFile.parentFile?.mkdirs()
+            if (!ImageIO.write(image, format, request.target)) {
+                return failure(request, "No $format writer")
+            }
+            mapOf(
+                "ok" to true,
+                "path" to request.target.absolutePath,
+                "format" to format,
+                "width" to image.width,
+                "height" to image.height,
+                "capture-ms" to captureMs,
+                "encode-ms" to (System.nanoTime() - started) / NS_PER_MS,
+            )
+        } catch (e: Exception) {
+            failure(request, e.message ?: e.javaClass.simpleName)
+        }
+    }
+
+    private fun failure(
+        request: SnapshotRequest,
+        error: String,
+    ): Map<String, Any> = mapOf("ok" to false, "path" to request.target.absolutePath, "error" to error)
+
+    companion object {
+        private const val BYTES_PER_PIXEL = 4
+        private const val NS_PER_MS = 1_000_000L
+        private const val NS_PER_SECOND = 1_000_000_000L
+        private const val MIN_THUMBNAIL_WIDTH = 16
+        private const val MAX_THUMBNAIL_WIDTH = 640
+        private const val MAX_THUMBNAIL_FPS = 10
+        private val JPEG_NAME = Regex("(?i).*\\.jpe?g$")
+
+        private val ENCODE_EXECUTOR: ExecutorService by lazy {
+            Executors.newSingleThreadExecutor { r ->
+                Thread(r, "Frame-Encode").apply { isDaemon = true }
+            }
+        }
+    }
+}
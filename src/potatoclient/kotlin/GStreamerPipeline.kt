@@ -11,6 +11,9 @@ import org.freedesktop.gstreamer.ElementFactory
 import org.freedesktop.gstreamer.FlowReturn
 import org.freedesktop.gstreamer.Format
 import org.freedesktop.gstreamer.Gst
+import org.freedesktop.gstreamer.Pad
+import org.freedesktop.gstreamer.PadProbeReturn
+import org.freedesktop.gstreamer.PadProbeType
 import org.freedesktop.gstreamer.Pipeline
 import org.freedesktop.gstreamer.Registry
 import org.freedesktop.gstreamer.State
@@ -19,13 +22,15 @@ import org.freedesktop.gstreamer.elements.AppSrc
 import org.freedesktop.gstreamer.interfaces.VideoOverlay
 import java.awt.Component
 import java.nio.ByteBuffer
-import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.atomic.AtomicLong
-import java.util.concurrent.locks.ReentrantLock
+import kotlin.math.min
 
 class GStreamerPipeline(
-    private val callback: EventCallback,
-) {
+    callback: EventCallback,
+    settings: StreamSettings = StreamSettings.SYSTEM,
+    private val latencyTracker: LatencyTracker? = null,
+    private val jitterBuffer: JitterBuffer? = null,
+) : BasePipeline(callback, settings) {
     interface EventCallback {
         fun onLog(
             level: String,
@@ -35,11 +40,22 @@ class GStreamerPipeline(
         fun onPipelineError(message: String)
 
         fun isRunning(): Boolean
-    }
-
-    private val pipelineLock = ReentrantLock()
 
-    @Volatile private var pipeline: Pipeline? = null
+        /**
+         * Called once when the first frame after a start/resume/reconnect reaches the sink.
+         * [path] identifies how the stream was (re)started, e.g. "cold-spawn" or "warm-resume".
+         */
+        fun onFirstFrame(
+            path: String,
+            ttffMs: Long,
+        ) {}
+
+        /**
+         * Called for every frame reaching the sink, on its streaming thread.
+         * Must only update counters.
+         */
+        fun onFrameRendered() {}
+    }
 
     @Volatile private var appsrc: AppSrc? = null
 
@@ -47,93 +63,45 @@ class GStreamerPipeline(
 
     @Volatile private var videoOverlay: VideoOverlay? = null
 
-    @Volatile private var selectedDecoder: String? = null
+    @Volatile private var decoderElement: Element? = null
+
+    // Optional window-size-aware scaling stage (videoscale ! capsfilter)
+    @Volatile private var scaleCaps: Element? = null
+
+    @Volatile private var sourceWidth = 0
+
+    @Volatile private var sourceHeight = 0
 
-    @Volatile private var isAppImage = false
+    @Volatile private var outputWidth = 0
 
-    @Volatile private var gstreamerVersion: String? = null
+    @Volatile private var outputHeight = 0
+
+    private val scaleLock = Any()
+    private var scaledWidth = 0
+    private var scaledHeight = 0
 
     private val frameCount = AtomicLong(0)
     private val startTime = AtomicLong(0)
 
     @Volatile private var hasReceivedKeyframe = false
 
-    @Volatile private var pendingVideoComponent: Component? = null
-
-    @Volatile private var overlaySet = false
+    // After a flush, frames are dropped until the next keyframe so the decoder restarts cleanly
+    @Volatile private var awaitingKeyframe = true
 
-    // Buffer pool for zero-allocation streaming
-    private val bufferPool = ConcurrentLinkedQueue<Buffer>()
-    private val poolHits = AtomicLong(0)
-    private val poolMisses = AtomicLong(0)
+    private val framesSkipped = AtomicLong(0)
 
-    fun initialize(videoComponent: Component) {
+    /**
+     * Build and start the pipeline rendering into [videoComponent].
+     * A null component runs headless (no overlay), e.g. with the
+     * `potatoclient.video.sink=fakesink` override used by soak tests.
+     */
+    override fun initialize(videoComponent: Component?) {
         pipelineLock.lock()
         try {
-            // Configure Windows paths if needed
-            if (Platform.isWindows()) {
-                GStreamerUtils.configureGStreamerPaths(
-                    object : GStreamerUtils.EventCallback {
-                        override fun onLog(
-                            level: String,
-                            message: String,
-                        ) {
-                            callback.onLog(level, message)
-                        }
-                    },
-                )
-            }
-
-            // Initialize GStreamer if needed
-            if (!Gst.isInitialized()) {
-                callback.onLog("INFO", "Initializing GStreamer...")
-
-                // Check for plugin path from environment or system property
-                var gstPluginPath = System.getenv("GST_PLUGIN_PATH_1_0")
-                if (gstPluginPath.isNullOrEmpty()) {
-                    gstPluginPath = System.getenv("GST_PLUGIN_PATH")
-                }
-                if (gstPluginPath.isNullOrEmpty()) {
-                    gstPluginPath = System.getProperty("gstreamer.plugin.path")
-                }
-
-                if (!gstPluginPath.isNullOrEmpty()) {
-                    callback.onLog("DEBUG", "Found GST plugin path: $gstPluginPath")
-                }
-
-                try {
-                    // Initialize with plugin path if available
-                    if (!gstPluginPath.isNullOrEmpty()) {
-                        Gst.init(Constants.GSTREAMER_APP_NAME, "--gst-plugin-path=$gstPluginPath")
-                    } else {
-                        Gst.init(Constants.GSTREAMER_APP_NAME)
-                    }
-                    gstreamerVersion = Gst.getVersionString()
-                    callback.onLog("INFO", "GStreamer initialized successfully. Version: $gstreamerVersion")
-
-                    // Check if running in AppImage
-                    val appDir = System.getenv("APPDIR")
-                    isAppImage = !appDir.isNullOrEmpty()
-                    if (isAppImage) {
-                        callback.onLog("INFO", "Running in AppImage environment")
-                    }
-
-                    // Force plugin registry update
-                    val registry = Registry.get()
-                    if (registry != null && !gstPluginPath.isNullOrEmpty()) {
-                        callback.onLog("DEBUG", "Scanning plugin path: $gstPluginPath")
-                        try {
-                            registry.scanPath(gstPluginPath)
-                        } catch (e: Exception) {
-                            callback.onLog("DEBUG", "Plugin path scan warning: ${e.message}")
-                        }
-                    }
-                } catch (e: Exception) {
-                    callback.onLog("ERROR", "Failed to initialize GStreamer: ${e.message}")
-                    callback.onPipelineError("GStreamer init error: ${e.message}")
-                    return
-                }
+            if (!ensureInitialized(callback)) {
+                return
             }
+            val gstPluginPath = pluginPath()
 
             // Log GStreamer environment
             callback.onLog("DEBUG", "GST_PLUGIN_PATH: ${System.getenv("GST_PLUGIN_PATH")}")
@@ -173,9 +141,14 @@ class GStreamerPipeline(
             }
             h264parse.set("config-interval", 1)
 
-            // H264 decoder - try multiple options in order of preference
+            // H264 decoder - try options ranked by the one-time decoder probe, or the
+            // static order while the probe runs in the background. The plugin path is
+            // only rescanned when a probe has to run.
             var decoder: Element? = null
-            val decoderOptions = getDecoderOptions()
+            val decoderOptions =
+                DecoderProbe.rankedDecoders(decoderOptions(), callback, settings.configDir()) {
+                    scanPluginPath(gstPluginPath, callback)
+                }
 
             for (decoderName in decoderOptions) {
                 try {
@@ -189,7 +162,7 @@ class GStreamerPipeline(
                             "avdec_h264" -> {
                                 decoder.set("lowres", 0)
                                 decoder.set("skip-frame", 0)
-                                decoder.set("max-threads", Runtime.getRuntime().availableProcessors())
+                                decoder.set("max-threads", decodeThreads)
                             }
                             "nvh264dec", "nvdec" -> {
                                 // NVIDIA decoders usually work with default settings
@@ -214,6 +187,7 @@ class GStreamerPipeline(
                 }
             }
 
+            decoderElement = decoder
             if (decoder == null) {
                 callback.onLog(
                     "ERROR",
@@ -237,58 +211,59 @@ class GStreamerPipeline(
             }
             queue.apply {
                 set("leaky", 2) // Drop old buffers
-                set("max-size-buffers", Constants.QUEUE_MAX_BUFFERS)
-                set("max-size-time", Constants.QUEUE_MAX_TIME_NS)
+                // Paced playback holds frames here until their time; bound by time only,
+                // with room for the largest budget so the leaky queue never drops paced frames
+                set("max-size-buffers", if (jitterBuffer != null) 0 else Constants.QUEUE_MAX_BUFFERS)
+                set(
+                    "max-size-time",
+                    jitterBuffer?.let { it.maxBudgetNs + Constants.JITTER_QUEUE_HEADROOM_NS }
+                        ?: Constants.QUEUE_MAX_TIME_NS,
+                )
                 set("max-size-bytes", 0L)
             }
 
-            // Skip video converter/scaler - test direct pipeline
-            callback.onLog("INFO", "Using direct pipeline without color conversion")
+            val sink = createVideoSink(callback, settings) ?: return
+            videosink = sink
 
-            // Video sink - platform specific
-            videosink =
-                when {
-                    Platform.isLinux() -> {
-                        callback.onLog("DEBUG", "Creating Linux video sink...")
-                        ElementFactory.make("xvimagesink", "videosink") ?: run {
-                            callback.onLog("DEBUG", "xvimagesink not available, trying ximagesink...")
-                            ElementFactory.make("ximagesink", "videosink")
-                        }
-                    }
-                    Platform.isWindows() -> {
-                        ElementFactory.make("d3dvideosink", "videosink")
-                            ?: ElementFactory.make("directdrawsink", "videosink")
-                    }
-                    Platform.isMac() -> {
-                        ElementFactory.make("osxvideosink", "videosink")
-                    }
-                    else -> null
+            // No color conversion. Downscaling to the window size is opt-in and only for
+            // software-decoded frames on a sink that cannot scale by itself
+            val scaleStage =
+                if (settings.get(SCALE_PROPERTY) == "true" && isSoftwareDecoder(selectedDecoder) && !sinkScales(sink)) {
+                    createScaleStage()
+                } else {
+                    emptyList()
                 }
-
-            // Fallback to autovideosink
-            if (videosink == null) {
-                callback.onLog("WARN", "Platform-specific video sink not available, using autovideosink")
-                videosink = ElementFactory.make("autovideosink", "videosink")
-            }
-
-            if (videosink == null) {
-                callback.onLog("ERROR", "Failed to create any video sink - check GStreamer plugins installation")
-                return
+            if (scaleStage.isEmpty()) {
+                callback.onLog("INFO", "Using direct pipeline without color conversion")
             }
 
             videosink?.apply {
-                set("sync", false)
+                // Render on arrival unless the jitter buffer paces frames by their PTS
+                set("sync", jitterBuffer != null)
                 set("async", false)
+                if (jitterBuffer != null) {
+                    set("max-lateness", JitterBuffer.MAX_LATENESS_NS)
+                    callback.onLog("INFO", "Timestamp-paced playback enabled")
+                }
                 // For xvimagesink/ximagesink on Linux, prevent initial centering issues
                 if (Platform.isLinux() && name.contains("imagesink")) {
                     set("force-aspect-ratio", true)
                 }
             }
 
+            // Capture tee between the decoder and the display queue. Its converting branch cannot
+            // take hardware decoders' GPU memory, so they keep their zero-copy path instead
+            val tee =
+                pipeline
+                    ?.takeIf { settings.get(CAPTURE_PROPERTY) != "false" && isSoftwareDecoder(selectedDecoder) }
+                    ?.let { frameTap.attach(it) }
+            val decoded = tee ?: queue
+
             // Add elements to pipeline and link based on decoder type
             if (selectedDecoder == "decodebin") {
                 // decodebin handles parsing internally
-                pipeline?.addMany(appsrc, decoder, queue, videosink)
+                pipeline?.addMany(appsrc, decoder, queue, *scaleStage.toTypedArray(), videosink)
+                tee?.link(queue)
 
                 // Link appsrc to decoder
                 appsrc?.link(decoder)
@@ -297,23 +272,34 @@ class GStreamerPipeline(
                 decoder.connect(
                     Element.PAD_ADDED { element, pad ->
                         if (pad.name.startsWith("src")) {
-                            val sinkPad = queue.getStaticPad("sink")
+                            val sinkPad = decoded.getStaticPad("sink")
                             if (!sinkPad.isLinked) {
                                 pad.link(sinkPad)
-                                callback.onLog("DEBUG", "Linked decoder to queue")
+                                callback.onLog("DEBUG", "Linked decoder to ${decoded.name}")
                             }
                         }
                     },
                 )
 
                 // Link remaining elements
-                queue.link(videosink)
+                Element.linkMany(queue, *scaleStage.toTypedArray(), videosink)
             } else {
                 // Standard pipeline with h264parse
-                pipeline?.addMany(appsrc, h264parse, decoder, queue, videosink)
-                Element.linkMany(appsrc, h264parse, decoder, queue, videosink)
+                pipeline?.addMany(appsrc, h264parse, decoder, queue, *scaleStage.toTypedArray(), videosink)
+                Element.linkMany(
+                    appsrc,
+                    h264parse,
+                    decoder,
+                    *listOfNotNull(tee).toTypedArray(),
+                    queue,
+                    *scaleStage.toTypedArray(),
+                    videosink,
+                )
             }
 
+            // Stage timing probes: decoder output and sink input
+            attachProbes(queue, videosink)
+
             // Set up bus for error handling
             val bus = pipeline?.bus
             bus?.connect(
@@ -329,7 +315,7 @@ class GStreamerPipeline(
             )
 
             // Store video component for later overlay setup
-            if (videosink != null) {
+            if (videosink != null && videoComponent != null) {
                 pendingVideoComponent = videoComponent
                 callback.onLog("DEBUG", "Deferring video overlay setup until first frame")
             }
@@ -350,6 +336,7 @@ class GStreamerPipeline(
                     pipeline = null
                     appsrc = null
                     videosink = null
+                    frameTap.detach()
                 }
                 StateChangeReturn.NO_PREROLL -> {
                     callback.onLog("INFO", "GStreamer pipeline started (live source, no preroll)")
@@ -363,28 +350,141 @@ class GStreamerPipeline(
         }
     }
 
-    private fun getDecoderOptions(): Array<String> =
-        if (isAppImage) {
-            // In AppImage, prefer software decoders for better compatibility
-            arrayOf(
-                "avdec_h264", // FFmpeg/libav software decoder (most reliable in AppImage)
-                "openh264dec", // OpenH264 software decoder
-                "decodebin", // Auto-negotiating decoder (fallback)
+    /**
+     * Attach buffer probes measuring decoder output (queue sink pad) and
+     * render time (video sink pad). The queue sink pad is used instead of the
+     * decoder src pad so the same probe works with decodebin's dynamic pads.
+     */
+    private fun attachProbes(
+        queue: Element,
+        sink: Element?,
+    ) {
+        latencyTracker?.let { tracker ->
+            queue.getStaticPad("sink")?.addProbe(
+                PadProbeType.BUFFER,
+                Pad.PROBE { _, info ->
+                    info.buffer?.let { tracker.onDecoded(it.presentationTimestamp) }
+                    PadProbeReturn.OK
+                },
             )
-        } else {
-            // Normal priority: hardware first
-            arrayOf(
-                "nvh264dec", // NVIDIA hardware decoder (NVDEC)
-                "nvdec", // Newer NVIDIA decoder
-                "d3d11h264dec", // Windows Direct3D 11 hardware decoder
-                "msdkh264dec", // Intel Media SDK hardware decoder
-                "vaapih264dec", // VA-API hardware decoder (Linux)
-                "vtdec_h264", // macOS VideoToolbox hardware decoder
-                "avdec_h264", // FFmpeg/libav software decoder (most common)
-                "openh264dec", // OpenH264 software decoder
-                "decodebin", // Auto-negotiating decoder (fallback)
+        }
+        sink?.getStaticPad("sink")?.addProbe(
+            PadProbeType.BUFFER,
+            Pad.PROBE { _, info ->
+                latencyTracker?.let { tracker ->
+                    info.buffer?.let { tracker.onRendered(it.presentationTimestamp) }
+                }
+                jitterBuffer?.let { jitter ->
+                    info.buffer?.let { jitter.onRender(it.presentationTimestamp) }
+                }
+                callback.onFrameRendered()
+                // Volatile read only; the report happens once per start path
+                if (ttffPath.get() != null) {
+                    reportFirstFrame()
+                }
+                PadProbeReturn.OK
+            },
+        ) ?: callback.onLog("DEBUG", "Video sink has no static sink pad, render timing disabled")
+    }
+
+    private fun reportFirstFrame() {
+        val path = ttffPath.getAndSet(null) ?: return
+        callback.onFirstFrame(path, System.currentTimeMillis() - ttffStartMs)
+    }
+
+    override fun flushAllLocked() = flushLocked()
+
+    override fun flushPrimaryLocked() = flushLocked()
+
+    private fun flushLocked() {
+        val src = appsrc ?: return
+        flushSource(src)
+        awaitingKeyframe = true
+        framesSkipped.set(0)
+        // Running time restarts after a pause; re-anchor on the next frame
+        jitterBuffer?.reset()
+        // The stream may come back at a different resolution
+        sourceWidth = 0
+    }
+
+    override fun decoderThreadsLocked(): List<Pair<Element, Int>> =
+        listOfNotNull(decoderElement?.let { it to decodeThreads })
+
+    /**
+     * Build videoscale ! capsfilter. The capsfilter starts out unrestricted and
+     * follows [setOutputSize] once the decoded size is known. Returns an empty
+     * list (direct pipeline) when either element is missing.
+     */
+    private fun createScaleStage(): List<Element> {
+        val scaler = ElementFactory.make("videoscale", "scaler")
+        val filter = ElementFactory.make("capsfilter", "scale-caps")
+        if (scaler == null || filter == null) {
+            callback.onLog("WARN", "videoscale not available, frames are scaled by the sink")
+            return emptyList()
+        }
+
+        // Learn the decoded size from the first buffer after (re)negotiation
+        scaler.getStaticPad("sink")?.addProbe(
+            PadProbeType.BUFFER,
+            Pad.PROBE { pad, _ ->
+                if (sourceWidth == 0) {
+                    onSourceCaps(pad)
+                }
+                PadProbeReturn.OK
+            },
+        )
+        scaleCaps = filter
+        callback.onLog("INFO", "Using window-size-aware scaling stage")
+        return listOf(scaler, filter)
+    }
+
+    private fun onSourceCaps(pad: Pad) {
+        val caps = pad.currentCaps ?: return
+        if (caps.size() == 0) return
+        val structure = caps.getStructure(0)
+        if (!structure.hasIntField("width") || !structure.hasIntField("height")) return
+        sourceHeight = structure.getInteger("height")
+        sourceWidth = structure.getInteger("width")
+        applyScale()
+    }
+
+    /**
+     * Downscale decoded frames for a video component of [width] x [height]
+     * device pixels, so neither the sink nor the X server has to take
+     * full-resolution frames for a small window. Full resolution is only
+     * negotiated again once the window is large enough to show it.
+     */
+    override fun setOutputSize(
+        width: Int,
+        height: Int,
+    ) {
+        outputWidth = width
+        outputHeight = height
+        applyScale()
+    }
+
+    // Never called with pipelineLock held by a streaming thread: stop() waits for them
+    private fun applyScale() {
+        synchronized(scaleLock) {
+            val filter = scaleCaps ?: return
+            val srcWidth = sourceWidth
+            val srcHeight = sourceHeight
+            if (srcWidth <= 0 || srcHeight <= 0 || outputWidth <= 0 || outputHeight <= 0) {
+                return
+            }
+            val (width, height) = scaledSize(srcWidth, srcHeight, outputWidth, outputHeight)
+            if (width == scaledWidth && height == scaledHeight) {
+                return
+            }
+            filter.set("caps", Caps.fromString("video/x-raw,width=$width,height=$height,pixel-aspect-ratio=1/1"))
+            scaledWidth = width
+            scaledHeight = height
+            callback.onLog(
+                "DEBUG",
+                "Scaling ${srcWidth}x$srcHeight to ${width}x$height for a ${outputWidth}x$outputHeight window",
             )
         }
+    }
 
     private fun setupVideoOverlay() {
         if (overlaySet || pendingVideoComponent == null || videosink == null) {
@@ -400,16 +500,7 @@ class GStreamerPipeline(
             videoOverlay = VideoOverlay.wrap(videosink)
 
             // Get native window handle
-            val windowHandle =
-                when {
-                    Platform.isLinux() -> Native.getComponentID(pendingVideoComponent)
-                    Platform.isWindows() -> {
-                        val p = Native.getComponentPointer(pendingVideoComponent)
-                        Pointer.nativeValue(p)
-                    }
-                    Platform.isMac() -> Native.getComponentID(pendingVideoComponent)
-                    else -> 0L
-                }
+            val windowHandle = nativeWindowHandle(pendingVideoComponent!!)
 
             if (windowHandle != 0L) {
                 videoOverlay?.setWindowHandle(windowHandle)
@@ -423,40 +514,63 @@ class GStreamerPipeline(
         }
     }
 
-    private fun acquireBuffer(size: Int): Buffer {
-        // Try to get a buffer from the pool
-        val buffer = bufferPool.poll()
-
-        return if (buffer != null) {
-            // GStreamer buffers are mutable, we can reuse any buffer
-            poolHits.incrementAndGet()
-            buffer
-        } else {
-            // Need to allocate a new buffer
-            poolMisses.incrementAndGet()
-            Buffer(minOf(size, Constants.MAX_BUFFER_SIZE))
-        }
-    }
-
-    private fun releaseBuffer(buffer: Buffer?) {
-        if (buffer != null && bufferPool.size < Constants.BUFFER_POOL_SIZE) {
-            bufferPool.offer(buffer)
-        }
-    }
-
     @Suppress("NOTHING_TO_INLINE")
     private inline fun isActive(): Boolean {
         // Volatile read, no lock needed
         return pipeline != null && appsrc != null
     }
 
-    fun pushVideoData(data: ByteBuffer) {
+    fun pushVideoData(
+        data: ByteBuffer,
+        arrivalNs: Long = System.nanoTime(),
+    ) = pushFrame(data.remaining(), arrivalNs, -1, { H264Utils.containsKeyframe(data) }) { it.put(data) }
+
+    /**
+     * Push the bytes of a reassembled message from [offset] on, gathering the
+     * chunks straight into the GStreamer buffer.
+     */
+    override fun pushVideoData(
+        data: FragmentChain,
+        offset: Int,
+        arrivalNs: Long,
+        timestampMs: Long,
+    ) = pushFrame(data.size() - offset, arrivalNs, timestampMs, { H264Utils.containsKeyframe(data, offset) }) {
+        data.copyTo(it, offset)
+    }
+
+    /**
+     * Current running time of [p], the axis presentation times live on.
+     */
+    private fun runningTime(p: Pipeline): Long {
+        val clock = p.clock ?: return 0
+        return (clock.time - p.baseTime).coerceAtLeast(0)
+    }
+
+    private inline fun pushFrame(
+        dataSize: Int,
+        arrivalNs: Long,
+        timestampMs: Long,
+        isKeyframe: () -> Boolean,
+        fill: (ByteBuffer) -> Unit,
+    ) {
         // Fast path - volatile reads only, no lock
-        if (!isActive() || !callback.isRunning()) {
+        if (!isActive() || !callback.isRunning() || paused) {
             return
         }
 
-        val dataSize = data.remaining()
+        // After start or flush, feed the decoder from a keyframe onwards.
+        // Give up waiting eventually in case the stream never sends SPS/IDR.
+        if (awaitingKeyframe) {
+            if (!isKeyframe() &&
+                framesSkipped.incrementAndGet() < Constants.KEYFRAME_WAIT_MAX_FRAMES
+            ) {
+                return
+            }
+            awaitingKeyframe = false
+            if (framesSkipped.get() > 0) {
+                callback.onLog("DEBUG", "Resumed at keyframe after skipping ${framesSkipped.get()} frames")
+            }
+        }
 
         // Try lock with timeout to avoid blocking on the hot path
         if (!pipelineLock.tryLock()) {
@@ -468,7 +582,8 @@ class GStreamerPipeline(
         try {
             // Double-check after acquiring lock
             val currentAppsrc = appsrc
-            if (pipeline == null || currentAppsrc == null) {
+            val currentPipeline = pipeline
+            if (currentPipeline == null || currentAppsrc == null) {
                 return
             }
 
@@ -476,9 +591,22 @@ class GStreamerPipeline(
             buffer = acquireBuffer(dataSize)
 
             // Map buffer directly - avoid intermediate ByteBuffer reference
-            buffer.map(false).put(data)
+            fill(buffer.map(true))
             buffer.unmap()
 
+            // Pace by the header timestamp when the jitter buffer is on
+            var pts = -1L
+            if (jitterBuffer != null && timestampMs >= 0) {
+                if (!jitterBuffer.isAnchored()) {
+                    jitterBuffer.anchor(runningTime(currentPipeline))
+                }
+                pts = jitterBuffer.presentationTime(timestampMs, arrivalNs)
+                buffer.presentationTimestamp = pts
+            }
+
+            // Tag PTS so pad probes can correlate this frame downstream
+            latencyTracker?.let { buffer.presentationTimestamp = it.onPush(arrivalNs, pts) }
+
             // Set start time if needed
             startTime.compareAndSet(0, System.nanoTime())
 
@@ -517,8 +645,8 @@ class GStreamerPipeline(
         } finally {
             pipelineLock.unlock()
 
-            // Release buffer if not consumed (outside of lock)
-            buffer?.let { releaseBuffer(it) }
+            // Drop our reference if not consumed; pooled buffers return to their pool
+            buffer?.dispose()
         }
     }
 
@@ -531,9 +659,7 @@ class GStreamerPipeline(
         val fps = frames / elapsedSec
 
         // Log buffer pool stats
-        val hits = poolHits.get()
-        val misses = poolMisses.get()
-        val hitRate = if (hits + misses > 0) (hits * 100.0) / (hits + misses) else 0.0
+        val hitRate = inputPool?.hitRate() ?: 0.0
 
         callback.onLog(
             "DEBUG",
@@ -547,45 +673,246 @@ class GStreamerPipeline(
         )
     }
 
-    fun stop() {
-        pipelineLock.lock()
-        try {
-            pipeline?.let {
-                it.stop()
-                it.dispose()
-                pipeline = null
-                appsrc = null
-                videosink = null
-                videoOverlay = null
-                selectedDecoder = null
-            }
-            frameCount.set(0)
-            startTime.set(0)
-            hasReceivedKeyframe = false
-            pendingVideoComponent = null
-            overlaySet = false
-
-            // Clear buffer pool
-            bufferPool.clear()
-
-            // Log final buffer pool statistics
-            val hits = poolHits.get()
-            val misses = poolMisses.get()
-            if (hits + misses > 0) {
-                val hitRate = (hits * 100.0) / (hits + misses)
-                callback.onLog(
-                    "INFO",
-                    String.format(
-                        java.util.Locale.US,
-                        "Buffer pool final stats: %.1f%% hit rate (%d hits, %d misses)",
-                        hitRate,
-                        hits,
-                        misses,
-                    ),
+    override fun clearLocked() {
+        appsrc = null
+        videosink = null
+        videoOverlay = null
+        decoderElement = null
+        synchronized(scaleLock) {
+            scaleCaps = null
+            sourceWidth = 0
+            sourceHeight = 0
+            scaledWidth = 0
+            scaledHeight = 0
+        }
+        frameCount.set(0)
+        startTime.set(0)
+        latencyTracker?.reset()
+        jitterBuffer?.reset()
+        hasReceivedKeyframe = false
+        awaitingKeyframe = true
+        framesSkipped.set(0)
+    }
+
+    companion object {
+        /**
+         * System property naming a GStreamer sink to use instead of the platform default.
+         */
+        const val VIDEO_SINK_PROPERTY = "potatoclient.video.sink"
+
+        /**
+         * System property with the initial decode-thread budget.
+         */
+        const val DECODE_THREADS_PROPERTY = "potatoclient.decode-threads"
+
+        /**
+         * System property enabling the window-size-aware scaling stage when "true".
+         */
+        const val SCALE_PROPERTY = "potatoclient.video.scale"
+
+        /**
+         * System property disabling the snapshot/thumbnail tee when "false".
+         */
+        const val CAPTURE_PROPERTY = "potatoclient.video.capture"
+
+        /**
+         * Size to scale a [sourceWidth] x [sourceHeight] frame to for a window of
+         * [windowWidth] x [windowHeight], keeping the aspect ratio. The width is
+         * rounded up to [Constants.SCALE_STEP_PX] so small resizes do not
+         * renegotiate, and the source size is returned once the window can show it.
+         */
+        fun scaledSize(
+            sourceWidth: Int,
+            sourceHeight: Int,
+            windowWidth: Int,
+            windowHeight: Int,
+        ): Pair<Int, Int> {
+            val scale = min(windowWidth.toDouble() / sourceWidth, windowHeight.toDouble() / sourceHeight)
+            val step = Constants.SCALE_STEP_PX
+            val width = ((sourceWidth * scale).toInt() + step - 1) / step * step
+            if (scale >= 1.0 || width >= sourceWidth) {
+                return sourceWidth to sourceHeight
+            }
+            // Keep the height even for subsampled formats
+            val height = (width.toLong() * sourceHeight / sourceWidth).toInt() and 1.inv()
+            return width to height.coerceAtLeast(2)
+        }
+
+        private val isAppImage: Boolean
+            get() = !System.getenv("APPDIR").isNullOrEmpty()
+
+        /**
+         * Plugin path from the environment or the gstreamer.plugin.path property.
+         */
+        fun pluginPath(): String? {
+            var gstPluginPath = System.getenv("GST_PLUGIN_PATH_1_0")
+            if (gstPluginPath.isNullOrEmpty()) {
+                gstPluginPath = System.getenv("GST_PLUGIN_PATH")
+            }
+            if (gstPluginPath.isNullOrEmpty()) {
+                gstPluginPath = System.getProperty("gstreamer.plugin.path")
+            }
+            return gstPluginPath
+        }
+
+        /**
+         * Initialize GStreamer once per process.
+         * Returns false when initialization failed; the error has been reported.
+         */
+        fun ensureInitialized(callback: EventCallback): Boolean {
+            // Configure Windows paths if needed
+            if (Platform.isWindows()) {
+                GStreamerUtils.configureGStreamerPaths(
+                    object : GStreamerUtils.EventCallback {
+                        override fun onLog(
+                            level: String,
+                            message: String,
+                        ) {
+                            callback.onLog(level, message)
+                        }
+                    },
                 )
             }
-        } finally {
-            pipelineLock.unlock()
+
+            if (Gst.isInitialized()) {
+                return true
+            }
+
+            val gstPluginPath = pluginPath()
+            callback.onLog("INFO", "Initializing GStreamer...")
+            if (!gstPluginPath.isNullOrEmpty()) {
+                callback.onLog("DEBUG", "Found GST plugin path: $gstPluginPath")
+            }
+
+            try {
+                // Initialize with plugin path if available
+                if (!gstPluginPath.isNullOrEmpty()) {
+                    Gst.init(Constants.GSTREAMER_APP_NAME, "--gst-plugin-path=$gstPluginPath")
+                } else {
+                    Gst.init(Constants.GSTREAMER_APP_NAME)
+                }
+                callback.onLog("INFO", "GStreamer initialized successfully. Version: ${Gst.getVersionString()}")
+
+                if (isAppImage) {
+                    callback.onLog("INFO", "Running in AppImage environment")
+                }
+                return true
+            } catch (e: Exception) {
+                callback.onLog("ERROR", "Failed to initialize GStreamer: ${e.message}")
+                callback.onPipelineError("GStreamer init error: ${e.message}")
+                return false
+            }
+        }
+
+        /**
+         * Force a plugin registry update for the given path.
+         * Slow with many plugins installed, so only done before a decoder probe.
+         */
+        fun scanPluginPath(
+            gstPluginPath: String?,
+            callback: EventCallback,
+        ) {
+            val registry = Registry.get()
+            if (registry != null && !gstPluginPath.isNullOrEmpty()) {
+                callback.onLog("DEBUG", "Scanning plugin path: $gstPluginPath")
+                try {
+                    registry.scanPath(gstPluginPath)
+                } catch (e: Exception) {
+                    callback.onLog("DEBUG", "Plugin path scan warning: ${e.message}")
+                }
+            }
+        }
+
+        fun decoderOptions(): Array<String> =
+            if (isAppImage) {
+                // In AppImage, prefer software decoders for better compatibility
+                arrayOf(
+                    "avdec_h264", // FFmpeg/libav software decoder (most reliable in AppImage)
+                    "openh264dec", // OpenH264 software decoder
+                    "decodebin", // Auto-negotiating decoder (fallback)
+                )
+            } else {
+                // Normal priority: hardware first
+                arrayOf(
+                    "nvh264dec", // NVIDIA hardware decoder (NVDEC)
+                    "nvdec", // Newer NVIDIA decoder
+                    "d3d11h264dec", // Windows Direct3D 11 hardware decoder
+                    "msdkh264dec", // Intel Media SDK hardware decoder
+                    "vaapih264dec", // VA-API hardware decoder (Linux)
+                    "vtdec_h264", // macOS VideoToolbox hardware decoder
+                    "avdec_h264", // FFmpeg/libav software decoder (most common)
+                    "openh264dec", // OpenH264 software decoder
+                    "decodebin", // Auto-negotiating decoder (fallback)
+                )
+            }
+
+        /**
+         * Decoders producing frames in system memory, which videoscale and
+         * videoconvert can take. Hardware decoders output GPU memory, and
+         * decodebin may pick one of them.
+         */
+        private val SOFTWARE_DECODERS = setOf("avdec_h264", "openh264dec")
+
+        fun isSoftwareDecoder(decoder: String?): Boolean = decoder in SOFTWARE_DECODERS
+
+        /**
+         * Whether [sink] scales frames to its window by itself, e.g. in Xv or
+         * on the GPU. Only ximagesink shows frames at their decoded size.
+         */
+        fun sinkScales(sink: Element): Boolean = sink.factory?.name != "ximagesink"
+
+        /**
+         * Video sink - explicit override (headless/testing) or platform specific,
+         * falling back to autovideosink. Returns null when no sink can be created.
+         */
+        fun createVideoSink(
+            callback: EventCallback,
+            settings: StreamSettings,
+        ): Element? {
+            val sinkOverride = settings.get(VIDEO_SINK_PROPERTY)
+            val sink =
+                when {
+                    !sinkOverride.isNullOrEmpty() -> {
+                        callback.onLog("INFO", "Using video sink override: $sinkOverride")
+                        ElementFactory.make(sinkOverride, "videosink")
+                    }
+                    Platform.isLinux() -> {
+                        callback.onLog("DEBUG", "Creating Linux video sink...")
+                        ElementFactory.make("xvimagesink", "videosink") ?: run {
+                            callback.onLog("DEBUG", "xvimagesink not available, trying ximagesink...")
+                            ElementFactory.make("ximagesink", "videosink")
+                        }
+                    }
+                    Platform.isWindows() -> {
+                        ElementFactory.make("d3dvideosink", "videosink")
+                            ?: ElementFactory.make("directdrawsink", "videosink")
+                    }
+                    Platform.isMac() -> {
+                        ElementFactory.make("osxvideosink", "videosink")
+                    }
+                    else -> null
+                }
+            if (sink != null) {
+                return sink
+            }
+
+            callback.onLog("WARN", "Platform-specific video sink not available, using autovideosink")
+            return ElementFactory.make("autovideosink", "videosink")
+                ?: run {
+                    callback.onLog("ERROR", "Failed to create any video sink - check GStreamer plugins installation")
+                    null
+                }
         }
+
+        /**
+         * Native window handle of [component] for the video overlay, 0 if unknown.
+         */
+        fun nativeWindowHandle(component: Component): Long =
+            when {
+                Platform.isLinux() -> Native.getComponentID(component)
+                Platform.isWindows() -> Pointer.nativeValue(Native.getComponentPointer(component))
+                Platform.isMac() -> Native.getComponentID(component)
+                else -> 0L
+            }
     }
 }
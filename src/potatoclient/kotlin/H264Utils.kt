@@ -0,0 +1,56 @@
+package potatoclient.kotlin
+
+import java.nio.ByteBuffer
+
+/**
+ * Minimal Annex-B H.264 helpers used on the streaming path.
+ * All functions use absolute reads and never move the buffer position.
+ */
+object H264Utils {
+    const val NAL_SLICE = 1
+    const val NAL_IDR = 5
+    const val NAL_SPS = 7
+
+    /**
+     * Check whether an access unit starts a decodable sequence (SPS or IDR).
+     * Scanning stops at the first slice NAL, so only the AU header is read.
+     */
+    fun containsKeyframe(data: ByteBuffer): Boolean = containsKeyframe(data.position(), data.limit()) { data.get(it) }
+
+    /**
+     * [containsKeyframe] for a fragmented message, starting at [offset].
+     */
+    fun containsKeyframe(
+        data: FragmentChain,
+        offset: Int,
+    ): Boolean = containsKeyframe(offset, data.size()) { data.get(it) }
+
+    private inline fun containsKeyframe(
+        start: Int,
+        end: Int,
+        byteAt: (Int) -> Byte,
+    ): Boolean {
+        var i = start
+        while (i + 3 < end) {
+            if (byteAt(i).toInt() == 0 && byteAt(i + 1).toInt() == 0) {
+                val third = byteAt(i + 2).toInt()
+                val headerIndex =
+                    when {
+                        third == 1 -> i + 3
+                        third == 0 && i + 4 < end && byteAt(i + 3).toInt() == 1 -> i + 4
+                        else -> -1
+                    }
+                if (headerIndex >= 0) {
+                    when (byteAt(headerIndex).toInt() and 0x1F) {
+                        NAL_SPS, NAL_IDR -> return true
+                        in NAL_SLICE until NAL_IDR -> return false
+                    }
+                    i = headerIndex
+                    continue
+                }
+            }
+            i++
+        }
+        return false
+    }
+}
@@ -0,0 +1,134 @@
+package potatoclient.kotlin
+
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * A [VideoStreamManager] running inside the main JVM, presented as a
+ * [Process] so the main process manages it like a spawned stream.
+ *
+ * The stream runs on its own thread in its own thread group, with its own
+ * [StreamSettings] rather than the shared system properties. It talks to the
+ * main process over the same IPC messages, through an in-memory endpoint
+ * instead of a Unix socket. Closing the window or [destroy] stops the stream
+ * without exiting the JVM; [destroyForcibly] also disposes the pipeline when
+ * the stream does not stop by itself. There is no process isolation: a
+ * native crash in GStreamer takes the main process down with it.
+ */
+class InProcessStream private constructor(
+    private val streamId: String,
+) : Process() {
+    private val finished = CountDownLatch(1)
+
+    @Volatile private var manager: VideoStreamManager? = null
+
+    @Volatile private var exitCode = 0
+
+    @Volatile private var thread: Thread? = null
+
+    @Volatile private var stopRequested = false
+
+    private fun run(
+        args: Array<String>,
+        settings: Map<String, String>,
+    ) {
+        try {
+            val created =
+                VideoStreamManager(
+                    streamId = args[0],
+                    streamUrl = args[1],
+                    domain = args[2],
+                    parentPid = args[3].toLong(),
+                    heatUrl = args.getOrNull(4),
+                    inProcess = true,
+                    settings = StreamSettings(settings),
+                )
+            manager = created
+            if (stopRequested) {
+                created.requestStop()
+            }
+            created.start()
+        } catch (e: Exception) {
+            System.err.println("In-process stream $streamId failed: ${e.message}")
+            exitCode = 1
+        } finally {
+            manager = null
+            finished.countDown()
+        }
+    }
+
+    override fun getOutputStream(): OutputStream = OutputStream.nullOutputStream()
+
+    // Output goes to the main process's own stdout/stderr
+    override fun getInputStream(): InputStream = InputStream.nullInputStream()
+
+    override fun getErrorStream(): InputStream = InputStream.nullInputStream()
+
+    override fun waitFor(): Int {
+        finished.await()
+        return exitCode
+    }
+
+    override fun waitFor(
+        timeout: Long,
+        unit: TimeUnit,
+    ): Boolean = finished.await(timeout, unit)
+
+    override fun exitValue(): Int {
+        if (finished.count > 0) {
+            throw IllegalThreadStateException("Stream $streamId is still running")
+        }
+        return exitCode
+    }
+
+    override fun destroy() {
+        stopRequested = true
+        manager?.requestStop()
+    }
+
+    override fun destroyForcibly(): Process {
+        stopRequested = true
+        val current = manager ?: return this
+        // Disposing a wedged pipeline can block; do not hold up the caller
+        Thread({
+            try {
+                current.forceStop()
+            } catch (e: Exception) {
+                System.err.println("Forced stop of stream $streamId failed: ${e.message}")
+            }
+        }, "VideoStream-ForceStop-$streamId").apply {
+            isDaemon = true
+            start()
+        }
+        thread?.interrupt()
+        return this
+    }
+
+    override fun isAlive(): Boolean = finished.count > 0
+
+    override fun pid(): Long = ProcessHandle.current().pid()
+
+    companion object {
+        /**
+         * Start a stream with the subprocess command-line [args] and the
+         * per-stream system properties in [settings].
+         */
+        @JvmStatic
+        fun start(
+            args: Array<String>,
+            settings: Map<String, String>,
+        ): InProcessStream {
+            require(args.size >= 4) { "Expected <streamId> <streamUrl> <domain> <parentPid> [heatUrl]" }
+            val stream = InProcessStream(args[0])
+            val group = ThreadGroup("stream-${args[0]}")
+            stream.thread =
+                Thread(group, { stream.run(args, settings) }, "VideoStream-${args[0]}").apply {
+                    isDaemon = true
+                    start()
+                }
+            return stream
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package potatoclient.kotlin
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Timestamp-paced playout for one stream.
+ *
+ * The buffer does not hold frames itself: it turns the producer timestamp in
+ * each frame header into a presentation time on the pipeline's running-time
+ * axis, and a synchronizing sink releases the decoded frame when the clock
+ * gets there. The delay between arrival and release is the latency budget.
+ *
+ * Transit is `arrival - timestamp` and includes an unknown clock offset, so
+ * only its variation matters. The lowest transit over the last two windows is
+ * taken as the undelayed path; a frame's excess over it is its jitter. The
+ * budget follows the decaying peak of that jitter within [minBudgetNs] and
+ * [maxBudgetNs]. It rises at once and falls by [SLEW_DOWN_NS] per frame, so
+ * shrinking it only speeds playback up imperceptibly.
+ *
+ * Occupancy is counted at the sink: each rendered frame retires every
+ * presentation time up to its own, so frames dropped on the way (leaky queue,
+ * decoder) stop counting as soon as a later frame is shown. Presentation
+ * times lie on the [LatencyTracker.TAG_GRID_NS] grid and at least one grid
+ * step apart, so the frame tag written into their low bits keeps them
+ * increasing and [onRender] still matches each frame to its own entry.
+ *
+ * [presentationTime] is called from the WebSocket thread under the pipeline
+ * lock, [onRender] from the sink's streaming thread.
+ */
+class JitterBuffer(
+    private val minBudgetNs: Long,
+    val maxBudgetNs: Long,
+) {
+    private val addedLatency = RollingHistogram()
+    private val lateDrops = AtomicLong(0)
+    private val lateArrivals = AtomicLong(0)
+    private val occupancyMax = AtomicLong(0)
+    private val occupancySum = AtomicLong(0)
+    private val occupancySamples = AtomicLong(0)
+
+    // Running time of the pipeline at System.nanoTime() == anchorNanos
+    @Volatile private var anchorRunningNs = -1L
+
+    @Volatile private var anchorNanos = 0L
+
+    // Estimator state, WebSocket thread only
+    private var windowStartNs = 0L
+    private var windowMinTransit = Long.MAX_VALUE
+    private var previousMinTransit = Long.MAX_VALUE
+    private var jitterPeakNs = 0L
+    private var lastPts = -1L
+
+    @Volatile private var budgetNs = minBudgetNs
+
+    // Presentation times handed out and not yet retired by the sink, oldest first
+    private val pendingLock = Any()
+    private val pendingPts = LongArray(PENDING_CAPACITY)
+    private var pendingHead = 0
+    private var pendingSize = 0
+
+    fun isAnchored(): Boolean = anchorRunningNs >= 0
+
+    /**
+     * Tie the running-time axis to the monotonic clock, once per (re)start.
+     */
+    fun anchor(runningNs: Long) {
+        anchorNanos = System.nanoTime()
+        anchorRunningNs = runningNs
+    }
+
+    private fun runningTime(nanos: Long): Long = anchorRunningNs + (nanos - anchorNanos)
+
+    /**
+     * Presentation time in pipeline running time for a frame stamped
+     * [timestampMs] by the producer that arrived at [arrivalNs].
+     */
+    fun presentationTime(
+        timestampMs: Long,
+        arrivalNs: Long,
+    ): Long {
+        val arrival = runningTime(arrivalNs)
+        val transit = arrival - timestampMs * NS_PER_MS
+
+        // Windowed minimum follows clock drift; a large jump means the producer restarted
+        val base = minOf(windowMinTransit, previousMinTransit)
+        if (base == Long.MAX_VALUE || transit - base > RESYNC_NS || arrival - windowStartNs >= WINDOW_NS) {
+            previousMinTransit = if (base == Long.MAX_VALUE || transit - base > RESYNC_NS) transit else windowMinTransit
+            windowMinTransit = transit
+            windowStartNs = arrival
+        } else if (transit < windowMinTransit) {
+            windowMinTransit = transit
+        }
+        val floor = minOf(windowMinTransit, previousMinTransit)
+
+        // Decaying peak of the excess transit drives the budget
+        val jitter = transit - floor
+        jitterPeakNs = maxOf(jitter, jitterPeakNs - jitterPeakNs / PEAK_DECAY_DIVISOR)
+        val target = (jitterPeakNs + MARGIN_NS).coerceIn(minBudgetNs, maxBudgetNs)
+        val current = budgetNs
+        budgetNs = if (target >= current) target else maxOf(target, current - SLEW_DOWN_NS)
+
+        val pts = alignToTagGrid(maxOf(timestampMs * NS_PER_MS + floor + budgetNs, lastPts + TAG_GRID_NS))
+        lastPts = pts
+
+        val added = pts - arrival
+        if (added < 0) {
+            lateArrivals.incrementAndGet()
+        }
+        addedLatency.record(added.coerceAtLeast(0) / NS_PER_US)
+
+        synchronized(pendingLock) {
+            if (pendingSize == PENDING_CAPACITY) {
+                // Nothing rendered for a long time; forget the oldest
+                pendingHead = (pendingHead + 1) % PENDING_CAPACITY
+                pendingSize--
+            }
+            pendingPts[(pendingHead + pendingSize) % PENDING_CAPACITY] = pts
+            pendingSize++
+        }
+        return pts
+    }
+
+    /**
+     * Account for a decoded frame reaching the sink. Frames later than
+     * [MAX_LATENESS_NS] are dropped there; they are counted here.
+     */
+    fun onRender(taggedPts: Long) {
+        if (taggedPts < 0 || !isAnchored()) return
+        // Drop the frame tag to get back the presentation time handed out
+        val pts = taggedPts and (TAG_GRID_NS - 1).inv()
+        val held =
+            synchronized(pendingLock) {
+                while (pendingSize > 0 && pendingPts[pendingHead] <= pts) {
+                    pendingHead = (pendingHead + 1) % PENDING_CAPACITY
+                    pendingSize--
+                }
+                pendingSize.toLong()
+            }
+        occupancyMax.accumulateAndGet(held, ::maxOf)
+        occupancySum.addAndGet(held)
+        occupancySamples.incrementAndGet()
+        if (runningTime(System.nanoTime()) - pts > MAX_LATENESS_NS) {
+            lateDrops.incrementAndGet()
+        }
+    }
+
+    /**
+     * Drain the window's statistics into a metric payload.
+     */
+    fun snapshotAndReset(): Map<String, Any> {
+        val samples = occupancySamples.getAndSet(0)
+        val sum = occupancySum.getAndSet(0)
+        return mapOf(
+            "budget-ms" to budgetNs / NS_PER_MS,
+            "jitter-ms" to jitterPeakNs / NS_PER_MS,
+            "added-latency" to addedLatency.snapshotAndReset(),
+            "late-drops" to lateDrops.getAndSet(0),
+            "late-arrivals" to lateArrivals.getAndSet(0),
+            "occupancy-max" to occupancyMax.getAndSet(0),
+            "occupancy-mean" to if (samples > 0) sum.toDouble() / samples else 0.0,
+        )
+    }
+
+    /**
+     * Forget the timeline after a flush, pause or rebuild. The budget is
+     * kept so playback resumes with the delay the network needed.
+     */
+    fun reset() {
+        anchorRunningNs = -1
+        windowStartNs = 0
+        windowMinTransit = Long.MAX_VALUE
+        previousMinTransit = Long.MAX_VALUE
+        lastPts = -1
+        synchronized(pendingLock) {
+            pendingHead = 0
+            pendingSize = 0
+        }
+    }
+
+    companion object {
+        /**
+         * System property with the largest latency budget in ms; unset or 0
+         * leaves playback unpaced.
+         */
+        const val MAX_MS_PROPERTY = "potatoclient.jitter.max-ms"
+
+        /**
+         * System property with the smallest latency budget in ms.
+         */
+        const val MIN_MS_PROPERTY = "potatoclient.jitter.min-ms"
+
+        /**
+         * Sink max-lateness while pacing; later frames are dropped after decoding.
+         */
+        const val MAX_LATENESS_NS = 20_000_000L
+
+        private const val NS_PER_US = 1_000L
+        private const val NS_PER_MS = 1_000_000L
+        private const val WINDOW_NS = 2_000_000_000L
+        private const val RESYNC_NS = 1_000_000_000L
+        private const val MARGIN_NS = 10_000_000L
+        private const val SLEW_DOWN_NS = 500_000L
+        private const val PEAK_DECAY_DIVISOR = 64L
+        private const val PENDING_CAPACITY = 1024
+        private const val TAG_GRID_NS = LatencyTracker.TAG_GRID_NS
+
+        // Round up to the tag grid (a power of two)
+        private fun alignToTagGrid(ns: Long): Long = (ns + TAG_GRID_NS - 1) and (TAG_GRID_NS - 1).inv()
+
+        /**
+         * Jitter buffer configured by the stream [settings], or null when disabled.
+         */
+        fun fromSettings(settings: StreamSettings): JitterBuffer? {
+            val maxMs = settings.get(MAX_MS_PROPERTY)?.toLongOrNull() ?: return null
+            if (maxMs <= 0) {
+                return null
+            }
+            val minMs =
+                (settings.get(MIN_MS_PROPERTY)?.toLongOrNull() ?: Constants.JITTER_MIN_MS).coerceIn(0, maxMs)
+            return JitterBuffer(minMs * NS_PER_MS, maxMs * NS_PER_MS)
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package potatoclient.kotlin
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free histogram of durations in microseconds.
+ * Buckets are log-linear (8 sub-buckets per power of two, ~12% resolution),
+ * so recording is a single atomic increment on the hot path.
+ * The histogram is "rolling": each snapshot drains the current window.
+ */
+class RollingHistogram {
+    private val buckets = AtomicLongArray(BUCKET_COUNT)
+    private val count = AtomicLong(0)
+    private val sum = AtomicLong(0)
+    private val max = AtomicLong(0)
+
+    fun record(valueUs: Long) {
+        val value = valueUs.coerceAtLeast(0)
+        buckets.incrementAndGet(bucketIndex(value))
+        count.incrementAndGet()
+        sum.addAndGet(value)
+        max.accumulateAndGet(value, ::maxOf)
+    }
+
+    /**
+     * Drain the current window and return its summary.
+     * Concurrent records may land in either window, which is fine for metrics.
+     */
+    fun snapshotAndReset(): Map<String, Any> {
+        val n = count.getAndSet(0)
+        val total = sum.getAndSet(0)
+        val maxValue = max.getAndSet(0)
+        val counts = LongArray(BUCKET_COUNT) { buckets.getAndSet(it, 0) }
+
+        if (n == 0L) {
+            return mapOf("count" to 0L)
+        }
+
+        return mapOf(
+            "count" to n,
+            "mean-us" to total / n,
+            "p50-us" to percentile(counts, n, 0.50),
+            "p95-us" to percentile(counts, n, 0.95),
+            "p99-us" to percentile(counts, n, 0.99),
+            "max-us" to maxValue,
+        )
+    }
+
+    private fun percentile(
+        counts: LongArray,
+        total: Long,
+        quantile: Double,
+    ): Long {
+        val rank = (total * quantile).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (i in counts.indices) {
+            seen += counts[i]
+            if (seen >= rank) {
+                return bucketUpperBound(i)
+            }
+        }
+        return bucketUpperBound(counts.size - 1)
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 3
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val MAX_OCTAVE = 27 // ~134 s in microseconds
+        private const val BUCKET_COUNT = (MAX_OCTAVE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS
+
+        private fun bucketIndex(value: Long): Int {
+            if (value < SUB_BUCKETS) {
+                return value.toInt()
+            }
+            val octave = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val sub = ((value ushr (octave - SUB_BUCKET_BITS)) and (SUB_BUCKETS - 1).toLong()).toInt()
+            return minOf((octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub, BUCKET_COUNT - 1)
+        }
+
+        private fun bucketUpperBound(index: Int): Long {
+            if (index < SUB_BUCKETS) {
+                return index.toLong()
+            }
+            val octave = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1
+            val sub = index % SUB_BUCKETS
+            return ((SUB_BUCKETS + sub + 1).toLong() shl (octave - SUB_BUCKET_BITS)) - 1
+        }
+    }
+}
+
+/**
+ * Inter-arrival jitter: the deviation of each inter-arrival interval from its
+ * exponentially weighted mean, so it does not depend on the producer clock.
+ * Arrivals are recorded from a single thread; snapshots may come from any.
+ */
+class InterArrivalJitter {
+    private val histogram = RollingHistogram()
+    private val lastArrivalNs = AtomicLong(0)
+    private val meanIntervalNs = AtomicLong(0)
+
+    fun onArrival(arrivalNs: Long) {
+        val previous = lastArrivalNs.getAndSet(arrivalNs)
+        if (previous == 0L) {
+            return
+        }
+        val interval = arrivalNs - previous
+        val mean = meanIntervalNs.get()
+        if (mean == 0L) {
+            meanIntervalNs.set(interval)
+            return
+        }
+        histogram.record(Math.abs(interval - mean) / NS_PER_US)
+        meanIntervalNs.set(mean + (interval - mean) / EWMA_DIVISOR)
+    }
+
+    fun snapshotAndReset(): Map<String, Any> = histogram.snapshotAndReset()
+
+    fun reset() {
+        lastArrivalNs.set(0)
+        meanIntervalNs.set(0)
+    }
+
+    companion object {
+        private const val NS_PER_US = 1_000L
+        private const val EWMA_DIVISOR = 16L
+    }
+}
+
+/**
+ * Per-frame stage timing for a single video stream.
+ * Network jitter is tracked separately by [WebSocketStats].
+ *
+ * Stages:
+ *  - arrival: first fragment of the WebSocket message (WebSocketClientBuiltIn)
+ *  - push: buffer handed to appsrc
+ *  - decoded: buffer leaves the decoder (probe on the queue sink pad)
+ *  - rendered: buffer reaches the video sink (probe on the sink pad)
+ *
+ * Frames are correlated across pad probes through their PTS: the low
+ * [TAG_BITS] bits carry a frame tag indexing the timing rings, the rest is
+ * the push time relative to the first pushed frame, or the presentation time
+ * chosen by a [JitterBuffer]. Decoders preserve PTS, so no side tables keyed
+ * by buffer identity are needed.
+ */
+class LatencyTracker {
+    private val ingestTime = RollingHistogram()
+    private val decodeTime = RollingHistogram()
+    private val queueTime = RollingHistogram()
+    private val glassTime = RollingHistogram()
+
+    private val arrivalRing = AtomicLongArray(RING_SIZE)
+    private val pushRing = AtomicLongArray(RING_SIZE)
+    private val decodedRing = AtomicLongArray(RING_SIZE)
+
+    private val frameTag = AtomicLong(0)
+    private val baseNs = AtomicLong(0)
+
+    private val framesPushed = AtomicLong(0)
+    private val framesRendered = AtomicLong(0)
+
+    /**
+     * Record the appsrc push of a frame that arrived at [arrivalNs].
+     * Returns the tagged PTS to set on the outgoing buffer: [ptsNs] with its
+     * low bits replaced by the tag, or the push time when it is negative.
+     */
+    fun onPush(
+        arrivalNs: Long,
+        ptsNs: Long = -1,
+    ): Long {
+        val now = System.nanoTime()
+        baseNs.compareAndSet(0, now)
+        val tag = (frameTag.getAndIncrement() and TAG_MASK).toInt()
+
+        arrivalRing.set(tag, arrivalNs)
+        pushRing.set(tag, now)
+        decodedRing.set(tag, 0)
+        ingestTime.record((now - arrivalNs) / NS_PER_US)
+        framesPushed.incrementAndGet()
+
+        val pts = if (ptsNs >= 0) ptsNs else now - baseNs.get()
+        return (pts and TAG_MASK.inv()) or tag.toLong()
+    }
+
+    /**
+     * Record a decoded buffer leaving the decoder.
+     */
+    fun onDecoded(pts: Long) {
+        if (pts < 0) return // GST_CLOCK_TIME_NONE
+        val now = System.nanoTime()
+        val tag = (pts and TAG_MASK).toInt()
+        decodedRing.set(tag, now)
+        decodeTime.record((now - pushRing.get(tag)) / NS_PER_US)
+    }
+
+    /**
+     * Record a buffer reaching the video sink.
+     */
+    fun onRendered(pts: Long) {
+        if (pts < 0) return
+        val now = System.nanoTime()
+        val tag = (pts and TAG_MASK).toInt()
+        val decodedNs = decodedRing.get(tag)
+        if (decodedNs != 0L) {
+            queueTime.record((now - decodedNs) / NS_PER_US)
+        }
+        val arrivalNs = arrivalRing.get(tag)
+        if (arrivalNs != 0L) {
+            glassTime.record((now - arrivalNs) / NS_PER_US)
+        }
+        framesRendered.incrementAndGet()
+    }
+
+    /**
+     * Drain all histograms into an aggregated metric payload.
+     */
+    fun snapshotAndReset(): Map<String, Any> =
+        mapOf(
+            "frames-pushed" to framesPushed.getAndSet(0),
+            "frames-rendered" to framesRendered.getAndSet(0),
+            "ingest" to ingestTime.snapshotAndReset(),
+            "decode" to decodeTime.snapshotAndReset(),
+            "queue" to queueTime.snapshotAndReset(),
+            "glass" to glassTime.snapshotAndReset(),
+        )
+
+    /**
+     * Forget the timeline, e.g. after the pipeline has been rebuilt.
+     */
+    fun reset() {
+        baseNs.set(0)
+    }
+
+    companion object {
+        private const val TAG_BITS = 10
+        private const val RING_SIZE = 1 shl TAG_BITS
+        private const val TAG_MASK = (RING_SIZE - 1).toLong()
+
+        /**
+         * Spacing of PTS values that tagging leaves ordered and distinct: a
+         * PTS on this grid only gains its tag in the low bits.
+         */
+        const val TAG_GRID_NS = 1L shl TAG_BITS
+        private const val NS_PER_US = 1_000L
+    }
+}
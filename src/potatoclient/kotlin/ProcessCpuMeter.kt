@@ -0,0 +1,56 @@
+package potatoclient.kotlin
+
+import java.lang.management.ManagementFactory
+
+/**
+ * CPU time used by this stream process between two samples.
+ *
+ * Decoding runs on GStreamer/libav native threads, so "native" time is the
+ * process CPU time minus the CPU time of JVM threads; it covers decode and
+ * render work. Each sample reports the delta since the previous one.
+ */
+class ProcessCpuMeter {
+    private val osBean = ManagementFactory.getOperatingSystemMXBean() as? com.sun.management.OperatingSystemMXBean
+    private val threadBean = ManagementFactory.getThreadMXBean()
+    private var lastSampleNs = System.nanoTime()
+    private var lastProcessCpuNs = processCpuNs()
+    private var lastJvmCpuNs = jvmThreadsCpuNs()
+
+    /**
+     * CPU used since the previous call, or null when the JVM cannot tell.
+     */
+    fun sample(): Map<String, Any>? {
+        val now = System.nanoTime()
+        val processCpu = processCpuNs()
+        val jvmCpu = jvmThreadsCpuNs()
+        if (processCpu < 0) {
+            return null
+        }
+
+        val wallNs = (now - lastSampleNs).coerceAtLeast(1)
+        val processDelta = processCpu - lastProcessCpuNs
+        val nativeDelta = (processDelta - (jvmCpu - lastJvmCpuNs)).coerceAtLeast(0)
+        lastSampleNs = now
+        lastProcessCpuNs = processCpu
+        lastJvmCpuNs = jvmCpu
+
+        return mapOf(
+            "process-cpu-ms" to processDelta / NS_PER_MS,
+            "native-cpu-ms" to nativeDelta / NS_PER_MS,
+            "cores-used" to processDelta.toDouble() / wallNs,
+        )
+    }
+
+    private fun processCpuNs(): Long = osBean?.processCpuTime ?: -1
+
+    private fun jvmThreadsCpuNs(): Long {
+        if (!threadBean.isThreadCpuTimeSupported) {
+            return 0
+        }
+        return threadBean.allThreadIds.sumOf { threadBean.getThreadCpuTime(it).coerceAtLeast(0) }
+    }
+
+    companion object {
+        private const val NS_PER_MS = 1_000_000L
+    }
+}
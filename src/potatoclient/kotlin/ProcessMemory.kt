@@ -0,0 +1,40 @@
+package potatoclient.kotlin
+
+import java.io.File
+import java.io.IOException
+
+/**
+ * Memory footprint of this stream process.
+ *
+ * Reported next to [ProcessCpuMeter] so the main process can compare the
+ * combined single-process mode against one process per stream. Resident set
+ * size is read from /proc and is only reported on Linux.
+ */
+object ProcessMemory {
+    private const val BYTES_PER_KB = 1024L
+    private val WHITESPACE = Regex("\\s+")
+    private val statusFile = File("/proc/self/status")
+
+    fun sample(): Map<String, Any> {
+        val runtime = Runtime.getRuntime()
+        val sample = mutableMapOf<String, Any>("heap-used-bytes" to runtime.totalMemory() - runtime.freeMemory())
+        residentBytes()?.let { sample["rss-bytes"] = it }
+        return sample
+    }
+
+    private fun residentBytes(): Long? {
+        if (!statusFile.canRead()) {
+            return null
+        }
+        return try {
+            statusFile
+                .useLines { lines -> lines.firstOrNull { it.startsWith("VmRSS:") } }
+                ?.split(WHITESPACE)
+                ?.getOrNull(1)
+                ?.toLongOrNull()
+                ?.times(BYTES_PER_KB)
+        } catch (_: IOException) {
+            null
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package potatoclient.kotlin
+
+import java.net.Socket
+import java.net.http.HttpClient
+import java.security.KeyManagementException
+import java.security.NoSuchAlgorithmException
+import java.security.SecureRandom
+import java.security.cert.X509Certificate
+import java.time.Duration
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.X509ExtendedTrustManager
+import javax.net.ssl.X509TrustManager
+
+/**
+ * Process-wide HttpClient for WebSocket connections.
+ *
+ * Built lazily on first use and reused across reconnects, so the process
+ * keeps one selector thread and a bounded executor no matter how often
+ * connections are re-established. The single SSLContext keeps a client
+ * session cache, which lets reconnects resume TLS sessions instead of
+ * running full handshakes.
+ */
+object SharedHttpClient {
+    private val threadCounter = AtomicInteger(0)
+
+    private val executor: ExecutorService =
+        Executors.newFixedThreadPool(Constants.HTTP_CLIENT_THREADS) { r ->
+            Thread(r, "WebSocket-Http-${threadCounter.incrementAndGet()}").apply { isDaemon = true }
+        }
+
+    val client: HttpClient by lazy { createHttpClient() }
+
+    private fun createHttpClient(): HttpClient {
+        val builder =
+            HttpClient
+                .newBuilder()
+                .executor(executor)
+                .connectTimeout(Duration.ofSeconds(10))
+        return try {
+            builder.sslContext(createTrustAllSSLContext()).build()
+        } catch (e: NoSuchAlgorithmException) {
+            System.err.println("Failed to create HttpClient with custom SSL context, using default: ${e.message}")
+            builder.build()
+        } catch (e: KeyManagementException) {
+            System.err.println("Failed to create HttpClient with custom SSL context, using default: ${e.message}")
+            builder.build()
+        }
+    }
+
+    private fun createTrustAllSSLContext(): SSLContext {
+        val trustAll = TrustAllTrustManager()
+        return SSLContext.getInstance("TLS").apply {
+            init(null, arrayOf<X509TrustManager>(trustAll), SecureRandom())
+            clientSessionContext.sessionCacheSize = Constants.TLS_SESSION_CACHE_SIZE
+            clientSessionContext.sessionTimeout = Constants.TLS_SESSION_TIMEOUT_SECONDS
+        }
+    }
+
+    private class TrustAllTrustManager : X509ExtendedTrustManager() {
+        override fun checkClientTrusted(
+            chain: Array<X509Certificate>,
+            authType: String,
+        ) {
+            // Trust all certificates for local testing
+        }
+
+        override fun checkServerTrusted(
+            chain: Array<X509Certificate>,
+            authType: String,
+        ) {
+            // Trust all certificates for local testing
+        }
+
+        override fun checkClientTrusted(
+            chain: Array<X509Certificate>,
+            authType: String,
+            socket: Socket,
+        ) {
+            // Trust all certificates for local testing
+        }
+
+        override fun checkServerTrusted(
+            chain: Array<X509Certificate>,
+            authType: String,
+            socket: Socket,
+        ) {
+            // Trust all certificates for local testing
+        }
+
+        override fun checkClientTrusted(
+            chain: Array<X509Certificate>,
+            authType: String,
+            engine: SSLEngine,
+        ) {
+            // Trust all certificates for local testing
+        }
+
+        override fun checkServerTrusted(
+            chain: Array<X509Certificate>,
+            authType: String,
+            engine: SSLEngine,
+        ) {
+            // Trust all certificates for local testing
+        }
+
+        override fun getAcceptedIssuers(): Array<X509Certificate> = emptyArray()
+    }
+}
@@ -0,0 +1,19 @@
+package potatoclient.kotlin
+
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+
+/**
+ * The single scheduled executor of the video process.
+ *
+ * Used for short periodic and delayed tasks (reconnect backoff, metric
+ * reports). Tasks must not block: long work belongs on its own thread.
+ * The thread is a daemon, so owners cancel their futures instead of
+ * shutting the executor down.
+ */
+object SharedScheduler {
+    val executor: ScheduledExecutorService =
+        Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "VideoStream-Scheduler").apply { isDaemon = true }
+        }
+}
@@ -0,0 +1,183 @@
+package potatoclient.kotlin
+
+import org.freedesktop.gstreamer.ElementFactory
+import potatoclient.kotlin.ipc.IpcClient
+import potatoclient.kotlin.ipc.IpcKeys
+import java.awt.GraphicsEnvironment
+import java.awt.Toolkit
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.system.exitProcess
+
+/**
+ * A stream process started ahead of time and waiting to be bound to a stream.
+ *
+ * While a stream is off, the main process keeps one of these connected to
+ * that stream's IPC socket. It initialises GStreamer, ranks the decoders and
+ * loads the parser, decoder and sink plugins, then waits with no window and
+ * no WebSocket. The activate command carries the stream URL, host and
+ * current settings. The [VideoStreamManager] built from it reuses the IPC
+ * connection, so a toggle pays neither JVM startup nor GStreamer init and
+ * plugin scanning.
+ *
+ * A stop command, losing the IPC connection or the main process exiting ends
+ * the standby.
+ */
+object StandbyStream {
+    private const val PARENT_CHECK_INTERVAL_MS = 1_000L
+
+    private class Activation(
+        val url: String,
+        val domain: String,
+        val toggleMs: Long,
+        val settings: Map<String, String>,
+    )
+
+    /**
+     * GStreamer log output of the warm-up, forwarded over IPC.
+     */
+    private class LogCallback(
+        private val ipcClient: IpcClient,
+    ) : GStreamerPipeline.EventCallback {
+        override fun onLog(
+            level: String,
+            message: String,
+        ) {
+            val logLevel =
+                when (level) {
+                    "DEBUG" -> IpcKeys.DEBUG
+                    "WARN" -> IpcKeys.WARN
+                    "ERROR" -> IpcKeys.ERROR
+                    else -> IpcKeys.INFO
+                }
+            ipcClient.sendLog(logLevel, message)
+        }
+
+        override fun onPipelineError(message: String) {
+            ipcClient.sendLog(IpcKeys.ERROR, "Standby warm-up error: $message")
+        }
+
+        override fun isRunning(): Boolean = true
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        if (args.size < 2) {
+            System.err.println("Usage: StandbyStream <streamId> <parentPid>")
+            exitProcess(1)
+        }
+        val streamId = args[0]
+        val parentPid = args[1].toLong()
+
+        val ipcClient =
+            try {
+                IpcClient.create(parentPid, streamId, StreamSettings.SYSTEM.ipcChannel(streamId))
+            } catch (e: Exception) {
+                System.err.println("Standby $streamId failed to connect: ${e.message}")
+                exitProcess(1)
+            }
+
+        // Released by activate or stop; only the first command counts
+        val woken = CountDownLatch(1)
+        val activation = AtomicReference<Activation?>()
+        ipcClient.onMessage { message ->
+            if (message[IpcKeys.MSG_TYPE] != IpcKeys.COMMAND || woken.count == 0L) {
+                return@onMessage
+            }
+            when (message[IpcKeys.ACTION]) {
+                IpcKeys.keyword("activate") -> {
+                    val url = message[IpcKeys.keyword("url")] as? String
+                    val domain = message[IpcKeys.keyword("host")] as? String
+                    if (url != null && domain != null) {
+                        val toggleMs =
+                            (message[IpcKeys.keyword("toggle-ms")] as? Number)?.toLong()
+                                ?: System.currentTimeMillis()
+                        // Current settings of the stream, which may differ from the spawn-time properties
+                        val settings =
+                            (message[IpcKeys.keyword("settings")] as? Map<*, *>)
+                                ?.entries
+                                ?.mapNotNull { (k, v) -> if (k != null && v != null) "$k" to "$v" else null }
+                                ?.toMap()
+                                ?: emptyMap()
+                        activation.set(Activation(url, domain, toggleMs, settings))
+                        woken.countDown()
+                    } else {
+                        ipcClient.sendLog(IpcKeys.WARN, "Ignoring activate: no url or host")
+                    }
+                }
+                IpcKeys.keyword("stop"), IpcKeys.keyword("shutdown") -> {
+                    woken.countDown()
+                }
+            }
+        }
+
+        val warmUpMs = warmUp(LogCallback(ipcClient))
+        val bootMs = System.currentTimeMillis() - StreamSettings.SYSTEM.spawnTimeMs()
+        ipcClient.sendMetric(
+            "standby-ready",
+            mapOf("warm-up-ms" to warmUpMs, "boot-ms" to bootMs),
+            mapOf("stream" to streamId),
+        )
+
+        while (!woken.await(PARENT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            val parentAlive = ProcessHandle.of(parentPid).map { it.isAlive }.orElse(false)
+            if (!parentAlive || !ipcClient.isConnected()) {
+                break
+            }
+        }
+
+        val next = activation.get()
+        if (next == null) {
+            ipcClient.shutdown()
+            exitProcess(0)
+        }
+
+        try {
+            VideoStreamManager(
+                streamId = streamId,
+                streamUrl = next.url,
+                domain = next.domain,
+                parentPid = parentPid,
+                settings = StreamSettings(next.settings),
+                firstFramePath = "standby",
+                firstFrameStartMs = next.toggleMs,
+                ipcClient = ipcClient,
+            ).start()
+        } catch (e: Exception) {
+            System.err.println("Failed to start video stream: ${e.message}")
+            e.printStackTrace()
+            exitProcess(1)
+        } finally {
+            exitProcess(0)
+        }
+    }
+
+    /**
+     * Do the start-up work that does not depend on the stream: toolkit,
+     * GStreamer, decoder ranking and plugin loading. Returns the time taken in ms.
+     */
+    fun warmUp(callback: GStreamerPipeline.EventCallback): Long {
+        val started = System.nanoTime()
+        if (!GraphicsEnvironment.isHeadless()) {
+            Toolkit.getDefaultToolkit()
+        }
+        if (GStreamerPipeline.ensureInitialized(callback)) {
+            val decoders =
+                DecoderProbe.rankedDecoders(
+                    GStreamerPipeline.decoderOptions(),
+                    callback,
+                    StreamSettings.SYSTEM.configDir(),
+                    blocking = true,
+                ) {
+                    GStreamerPipeline.scanPluginPath(GStreamerPipeline.pluginPath(), callback)
+                }
+            // Creating an element loads its plugin; the pipeline then only builds elements
+            for (name in listOfNotNull("h264parse", decoders.firstOrNull(), "videoconvert", "videoscale")) {
+                ElementFactory.make(name, "standby-$name")?.dispose()
+            }
+            GStreamerPipeline.createVideoSink(callback, StreamSettings.SYSTEM)?.dispose()
+        }
+        return (System.nanoTime() - started) / 1_000_000L
+    }
+}
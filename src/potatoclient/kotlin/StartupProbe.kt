@@ -0,0 +1,88 @@
+package potatoclient.kotlin
+
+import com.cognitect.transit.TransitFactory
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.jar.JarFile
+import kotlin.system.exitProcess
+
+/**
+ * Training and measuring run for the stream subprocess runtime, used by
+ * the `stream-runtime` build task.
+ *
+ * It loads every class of the stream jars given as arguments. It then runs
+ * a Transit round trip and the same GStreamer warm-up as a standby process.
+ * Run with `-XX:ArchiveClassesAtExit`, this records the application
+ * class-data-sharing archive; run with and without that archive, it prints
+ * the startup time and resident memory so the two can be compared.
+ */
+object StartupProbe {
+    private object StderrCallback : GStreamerPipeline.EventCallback {
+        override fun onLog(
+            level: String,
+            message: String,
+        ) {
+            if (level != "DEBUG") {
+                System.err.println("[$level] $message")
+            }
+        }
+
+        override fun onPipelineError(message: String) {
+            System.err.println("[ERROR] $message")
+        }
+
+        override fun isRunning(): Boolean = true
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val runtime = ManagementFactory.getRuntimeMXBean()
+        val mainMs = System.currentTimeMillis() - runtime.startTime
+
+        val failed = args.sumOf { loadClasses(File(it)) }
+        transitRoundTrip()
+        val warmUpMs = StandbyStream.warmUp(StderrCallback)
+
+        // One line the build task parses
+        println(
+            "startup-ms=${runtime.uptime} main-ms=$mainMs warm-up-ms=$warmUpMs " +
+                "classes=${ManagementFactory.getClassLoadingMXBean().loadedClassCount} " +
+                "rss-bytes=${ProcessMemory.sample()["rss-bytes"] ?: 0} unloadable=$failed",
+        )
+        exitProcess(0)
+    }
+
+    /**
+     * Load, without initialising, every class in [jar]; returns the number
+     * that failed to link.
+     */
+    private fun loadClasses(jar: File): Int {
+        var failed = 0
+        val loader = StartupProbe::class.java.classLoader
+        JarFile(jar).use { file ->
+            for (entry in file.entries()) {
+                if (!entry.name.endsWith(".class") || entry.name.endsWith("module-info.class")) {
+                    continue
+                }
+                try {
+                    Class.forName(entry.name.removeSuffix(".class").replace('/', '.'), false, loader)
+                } catch (_: LinkageError) {
+                    failed++
+                } catch (_: ClassNotFoundException) {
+                    failed++
+                }
+            }
+        }
+        return failed
+    }
+
+    private fun transitRoundTrip() {
+        val out = ByteArrayOutputStream()
+        TransitFactory
+            .writer<Any>(TransitFactory.Format.MSGPACK, out)
+            .write(mapOf(TransitFactory.keyword("msg-type") to TransitFactory.keyword("metric"), "value" to 1L))
+        TransitFactory.reader(TransitFactory.Format.MSGPACK, ByteArrayInputStream(out.toByteArray())).read<Any>()
+    }
+}
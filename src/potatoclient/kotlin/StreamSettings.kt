@@ -0,0 +1,49 @@
+package potatoclient.kotlin
+
+import java.io.File
+import java.lang.management.ManagementFactory
+
+/**
+ * Per-stream settings of the video process.
+ *
+ * A stream subprocess gets its settings as -D system properties and uses
+ * [SYSTEM]. A stream running inside the main JVM ([InProcessStream]) gets
+ * its own instance from the main process, since the system properties there
+ * are shared by every stream. The settings are handed to the parts that read
+ * them, so they hold on any thread: EDT, GStreamer and background probes.
+ * Keys not set fall back to the system properties, which is right for the
+ * process-wide ones.
+ */
+class StreamSettings(
+    private val values: Map<String, String> = emptyMap(),
+) {
+    fun get(key: String): String? = values[key] ?: System.getProperty(key)
+
+    /**
+     * Config directory for data kept across runs, e.g. the decoder ranking.
+     */
+    fun configDir(): File? = get(CONFIG_DIR_PROPERTY)?.let { File(it) }
+
+    /**
+     * Time the main process toggled the stream on, falling back to JVM start time.
+     */
+    fun spawnTimeMs(): Long =
+        get(SPAWN_TIME_PROPERTY)?.toLongOrNull()
+            ?: ManagementFactory.getRuntimeMXBean().startTime
+
+    /**
+     * IPC channel to connect to: one per device the stream is shown for, else the stream id.
+     */
+    fun ipcChannel(streamId: String): String = get(IPC_CHANNEL_PROPERTY) ?: streamId
+
+    companion object {
+        const val CONFIG_DIR_PROPERTY = "potatoclient.config.dir"
+        const val SPAWN_TIME_PROPERTY = "potatoclient.spawn-time-ms"
+        const val IPC_CHANNEL_PROPERTY = "potatoclient.ipc.channel"
+
+        /**
+         * Settings of a stream subprocess: its system properties.
+         */
+        @JvmField val SYSTEM = StreamSettings()
+    }
+}
@@ -0,0 +1,57 @@
+package potatoclient.kotlin
+
+import java.awt.Component
+
+/**
+ * Pipeline operations used by [VideoStreamManager], implemented by the
+ * single-stream [GStreamerPipeline] and the two-stream [CompositePipeline]
+ * on top of [BasePipeline].
+ */
+interface VideoPipeline {
+    /**
+     * Build and start the pipeline rendering into [videoComponent], or headless when null.
+     */
+    fun initialize(videoComponent: Component?)
+
+    /**
+     * Push the bytes of the primary stream's message from [offset] on.
+     * [timestampMs] is the producer timestamp from the frame header.
+     */
+    fun pushVideoData(
+        data: FragmentChain,
+        offset: Int,
+        arrivalNs: Long,
+        timestampMs: Long,
+    )
+
+    fun markTtffStart(
+        path: String,
+        startMs: Long = System.currentTimeMillis(),
+    )
+
+    fun pause()
+
+    fun resume(path: String = "warm-resume")
+
+    fun flush(path: String)
+
+    fun setDecodeThreads(threads: Int)
+
+    fun getDecodeThreads(): Int
+
+    /**
+     * Size of the video component in device pixels, from window resize events.
+     * Pipelines without a scaling stage ignore it.
+     */
+    fun setOutputSize(
+        width: Int,
+        height: Int,
+    ) {}
+
+    /**
+     * Snapshot and thumbnail tap on the decoded frames, or null without one.
+     */
+    fun frameTap(): FrameTap? = null
+
+    fun stop()
+}
@@ -1,19 +1,21 @@
 package potatoclient.kotlin
 
+import com.sun.management.HotSpotDiagnosticMXBean
 import potatoclient.kotlin.gestures.FrameData
 import potatoclient.kotlin.gestures.FrameDataProvider
 import potatoclient.kotlin.ipc.IpcClient
 import potatoclient.kotlin.ipc.IpcKeys
 import java.awt.Component
+import java.io.File
+import java.lang.management.ManagementFactory
 import java.net.URI
-import java.nio.ByteOrder
 import java.util.concurrent.CountDownLatch
-import java.util.concurrent.Executors
-import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
 import javax.swing.JFrame
+import kotlin.math.roundToInt
 import kotlin.system.exitProcess
 
 class VideoStreamCreationException(
@@ -26,12 +28,19 @@ class VideoStreamManager(
     private val streamUrl: String,
     domain: String,
     parentPid: Long,
+    private val heatUrl: String? = null,
+    // Running inside the main JVM (InProcessStream): never exit the process
+    private val inProcess: Boolean = false,
+    // Per-stream settings; a subprocess reads its system properties
+    private val settings: StreamSettings = StreamSettings.SYSTEM,
+    // How the stream was started and when, for the time to first frame
+    private val firstFramePath: String = "cold-spawn",
+    private val firstFrameStartMs: Long = settings.spawnTimeMs(),
+    // A standby process hands over its connection
+    private val ipcClient: IpcClient = IpcClient.create(parentPid, streamId, settings.ipcChannel(streamId)),
 ) : GStreamerPipeline.EventCallback,
     FrameManager.FrameEventListener,
     FrameDataProvider {
-    // IPC communication
-    private val ipcClient = IpcClient.create(parentPid, streamId)
-
     // Thread-safe primitives
     private val running = AtomicBoolean(true)
     private val shutdownLatch = CountDownLatch(1)
@@ -41,18 +50,44 @@ class VideoStreamManager(
     private val currentFrameTimestamp = AtomicLong(0)
     private val currentFrameDuration = AtomicLong(0)
 
-    // Executor services
-    private val reconnectExecutor: ScheduledExecutorService =
-        Executors.newSingleThreadScheduledExecutor { r ->
-            Thread(r, "VideoStream-Reconnect-$streamId").apply { isDaemon = true }
-        }
+    // Periodic tasks run on the process-wide scheduler
+    private var metricsReportTask: ScheduledFuture<*>? = null
+    private var heartbeatTask: ScheduledFuture<*>? = null
+
+    // Liveness counters for the heartbeat the main process's stall watchdog checks
+    private val framesRendered = AtomicLong(0)
+    private val lastFrameNanos = AtomicLong(0)
+    private val bytesReceived = AtomicLong(0)
+    private val lastDataNanos = AtomicLong(0)
+
+    @Volatile private var paused = false
+    private val restarting = AtomicBoolean(false)
+
+    // Window the pipeline renders into, kept for pipeline restarts
+    @Volatile private var videoComponent: Component? = null
+
+    // Per-frame stage timing (arrival -> appsrc -> decoder -> sink)
+    private val latencyTracker = LatencyTracker()
+    private val cpuMeter = ProcessCpuMeter()
+
+    // Optional timestamp-paced playout (single-stream pipeline only)
+    private val jitterBuffer = if (heatUrl == null) JitterBuffer.fromSettings(settings) else null
 
     // Module instances
     private val frameManager = FrameManager(streamId, domain, this, ipcClient)
     private var mouseEventHandler: MouseEventHandler? = null
     private var windowEventHandler: WindowEventHandler? = null
     private val webSocketClient: WebSocketClientBuiltIn
-    private val gstreamerPipeline = GStreamerPipeline(this)
+
+    // Combined mode: the heat stream is composited into this stream's window
+    private val compositePipeline = heatUrl?.let { CompositePipeline(this, settings) }
+    private val heatWebSocketClient: WebSocketClientBuiltIn?
+    private val gstreamerPipeline: VideoPipeline =
+        compositePipeline ?: GStreamerPipeline(this, settings, latencyTracker, jitterBuffer)
+
+    // Rolling recordings of the last seconds, exported on request
+    private val dvrRing = DvrRing.create(streamId, this, settings)
+    private val heatDvrRing = heatUrl?.let { DvrRing.create(Constants.StreamConfig.HEAT_STREAM_ID, this, settings) }
 
     init {
         // IPC client is already connected via create() in the constructor
@@ -62,12 +97,16 @@ class VideoStreamManager(
             handleIncomingMessage(message)
         }
 
-        webSocketClient = createWebSocketClient()
+        webSocketClient = createWebSocketClient(streamUrl, streamId)
+        heatWebSocketClient = heatUrl?.let { createWebSocketClient(it, Constants.StreamConfig.HEAT_STREAM_ID) }
     }
 
-    private fun createWebSocketClient(): WebSocketClientBuiltIn =
+    private fun createWebSocketClient(
+        url: String,
+        id: String,
+    ): WebSocketClientBuiltIn =
         try {
-            val uri = URI(streamUrl)
+            val uri = URI(url)
             val headers =
                 mutableMapOf(
                     "Origin" to "https://${uri.host}",
@@ -79,48 +118,52 @@ class VideoStreamManager(
             WebSocketClientBuiltIn(
                 serverUri = uri,
                 headers = headers,
-                onBinaryMessage = { data ->
+                onBinaryMessage = { data, arrivalNs ->
                     // Fast path - atomic check only
                     if (running.get()) {
                         // Check if we have enough data for timestamp (8 bytes) and duration (8 bytes)
-                        if (data.remaining() >= 16) {
-                            // Save original position
-                            val originalPos = data.position()
-
-                            // Set order and read directly from buffer (no duplicate)
-                            data.order(ByteOrder.LITTLE_ENDIAN)
-                            val timestamp = data.getLong()
-                            val duration = data.getLong()
-
-                            // Store current frame timing
+                        if (data.size() < FRAME_HEADER_SIZE) {
+                            // Skip malformed frames silently
+                        } else if (id != streamId) {
+                            // Composited heat stream; gestures use the primary stream's timestamps
+                            compositePipeline?.pushHeatData(data, FRAME_HEADER_SIZE)
+                            heatDvrRing?.append(data, FRAME_HEADER_SIZE, data.getLongLE(0), data.getLongLE(8))
+                        } else {
+                            // Read the little-endian header straight from the chunks
+                            val timestamp = data.getLongLE(0)
+                            val duration = data.getLongLE(8)
+                            bytesReceived.addAndGet(data.size().toLong())
+                            lastDataNanos.set(arrivalNs)
                             currentFrameTimestamp.set(timestamp)
                             currentFrameDuration.set(duration)
 
-                            // Create a slice with just the video data (no copy)
-                            val videoData = data.slice()
-
-                            // Restore position for buffer pool
-                            data.position(originalPos)
+                            // Gather only the video data into the pipeline buffer (no copy here)
+                            gstreamerPipeline.pushVideoData(data, FRAME_HEADER_SIZE, arrivalNs, timestamp)
 
-                            // Push only the video data to pipeline
-                            gstreamerPipeline.pushVideoData(videoData)
-                        } else {
-                            // Skip malformed frames silently
+                            // Then record straight from the same chunks
+                            dvrRing?.append(data, FRAME_HEADER_SIZE, timestamp, duration)
                         }
-
-                        // Always release buffers back to pool - WebSocket only gives us pooled buffers
-                        webSocketClient.getBufferPool().release(data)
+                        // The client recycles the message chunks after this callback
                     }
                 },
-                onConnect = {
+                onConnect = { stats ->
                     // Report websocket connection
                     ipcClient.sendConnectionEvent(
                         IpcKeys.CONNECTED,
                         mapOf(
-                            "url" to streamUrl,
-                            "stream-id" to streamId,
+                            "url" to url,
+                            "stream-id" to id,
                         ),
                     )
+                    ipcClient.sendMetric(
+                        "websocket-connect",
+                        mapOf(
+                            "connect-ms" to stats.connectMs,
+                            "disconnected-ms" to stats.disconnectedMs,
+                            "attempts" to stats.attempts,
+                        ),
+                        mapOf("stream" to id),
+                    )
                 },
                 onClose = { code, reason ->
                     // Report websocket disconnection
@@ -129,7 +172,7 @@ class VideoStreamManager(
                         mapOf(
                             "code" to code,
                             "reason" to reason,
-                            "stream-id" to streamId,
+                            "stream-id" to id,
                         ),
                     )
                 },
@@ -139,7 +182,7 @@ class VideoStreamManager(
                         IpcKeys.CONNECTION_ERROR,
                         mapOf<Any, Any>(
                             "error" to (error.message ?: "Unknown error"),
-                            "stream-id" to streamId,
+                            "stream-id" to id,
                         ),
                     )
                     ipcClient.sendLog(IpcKeys.ERROR, "WebSocket error: ${error.message}")
@@ -153,11 +196,32 @@ class VideoStreamManager(
         try {
             ipcClient.sendLog(IpcKeys.INFO, "Starting video stream $streamId")
 
+            // Measure from the toggle in the main process (spawn or standby activation)
+            gstreamerPipeline.markTtffStart(firstFramePath, firstFrameStartMs)
+            reportStartup()
+
             // Create and show frame
             frameManager.createFrame()
 
-            // Start WebSocket connection
+            // Periodically report aggregated latency, WebSocket and CPU statistics
+            metricsReportTask =
+                SharedScheduler.executor.scheduleWithFixedDelay(
+                    ::reportMetrics,
+                    Constants.METRICS_REPORT_INTERVAL_MS,
+                    Constants.METRICS_REPORT_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS,
+                )
+            heartbeatTask =
+                SharedScheduler.executor.scheduleWithFixedDelay(
+                    ::sendHeartbeat,
+                    Constants.HEARTBEAT_INTERVAL_MS,
+                    Constants.HEARTBEAT_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS,
+                )
+
+            // Start WebSocket connections
             webSocketClient.connect()
+            heatWebSocketClient?.connect()
 
             // Wait for shutdown
             try {
@@ -172,6 +236,112 @@ class VideoStreamManager(
         }
     }
 
+    /**
+     * Report JVM startup and class loading, with or without the stream
+     * class-data-sharing archive. For a cold spawn start-ms runs from the
+     * toggle to here; a standby did that work before it was bound.
+     */
+    private fun reportStartup() {
+        val runtime = ManagementFactory.getRuntimeMXBean()
+        val archive =
+            runCatching {
+                ManagementFactory
+                    .getPlatformMXBean(HotSpotDiagnosticMXBean::class.java)
+                    .getVMOption("SharedArchiveFile")
+                    .value
+            }.getOrDefault("")
+        val startup =
+            mapOf(
+                "path" to firstFramePath,
+                "jvm-uptime-ms" to runtime.uptime,
+                "classes-loaded" to ManagementFactory.getClassLoadingMXBean().loadedClassCount,
+                "cds-archive" to archive.isNotEmpty(),
+            )
+        ipcClient.sendMetric(
+            "startup",
+            if (firstFramePath == "cold-spawn") {
+                startup + ("start-ms" to System.currentTimeMillis() - firstFrameStartMs)
+            } else {
+                startup
+            },
+            mapOf("stream" to streamId),
+        )
+    }
+
+    private fun reportMetrics() {
+        if (!running.get() || !ipcClient.isConnected()) {
+            return
+        }
+        try {
+            val tags = mapOf("stream" to streamId)
+            val latency = latencyTracker.snapshotAndReset()
+            if (latency["frames-pushed"] != 0L) {
+                ipcClient.sendMetric("video-latency", latency, tags)
+            }
+            jitterBuffer?.let { jitter ->
+                ipcClient.sendMetric("jitter-buffer", jitter.snapshotAndReset(), tags)
+            }
+            val websocket = webSocketClient.getStats().snapshotAndReset()
+            if (websocket["messages"] != 0L) {
+                ipcClient.sendMetric("websocket-stats", websocket, tags)
+            }
+            heatWebSocketClient?.let { client ->
+                val heatStats = client.getStats().snapshotAndReset()
+                if (heatStats["messages"] != 0L) {
+                    ipcClient.sendMetric("heat-websocket-stats", heatStats, tags)
+                }
+            }
+            // In-process the CPU and memory figures are the whole main JVM's
+            cpuMeter.sample()?.let { cpu ->
+                ipcClient.sendMetric(
+                    "decode-cpu",
+                    cpu + mapOf("decode-threads" to gstreamerPipeline.getDecodeThreads(), "in-process" to inProcess),
+                    tags,
+                )
+            }
+            ipcClient.sendMetric(
+                "process-memory",
+                ProcessMemory.sample() +
+                    mapOf("streams" to if (compositePipeline != null) 2 else 1, "in-process" to inProcess),
+                tags,
+            )
+        } catch (e: Exception) {
+            System.err.println("Failed to report stream metrics: ${e.message}")
+        }
+    }
+
+    /**
+     * Send the compact liveness record the stall watchdog checks: frames
+     * rendered and bytes received since start, and how long ago the last
+     * of each arrived (-1 before the first).
+     */
+    private fun sendHeartbeat() {
+        if (!running.get() || !ipcClient.isConnected()) {
+            return
+        }
+        try {
+            val now = System.nanoTime()
+            ipcClient.sendMetric(
+                "heartbeat",
+                mapOf(
+                    "frames-rendered" to framesRendered.get(),
+                    "bytes-received" to bytesReceived.get(),
+                    "last-frame-age-ms" to ageMs(lastFrameNanos.get(), now),
+                    "last-data-age-ms" to ageMs(lastDataNanos.get(), now),
+                    "paused" to paused,
+                ),
+                mapOf("stream" to streamId),
+            )
+        } catch (e: Exception) {
+            System.err.println("Failed to send heartbeat: ${e.message}")
+        }
+    }
+
+    private fun ageMs(
+        nanos: Long,
+        now: Long,
+    ): Long = if (nanos == 0L) -1L else (now - nanos) / 1_000_000L
+
     private fun handleIncomingMessage(message: Map<*, *>) {
         val msgType = message[IpcKeys.MSG_TYPE]
         val action = message[IpcKeys.ACTION]
@@ -183,18 +353,131 @@ class VideoStreamManager(
                         stop()
                     }
                     IpcKeys.keyword("pause") -> {
-                        // TODO: Implement pause when gstreamerPipeline supports it
-                        // gstreamerPipeline.pause()
+                        paused = true
+                        gstreamerPipeline.pause()
                     }
                     IpcKeys.keyword("play") -> {
-                        // TODO: Implement play when gstreamerPipeline supports it
-                        // gstreamerPipeline.play()
+                        paused = false
+                        gstreamerPipeline.resume("warm-resume")
                     }
                     IpcKeys.keyword("reconnect") -> {
-                        // TODO: Implement reconnect when webSocketClient supports it
-                        // webSocketClient.reconnect()
+                        // Keep the pipeline; flush it and reconnect the WebSocket in place
+                        gstreamerPipeline.flush("reconnect")
+                        webSocketClient.reconnect()
+                        heatWebSocketClient?.let {
+                            compositePipeline?.flushHeat()
+                            it.reconnect()
+                        }
+                    }
+                    IpcKeys.keyword("restart-pipeline") -> {
+                        restartPipeline()
+                    }
+                    IpcKeys.keyword("set-layout") -> {
+                        val layout =
+                            (message[IpcKeys.keyword("layout")] as? String)
+                                ?.let { CompositePipeline.Layout.fromId(it) }
+                        if (compositePipeline == null || layout == null) {
+                            ipcClient.sendLog(IpcKeys.WARN, "Ignoring set-layout: not combined or unknown layout")
+                        } else {
+                            compositePipeline.setLayout(layout)
+                        }
                     }
+                    IpcKeys.keyword("export-dvr") -> {
+                        exportRecording(message)
+                    }
+                    IpcKeys.keyword("snapshot") -> {
+                        takeSnapshot(message)
+                    }
+                    IpcKeys.keyword("thumbnails") -> {
+                        setThumbnails(message)
+                    }
+                    IpcKeys.keyword("set-decode-threads") -> {
+                        (message[IpcKeys.keyword("threads")] as? Number)?.let {
+                            gstreamerPipeline.setDecodeThreads(it.toInt())
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tear the pipeline down and build it again in the same window, keeping
+     * the WebSocket connections. Runs on its own thread: stopping a wedged
+     * pipeline can take a while.
+     */
+    private fun restartPipeline() {
+        val component = videoComponent
+        if (component == null) {
+            ipcClient.sendLog(IpcKeys.WARN, "Ignoring restart-pipeline: no video window yet")
+            return
+        }
+        if (!restarting.compareAndSet(false, true)) {
+            return
+        }
+        Thread({
+            try {
+                if (running.get()) {
+                    ipcClient.sendLog(IpcKeys.INFO, "Restarting pipeline of $streamId")
+                    gstreamerPipeline.stop()
+                    gstreamerPipeline.markTtffStart("pipeline-restart")
+                    gstreamerPipeline.initialize(component)
+                    updateOutputSize(component)
+                    paused = false
                 }
+            } catch (e: Exception) {
+                ipcClient.sendLog(IpcKeys.ERROR, "Pipeline restart failed: ${e.message}")
+            } finally {
+                restarting.set(false)
+            }
+        }, "VideoStream-Restart-$streamId").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Export the rolling recording named by an export-dvr command in the background.
+     */
+    private fun exportRecording(message: Map<*, *>) {
+        val path = message[IpcKeys.keyword("path")] as? String
+        val seconds = (message[IpcKeys.keyword("seconds")] as? Number)?.toLong() ?: Constants.DVR_RING_SECONDS
+        val ring =
+            if (message[IpcKeys.keyword("stream")] == Constants.StreamConfig.HEAT_STREAM_ID) heatDvrRing else dvrRing
+        if (path == null || ring == null) {
+            ipcClient.sendLog(IpcKeys.WARN, "Ignoring export-dvr: no path or no recording for this stream")
+            return
+        }
+        ring.export(File(path), seconds) { result ->
+            ipcClient.sendMetric("dvr-export", result, mapOf("stream" to streamId))
+        }
+    }
+
+    /**
+     * Capture the next decoded frame to the path of a snapshot command.
+     */
+    private fun takeSnapshot(message: Map<*, *>) {
+        val path = message[IpcKeys.keyword("path")] as? String
+        val tap = gstreamerPipeline.frameTap()
+        if (path == null || tap == null) {
+            ipcClient.sendLog(IpcKeys.WARN, "Ignoring snapshot: no path or frame capture disabled")
+            return
+        }
+        tap.snapshot(File(path)) { result ->
+            ipcClient.sendMetric("snapshot", result, mapOf("stream" to streamId))
+        }
+    }
+
+    /**
+     * Start or stop (fps 0) live thumbnails, sent as the "thumbnail" metric.
+     */
+    private fun setThumbnails(message: Map<*, *>) {
+        val fps = (message[IpcKeys.keyword("fps")] as? Number)?.toInt() ?: 0
+        val width = (message[IpcKeys.keyword("width")] as? Number)?.toInt() ?: Constants.THUMBNAIL_WIDTH
+        val tags = mapOf("stream" to streamId)
+        gstreamerPipeline.frameTap()?.setThumbnails(fps, width) { thumbnail ->
+            if (ipcClient.isConnected()) {
+                ipcClient.sendMetric("thumbnail", thumbnail, tags)
             }
         }
     }
@@ -205,16 +488,37 @@ class VideoStreamManager(
         }
     }
 
+    /**
+     * Ask [start] to return and clean up, as the stop command does.
+     */
+    fun requestStop() = stop()
+
+    /**
+     * Stop a stream that did not stop when asked: the WebSockets are closed
+     * and the pipeline disposed on the calling thread instead of waiting for
+     * [start] to clean up. Both are safe to repeat when it does.
+     */
+    fun forceStop() {
+        stop()
+        webSocketClient.close()
+        heatWebSocketClient?.close()
+        gstreamerPipeline.stop()
+        frameManager.disposeFrame()
+    }
+
     private fun cleanup() {
         try {
             // Stop accepting new tasks
             running.set(false)
 
-            // Close WebSocket
+            // Close WebSockets
             webSocketClient.close()
+            heatWebSocketClient?.close()
 
-            // Stop GStreamer pipeline
+            // Stop GStreamer pipeline and drop the recordings
             gstreamerPipeline.stop()
+            dvrRing?.close()
+            heatDvrRing?.close()
 
             // Clean up event handlers
             mouseEventHandler?.cleanup()
@@ -223,21 +527,9 @@ class VideoStreamManager(
             // Dispose frame
             frameManager.disposeFrame()
 
-            // Shutdown executors
-            reconnectExecutor.shutdown()
-
-            try {
-                if (!reconnectExecutor.awaitTermination(
-                        Constants.EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS,
-                        TimeUnit.SECONDS,
-                    )
-                ) {
-                    reconnectExecutor.shutdownNow()
-                }
-            } catch (_: InterruptedException) {
-                reconnectExecutor.shutdownNow()
-                Thread.currentThread().interrupt()
-            }
+            // Cancel periodic tasks (the shared scheduler itself is a daemon)
+            metricsReportTask?.cancel(false)
+            heartbeatTask?.cancel(false)
 
             // Send final disconnection event
             ipcClient.sendConnectionEvent(
@@ -279,6 +571,24 @@ class VideoStreamManager(
 
     override fun isRunning(): Boolean = running.get()
 
+    override fun onFrameRendered() {
+        framesRendered.incrementAndGet()
+        lastFrameNanos.set(System.nanoTime())
+    }
+
+    override fun onFirstFrame(
+        path: String,
+        ttffMs: Long,
+    ) {
+        if (running.get()) {
+            ipcClient.sendLog(IpcKeys.INFO, "First frame after $path in $ttffMs ms")
+            ipcClient.sendMetric("ttff-ms", ttffMs, mapOf("stream" to streamId, "path" to path))
+            if (path == firstFramePath) {
+                ipcClient.sendMetric("toggle-ttff", mapOf("ms" to ttffMs, "path" to path), mapOf("stream" to streamId))
+            }
+        }
+    }
+
     // FrameDataProvider implementation
     override fun getFrameData(): FrameData? {
         val timestamp = currentFrameTimestamp.get()
@@ -302,8 +612,8 @@ class VideoStreamManager(
         videoComponent: Component,
     ) {
         try {
-            // Initialize GStreamer pipeline with video component
-            gstreamerPipeline.initialize(videoComponent)
+            this.videoComponent = videoComponent
+            initializePipeline(videoComponent)
 
             // Set up mouse event handler with IPC
             mouseEventHandler =
@@ -321,9 +631,11 @@ class VideoStreamManager(
                     ipcClient,
                     throttleMs = 100L,
                     onShutdown = {
-                        // Additional cleanup when window is closed
-                        cleanup()
+                        // In-process, start() cleans up once it returns; a subprocess exits here
+                        if (inProcess) stop() else cleanup()
                     },
+                    exitOnClose = !inProcess,
+                    onResize = { updateOutputSize(videoComponent) },
                 )
             windowEventHandler?.attachListeners()
         } catch (e: Exception) {
@@ -331,6 +643,43 @@ class VideoStreamManager(
         }
     }
 
+    /**
+     * Build the pipeline into the new window on its own thread, keeping the
+     * EDT free while plugins load and the pipeline goes to PLAYING. Restarts
+     * are ignored until it is built.
+     */
+    private fun initializePipeline(component: Component) {
+        restarting.set(true)
+        Thread({
+            try {
+                gstreamerPipeline.initialize(component)
+                updateOutputSize(component)
+                if (!running.get()) {
+                    // Stopped while building; cleanup may already have run
+                    gstreamerPipeline.stop()
+                }
+            } catch (e: Exception) {
+                ipcClient.sendLog(IpcKeys.ERROR, "Pipeline setup error: ${e.message}")
+            } finally {
+                restarting.set(false)
+            }
+        }, "VideoStream-Pipeline-$streamId").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Pass the video component size in device pixels to the pipeline's scaling stage.
+     */
+    private fun updateOutputSize(videoComponent: Component) {
+        val scale = videoComponent.graphicsConfiguration?.defaultTransform?.scaleX ?: 1.0
+        gstreamerPipeline.setOutputSize(
+            (videoComponent.width * scale).roundToInt(),
+            (videoComponent.height * scale).roundToInt(),
+        )
+    }
+
     override fun onFrameClosing() {
         // Only send the close event once to avoid multiple messages
         if (closeEventSent.compareAndSet(false, true)) {
@@ -340,10 +689,13 @@ class VideoStreamManager(
     }
 
     companion object {
+        // Little-endian timestamp (8 bytes) + duration (8 bytes) before each frame
+        private const val FRAME_HEADER_SIZE = 16
+
         @JvmStatic
         fun main(args: Array<String>) {
             if (args.size < 4) {
-                System.err.println("Usage: VideoStreamManager <streamId> <streamUrl> <domain> <parentPid>")
+                System.err.println("Usage: VideoStreamManager <streamId> <streamUrl> <domain> <parentPid> [heatUrl]")
                 exitProcess(1)
             }
 
@@ -351,9 +703,11 @@ class VideoStreamManager(
             val streamUrl = args[1]
             val domain = args[2]
             val parentPid = args[3].toLong()
+            // Optional: composite the heat stream into this stream's window
+            val heatUrl = args.getOrNull(4)
 
             try {
-                val manager = VideoStreamManager(streamId, streamUrl, domain, parentPid)
+                val manager = VideoStreamManager(streamId, streamUrl, domain, parentPid, heatUrl)
                 manager.start()
             } catch (e: Exception) {
                 System.err.println("Failed to start video stream: ${e.message}")
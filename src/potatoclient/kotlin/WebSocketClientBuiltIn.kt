@@ -1,104 +1,111 @@
 package potatoclient.kotlin
 
 import java.io.IOException
-import java.net.Socket
 import java.net.URI
 import java.net.http.HttpClient
 import java.net.http.WebSocket
 import java.nio.ByteBuffer
-import java.security.KeyManagementException
-import java.security.NoSuchAlgorithmException
-import java.security.SecureRandom
-import java.security.cert.X509Certificate
-import java.time.Duration
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CompletionStage
-import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ThreadLocalRandom
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
-import javax.net.ssl.SSLContext
-import javax.net.ssl.SSLEngine
-import javax.net.ssl.X509ExtendedTrustManager
-import javax.net.ssl.X509TrustManager
 
 /**
  * WebSocket client implementation using Java 17's built-in HttpClient.
- * Supports ignoring SSL certificate errors for development/testing.
+ * Connections share the process-wide [SharedHttpClient], which ignores
+ * SSL certificate errors for development/testing.
+ *
+ * Binary messages are delivered together with their arrival time
+ * (System.nanoTime() of the first fragment) for latency tracking.
+ * Messages are presented as a [FragmentChain] that is only valid for the
+ * duration of the callback; pooled chunks are recycled right after it.
+ *
+ * Lost connections are re-established on the [SharedScheduler] with
+ * jittered exponential backoff; at most one reconnect is pending at a time.
+ * Each connect attempt has a generation. Only the latest attempt may become
+ * the connection; a socket opened by an older one, or after [close], is
+ * aborted and its events are ignored.
  */
 class WebSocketClientBuiltIn(
     private val serverUri: URI,
     private val headers: Map<String, String>,
-    private val onBinaryMessage: ((ByteBuffer) -> Unit)?,
-    private val onConnect: (() -> Unit)?,
+    private val onBinaryMessage: ((FragmentChain, Long) -> Unit)?,
+    private val onConnect: ((ConnectStats) -> Unit)?,
     private val onClose: ((Int, String) -> Unit)?,
     private val onError: ((Throwable) -> Unit)?,
 ) {
     private val webSocketRef = AtomicReference<WebSocket?>()
     private val isConnecting = AtomicBoolean(false)
+    private val connectGeneration = AtomicLong(0)
     private val shouldReconnect = AtomicBoolean(false)
-    private val httpClient: HttpClient = createHttpClient()
+    private val pendingReconnect = AtomicReference<ScheduledFuture<*>?>()
+    private val consecutiveFailures = AtomicInteger(0)
+    private val connectAttempts = AtomicInteger(0)
+    private val disconnectedSinceNs = AtomicLong(0)
+    private val httpClient: HttpClient = SharedHttpClient.client
 
-    // Buffer pooling for zero-allocation streaming
-    private val bufferPool = ByteBufferPool(BUFFER_POOL_SIZE, BUFFER_SIZE, true)
+    // Fixed-size chunks for reassembling fragmented messages
+    private val bufferPool = ByteBufferPool(CHUNK_POOL_SIZE, CHUNK_SIZE, true)
 
-    // Buffer for accumulating partial messages - use direct buffer for better performance
-    private var messageBuffer: ByteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
-    private val lastBufferTrimTime = AtomicLong(System.currentTimeMillis())
+    // Message being reassembled for the current connection. A new connection
+    // swaps in its own chain under messageLock, which the listeners also hold
+    // while touching it, so a listener of an old connection cannot append to it.
+    private val messageLock = Any()
+    private var message = FragmentChain(bufferPool)
 
-    // Statistics tracking
-    private val messagesReceived = AtomicLong(0)
-    private val bytesReceived = AtomicLong(0)
-    private val statsExecutor =
-        Executors.newSingleThreadScheduledExecutor { r ->
-            Thread(r, "WebSocket-Stats").apply { isDaemon = true }
-        }
+    // Receive statistics, drained by the owner's periodic report
+    private val stats = WebSocketStats()
 
     companion object {
-        private const val BUFFER_POOL_SIZE = 20
-        private const val BUFFER_SIZE = 2 * 1024 * 1024 // 2MB per buffer
-        private const val BUFFER_TRIM_INTERVAL_MS = 60_000L // Trim every minute
-    }
-
-    init {
-        // Schedule periodic stats logging
-        statsExecutor.scheduleWithFixedDelay(::logStats, 30, 30, TimeUnit.SECONDS)
-    }
-
-    private fun createHttpClient(): HttpClient =
-        try {
-            // Create trust-all SSL context
-            val sslContext = createTrustAllSSLContext()
-
-            HttpClient
-                .newBuilder()
-                .sslContext(sslContext)
-                .connectTimeout(Duration.ofSeconds(10))
-                .build()
-        } catch (e: NoSuchAlgorithmException) {
-            System.err.println("Failed to create HttpClient with custom SSL context, using default: ${e.message}")
-            HttpClient.newHttpClient()
-        } catch (e: KeyManagementException) {
-            System.err.println("Failed to create HttpClient with custom SSL context, using default: ${e.message}")
-            HttpClient.newHttpClient()
-        }
-
-    private fun createTrustAllSSLContext(): SSLContext {
-        val trustAll = TrustAllTrustManager()
-        return SSLContext.getInstance("TLS").apply {
-            init(null, arrayOf<X509TrustManager>(trustAll), SecureRandom())
+        private const val CHUNK_POOL_SIZE = 64
+        private const val CHUNK_SIZE = 64 * 1024 // 4MB retained at most
+        private const val NS_PER_MS = 1_000_000L
+
+        /**
+         * Exponential backoff with jitter, mirroring calculate-backoff-delay in
+         * the state ingress: 1s doubling up to 30s, +/- 5% jitter.
+         */
+        fun calculateBackoffDelay(attempt: Int): Long {
+            val delay =
+                minOf(
+                    Constants.RECONNECT_BASE_DELAY_MS shl minOf(attempt, Constants.RECONNECT_MAX_DOUBLINGS),
+                    Constants.RECONNECT_MAX_DELAY_MS,
+                )
+            val jitter = delay * Constants.RECONNECT_JITTER_FRACTION * (ThreadLocalRandom.current().nextDouble() - 0.5)
+            return (delay + jitter).toLong()
         }
     }
 
+    /**
+     * Timing of a successful (re)connect, reported through onConnect.
+     * [connectMs] covers TCP, TLS and the WebSocket upgrade handshake;
+     * [disconnectedMs] is the time since the connection was lost (or since
+     * [connect] was first called) and [attempts] the number of tries it took.
+     */
+    data class ConnectStats(
+        val connectMs: Long,
+        val disconnectedMs: Long,
+        val attempts: Int,
+    )
+
     fun connect() {
-        if (isConnecting.compareAndSet(false, true)) {
-            shouldReconnect.set(true)
-            performConnect()
-        }
+        shouldReconnect.set(true)
+        disconnectedSinceNs.compareAndSet(0, System.nanoTime())
+        performConnect()
     }
 
     private fun performConnect() {
+        if (!isConnecting.compareAndSet(false, true)) {
+            return
+        }
+        val generation = connectGeneration.incrementAndGet()
+        val startNs = System.nanoTime()
+        connectAttempts.incrementAndGet()
         try {
             // Log connection attempt
             println("[WebSocket] Connecting to: $serverUri")
@@ -108,15 +115,15 @@ class WebSocketClientBuiltIn(
             // Add custom headers
             headers.forEach { (key, value) -> builder.header(key, value) }
 
-            val future = builder.buildAsync(serverUri, WebSocketListener())
+            val future = builder.buildAsync(serverUri, WebSocketListener(generation))
 
             future.whenComplete { webSocket, throwable ->
                 if (throwable != null) {
-                    handleConnectionError(throwable)
+                    if (isCurrent(generation)) {
+                        handleConnectionError(throwable)
+                    }
                 } else {
-                    webSocketRef.set(webSocket)
-                    isConnecting.set(false)
-                    onConnect?.invoke()
+                    handleConnected(webSocket, generation, startNs)
                 }
             }
         } catch (e: IOException) {
@@ -126,28 +133,110 @@ class WebSocketClientBuiltIn(
         }
     }
 
+    /**
+     * Whether the connect attempt of [generation] is the latest one and the
+     * client is still meant to be connected.
+     */
+    private fun isCurrent(generation: Long): Boolean =
+        shouldReconnect.get() && generation == connectGeneration.get()
+
+    private fun handleConnected(
+        webSocket: WebSocket,
+        generation: Long,
+        startNs: Long,
+    ) {
+        if (!isCurrent(generation)) {
+            // Superseded by a newer attempt or closed meanwhile
+            webSocket.abort()
+            return
+        }
+        val now = System.nanoTime()
+        webSocketRef.set(webSocket)
+        if (!isCurrent(generation)) {
+            // reconnect() or close() ran while the socket was installed
+            if (webSocketRef.compareAndSet(webSocket, null)) {
+                webSocket.abort()
+            }
+            return
+        }
+        isConnecting.set(false)
+        consecutiveFailures.set(0)
+
+        val since = disconnectedSinceNs.getAndSet(0)
+        val stats =
+            ConnectStats(
+                connectMs = (now - startNs) / NS_PER_MS,
+                disconnectedMs = if (since == 0L) 0 else (now - since) / NS_PER_MS,
+                attempts = connectAttempts.getAndSet(0),
+            )
+        onConnect?.invoke(stats)
+    }
+
     private fun handleConnectionError(error: Throwable) {
         System.err.println("WebSocket connection error: ${error.message}")
         isConnecting.set(false)
+        consecutiveFailures.incrementAndGet()
         onError?.invoke(error)
 
         // Attempt reconnection if enabled
-        if (shouldReconnect.get()) {
-            scheduleReconnect()
+        scheduleReconnect()
+    }
+
+    /**
+     * Remember when the connection was lost and schedule a reconnect.
+     * onError and onClose may both fire for one loss; both are idempotent.
+     * Events from a socket that has already been replaced are ignored.
+     */
+    private fun handleConnectionLost(webSocket: WebSocket) {
+        val current = webSocketRef.get()
+        if (current != null && current !== webSocket) {
+            return
         }
+        webSocketRef.compareAndSet(webSocket, null)
+        disconnectedSinceNs.compareAndSet(0, System.nanoTime())
+        scheduleReconnect()
     }
 
     private fun scheduleReconnect() {
-        Thread {
-            try {
-                Thread.sleep(1000)
-                if (shouldReconnect.get() && !isConnecting.get()) {
-                    performConnect()
-                }
-            } catch (_: InterruptedException) {
-                Thread.currentThread().interrupt()
-            }
-        }.start()
+        if (!shouldReconnect.get()) {
+            return
+        }
+        val delayMs = calculateBackoffDelay(consecutiveFailures.get())
+        val task =
+            SharedScheduler.executor.schedule(
+                {
+                    pendingReconnect.set(null)
+                    if (shouldReconnect.get() && webSocketRef.get() == null) {
+                        performConnect()
+                    }
+                },
+                delayMs,
+                TimeUnit.MILLISECONDS,
+            )
+        // Deduplicate: keep only the first pending reconnect
+        if (!pendingReconnect.compareAndSet(null, task)) {
+            task.cancel(false)
+        }
+    }
+
+    private fun cancelPendingReconnect() {
+        pendingReconnect.getAndSet(null)?.cancel(false)
+    }
+
+    /**
+     * Drop the current connection and connect again immediately.
+     * The client, its HttpClient and buffer pool stay alive, so this is much
+     * cheaper than recreating the client. Any partial message is discarded.
+     */
+    fun reconnect() {
+        cancelPendingReconnect()
+        // Retire an attempt still in flight; its socket is aborted once open
+        connectGeneration.incrementAndGet()
+        webSocketRef.getAndSet(null)?.abort()
+        isConnecting.set(false)
+        consecutiveFailures.set(0)
+        disconnectedSinceNs.compareAndSet(0, System.nanoTime())
+        connect()
     }
 
     fun send(data: ByteArray) {
@@ -165,6 +254,10 @@ class WebSocketClientBuiltIn(
 
     fun close() {
         shouldReconnect.set(false)
+        cancelPendingReconnect()
+        // An attempt still in flight has its socket aborted once open
+        connectGeneration.incrementAndGet()
+        isConnecting.set(false)
         val ws = webSocketRef.getAndSet(null)
         if (ws != null && !ws.isOutputClosed) {
             ws
@@ -176,66 +269,73 @@ class WebSocketClientBuiltIn(
         }
 
         // Clean up resources
-        statsExecutor.shutdown()
         bufferPool.clear()
     }
 
     /**
-     * Get the buffer pool for external buffer management
+     * Get the reassembly chunk pool (for monitoring)
      */
     fun getBufferPool(): ByteBufferPool = bufferPool
 
     /**
-     * Check if message buffer needs trimming and trim if necessary
-     */
-    private fun checkAndTrimMessageBuffer() {
-        val now = System.currentTimeMillis()
-        val lastTrim = lastBufferTrimTime.get()
-
-        if (now - lastTrim > BUFFER_TRIM_INTERVAL_MS && messageBuffer.capacity() > BUFFER_SIZE * 2) {
-            if (lastBufferTrimTime.compareAndSet(lastTrim, now)) {
-                // Trim buffer back to default size if it's grown too large
-                if (messageBuffer.position() == 0) {
-                    messageBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
-                    println("[WebSocket] Trimmed message buffer back to $BUFFER_SIZE bytes")
-                }
-            }
-        }
-    }
-
-    /**
-     * Log performance statistics
+     * Get the rolling receive statistics for periodic reporting
      */
-    private fun logStats() {
-        // Debug stats
-        // println("[WebSocket] Stats: messages=$messages, bytes=$bytes")
-    }
+    fun getStats(): WebSocketStats = stats
 
     fun isOpen(): Boolean {
         val ws = webSocketRef.get()
         return ws != null && !ws.isOutputClosed && !ws.isInputClosed
     }
 
-    private inner class WebSocketListener : WebSocket.Listener {
+    private inner class WebSocketListener(
+        private val generation: Long,
+    ) : WebSocket.Listener {
         // Pre-allocated for hot path
         private val completedFuture = CompletableFuture.completedFuture<Void>(null)
 
+        // This connection's chain; stale once a newer connection opened
+        private var chain: FragmentChain? = null
+        private var messageArrivalNs = 0L
+
+        // A newer attempt replaced this connection; after close() its events still report
+        private fun isSuperseded(): Boolean = shouldReconnect.get() && generation != connectGeneration.get()
+
         override fun onOpen(webSocket: WebSocket) {
-            println("[WebSocket] Connection opened")
+            synchronized(messageLock) {
+                if (!isCurrent(generation)) {
+                    // A stale attempt must not take the message chain of the current one
+                    webSocket.abort()
+                    return
+                }
+                println("[WebSocket] Connection opened")
+                // Discard fragments left over from a previous connection
+                val fresh = FragmentChain(bufferPool)
+                message.clear()
+                message = fresh
+                chain = fresh
+            }
+            stats.reset()
             webSocket.request(1)
         }
 
         @Suppress("NOTHING_TO_INLINE")
         private inline fun handleSingleFragment(
+            message: FragmentChain,
             data: ByteBuffer,
             webSocket: WebSocket,
+            arrivalNs: Long,
         ): CompletionStage<*> {
             // Fast path for single-fragment messages (most common case)
-            messagesReceived.incrementAndGet()
-            bytesReceived.addAndGet(data.remaining().toLong())
+            stats.onFragment(data.remaining())
+            stats.onMessage(arrivalNs, singleFragment = true)
 
             // Direct pass-through without any copying
-            onBinaryMessage?.invoke(data)
+            message.wrap(data)
+            try {
+                onBinaryMessage?.invoke(message, arrivalNs)
+            } finally {
+                message.clear()
+            }
 
             webSocket.request(1)
             return completedFuture
@@ -246,59 +346,52 @@ class WebSocketClientBuiltIn(
             data: ByteBuffer,
             last: Boolean,
         ): CompletionStage<*> {
-            // Fast path for single-fragment messages
-            if (last && messageBuffer.position() == 0) {
-                return handleSingleFragment(data, webSocket)
-            }
-
-            // Slower path for multi-fragment messages
-            return try {
-                // Track statistics
-                bytesReceived.addAndGet(data.remaining().toLong())
-
-                // Only check trim on fragment boundaries to reduce overhead
-                if (last) {
-                    checkAndTrimMessageBuffer()
-                }
-
-                // Handle the binary message
-                val dataRemaining = data.remaining()
-                if (messageBuffer.remaining() < dataRemaining) {
-                    // Expand buffer if needed - use direct buffer
-                    val newCapacity = messageBuffer.capacity() + dataRemaining + BUFFER_SIZE
-                    val newBuffer = ByteBuffer.allocateDirect(newCapacity)
-                    messageBuffer.flip()
-                    newBuffer.put(messageBuffer)
-                    messageBuffer = newBuffer
+            val arrivalNs = System.nanoTime()
+
+            synchronized(messageLock) {
+                val message = chain
+                if (message == null || message !== this@WebSocketClientBuiltIn.message) {
+                    // A newer connection took over; drop what this one still delivers
+                    webSocket.request(1)
+                    return completedFuture
                 }
+                return onBinaryLocked(message, webSocket, data, last, arrivalNs)
+            }
+        }
 
-                messageBuffer.put(data)
-
-                if (last) {
-                    // Complete message received
-                    messagesReceived.incrementAndGet()
-                    messageBuffer.flip()
-
-                    // Multi-fragment message - use pooled buffer
-                    val pooledBuffer = bufferPool.acquireWithCapacity(messageBuffer.remaining())
-                    pooledBuffer.put(messageBuffer)
-                    pooledBuffer.flip()
+        private fun onBinaryLocked(
+            message: FragmentChain,
+            webSocket: WebSocket,
+            data: ByteBuffer,
+            last: Boolean,
+            arrivalNs: Long,
+        ): CompletionStage<*> {
+            // Fast path for single-fragment messages
+            if (last && message.isEmpty()) {
+                return handleSingleFragment(message, data, webSocket, arrivalNs)
+            }
 
-                    // Pass pooled buffer and let consumer release it
-                    onBinaryMessage?.invoke(pooledBuffer)
-                    // Note: Consumer is responsible for releasing the buffer back to pool
+            // Remember when the first fragment of this message arrived
+            if (message.isEmpty()) {
+                messageArrivalNs = arrivalNs
+            }
 
-                    messageBuffer.clear()
+            // Slower path for multi-fragment messages: copy into pooled chunks
+            stats.onFragment(data.remaining())
+            message.append(data)
+
+            if (last) {
+                // Complete message received - hand out the chunk chain as is
+                stats.onMessage(messageArrivalNs, singleFragment = false)
+                try {
+                    onBinaryMessage?.invoke(message, messageArrivalNs)
+                } finally {
+                    message.clear()
                 }
-
-                webSocket.request(1)
-                completedFuture
-            } catch (e: IOException) {
-                System.err.println("Error processing binary message: ${e.message}")
-                onError?.invoke(e)
-                webSocket.request(1)
-                completedFuture
             }
+
+            webSocket.request(1)
+            return completedFuture
         }
 
         override fun onText(
@@ -316,14 +409,14 @@ class WebSocketClientBuiltIn(
             webSocket: WebSocket,
             error: Throwable,
         ) {
+            if (isSuperseded()) {
+                return
+            }
             System.err.println("WebSocket error: ${error.message}")
             onError?.invoke(error)
 
             // Trigger reconnection
-            webSocketRef.set(null)
-            if (shouldReconnect.get()) {
-                scheduleReconnect()
-            }
+            handleConnectionLost(webSocket)
         }
 
         override fun onClose(
@@ -331,68 +424,20 @@ class WebSocketClientBuiltIn(
             statusCode: Int,
             reason: String,
         ): CompletionStage<*> {
+            if (isSuperseded()) {
+                return CompletableFuture.completedFuture(null)
+            }
             println("[WebSocket] Connection closed: $statusCode - $reason")
-            webSocketRef.set(null)
-
             onClose?.invoke(statusCode, reason)
 
             // Trigger reconnection if not a normal closure
-            if (shouldReconnect.get() && statusCode != WebSocket.NORMAL_CLOSURE) {
-                scheduleReconnect()
+            if (statusCode != WebSocket.NORMAL_CLOSURE) {
+                handleConnectionLost(webSocket)
+            } else {
+                webSocketRef.compareAndSet(webSocket, null)
             }
 
             return CompletableFuture.completedFuture(null)
         }
     }
-
-    // Trust manager that accepts all certificates (insecure!)
-    private class TrustAllTrustManager : X509ExtendedTrustManager() {
-        override fun checkClientTrusted(
-            chain: Array<X509Certificate>,
-            authType: String,
-        ) {
-            // Trust all certificates for local testing
-        }
-
-        override fun checkServerTrusted(
-            chain: Array<X509Certificate>,
-            authType: String,
-        ) {
-            // Trust all certificates for local testing
-        }
-
-        override fun checkClientTrusted(
-            chain: Array<X509Certificate>,
-            authType: String,
-            socket: Socket,
-        ) {
-            // Trust all certificates for local testing
-        }
-
-        override fun checkServerTrusted(
-            chain: Array<X509Certificate>,
-            authType: String,
-            socket: Socket,
-        ) {
-            // Trust all certificates for local testing
-        }
-
-        override fun checkClientTrusted(
-            chain: Array<X509Certificate>,
-            authType: String,
-            engine: SSLEngine,
-        ) {
-            // Trust all certificates for local testing
-        }
-
-        override fun checkServerTrusted(
-            chain: Array<X509Certificate>,
-            authType: String,
-            engine: SSLEngine,
-        ) {
-            // Trust all certificates for local testing
-        }
-
-        override fun getAcceptedIssuers(): Array<X509Certificate> = emptyArray()
-    }
 }
@@ -0,0 +1,71 @@
+package potatoclient.kotlin
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Rolling receive statistics for one WebSocket stream.
+ *
+ * Recording is a handful of atomic increments on the listener thread; the
+ * reporter drains a window with [snapshotAndReset] from another thread, so
+ * no locks are needed on either side.
+ */
+class WebSocketStats {
+    private val messages = AtomicLong(0)
+    private val singleFragmentMessages = AtomicLong(0)
+    private val fragments = AtomicLong(0)
+    private val bytes = AtomicLong(0)
+    private val windowStartNs = AtomicLong(System.nanoTime())
+    private val jitter = InterArrivalJitter()
+
+    /**
+     * Record one received fragment of [size] bytes.
+     */
+    fun onFragment(size: Int) {
+        fragments.incrementAndGet()
+        bytes.addAndGet(size.toLong())
+    }
+
+    /**
+     * Record a complete message whose first fragment arrived at [arrivalNs].
+     * [singleFragment] messages take the zero-copy path; others are reassembled.
+     */
+    fun onMessage(
+        arrivalNs: Long,
+        singleFragment: Boolean,
+    ) {
+        messages.incrementAndGet()
+        if (singleFragment) {
+            singleFragmentMessages.incrementAndGet()
+        }
+        jitter.onArrival(arrivalNs)
+    }
+
+    /**
+     * Drain the current window into an aggregated metric payload.
+     */
+    fun snapshotAndReset(): Map<String, Any> {
+        val now = System.nanoTime()
+        val elapsedSec = (now - windowStartNs.getAndSet(now)) / 1e9
+        val messageCount = messages.getAndSet(0)
+        val singleCount = singleFragmentMessages.getAndSet(0)
+        val fragmentCount = fragments.getAndSet(0)
+        val byteCount = bytes.getAndSet(0)
+
+        return mapOf(
+            "messages" to messageCount,
+            "bytes" to byteCount,
+            "bitrate-kbps" to if (elapsedSec > 0) (byteCount * 8 / 1000.0 / elapsedSec) else 0.0,
+            "fps" to if (elapsedSec > 0) messageCount / elapsedSec else 0.0,
+            "fragments-per-message" to if (messageCount > 0) fragmentCount.toDouble() / messageCount else 0.0,
+            "single-fragment-ratio" to if (messageCount > 0) singleCount.toDouble() / messageCount else 0.0,
+            "jitter" to jitter.snapshotAndReset(),
+        )
+    }
+
+    /**
+     * Forget arrival history, e.g. after a reconnect.
+     */
+    fun reset() {
+        jitter.reset()
+    }
+}
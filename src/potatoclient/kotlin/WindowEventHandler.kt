@@ -26,6 +26,8 @@ class WindowEventHandler(
     private val ipcClient: IpcClient,
     throttleMs: Long = 100L, // Default 100ms throttle for resize/move events
     private val onShutdown: (() -> Unit)? = null, // Optional shutdown callback
+    private val onResize: (() -> Unit)? = null, // Optional, runs with each throttled resize event
+    private val exitOnClose: Boolean = true, // False when the stream shares the main JVM
 ) {
     // Throttling state
     private val resizeThrottler = EventThrottler(throttleMs)
@@ -55,8 +57,10 @@ class WindowEventHandler(
                     // Clean shutdown when window is closed
                     cleanup()
                     onShutdown?.invoke() // Call custom shutdown handler if provided
-                    ipcClient.shutdown()
-                    exitProcess(0)
+                    if (exitOnClose) {
+                        ipcClient.shutdown()
+                        exitProcess(0)
+                    }
                 }
 
                 override fun windowClosed(e: WindowEvent) {
@@ -123,6 +127,7 @@ class WindowEventHandler(
                                 deltaY = newSize.height - oldSize.height,
                             )
                             lastSize = Dimension(newSize)
+                            onResize?.invoke()
                         }
                     }
                 }
@@ -68,10 +68,8 @@ class IpcClient(
 
         while (attempts < maxRetries) {
             try {
-                // Check if socket file exists before attempting connection
-                if (!java.nio.file.Files
-                        .exists(socketPath)
-                ) {
+                // Check if the server is listening (socket file or in-memory) before connecting
+                if (!SocketFactory.endpointExists(socketPath)) {
                     if (!retryOnFailure || attempts >= maxRetries - 1) {
                         isRunning.set(false)
                         throw java.net.SocketException("Socket file does not exist: $socketPath")
@@ -504,6 +502,7 @@ class IpcClient(
 
         /**
          * Create and connect a client.
+         * @param channel Socket to connect to, by default the stream's; messages are still tagged with streamName
          * @param retryOnFailure If true, retries connection if initial attempt fails
          * @param maxRetries Maximum number of connection attempts
          */
@@ -511,10 +510,11 @@ class IpcClient(
         fun create(
             serverPid: Long,
             streamName: String,
+            channel: String = streamName,
             retryOnFailure: Boolean = true,
             maxRetries: Int = 5,
         ): IpcClient {
-            val socketPath = generateSocketPath(serverPid, streamName)
+            val socketPath = generateSocketPath(serverPid, channel)
             val client = IpcClient(socketPath, streamName)
             client.connect(retryOnFailure, maxRetries)
             return client
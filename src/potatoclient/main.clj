@@ -11,14 +11,10 @@
             [potatoclient.init :as init]
             [potatoclient.logging :as logging]
             [potatoclient.runtime :as runtime]
+            [potatoclient.startup :as startup]
             [potatoclient.state :as state]
-            [potatoclient.state.server.core :as state-server]
             [potatoclient.theme :as theme]
             [potatoclient.ui.frames.initial.core :as initial-frame]
-            [potatoclient.ui.frames.connection.core :as connection-frame]
-            [potatoclient.ui.main-frame :as main-frame]
-            [potatoclient.ui.status-bar.messages :as status-bar]
-            [potatoclient.ui.connection-monitor :as connection-monitor]
             [seesaw.core :as seesaw])
   (:gen-class))
 
@@ -38,6 +34,15 @@
   "Delay in milliseconds to wait for initial state to arrive."
   500)
 
+(def ^:private deferred-namespaces
+  "Namespaces first needed after the initial frame, loaded in the background
+  once it is shown. Each is named by one of its vars, in load order."
+  ['potatoclient.state.server.core/initialized?
+   'potatoclient.ui.frames.connection.core/show
+   'potatoclient.ui.connection-monitor/start-monitoring!
+   'potatoclient.ui.main-frame/create-main-frame
+   'potatoclient.streams.core/start-stream])
+
 (defn- get-version
   "Get application version from VERSION file."
   []
@@ -54,6 +59,16 @@
     "DEVELOPMENT")) 
  (m/=> get-build-type [:=> [:cat] :string])
 
+(defn- shutdown-state-server!
+  "Shut state ingress down if it was started. Its namespace is only loaded
+  with the connection frame."
+  []
+  (when-let [initialized? (startup/loaded 'potatoclient.state.server.core/initialized?)]
+    (when (initialized?)
+      ((startup/deferred 'potatoclient.state.server.core/shutdown!))))
+  nil) 
+ (m/=> shutdown-state-server! [:=> [:cat] :nil])
+
 (defn- setup-shutdown-hook!
   "Setup JVM shutdown hook."
   []
@@ -64,8 +79,7 @@
         (try
           (logging/log-info {:msg "Shutting down PotatoClient..."})
           ;; Shutdown state ingress
-          (when (state-server/initialized?)
-            (state-server/shutdown!))
+          (shutdown-state-server!)
           ;; Shutdown logging
           (logging/shutdown!)
           (catch Exception e
@@ -73,13 +87,18 @@
  (m/=> setup-shutdown-hook! [:=> [:cat] :nil])
 
 (defn- initialize-application!
-  "Initialize all application subsystems."
+  "Initialize all application subsystems. Phases that do not depend on
+   each other run in parallel."
   []
-  ;; Initialize core systems first (Malli registry, etc.)
-  (init/initialize!)
-  (config/initialize!)
-  (i18n/init!)
-  (setup-shutdown-hook!)) 
+  (startup/run-phases!
+    [{:phase :registry :run init/initialize!}
+     {:phase :translations :run i18n/load-translations!}
+     {:phase :shutdown-hook :run setup-shutdown-hook!}
+     ;; Config also installs the saved theme and locale
+     {:phase :config :after #{:registry} :run config/initialize!}
+     {:phase :i18n :after #{:config :translations} :run i18n/init!}
+     ;; Icons of the theme, loaded before any UI shows them
+     {:phase :theme-icons :after #{:config} :run theme/preload-theme-icons!}])) 
  (m/=> initialize-application! [:=> [:cat] :nil])
 
 (defn- log-startup!
@@ -103,7 +122,7 @@
   []
   ;; Clean up any existing seesaw bindings before showing new frame
   (state/cleanup-seesaw-bindings!)
-  (connection-frame/show
+  ((startup/deferred 'potatoclient.ui.frames.connection.core/show)
     nil
     (fn [result]
       (case result
@@ -114,15 +133,14 @@
               _ (state/cleanup-seesaw-bindings!)
               params {:version (get-version)
                       :build-type (get-build-type)}
-              frame (main-frame/create-main-frame params)
+              frame ((startup/deferred 'potatoclient.ui.main-frame/create-main-frame) params)
               ;; Define callback to return to initial menu
               return-to-initial (fn []
                                   (logging/log-info {:msg "Returning to initial menu from main frame"})
                                   ;; Stop monitoring
-                                  (connection-monitor/stop-monitoring!)
+                                  ((startup/deferred 'potatoclient.ui.connection-monitor/stop-monitoring!))
                                   ;; Stop state server
-                                  (when (state-server/initialized?)
-                                    (state-server/shutdown!))
+                                  (shutdown-state-server!)
                                   ;; Clean up and dispose frame
                                   (state/cleanup-seesaw-bindings!)
                                   (seesaw/dispose! frame)
@@ -132,7 +150,7 @@
           (seesaw/show! frame)
           (log-startup!)
           ;; Start monitoring for connection loss
-          (connection-monitor/start-monitoring! frame return-to-initial)
+          ((startup/deferred 'potatoclient.ui.connection-monitor/start-monitoring!) frame return-to-initial)
           ;; Set initial UI state from config
           (when-let [saved-theme (:theme (config/load-config))]
             (state/set-theme! saved-theme))
@@ -161,8 +179,7 @@
         (do
           (logging/log-error {:msg "Connection error, returning to initial frame"})
           ;; Stop state ingress if it was started
-          (when (state-server/initialized?)
-            (state-server/shutdown!))
+          (shutdown-state-server!)
           ;; Clean up before going back
           (state/cleanup-seesaw-bindings!)
           (show-initial-frame-recursive)))))) 
@@ -227,6 +244,9 @@
 (defn -main
   "Application entry point for PotatoClient."
   [& args]
+  ;; Everything up to here is JVM start and loading this namespace
+  (startup/record-boot!)
+
   ;; Note: System properties for UI behavior should be set via JVM flags
   ;; at startup time, not programmatically here. See Makefile and Launch4j
   ;; configuration for proper flag setup.
@@ -239,7 +259,7 @@
   (enable-dev-mode!)
 
   (try
-    (logging/init!)
+    (startup/run-phase :logging logging/init!)
 
     ;; Check for special flags
     (cond
@@ -249,10 +269,10 @@
       (do
         (initialize-application!)
         (seesaw/invoke-later
-          ;; Preload theme icons before showing any UI
-          (theme/preload-theme-icons!)
-          ;; Show the initial frame
-          (show-initial-frame-recursive))))
+          ;; Theme icons were preloaded by initialize-application!
+          (startup/run-phase :initial-frame show-initial-frame-recursive)
+          ;; Load what the connection and main frames need while the user picks a server
+          (startup/preload! deferred-namespaces))))
 
     (catch Exception e
       (binding [*out* *err*]
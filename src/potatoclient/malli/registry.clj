@@ -10,10 +10,15 @@
 (defonce ^{:doc "Mutable atom holding the global spec registry"} registry-atom
          (atom {}))
 
+(defonce ^{:doc "Compiled schemas by registry key, see cached-schema"} schema-cache
+         (atom {}))
+
 (defn
   register-spec!
   "Register a spec in the global mutable registry"
   [spec-key spec]
+  ;; A cached schema may embed the spec being replaced
+  (reset! schema-cache {})
   (swap! registry-atom assoc spec-key spec))
 
 (defn
@@ -43,6 +48,18 @@
           custom-schemas)))
     base-registry))
 
+(defn
+  cached-schema
+  "Compiled schema for a registry key, built on first use.
+   The registry holds schema forms, so m/schema on a key parses the whole
+   form again each time. Malli keeps a schema's validator on the schema
+   itself, so reusing the instance also reuses the compiled validator."
+  [spec-key]
+  (or (get @schema-cache spec-key)
+      (let [schema (m/schema spec-key)]
+        (swap! schema-cache assoc spec-key schema)
+        schema)))
+
 (defn
   get-registry
   "Get the current contents of the mutable registry"
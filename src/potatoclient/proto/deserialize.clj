@@ -68,7 +68,7 @@
    Returns nil if valid, throws ex-info with errors if invalid."
   [edn-data spec-key]
   (let [spec (try
-               (m/schema spec-key)
+               (registry/cached-schema spec-key)
                (catch Exception e
                  (throw (ex-info (str "Failed to resolve Malli schema: " spec-key)
                                  {:type :schema-resolution-error
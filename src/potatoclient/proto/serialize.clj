@@ -15,6 +15,7 @@
     [pronto.core :as pronto]
     [pronto.utils]
     [potatoclient.init :as init]
+    [potatoclient.malli.registry :as registry]
     [potatoclient.specs.cmd.root]
     [potatoclient.specs.state.root])
   (:import
@@ -51,7 +52,7 @@
   [edn-data spec-key]
   (init/ensure-registry!)
   (let [spec (try
-               (m/schema spec-key)
+               (registry/cached-schema spec-key)
                (catch Exception e
                  (throw (ex-info (str "Failed to resolve Malli schema: " spec-key)
                                  {:type :schema-resolution-error
@@ -0,0 +1,152 @@
+(ns potatoclient.proto.warmup
+  "Background warm-up of the command and state paths.
+
+   The first command and the first state message each pay one-off costs:
+   compiling the :cmd/root and :state/root schemas, building the
+   buf.validate validators, loading the pronto mapper classes and JIT
+   compiling the conversion code. While the connection frame pings the
+   server, a background thread runs commands generated from the :cmd/root
+   spec and a sample state through the full serialize, validate and
+   deserialize paths, so none of that is left for the first real message.
+
+   Each path runs twice. The first, cold pass is what a first message
+   would have cost; the second shows the warm cost."
+  (:require
+    [malli.core :as m]
+    [malli.generator :as mg]
+    [potatoclient.cmd.core :as cmd]
+    [potatoclient.logging :as logging]
+    [potatoclient.proto.deserialize :as deserialize]
+    [potatoclient.proto.serialize :as serialize]
+    [potatoclient.startup :as startup]
+    [potatoclient.state.server.ingress :as ingress]))
+
+;; ============================================================================
+;; Constants
+;; ============================================================================
+
+(def ^:private command-seeds
+  "Seeds of the generated commands; each picks its own oneof branches"
+  (range 8))
+
+(def ^:private generator-size
+  "Malli generator size; small values keep the samples representative"
+  5)
+
+;; ============================================================================
+;; Samples
+;; ============================================================================
+
+(defn- sample-commands
+  "Commands generated from :cmd/root, plus a rotary command built the way
+   the gesture handlers build theirs"
+  []
+  (conj (mapv #(mg/generate :cmd/root {:seed % :size generator-size}) command-seeds)
+        (cmd/create-command {:rotary (mg/generate :cmd/rotary {:seed 0 :size generator-size})}))) 
+ (m/=> sample-commands [:=> [:cat] [:sequential :map]])
+
+(defn- sample-state
+  "A state message generated from :state/root"
+  []
+  (mg/generate :state/root {:seed 0 :size generator-size})) 
+ (m/=> sample-state [:=> [:cat] :map])
+
+;; ============================================================================
+;; Passes
+;; ============================================================================
+
+(defn- elapsed-ms
+  "Milliseconds since started, a System/nanoTime reading, for timing a pass"
+  [started]
+  (quot (- (System/nanoTime) started) 1000000)) 
+ (m/=> elapsed-ms [:=> [:cat :int] :int])
+
+(defn- command-pass
+  "Validate, serialize and deserialize every command as sending and the
+   test round trip do. Returns the time taken and the commands rejected."
+  [commands]
+  (let [started (System/nanoTime)
+        failed (count (remove (fn [command]
+                                (try
+                                  (serialize/serialize-cmd-payload* command)
+                                  (deserialize/deserialize-cmd-payload (serialize/serialize-cmd-payload command))
+                                  true
+                                  (catch Exception e
+                                    (logging/log-debug {:id ::command-rejected
+                                                        :error (ex-message e)})
+                                    false)))
+                              commands))]
+    {:ms (elapsed-ms started)
+     :failed failed})) 
+ (m/=> command-pass [:=> [:cat [:sequential :map]] [:map [:ms :int] [:failed :int]]])
+
+(defn- state-pass
+  "Run the state message through the ingress path and the validating
+   deserializer. Returns the time taken and whether it was accepted."
+  [binary]
+  (let [started (System/nanoTime)
+        valid? (try
+                 (deserialize/deserialize-state-payload binary)
+                 (ingress/warm-up! binary)
+                 (catch Exception e
+                   (logging/log-debug {:id ::state-rejected
+                                       :error (ex-message e)})
+                   false))]
+    {:ms (elapsed-ms started)
+     :failed (if valid? 0 1)})) 
+ (m/=> state-pass [:=> [:cat :bytes] [:map [:ms :int] [:failed :int]]])
+
+;; ============================================================================
+;; Public API
+;; ============================================================================
+
+(defonce ^:private result (atom nil))
+
+(defonce ^:private started? (atom false))
+
+(defn- warm-up!
+  "Run both paths cold and warm and keep the timings"
+  []
+  (let [commands (sample-commands)
+        state (serialize/serialize-state-payload* (sample-state))
+        cold {:commands (command-pass commands)
+              :state (state-pass state)}
+        warm {:commands (command-pass commands)
+              :state (state-pass state)}]
+    (reset! result {:commands (count commands)
+                    :cold cold
+                    :warm warm})
+    (logging/log-info {:id ::done
+                       :data @result
+                       :msg (format "Proto paths warmed up: commands %d -> %d ms, state %d -> %d ms"
+                                    (get-in cold [:commands :ms]) (get-in warm [:commands :ms])
+                                    (get-in cold [:state :ms]) (get-in warm [:state :ms]))}))
+  nil) 
+ (m/=> warm-up! [:=> [:cat] :nil])
+
+(defn start!
+  "Warm the command and state paths up on a background thread, once"
+  []
+  (when (compare-and-set! started? false true)
+    (doto (Thread. ^Runnable (fn []
+                               (try
+                                 (startup/run-phase :proto-warm-up warm-up!)
+                                 (catch Throwable t
+                                   (logging/log-warn {:id ::failed
+                                                      :error (ex-message t)}))))
+                   "proto-warm-up")
+      (.setDaemon true)
+      (.start)))
+  nil) 
+ (m/=> start! [:=> [:cat] :nil])
+
+(defn report
+  "Timings of the warm-up and of the first real command.
+   Returns nil before the warm-up finished, else a map with the sample
+   :commands count, :cold and :warm passes ({:commands {:ms :failed}
+   :state {:ms :failed}}) and :first-command-ms, the validation and
+   serialization time of the first command sent (nil before it)."
+  []
+  (when-let [timings @result]
+    (assoc timings :first-command-ms (cmd/first-send-latency-ms)))) 
+ (m/=> report [:=> [:cat] [:maybe :map]])
@@ -0,0 +1,168 @@
+(ns potatoclient.startup
+  "Startup orchestration and timeline.
+
+  Startup is split into phases. Independent phases run in parallel, each
+  after the phases it depends on. Namespaces only needed after the user
+  connects are not loaded with the main namespace: they are resolved on
+  first use and loaded in the background once the first window is up.
+  Every phase, and every namespace loaded on first use, is recorded in a
+  timeline of start and duration since JVM start."
+  (:require
+    [clojure.string :as str]
+    [malli.core :as m]
+    [potatoclient.logging :as logging])
+  (:import (java.lang.management ManagementFactory)
+           (java.util.concurrent ExecutionException)))
+
+;; ============================================================================
+;; Timeline
+;; ============================================================================
+
+(def ^:private phase-entry
+  [:map
+   [:phase :keyword]
+   [:thread :string]
+   [:start-ms nat-int?]
+   [:ms nat-int?]
+   [:ok? :boolean]])
+
+(defonce ^:private timeline
+  ;; Recorded phases in the order they finished
+  (atom []))
+
+(defn- uptime-ms
+  "Milliseconds since JVM start"
+  []
+  (.getUptime (ManagementFactory/getRuntimeMXBean))) 
+ (m/=> uptime-ms [:=> [:cat] nat-int?])
+
+(defn- record-phase!
+  "Add a finished phase to the timeline"
+  [phase start-ms ok?]
+  (let [entry {:phase phase
+               :thread (.getName (Thread/currentThread))
+               :start-ms start-ms
+               :ms (- (uptime-ms) start-ms)
+               :ok? ok?}]
+    (swap! timeline conj entry)
+    (logging/log-debug {:id ::phase
+                        :data entry}))
+  nil) 
+ (m/=> record-phase! [:=> [:cat :keyword nat-int? :boolean] :nil])
+
+(defn record-boot!
+  "Record JVM start and the loading of the main namespace and everything
+  it requires, from JVM start to now. Call first thing in -main."
+  []
+  (swap! timeline conj {:phase :jvm-and-namespaces
+                        :thread (.getName (Thread/currentThread))
+                        :start-ms 0
+                        :ms (uptime-ms)
+                        :ok? true})
+  nil) 
+ (m/=> record-boot! [:=> [:cat] :nil])
+
+(defn run-phase
+  "Run f as a startup phase and return its result"
+  [phase f]
+  (let [start-ms (uptime-ms)]
+    (try
+      (let [result (f)]
+        (record-phase! phase start-ms true)
+        result)
+      (catch Throwable t
+        (record-phase! phase start-ms false)
+        (throw t))))) 
+ (m/=> run-phase [:=> [:cat :keyword :ifn] :any])
+
+(defn run-phases!
+  "Run phases concurrently, each once the phases in its :after set are
+  done. phases is a sequence of {:phase keyword :after #{keyword} :run fn};
+  a phase may only depend on phases listed before it. Rethrows the first
+  failure once all phases have ended."
+  [phases]
+  (let [started (reduce (fn [started {:keys [phase after run]}]
+                          (let [deps (mapv started after)]
+                            (assoc started phase
+                                   (future
+                                     (run! deref deps)
+                                     (run-phase phase run)))))
+                        {}
+                        phases)
+        failures (keep (fn [[_ task]]
+                         (try
+                           @task
+                           nil
+                           (catch ExecutionException e
+                             (.getCause e))))
+                       started)]
+    (when-let [failure (first failures)]
+      (throw failure)))
+  nil) 
+ (m/=> run-phases! [:=> [:cat [:sequential [:map
+                                          [:phase :keyword]
+                                          [:after {:optional true} [:set :keyword]]
+                                          [:run :ifn]]]]
+                   :nil])
+
+;; ============================================================================
+;; Deferred Namespaces
+;; ============================================================================
+
+(defn deferred
+  "Var named by a qualified symbol, loading its namespace on first use.
+  A load done here is recorded in the timeline; one already done by
+  preload! costs nothing."
+  [sym]
+  (let [ns-sym (symbol (namespace sym))]
+    (if (find-ns ns-sym)
+      (requiring-resolve sym)
+      (run-phase (keyword "load" (name ns-sym)) #(requiring-resolve sym))))) 
+ (m/=> deferred [:=> [:cat :qualified-symbol] :any])
+
+(defn loaded
+  "Var named by a qualified symbol if its namespace is loaded, else nil"
+  [sym]
+  (when (find-ns (symbol (namespace sym)))
+    (resolve sym))) 
+ (m/=> loaded [:=> [:cat :qualified-symbol] :any])
+
+(defn- log-timeline!
+  "Log the timeline recorded so far"
+  []
+  (let [entries @timeline]
+    (logging/log-info {:id ::timeline
+                       :data {:ready-ms (reduce max 0 (map #(+ (:start-ms %) (:ms %)) entries))
+                              :phases (mapv (juxt :phase :start-ms :ms) entries)}
+                       :msg (str "Startup timeline: "
+                                 (str/join ", " (map #(str (subs (str (:phase %)) 1) " " (:ms %) " ms")
+                                                     entries)))}))
+  nil) 
+ (m/=> log-timeline! [:=> [:cat] :nil])
+
+(defn preload!
+  "Load namespaces in the background, one after the other, then log the
+  timeline. syms name one var of each namespace, in load order."
+  [syms]
+  (doto (Thread. ^Runnable (fn []
+                             (doseq [sym syms]
+                               (try
+                                 (deferred sym)
+                                 (catch Throwable t
+                                   (logging/log-warn {:id ::preload-failed
+                                                      :data {:var sym}
+                                                      :msg (.getMessage t)}))))
+                             (log-timeline!))
+                 "startup-preload")
+    (.setDaemon true)
+    (.setPriority Thread/MIN_PRIORITY)
+    (.start))
+  nil) 
+ (m/=> preload! [:=> [:cat [:sequential :qualified-symbol]] :nil])
+
+(defn get-timeline
+  "Recorded startup phases sorted by start, each with :phase, :thread,
+  :start-ms since JVM start, :ms and :ok?"
+  []
+  (vec (sort-by :start-ms @timeline))) 
+ (m/=> get-timeline [:=> [:cat] [:vector phase-entry]])
@@ -32,7 +32,11 @@
    [:url :string]
    [:connected? :boolean]
    [:latency-ms [:maybe nat-int?]]
-   [:reconnect-count nat-int?]])
+   [:reconnect-count nat-int?]
+   ;; Receive time of the server state shown while it is not live
+   [:stale-state-at {:optional true} pos-int?]
+   ;; Domain of the device shown and commanded, with several connected
+   [:device {:optional true} :string]])
 
 (def ui-state
   "UI-related state spec.
@@ -367,6 +371,69 @@
   (swap! app-state update :server-state merge updates))
 (m/=> update-server-state! [:=> [:cat :map] :map])
 
+(defn set-live-server-state!
+  "Replace the server state with one just received live.
+   Returns true if the state shown before was stale."
+  [server-state]
+  (let [[old] (swap-vals! app-state
+                          #(-> %
+                               (assoc :server-state server-state)
+                               (update :connection dissoc :stale-state-at)))]
+    (some? (get-in old [:connection :stale-state-at]))))
+(m/=> set-live-server-state! [:=> [:cat :map] :boolean])
+
+(defn restore-server-state!
+  "Show a stored server state received at received-at, marked stale.
+   Does nothing once a state is shown. Returns true if it was restored."
+  [server-state received-at]
+  (let [[old] (swap-vals! app-state
+                          #(cond-> %
+                             (nil? (:server-state %))
+                             (-> (assoc :server-state server-state)
+                                 (assoc-in [:connection :stale-state-at] received-at))))]
+    (nil? (:server-state old))))
+(m/=> restore-server-state! [:=> [:cat :map pos-int?] :boolean])
+
+(defn mark-server-state-stale!
+  "Mark the server state shown as no longer live, last received at
+   received-at. Returns true if it was live before."
+  [received-at]
+  (let [[old] (swap-vals! app-state
+                          #(cond-> %
+                             (and (:server-state %)
+                                  (nil? (get-in % [:connection :stale-state-at])))
+                             (assoc-in [:connection :stale-state-at] received-at)))]
+    (and (some? (:server-state old))
+         (nil? (get-in old [:connection :stale-state-at])))))
+(m/=> mark-server-state-stale! [:=> [:cat pos-int?] :boolean])
+
+(defn show-device-state!
+  "Show the server state of another device: its last received state, stale
+   since stale-at unless that is nil, or no state at all."
+  [device server-state stale-at]
+  (swap! app-state
+         #(-> %
+              (assoc :server-state server-state)
+              (assoc-in [:connection :device] device)
+              (update :connection (fn [conn]
+                                    (if stale-at
+                                      (assoc conn :stale-state-at stale-at)
+                                      (dissoc conn :stale-state-at)))))))
+(m/=> show-device-state! [:=> [:cat :string [:maybe :map] [:maybe pos-int?]] :map])
+
+(defn get-active-device
+  "Domain of the device shown and commanded, or nil before one is chosen."
+  []
+  (get-in @app-state [:connection :device]))
+(m/=> get-active-device [:=> [:cat] [:maybe :string]])
+
+(defn get-stale-state-at
+  "Receive time of the server state shown if it is stale, or nil while it
+   is live."
+  []
+  (get-in @app-state [:connection :stale-state-at]))
+(m/=> get-stale-state-at [:=> [:cat] [:maybe pos-int?]])
+
 (defn get-subsystem-state
   "Get state for a specific subsystem."
   [subsystem]
@@ -1,38 +1,97 @@
 (ns potatoclient.state.server.core
   "Core namespace for server state ingress.
-   Provides high-level API for managing state synchronization with server."
-  (:require [potatoclient.logging :as logging]
+   Provides high-level API for managing state synchronization with server.
+
+   Several devices can be connected at once, each with its own ingress
+   manager and command queue. One of them is active: its states fill the
+   app state atom and commands go to it. The functions without a domain
+   act on the active device."
+  (:require [potatoclient.cmd.core :as cmd]
+            [potatoclient.logging :as logging]
+            [potatoclient.state :as state]
             [potatoclient.state.server.ingress :as ingress]
             [malli.core :as m]))
 
-(defonce ^:private manager (atom nil))
+;; Ingress manager of each connected device, by domain
+(defonce ^:private managers (atom {}))
+
+(defn- active-manager
+  "Ingress manager of the active device, or nil"
+  []
+  (get @managers (state/get-active-device)))
 
 (defn initialized?
   "Check if state ingress is initialized."
   []
-  (some? @manager))
+  (some? (active-manager)))
 (m/=> initialized? [:=> [:cat] :boolean])
 
 (defn running?
   "Check if state ingress is running."
   []
-  (and @manager @(:running? @manager)))
+  (boolean (when-let [mgr (active-manager)]
+             @(:running? mgr))))
 (m/=> running? [:=> [:cat] :boolean])
 
 (defn connected?
   "Check if state ingress is connected to the WebSocket."
   []
-  (and @manager (ingress/connected? @manager)))
+  (boolean (when-let [mgr (active-manager)]
+             (ingress/connected? mgr))))
+
+(defn- restore-snapshot-later!
+  "Show the device's last known state while its state socket connects"
+  [domain]
+  (future
+    (try
+      (when (= domain (state/get-active-device))
+        (ingress/restore-snapshot! domain))
+      (catch Exception e
+        (logging/log-warn {:msg "Failed to restore state snapshot" :error e})))))
+
+(defn activate-device!
+  "Make a connected device the active one: show its states and send
+   commands to it. The state shown is its last one, marked stale until the
+   next live state, or its snapshot if it has not sent any yet.
+   Returns false if the device is not connected."
+  [domain]
+  (if-let [mgr (get @managers domain)]
+    (do
+      (doseq [[other other-mgr] @managers
+              :when (not= other domain)]
+        (ingress/set-published! other-mgr false))
+      (let [{latest :state received-at :received-at} (ingress/latest-state mgr)]
+        (state/show-device-state! domain latest (when-not (ingress/connected? mgr) received-at))
+        (ingress/set-published! mgr true)
+        (when-not latest
+          (restore-snapshot-later! domain)))
+      (cmd/set-active-device! domain)
+      (logging/log-info {:msg (str "Active device: " domain)})
+      true)
+    false))
+(m/=> activate-device! [:=> [:cat :string] :boolean])
+
+(defn- create-device-manager!
+  "Create the ingress manager of a device, replacing one for the same domain"
+  [{:keys [domain] :as config}]
+  (when-let [old (get @managers domain)]
+    (logging/log-warn {:msg (str "State ingress already initialized for " domain ", stopping existing manager")})
+    (ingress/stop old))
+  (logging/log-info {:msg (str "Initializing state ingress for domain: " domain)})
+  (let [mgr (ingress/create-manager (assoc config :published? false))]
+    (swap! managers assoc domain mgr)
+    mgr))
 
 (defn initialize!
   "Initialize state ingress with domain.
-   
+
    Options:
    - :domain - Server domain (required)
    - :throttle-ms - Update throttle interval (default 100ms)
    - :timeout-ms - Connection timeout (default 2000ms)
-   
-   This should be called during startup before showing main frame."
+
+   This should be called during startup before showing main frame.
+   The device becomes the active one; other connected devices stay."
   [{:keys [domain throttle-ms timeout-ms]
     :or {throttle-ms 100
          timeout-ms 2000}
@@ -41,21 +100,53 @@
   (when-not domain
     (throw (ex-info "Domain is required for state ingress" {:config config})))
 
-  (when @manager
-    (logging/log-warn {:msg "State ingress already initialized, stopping existing manager"})
-    (ingress/stop @manager))
+  (let [mgr (create-device-manager! config)]
+    (activate-device! domain)
+    mgr))
 
-  (logging/log-info {:msg (str "Initializing state ingress for domain: " domain)})
+(defn add-device!
+  "Connect another device next to the active one and start its ingress.
+   Takes the same options as initialize!. Does nothing if the device is
+   already connected. Returns the ingress manager."
+  [{:keys [domain] :as config}]
+  (or (get @managers domain)
+      (let [mgr (create-device-manager! (merge {:throttle-ms 100 :timeout-ms 2000} config))]
+        (ingress/start mgr))))
+(m/=> add-device! [:=> [:cat [:map [:domain :string]]] :any])
 
-  (let [mgr (ingress/create-manager config)]
-    (reset! manager mgr)
-    mgr))
+(defn remove-device!
+  "Disconnect a device. If it was active, the first other device becomes
+   active. Returns the domain of the active device afterwards, or nil."
+  [domain]
+  (when-let [mgr (get @managers domain)]
+    (logging/log-info {:msg (str "Disconnecting device: " domain)})
+    (ingress/stop mgr)
+    (swap! managers dissoc domain)
+    (cmd/remove-device! domain)
+    (when (= domain (state/get-active-device))
+      (if-let [next-domain (first (sort (keys @managers)))]
+        (activate-device! next-domain)
+        (state/show-device-state! domain nil nil))))
+  (when (active-manager)
+    (state/get-active-device)))
+(m/=> remove-device! [:=> [:cat :string] [:maybe :string]])
+
+(defn devices
+  "Connected devices sorted by domain, each as {:domain :active? :connected?}"
+  []
+  (let [active (state/get-active-device)]
+    (mapv (fn [[domain mgr]]
+            {:domain domain
+             :active? (= domain active)
+             :connected? (boolean (ingress/connected? mgr))})
+          (sort-by key @managers))))
+(m/=> devices [:=> [:cat] [:vector [:map [:domain :string] [:active? :boolean] [:connected? :boolean]]]])
 
 (defn start!
   "Start state ingress.
    Must be initialized first."
   []
-  (if-let [mgr @manager]
+  (if-let [mgr (active-manager)]
     (do
       (logging/log-info {:msg "Starting state ingress"})
       (ingress/start mgr))
@@ -65,7 +156,7 @@
 (defn stop!
   "Stop state ingress."
   []
-  (when-let [mgr @manager]
+  (when-let [mgr (active-manager)]
     (logging/log-info {:msg "Stopping state ingress"})
     (ingress/stop mgr)))
 (m/=> stop! [:=> [:cat] :any])
@@ -73,7 +164,7 @@
 (defn restart!
   "Restart state ingress with new configuration."
   [config]
-  (if-let [mgr @manager]
+  (if-let [mgr (active-manager)]
     (do
       (logging/log-info {:msg "Restarting state ingress with new config"})
       (ingress/restart mgr config))
@@ -81,24 +172,26 @@
 (m/=> restart! [:=> [:cat :map] :any])
 
 (defn shutdown!
-  "Shutdown state ingress completely."
+  "Shutdown state ingress of every device completely."
   []
-  (when-let [mgr @manager]
-    (logging/log-info {:msg "Shutting down state ingress"})
+  (doseq [[domain mgr] @managers]
+    (logging/log-info {:msg (str "Shutting down state ingress for " domain)})
     (ingress/stop mgr)
-    (reset! manager nil)))
+    (cmd/remove-device! domain))
+  (reset! managers {})
+  nil)
 (m/=> shutdown! [:=> [:cat] :nil])
 
 (defn get-manager
   "Get the current state ingress manager.
    Used for accessing internal stats and state."
   []
-  @manager)
+  (active-manager))
 (m/=> get-manager [:=> [:cat] [:maybe :map]])
 
 (defn get-connection-stats
   "Get connection statistics from the state ingress.
    Returns nil if not initialized."
   []
-  (when-let [mgr @manager]
-    (ingress/get-connection-stats mgr)))
\ No newline at end of file
+  (when-let [mgr (active-manager)]
+    (ingress/get-connection-stats mgr)))
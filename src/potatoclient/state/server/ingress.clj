@@ -2,7 +2,9 @@
   "State ingress manager that maintains WebSocket connection to state endpoint,
    validates incoming state, and updates the app state atom."
   (:require [potatoclient.logging :as logging]
+            [potatoclient.malli.registry :as registry]
             [potatoclient.state :as state]
+            [potatoclient.state.server.snapshot :as snapshot]
             [potatoclient.state.server.websocket :as ws]
             [potatoclient.state.server.throttle :as throttle]
             [potatoclient.ui.status-bar.messages :as status-bar]
@@ -12,11 +14,21 @@
             ;; Import state specs to register :state/root in registry
             [potatoclient.specs.state.root])
   (:import [ser JonSharedData$JonGUIState]
-           [java.util.concurrent Executors TimeUnit]))
+           [java.util.concurrent Executors ScheduledExecutorService ScheduledFuture ThreadFactory TimeUnit]))
 
 ;; Pronto mapper for state messages
 (p/defmapper state-mapper [ser.JonSharedData$JonGUIState])
 
+;; Health checks and throttled updates of every manager run here, so each
+;; connected device only adds its connection thread
+(defonce ^:private ^ScheduledExecutorService shared-scheduler
+  (Executors/newScheduledThreadPool
+    2
+    (reify ThreadFactory
+      (newThread [_ runnable]
+        (doto (Thread. ^Runnable runnable "state-ingress-scheduler")
+          (.setDaemon true))))))
+
 (defn- parse-state-message
   "Parse binary protobuf state message to proto map."
   [binary-data]
@@ -47,11 +59,15 @@
    - config: Map with :url :connect-timeout-ms :read-timeout-ms :max-reconnect-delay-ms
    - connection: Current WebSocketConnection instance or nil
    - throttler: Throttle instance for rate-limiting updates
-   - executor: ScheduledExecutorService for async operations
+   - executor: ScheduledExecutorService for async operations, shared by all managers
    - running?: Atom boolean, controls connection lifecycle
    - connected?: Atom boolean, tracks current connection status
-   - connection-stats: Atom with connection metrics and health data"}
-  StateIngressManager [config connection throttler executor running? connected? connection-stats])
+   - connection-stats: Atom with connection metrics and health data
+   - health-check: Atom with the scheduled health check while running
+   - latest-state: Atom with the last valid state and its receive time, or nil
+   - published?: Atom boolean, whether states go to the app state atom"}
+  StateIngressManager [config connection throttler executor running? connected? connection-stats
+                       health-check latest-state published?])
 
 ;; Spec for StateIngressManager type
 (def state-ingress-manager?
@@ -60,13 +76,21 @@
    (partial instance? StateIngressManager)])
 
 (defn- handle-state-update
-  "Process and apply a state update to the app atom."
-  [manager edn-state]
+  "Process and apply a state update to the app atom, and keep it as the
+   last known state of the domain."
+  [manager binary-data edn-state]
   ;; Validate state using status bar validation (reports errors automatically)
   (when (validation/validate :state/root edn-state)
+    (reset! (:latest-state manager) {:state edn-state
+                                     :received-at (System/currentTimeMillis)})
     ;; Update app state
-    (swap! state/app-state assoc :server-state edn-state)))
-(m/=> handle-state-update [:=> [:cat state-ingress-manager? :state/root] :any])
+    (when (and @(:published? manager)
+               (state/set-live-server-state! edn-state))
+      (status-bar/set-live-state!))
+    (snapshot/record! (get-in @(:config manager) [:domain])
+                      binary-data
+                      (System/currentTimeMillis))))
+(m/=> handle-state-update [:=> [:cat state-ingress-manager? bytes? :state/root] :any])
 
 (defn- handle-message
   "Handle incoming WebSocket message."
@@ -75,9 +99,39 @@
     (when-let [edn-state (proto->edn proto-map)]
       ;; Submit to throttler
       ((:submit (:throttler manager))
-       (partial handle-state-update manager)
+       (partial handle-state-update manager binary-data)
        edn-state))))
 
+(defn warm-up!
+  "Run a state message through the same parsing, conversion and schema as
+   received state, without touching app state. Returns true if it is valid."
+  [binary-data]
+  (boolean
+    (some->> binary-data
+             parse-state-message
+             proto->edn
+             (m/validate (registry/cached-schema :state/root)))))
+(m/=> warm-up! [:=> [:cat bytes?] :boolean])
+
+(defn restore-snapshot!
+  "Show the last known state of a domain until live state arrives, marked
+   stale. Does nothing if there is no valid snapshot or a state is already
+   shown. Returns true if the snapshot was restored."
+  [domain]
+  (let [{:keys [bytes received-at]} (snapshot/read-snapshot domain)
+        edn-state (some-> bytes parse-state-message proto->edn)
+        restored? (boolean
+                    (and edn-state
+                         (pos? received-at)
+                         (m/validate (registry/cached-schema :state/root) edn-state)
+                         (state/restore-server-state! edn-state received-at)))]
+    (when restored?
+      (logging/log-info {:msg (str "Restored last known state of " domain)
+                         :received-at received-at})
+      (status-bar/set-stale-state! received-at))
+    restored?))
+(m/=> restore-snapshot! [:=> [:cat :string] :boolean])
+
 (defn- check-connection-health
   "Check if connection is alive based on last message time."
   [manager]
@@ -157,7 +211,7 @@
                                          (str " after " attempt " failures")))})
 
           ;; Update status bar for reconnection (not initial connection)
-          (when-not first-connect?
+          (when-not (or first-connect? (not @(:published? manager)))
             (status-bar/set-warning! 
               (str "Reconnecting to state server (attempt " (inc attempt) ")...")))
 
@@ -171,14 +225,17 @@
                                       (logging/log-info {:msg "State connection established"})
                                       (reset! (:connected? manager) true)
                                       (update-connection-stats! manager :connected)
-                                      (when-not first-connect?
+                                      (when (and (not first-connect?) @(:published? manager))
                                         (status-bar/set-info! "State connection restored")))
                         :on-close (fn [code reason]
                                     (logging/log-warn {:msg (str "State connection closed: " code " " reason)})
                                     (reset! (:connected? manager) false)
                                     (update-connection-stats! manager :disconnected)
-                                    (when @(:running? manager)
-                                      (status-bar/set-warning! "State connection lost")))
+                                    ;; Keep showing the last state, marked stale
+                                    (when @(:published? manager)
+                                      (state/mark-server-state-stale! @last-message-time)
+                                      (when @(:running? manager)
+                                        (status-bar/set-warning! "State connection lost"))))
                         :on-error (fn [error]
                                     (logging/log-error {:msg "State connection error" :error error})
                                     (update-connection-stats! manager :failed :error error))})]
@@ -214,13 +271,15 @@
    - :domain - Server domain (required)
    - :throttle-ms - Throttling interval in milliseconds (default 100)
    - :timeout-ms - Connection timeout in milliseconds (default 2000)
+   - :published? - Whether states update the app state atom (default true)
    
    Returns a StateIngressManager that can be started/stopped."
   [config]
   (let [throttler (throttle/create-throttler
                     {:interval-ms (:throttle-ms config 100)
-                     :on-drop (fn [_] (logging/log-debug {:msg "State update dropped due to throttling"}))})
-        executor (Executors/newSingleThreadScheduledExecutor)]
+                     :on-drop (fn [_] (logging/log-debug {:msg "State update dropped due to throttling"}))
+                     :executor shared-scheduler})
+        executor shared-scheduler]
 
     (map->StateIngressManager
       {:config (atom config)
@@ -229,6 +288,9 @@
        :executor executor
        :running? (atom false)
        :connected? (atom false)
+       :health-check (atom nil)
+       :latest-state (atom nil)
+       :published? (atom (:published? config true))
        :connection-stats (atom {:status :disconnected
                                 :attempts 0
                                 :consecutive-failures 0
@@ -251,9 +313,10 @@
       (.start thread))
 
     ;; Schedule health checks
-    (.scheduleAtFixedRate (:executor manager)
-                          #(check-connection-health manager)
-                          2 2 TimeUnit/SECONDS)
+    (reset! (:health-check manager)
+            (.scheduleAtFixedRate ^ScheduledExecutorService (:executor manager)
+                                  ^Runnable #(check-connection-health manager)
+                                  2 2 TimeUnit/SECONDS))
 
     manager))
 (m/=> start [:=> [:cat state-ingress-manager?] state-ingress-manager?])
@@ -290,12 +353,30 @@
     ;; Shutdown throttler
     (throttle/shutdown-throttler (:throttler manager))
 
-    ;; Shutdown executor
-    (.shutdown (:executor manager)))
+    ;; Write the last state now rather than after the write interval
+    (snapshot/flush!)
+
+    ;; Stop health checks; the executor is shared
+    (when-let [^ScheduledFuture health-check @(:health-check manager)]
+      (.cancel health-check false)))
 
   manager)
 (m/=> stop [:=> [:cat state-ingress-manager?] state-ingress-manager?])
 
+(defn set-published!
+  "Choose whether the manager's states update the app state atom. Only the
+   active device's manager publishes."
+  [manager published?]
+  (reset! (:published? manager) published?)
+  nil)
+(m/=> set-published! [:=> [:cat state-ingress-manager? :boolean] :nil])
+
+(defn latest-state
+  "Last valid state received by the manager as {:state :received-at}, or nil"
+  [manager]
+  @(:latest-state manager))
+(m/=> latest-state [:=> [:cat state-ingress-manager?] [:maybe [:map [:state :state/root] [:received-at pos-int?]]]])
+
 (defn restart
   "Restart the state ingress manager with new config."
   [manager new-config]
@@ -0,0 +1,161 @@
+(ns potatoclient.state.server.probe
+  "Latency probing of servers.
+
+   A probe measures the TCP connect to a server and, over a connection of
+   its own, the TCP connect, TLS handshake and WebSocket upgrade of its
+   state endpoint. The latter is the total; the former shows how much of it
+   is the network round trip. Servers are probed concurrently on a small pool
+   with short timeouts. Results are cached for a while, so probing the
+   same servers again soon reuses them."
+  (:require [malli.core :as m]
+            [potatoclient.logging :as logging]
+            [potatoclient.state.server.websocket :as ws]
+            [potatoclient.url-parser :as url-parser])
+  (:import [java.net InetSocketAddress Socket URI]
+           [java.util.concurrent ExecutorService Executors ThreadFactory]
+           [java.util.concurrent.atomic AtomicInteger]))
+
+;; ============================================================================
+;; Constants
+;; ============================================================================
+
+(def ^:private probe-threads
+  "Servers probed at the same time"
+  4)
+
+(def ^:private timeout-ms
+  "Limit for the TCP connect and for the WebSocket upgrade each"
+  1500)
+
+(def ^:private cache-ttl-ms
+  "How long a probe result is reused"
+  30000)
+
+(def ^:private state-endpoint "/ws/ws_state")
+
+(def probe-result
+  "Result of probing one server. Latencies are in milliseconds; :total-ms
+   is connect, TLS and upgrade together, :tcp-ms the bare TCP connect."
+  [:map
+   [:domain :string]
+   [:reachable? :boolean]
+   [:tcp-ms {:optional true} :int]
+   [:total-ms {:optional true} :int]
+   [:error {:optional true} [:maybe :string]]
+   [:probed-at :int]])
+
+;; ============================================================================
+;; Probing
+;; ============================================================================
+
+(defn- elapsed-ms
+  "Milliseconds since started, a System/nanoTime reading, for timing a probe step"
+  [started]
+  (quot (- (System/nanoTime) started) 1000000))
+(m/=> elapsed-ms [:=> [:cat :int] :int])
+
+(defn- tcp-connect-ms
+  "Milliseconds to open a TCP connection to the server's WebSocket port"
+  [domain]
+  (let [uri (URI/create (str "wss://" domain))
+        port (if (pos? (.getPort uri)) (.getPort uri) 443)
+        started (System/nanoTime)]
+    (with-open [socket (Socket.)]
+      (.connect socket (InetSocketAddress. (.getHost uri) (int port)) (int timeout-ms))
+      (elapsed-ms started))))
+(m/=> tcp-connect-ms [:=> [:cat :string] :int])
+
+(defn probe-domain
+  "Probe one server: TCP connect, then a WebSocket to its state endpoint.
+   The WebSocket opens its own connection, so its time covers connect, TLS
+   and upgrade and is the total. Never throws; an unreachable server has
+   :reachable? false and the :error."
+  [domain]
+  (let [probed-at (System/currentTimeMillis)]
+    (try
+      (let [tcp-ms (tcp-connect-ms domain)
+            total-ms (ws/probe-upgrade (str "wss://" domain state-endpoint) timeout-ms)]
+        {:domain domain
+         :reachable? true
+         :tcp-ms tcp-ms
+         :total-ms total-ms
+         :probed-at probed-at})
+      (catch Exception e
+        (logging/log-debug {:msg (str "Probe of " domain " failed")
+                            :error (.getMessage e)})
+        {:domain domain
+         :reachable? false
+         :error (or (.getMessage e) (.getSimpleName (class e)))
+         :probed-at probed-at}))))
+(m/=> probe-domain [:=> [:cat :string] probe-result])
+
+;; ============================================================================
+;; Cache and Pool
+;; ============================================================================
+
+(defonce ^:private cache
+  ;; Latest result per domain
+  (atom {}))
+
+(defonce ^:private in-flight
+  ;; Domains being probed, with the callbacks waiting for them
+  (atom {}))
+
+(defonce ^:private ^ExecutorService pool
+  (let [counter (AtomicInteger.)]
+    (Executors/newFixedThreadPool
+      probe-threads
+      (reify ThreadFactory
+        (newThread [_ runnable]
+          (doto (Thread. ^Runnable runnable (str "server-probe-" (.incrementAndGet counter)))
+            (.setDaemon true)))))))
+
+(defn cached-result
+  "Cached probe result of a server if it is younger than the TTL"
+  [domain]
+  (when-let [result (get @cache domain)]
+    (when (< (- (System/currentTimeMillis) (:probed-at result)) cache-ttl-ms)
+      result)))
+(m/=> cached-result [:=> [:cat :string] [:maybe probe-result]])
+
+(defn- run-probe!
+  "Probe a server on the pool and hand the result to everyone waiting"
+  [domain]
+  (.submit pool ^Runnable
+           (fn []
+             (let [result (probe-domain domain)]
+               (swap! cache assoc domain result)
+               (doseq [on-result (get (first (swap-vals! in-flight dissoc domain)) domain)]
+                 (on-result result)))))
+  nil)
+(m/=> run-probe! [:=> [:cat :string] :nil])
+
+(defn probe-urls!
+  "Probe the servers of urls concurrently and call on-result with each
+   url and its probe result as it arrives, cached ones right away. A
+   server already being probed is not probed twice. Urls that are not a
+   valid server address are skipped."
+  [urls on-result]
+  (doseq [url (distinct urls)
+          :let [domain (url-parser/extract-domain url)]
+          :when domain]
+    (if-let [result (cached-result domain)]
+      (on-result url result)
+      (let [callback #(on-result url %)
+            [old] (swap-vals! in-flight update domain (fnil conj []) callback)]
+        (when-not (contains? old domain)
+          (run-probe! domain)))))
+  nil)
+(m/=> probe-urls! [:=> [:cat [:sequential :string] fn?] :nil])
+
+(defn rank
+  "Sort url and result pairs: reachable servers by total latency first,
+   then unreachable ones, then those without a result yet"
+  [url-results]
+  (sort-by (fn [[_ result]]
+             (cond
+               (nil? result) [2 0]
+               (:reachable? result) [0 (:total-ms result)]
+               :else [1 0]))
+           url-results))
+(m/=> rank [:=> [:cat [:sequential [:tuple :string [:maybe probe-result]]]] [:sequential [:tuple :string [:maybe probe-result]]]])
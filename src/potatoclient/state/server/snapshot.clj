@@ -0,0 +1,130 @@
+(ns potatoclient.state.server.snapshot
+  "Last known server state, kept on disk per domain.
+
+   The last validated state message is written to the config directory as
+   the raw protobuf bytes and the time it was received. Writes happen on a
+   background thread, at most once per write interval, always with the
+   latest state; a write replaces the file atomically. The snapshot is read
+   back when state ingress starts so the UI has something to show before
+   the first live state arrives."
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [malli.core :as m]
+            [potatoclient.config :as config]
+            [potatoclient.logging :as logging])
+  (:import [java.io DataInputStream DataOutputStream File IOException]
+           [java.nio.file Files StandardCopyOption]
+           [java.util.concurrent Executors ScheduledExecutorService ThreadFactory TimeUnit]))
+
+(def ^:private write-interval-ms
+  "Minimum time between two snapshot writes"
+  5000)
+
+(def ^:private format-version
+  "Version written before each snapshot; other versions are ignored"
+  1)
+
+(def ^:private max-snapshot-bytes
+  "Largest state message accepted when reading a snapshot back"
+  (* 16 1024 1024))
+
+(defn snapshot-file
+  "Snapshot file of a domain in the config directory"
+  [domain]
+  (io/file (config/get-config-dir)
+           "state-snapshots"
+           (str (str/replace domain #"[^A-Za-z0-9.-]" "_") ".bin")))
+(m/=> snapshot-file [:=> [:cat :string] [:fn (partial instance? File)]])
+
+;; ============================================================================
+;; Reading And Writing
+;; ============================================================================
+
+(defn- write-file!
+  "Write a snapshot next to its file, then move it in place"
+  [^File file ^bytes data received-at]
+  (.mkdirs (.getParentFile file))
+  (let [tmp (io/file (.getParentFile file) (str (.getName file) ".tmp"))]
+    (with-open [out (DataOutputStream. (io/output-stream tmp))]
+      (.writeInt out (int format-version))
+      (.writeLong out (long received-at))
+      (.writeInt out (alength data))
+      (.write out data))
+    (Files/move (.toPath tmp) (.toPath file)
+                (into-array StandardCopyOption [StandardCopyOption/REPLACE_EXISTING
+                                                StandardCopyOption/ATOMIC_MOVE])))
+  nil)
+(m/=> write-file! [:=> [:cat [:fn (partial instance? File)] bytes? :int] :nil])
+
+(defn read-snapshot
+  "Snapshot of a domain as {:bytes :received-at}, or nil if there is none
+   or it cannot be read"
+  [domain]
+  (let [file (snapshot-file domain)]
+    (when (.exists ^File file)
+      (try
+        (with-open [in (DataInputStream. (io/input-stream file))]
+          (when (= format-version (.readInt in))
+            (let [received-at (.readLong in)
+                  length (.readInt in)]
+              (when (<= 0 length max-snapshot-bytes)
+                (let [data (byte-array length)]
+                  (.readFully in data)
+                  {:bytes data
+                   :received-at received-at})))))
+        (catch IOException e
+          (logging/log-warn {:msg "Failed to read state snapshot"
+                             :file (.getPath ^File file)
+                             :error (.getMessage e)})
+          nil)))))
+(m/=> read-snapshot [:=> [:cat :string] [:maybe [:map [:bytes bytes?] [:received-at :int]]]])
+
+;; ============================================================================
+;; Rate Limited Writer
+;; ============================================================================
+
+(defonce ^:private pending
+  ;; Latest state not written yet per domain: {domain {:bytes :received-at}}
+  (atom {}))
+
+(defonce ^:private last-write-at (atom 0))
+
+(defonce ^:private write-scheduled? (atom false))
+
+(defonce ^:private ^ScheduledExecutorService writer
+  (Executors/newSingleThreadScheduledExecutor
+    (reify ThreadFactory
+      (newThread [_ runnable]
+        (doto (Thread. ^Runnable runnable "state-snapshot-writer")
+          (.setDaemon true))))))
+
+(defn flush!
+  "Write the pending snapshot of every domain now"
+  []
+  (reset! write-scheduled? false)
+  (let [[snapshots] (reset-vals! pending {})]
+    (when (seq snapshots)
+      (reset! last-write-at (System/currentTimeMillis)))
+    (doseq [[domain {:keys [bytes received-at]}] snapshots]
+      (try
+        (write-file! (snapshot-file domain) bytes received-at)
+        (catch Exception e
+          (logging/log-warn {:msg "Failed to write state snapshot"
+                             :domain domain
+                             :error (.getMessage e)})))))
+  nil)
+(m/=> flush! [:=> [:cat] :nil])
+
+(defn record!
+  "Keep a validated state message as the domain's snapshot. The write
+   happens in the background, once the write interval since the last one
+   has passed; newer states of the domain recorded meanwhile replace this
+   one, while those of other domains are written alongside it."
+  [domain data received-at]
+  (swap! pending assoc domain {:bytes data :received-at received-at})
+  (when (compare-and-set! write-scheduled? false true)
+    (let [delay-ms (max 0 (- (+ @last-write-at write-interval-ms)
+                             (System/currentTimeMillis)))]
+      (.schedule writer ^Runnable flush! (long delay-ms) TimeUnit/MILLISECONDS)))
+  nil)
+(m/=> record! [:=> [:cat :string bytes? :int] :nil])
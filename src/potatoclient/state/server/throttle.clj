@@ -2,7 +2,7 @@
   "State update throttling to limit update frequency.
    Ensures state updates don't overwhelm the UI."
   (:require [malli.core :as m])
-  (:import [java.util.concurrent Executors ScheduledExecutorService TimeUnit]))
+  (:import [java.util.concurrent Executors ScheduledExecutorService ScheduledFuture TimeUnit]))
 
 (defn create-throttler
   "Create a throttler that limits function execution to specified interval.
@@ -10,12 +10,15 @@
    Options:
    - :interval-ms - Minimum milliseconds between executions (default 100)
    - :on-drop - Called with dropped value when throttling (optional)
+   - :executor - ScheduledExecutorService shared with other throttlers
+     (optional). A shared executor is left running on shutdown.
    
    Returns a throttler map with :submit and :shutdown functions."
-  [{:keys [interval-ms on-drop]
+  [{:keys [interval-ms on-drop executor]
     :or {interval-ms 100}}]
 
-  (let [executor (Executors/newSingleThreadScheduledExecutor)
+  (let [shared? (some? executor)
+        ^ScheduledExecutorService executor (or executor (Executors/newSingleThreadScheduledExecutor))
         pending (atom nil)
         last-execution (atom 0)
         scheduled-task (atom nil)]
@@ -56,14 +59,20 @@
 
      :shutdown
      (fn []
-       (.shutdown executor)
-       (try
-         (when-not (.awaitTermination executor 1 TimeUnit/SECONDS)
-           (.shutdownNow executor))
-         (catch InterruptedException _
-           (.shutdownNow executor))))}))
+       (if shared?
+         (do
+           (when-let [task @scheduled-task]
+             (.cancel ^ScheduledFuture task false))
+           (reset! pending nil))
+         (do
+           (.shutdown executor)
+           (try
+             (when-not (.awaitTermination executor 1 TimeUnit/SECONDS)
+               (.shutdownNow executor))
+             (catch InterruptedException _
+               (.shutdownNow executor))))))}))
 
-(m/=> create-throttler [:=> [:cat [:map {:closed false} [:interval-ms {:optional true} :pos-int] [:on-drop {:optional true} fn?]]] [:map [:submit fn?] [:shutdown fn?]]])
+(m/=> create-throttler [:=> [:cat [:map {:closed false} [:interval-ms {:optional true} :pos-int] [:on-drop {:optional true} fn?] [:executor {:optional true} [:fn (partial instance? ScheduledExecutorService)]]]] [:map [:submit fn?] [:shutdown fn?]]])
 
 (defn shutdown-throttler
   "Shutdown a throttler, canceling any pending executions."
@@ -1,13 +1,17 @@
 (ns potatoclient.state.server.websocket
   "WebSocket client for state ingress from /ws/ws_state endpoint.
-   Handles connection, reconnection, and message reception."
+   Handles connection, reconnection, and message reception.
+   All connections share one lazily built HttpClient, so reconnects reuse
+   its selector thread, bounded executor and TLS session cache."
   (:require [potatoclient.logging :as logging]
             [malli.core :as m])
   (:import [java.net URI]
            [java.net.http HttpClient WebSocket WebSocket$Listener]
            [java.nio ByteBuffer]
            [java.time Duration]
-           [java.util.concurrent CompletableFuture]
+           [java.util.concurrent CompletableFuture Executors ThreadFactory TimeUnit TimeoutException]
+           [java.util.function Consumer]
+           [java.util.concurrent.atomic AtomicInteger]
            [javax.net.ssl SSLContext TrustManager X509TrustManager]
            [java.security.cert X509Certificate]))
 
@@ -25,6 +29,36 @@
 
 (m/=> create-trust-all-ssl-context [:=> [:cat] any?])
 
+(def ^:private http-client-threads 2)
+(def ^:private tls-session-cache-size 16)
+(def ^:private tls-session-timeout-seconds (* 24 60 60))
+
+(defn- create-http-client
+  "Create the HttpClient shared by every state connection.
+   Reusing one SSL context lets reconnects resume cached TLS sessions
+   instead of running a full handshake."
+  []
+  (let [counter (AtomicInteger.)
+        executor (Executors/newFixedThreadPool
+                   http-client-threads
+                   (reify ThreadFactory
+                     (newThread [_ runnable]
+                       (doto (Thread. runnable (str "state-ws-http-" (.incrementAndGet counter)))
+                         (.setDaemon true)))))
+        ssl-context (create-trust-all-ssl-context)]
+    (doto (.getClientSessionContext ssl-context)
+      (.setSessionCacheSize tls-session-cache-size)
+      (.setSessionTimeout tls-session-timeout-seconds))
+    (-> (HttpClient/newBuilder)
+        (.executor executor)
+        (.sslContext ssl-context)
+        (.connectTimeout (Duration/ofSeconds 10))
+        (.build))))
+
+(m/=> create-http-client [:=> [:cat] any?])
+
+(defonce ^:private shared-client (delay (create-http-client)))
+
 (defn- create-websocket-listener
   "Create a WebSocket listener with message handling."
   [message-buffer on-message on-connect on-close on-error]
@@ -83,16 +117,14 @@
    - :on-close - Called with [status-code reason] when closed (optional)
    - :on-error - Called with exception on error (optional)
    
-   Returns a connection map with :client and :ws keys."
+   Returns a connection map with :client and :ws keys.
+   The :client is shared and must not be closed by callers."
   [{:keys [url on-message on-connect on-close on-error]
     :or {on-connect #(logging/log-debug {:msg "WebSocket connected"})
          on-close (fn [code reason] (logging/log-debug {:msg (str "WebSocket closed: " code " " reason)}))
          on-error #(logging/log-error {:msg "WebSocket error" :error %})}}]
 
-  (let [client (-> (HttpClient/newBuilder)
-                   (.sslContext (create-trust-all-ssl-context))
-                   (.connectTimeout (Duration/ofSeconds 10))
-                   (.build))
+  (let [client @shared-client
 
         ;; Buffer to accumulate message parts
         message-buffer (atom (ByteBuffer/allocate 0))
@@ -131,4 +163,29 @@
 (defn connected?
   "Check if WebSocket is connected."
   [{:keys [ws]}]
-  (and ws (not (.isInputClosed ws)) (not (.isOutputClosed ws))))
\ No newline at end of file
+  (and ws (not (.isInputClosed ws)) (not (.isOutputClosed ws))))
+
+(defn probe-upgrade
+  "Open a WebSocket to url and close it right away, for measuring the
+   upgrade. Uses the shared client, so a later connection can resume the
+   TLS session. Returns the milliseconds until the socket was open; throws
+   if it was not within timeout-ms."
+  [url timeout-ms]
+  (let [started (System/nanoTime)
+        uri (URI/create url)
+        ws-future (-> (.newWebSocketBuilder ^HttpClient @shared-client)
+                      (.header "Origin" (str "https://" (.getHost uri)))
+                      (.connectTimeout (Duration/ofMillis timeout-ms))
+                      (.buildAsync uri (reify WebSocket$Listener)))]
+    (try
+      (let [ws (.get ws-future timeout-ms TimeUnit/MILLISECONDS)
+            elapsed-ms (quot (- (System/nanoTime) started) 1000000)]
+        (.abort ^WebSocket ws)
+        elapsed-ms)
+      (catch TimeoutException e
+        ;; Close the socket should it still open
+        (.thenAccept ws-future (reify Consumer
+                                 (accept [_ ws] (.abort ^WebSocket ws))))
+        (throw e)))))
+
+(m/=> probe-upgrade [:=> [:cat :string :pos-int] :nat-int])
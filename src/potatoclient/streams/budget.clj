@@ -0,0 +1,115 @@
+(ns potatoclient.streams.budget
+  "Decode-thread budget shared by all stream processes.
+   Each stream process falls back to avdec_h264 with one thread per core,
+   so two streams would oversubscribe every core and starve the UI. The
+   main process splits the cores instead: one is kept for the UI, hidden
+   (minimized) streams get a single thread, and visible streams share the
+   rest in proportion to their resolution."
+  (:require
+    [malli.core :as m]
+    [potatoclient.ipc.core :as ipc]
+    [potatoclient.ipc.transit :as transit]
+    [potatoclient.logging :as logging]
+    [potatoclient.streams.config :as config]
+    [potatoclient.streams.state :as state]))
+
+;; ============================================================================
+;; Constants
+;; ============================================================================
+
+(def ^:private ui-reserved-cores
+  "Cores left to the Swing UI and the rest of the main process."
+  1)
+
+(def ^:private min-threads
+  "Threads given to a hidden stream, and the floor for every stream."
+  1)
+
+;; ============================================================================
+;; Budget Calculation
+;; ============================================================================
+
+(defn- stream-pixels
+  "Pixels per frame for a stream type, from its stream config."
+  [stream-type]
+  (let [{:keys [width height]} (config/get-stream-config stream-type)]
+    (* width height))) 
+ (m/=> stream-pixels [:=> [:cat :keyword] nat-int?])
+
+(defn- split-by-weight
+  "Split total units across weights using the largest remainder method,
+   with every entry getting at least min-threads."
+  [weights total]
+  (let [weight-sum (reduce + 0 (vals weights))
+        shares (into {} (map (fn [[k w]] [k (/ (* total w) weight-sum)])) weights)
+        floors (into {} (map (fn [[k share]] [k (max min-threads (long (Math/floor (double share))))])) shares)
+        leftover (- total (reduce + 0 (vals floors)))
+        by-remainder (sort-by (fn [[k share]] (- (double share) (Math/floor (double share)))) > shares)]
+    (reduce (fn [acc [k _]] (update acc k inc))
+            floors
+            (take (max 0 leftover) by-remainder)))) 
+ (m/=> split-by-weight [:=> [:cat [:map-of :keyword pos-int?] pos-int?] [:map-of :keyword pos-int?]])
+
+(defn decode-thread-budget
+  "Compute decode threads per stream.
+   streams maps stream type to {:visible? boolean} for every active stream."
+  [streams cores]
+  (let [available (max min-threads (- cores ui-reserved-cores))
+        hidden (keep (fn [[stream-type {:keys [visible?]}]] (when-not visible? stream-type)) streams)
+        visible (keep (fn [[stream-type {:keys [visible?]}]] (when visible? stream-type)) streams)
+        shared (max (count visible) (- available (* min-threads (count hidden))))]
+    (merge (zipmap hidden (repeat min-threads))
+           (when (seq visible)
+             (split-by-weight (into {} (map (juxt identity stream-pixels)) visible) shared))))) 
+ (m/=> decode-thread-budget [:=> [:cat [:map-of :keyword [:map [:visible? :boolean]]] pos-int?]
+                             [:map-of :keyword pos-int?]])
+
+;; ============================================================================
+;; Live State
+;; ============================================================================
+
+(defn- core-count
+  []
+  (.availableProcessors (Runtime/getRuntime))) 
+ (m/=> core-count [:=> [:cat] pos-int?])
+
+(defn- active-streams
+  "Streams with a spawned process and their visibility."
+  []
+  (into {}
+        (keep (fn [stream-type]
+                (when (state/get-stream-process stream-type)
+                  [stream-type {:visible? (state/stream-visible? stream-type)}])))
+        config/stream-types)) 
+ (m/=> active-streams [:=> [:cat] [:map-of :keyword [:map [:visible? :boolean]]]])
+
+(defn initial-threads
+  "Budget for a stream about to be spawned, counting it as visible."
+  [stream-type]
+  (get (decode-thread-budget (assoc (active-streams) stream-type {:visible? true}) (core-count))
+       stream-type
+       min-threads)) 
+ (m/=> initial-threads [:=> [:cat :keyword] pos-int?])
+
+(defn rebalance!
+  "Recompute the budget for all active streams and send it to their processes.
+   Processes ignore budgets that did not change."
+  []
+  (let [budget (decode-thread-budget (active-streams) (core-count))]
+    (logging/log-info {:id :stream/decode-budget
+                       :budget budget})
+    (doseq [[stream-type threads] budget]
+      (when-let [server (state/get-stream-ipc stream-type)]
+        (ipc/send-message server (transit/create-command :set-decode-threads {:threads threads}))))
+    budget)) 
+ (m/=> rebalance! [:=> [:cat] [:map-of :keyword pos-int?]])
+
+(defn set-visible!
+  "Record a window visibility change and rebalance when it changed."
+  [stream-type visible?]
+  (when (and (state/get-stream-process stream-type)
+             (not= visible? (state/stream-visible? stream-type)))
+    (state/set-stream-visible! stream-type visible?)
+    (rebalance!))
+  nil) 
+ (m/=> set-visible! [:=> [:cat :keyword :boolean] :nil])
@@ -2,8 +2,10 @@
   "Stream configuration and endpoints."
   (:require
     [clojure.java.io :as io]
+    [clojure.string :as str]
     [malli.core :as m]
-    [potatoclient.config :as config]))
+    [potatoclient.config :as config]
+    [potatoclient.state :as state]))
 
 ;; ============================================================================
 ;; Stream Types
@@ -61,14 +63,34 @@
   (get-in stream-config [stream-type :process-key]))
 (m/=> get-process-key [:=> [:cat :keyword] [:maybe :keyword]])
 
+;; ============================================================================
+;; Combined Mode
+;; ============================================================================
+
+(def combined-stream-type
+  "Stream slot a combined process runs in. It renders into the day window
+  and composites the heat stream into it."
+  :day)
+
+(def composite-layouts
+  "Layouts of the combined window, matching CompositePipeline.Layout ids"
+  #{:side-by-side :pip :day :heat})
+
+(defn valid-layout?
+  "Check if layout is a combined window layout"
+  [layout]
+  (contains? composite-layouts layout))
+(m/=> valid-layout? [:=> [:cat :keyword] :boolean])
+
 ;; ============================================================================
 ;; Host Configuration
 ;; ============================================================================
 
 (defn get-stream-host
-  "Get host for stream connections"
+  "Get host for stream connections: the active device, else the most
+   recently used one"
   []
-  (or (config/get-domain) "localhost"))
+  (or (state/get-active-device) (config/get-domain) "localhost"))
 (m/=> get-stream-host [:=> [:cat] :string])
 
 (defn build-stream-url
@@ -117,12 +139,112 @@
     (System/getProperty "java.class.path")))
 (m/=> get-classpath [:=> [:cat] :string])
 
+(def ^:private stream-runtime-dir
+  "Output of the stream-runtime build task, relative to the working directory"
+  "target/stream")
+
+(defn get-stream-runtime
+  "Get the classpath for stream processes and the AppCDS archive made for it.
+  Uses the trimmed classpath from the stream-runtime build task while all
+  of its jars exist and the stream jar is not older than the compiled
+  classes; otherwise the full classpath without an archive."
+  []
+  (let [classpath-file (io/file stream-runtime-dir "classpath.txt")
+        archive (io/file stream-runtime-dir "stream.jsa")
+        entries (when (.exists classpath-file)
+                  (str/split (str/trim (slurp classpath-file)) #":"))
+        compiled (io/file "target/classes/potatoclient/kotlin/VideoStreamManager.class")
+        current? (and (seq entries)
+                      (every? #(.exists (io/file %)) entries)
+                      (>= (.lastModified (io/file (first entries))) (.lastModified compiled)))]
+    (if current?
+      {:classpath (str/join ":" entries)
+       :cds-archive (when (.exists archive) (.getAbsolutePath archive))}
+      {:classpath (get-classpath)
+       :cds-archive nil})))
+(m/=> get-stream-runtime [:=> [:cat] [:map [:classpath :string] [:cds-archive [:maybe :string]]]])
+
+(defn get-config-dir-path
+  "Get the config directory path passed to VideoStreamManager.
+  Used for per-machine caches such as the decoder probe ranking."
+  []
+  (.getAbsolutePath ^java.io.File (config/get-config-dir)))
+(m/=> get-config-dir-path [:=> [:cat] :string])
+
+(defn- timestamped-file
+  "Get <config-dir>/<dir>/<stream>-yyyyMMdd-HHmmss.<extension>"
+  [dir stream-type extension]
+  (let [stamp (.format (java.time.format.DateTimeFormatter/ofPattern "yyyyMMdd-HHmmss")
+                       (java.time.LocalDateTime/now))]
+    (io/file (config/get-config-dir) dir (str (name stream-type) "-" stamp "." extension))))
+(m/=> timestamped-file [:=> [:cat :string :keyword :string] :any])
+
+(defn get-export-file
+  "Get a timestamped file for a DVR export of a stream"
+  [stream-type extension]
+  (timestamped-file "exports" stream-type extension))
+(m/=> get-export-file [:=> [:cat :keyword :string] :any])
+
+(defn get-snapshot-file
+  "Get a timestamped file for a still snapshot of a stream"
+  [stream-type extension]
+  (timestamped-file "snapshots" stream-type extension))
+(m/=> get-snapshot-file [:=> [:cat :keyword :string] :any])
+
+(defn get-jitter-budget
+  "Get the latency budget of paced playback from the app config, or nil
+  to render frames as they arrive (the default)"
+  []
+  (:jitter-buffer (config/load-config)))
+(m/=> get-jitter-budget [:=> [:cat] [:maybe :potatoclient.ui-specs/jitter-buffer]])
+
+(defn get-stream-mode
+  "Get where video streams run: :subprocess (the default) spawns a JVM per
+  stream, :in-process runs them on threads of this JVM without crash isolation"
+  []
+  (or (:stream-mode (config/load-config)) :subprocess))
+(m/=> get-stream-mode [:=> [:cat] :potatoclient.ui-specs/stream-mode])
+
 (defn get-main-class
   "Get main class for VideoStreamManager"
   []
   "potatoclient.kotlin.VideoStreamManager")
 (m/=> get-main-class [:=> [:cat] :string])
 
+(defn get-standby-main-class
+  "Get main class for a standby stream process"
+  []
+  "potatoclient.kotlin.StandbyStream")
+(m/=> get-standby-main-class [:=> [:cat] :string])
+
+(defn get-warm-standby?
+  "Check if a warmed-up process is kept ready for each stopped stream.
+  On by default; only used in :subprocess stream mode."
+  []
+  (get (config/load-config) :warm-standby true))
+(m/=> get-warm-standby? [:=> [:cat] :boolean])
+
+(def ^:private stall-watchdog-defaults
+  "Stall watchdog thresholds used where the app config sets none"
+  {:enabled true
+   :stall-ms 3000
+   :heartbeat-timeout-ms 5000
+   :step-ms 4000
+   :respawn-ms 15000})
+
+(defn get-stall-watchdog
+  "Get the stall watchdog settings: :stall-ms without frames or data counts
+  as a stall, :heartbeat-timeout-ms without a heartbeat means the process
+  hangs, each recovery step gets :step-ms to work and a respawn :respawn-ms"
+  []
+  (merge stall-watchdog-defaults (:stall-watchdog (config/load-config))))
+(m/=> get-stall-watchdog [:=> [:cat] [:map
+                                       [:enabled :boolean]
+                                       [:stall-ms pos-int?]
+                                       [:heartbeat-timeout-ms pos-int?]
+                                       [:step-ms pos-int?]
+                                       [:respawn-ms pos-int?]]])
+
 (defn get-debug-flag
   "Check if debug mode is enabled"
   []
@@ -4,11 +4,14 @@
             [malli.core :as m]
     [potatoclient.ipc.core :as ipc]
     [potatoclient.logging :as logging]
+    [potatoclient.streams.budget :as budget]
     [potatoclient.streams.config :as config]
     [potatoclient.streams.events :as events]
     [potatoclient.streams.process :as process]
     [potatoclient.streams.state :as state]
-    [potatoclient.ipc.transit :as transit]))
+    [potatoclient.ipc.transit :as transit])
+  (:import
+    (java.util.concurrent TimeUnit)))
 
 ;; ============================================================================
 ;; Constants
@@ -34,25 +37,48 @@
 ;; IPC Management
 ;; ============================================================================
 
+(defn- device-channel
+  "IPC channel of the stream-type process shown for device. Hashed to keep
+   the socket path short; one channel per device lets the streams of a
+   background device keep their sockets."
+  [stream-type device]
+  (str (name stream-type) "-" (Integer/toHexString (hash device)))) 
+ (m/=> device-channel [:=> [:cat :keyword :string] :string])
+
 (defn- create-message-handler
   "Create message handler for stream IPC.
-   Returns a function that delegates to the events handler."
-  [stream-type]
+   Returns a function that delegates to the events handler while the
+   process on channel is in the stream's slot. Other processes (standbys,
+   streams of a background device) only have their logs kept."
+  [stream-type channel]
   (fn [message]
-    (events/handle-message stream-type message))) 
- (m/=> create-message-handler [:=> [:cat :keyword] fn?])
+    (if (= channel (state/stream-ipc-channel stream-type))
+      (events/handle-message stream-type message)
+      (when (= :log (:msg-type message))
+        (logging/log-info {:id :stream/log
+                           :stream stream-type
+                           :channel channel
+                           :level (:level message)
+                           :msg (:message message)}))))) 
+ (m/=> create-message-handler [:=> [:cat :keyword :string] fn?])
 
 (defn- start-ipc-server
-  "Start IPC server for a stream"
-  [stream-type]
+  "Start IPC server for a stream shown for device"
+  [stream-type device]
   (try
     (logging/log-info {:id :stream/starting-ipc
                        :stream stream-type})
     
-    (let [handler (create-message-handler stream-type)
+    (let [channel (device-channel stream-type device)
+          ;; Route messages to the slot before the process can send any
+          _ (state/update-stream-process-info! stream-type {:ipc-channel channel
+                                                            :device device})
+          handler (create-message-handler stream-type channel)
           server (ipc/create-and-register-server stream-type
+                                                :channel channel
                                                 :on-message handler
-                                                :await-binding? true)]
+                                                :await-binding? true
+                                                :in-memory? (= :in-process (config/get-stream-mode)))]
       (state/set-stream-ipc! stream-type server)
       server)
     
@@ -62,7 +88,7 @@
                          :error (.getMessage e)})
       (state/set-stream-error! stream-type (.getMessage e))
       nil))) 
- (m/=> start-ipc-server [:=> [:cat :keyword] [:maybe :any]])
+ (m/=> start-ipc-server [:=> [:cat :keyword :string] [:maybe :any]])
 
 (defn- stop-ipc-server
   "Stop IPC server for a stream"
@@ -78,38 +104,197 @@
   nil) 
  (m/=> stop-ipc-server [:=> [:cat :keyword] :nil])
 
+;; ============================================================================
+;; Warm Standby
+;; ============================================================================
+
+;; While a stream is stopped, a standby process holds its IPC server with
+;; GStreamer initialised and plugins loaded. Starting the stream binds it
+;; with an activate command; a new one is spawned once the stream stops.
+
+(defonce ^:private standbys
+  ;; stream-type -> {:process :server :channel :ready}, :ready a promise of
+  ;; the standby-ready metric
+  (atom {}))
+
+(defonce ^:private standby-count
+  ;; Numbers the standbys' IPC channels; each gets its own socket
+  (atom 0))
+
+(defonce ^:private standby-enabled? (atom false))
+
+(defonce ^:private standby-lock (Object.))
+
+(defonce ^:private starting
+  ;; Stream types between claiming a standby and their new process being
+  ;; registered; no standby is spawned for them meanwhile
+  (atom #{}))
+
+(defn- standby-handler
+  "Message handler of a standby's IPC server: notes readiness, otherwise
+   handles messages like any stream's"
+  [stream-type channel ready]
+  (let [handle (create-message-handler stream-type channel)]
+    (fn [message]
+      (when (and (= :metric (:msg-type message))
+                 (= "standby-ready" (:name message)))
+        (deliver ready (:value message)))
+      (handle message)))) 
+ (m/=> standby-handler [:=> [:cat :keyword :string :any] fn?])
+
+(defn- spawn-standby!
+  "Start an IPC server and a standby process for stream-type"
+  [stream-type]
+  (let [ready (promise)
+        channel (str (name stream-type) "-standby-" (swap! standby-count inc))]
+    (try
+      (let [server (ipc/create-and-register-server stream-type
+                                                  :channel channel
+                                                  :on-message (standby-handler stream-type channel ready)
+                                                  :await-binding? true)]
+        (Thread/sleep ipc-startup-delay-ms)
+        (if-let [process (process/spawn-standby stream-type (process/get-current-pid) channel)]
+          (swap! standbys assoc stream-type {:process process :server server :channel channel :ready ready})
+          (ipc/stop-server server)))
+      (catch Exception e
+        (logging/log-warn {:id :stream/standby-failed
+                           :stream stream-type
+                           :error (.getMessage e)}))))
+  nil) 
+ (m/=> spawn-standby! [:=> [:cat :keyword] :nil])
+
+(defn- discard-standby!
+  "Stop the standby of stream-type, if any, and free its IPC server"
+  [stream-type]
+  (when-let [{:keys [process server]} (get @standbys stream-type)]
+    (swap! standbys dissoc stream-type)
+    (.destroy ^Process process)
+    (ipc/stop-server server))
+  nil) 
+ (m/=> discard-standby! [:=> [:cat :keyword] :nil])
+
+(defn- replenish-standby!
+  "Spawn a standby for stream-type in the background if it is stopped and
+   has none"
+  [stream-type]
+  (when @standby-enabled?
+    (future
+      (locking standby-lock
+        (when (and @standby-enabled?
+                   (state/stream-stopped? stream-type)
+                   (not (contains? @starting stream-type))
+                   (not (contains? @standbys stream-type)))
+          (spawn-standby! stream-type)))))
+  nil) 
+ (m/=> replenish-standby! [:=> [:cat :keyword] :nil])
+
+(defn- claim-standby!
+  "Take the standby of stream-type without waiting for it. One still
+   warming up is taken too: it reads the activate command once warm, which
+   is still sooner than a cold start. A standby that cannot show the stream
+   (combined layout or died) is discarded so a cold start can take its IPC
+   slot."
+  [stream-type]
+  (when-let [{:keys [process] :as standby} (get @standbys stream-type)]
+    (if (and (nil? (state/stream-combined-layout stream-type))
+             (process/process-alive? process))
+      (do
+        (swap! standbys dissoc stream-type)
+        standby)
+      (discard-standby! stream-type)))) 
+ (m/=> claim-standby! [:=> [:cat :keyword] [:maybe :map]])
+
+(defn- activate-standby
+  "Bind a claimed standby to stream-type. The activate command carries the
+   stream's current settings (decode threads, jitter budget, toggle time),
+   which may have changed since the standby was spawned. Returns false,
+   with the standby gone, when it could not be told to start."
+  [stream-type {:keys [process server channel ready]} toggle-ms]
+  (let [pid (.pid ^Process process)
+        _ (state/update-stream-process-info! stream-type {:ipc-channel channel
+                                                          :device (config/get-stream-host)})
+        settings (assoc (process/stream-properties stream-type)
+                        "potatoclient.spawn-time-ms" (str toggle-ms))
+        activate (transit/create-command :activate {:url (config/build-stream-url stream-type)
+                                                    :host (config/get-stream-host)
+                                                    :toggle-ms toggle-ms
+                                                    :settings settings})]
+    (state/set-stream-ipc! stream-type server)
+    (state/set-stream-process! stream-type process)
+    (state/set-stream-status! stream-type :starting pid)
+    (if (ipc/send-message server activate)
+      (do
+        (logging/log-info {:id :stream/standby-activated
+                           :stream stream-type
+                           :pid pid
+                           :warm? (realized? ready)})
+        true)
+      (do
+        (.destroyForcibly ^Process process)
+        (stop-ipc-server stream-type)
+        (state/reset-stream-state! stream-type)
+        false)))) 
+ (m/=> activate-standby [:=> [:cat :keyword :map :int] :boolean])
+
 ;; ============================================================================
 ;; Stream Lifecycle
 ;; ============================================================================
 
+(defn- cold-start
+  "Start the IPC server and spawn a new stream process"
+  [stream-type toggle-ms]
+  (state/update-stream-process-info! stream-type {:toggled-at toggle-ms})
+  (if-let [ipc-server (start-ipc-server stream-type (config/get-stream-host))]
+    (do
+      ;; Small delay to ensure IPC is ready
+      (Thread/sleep ipc-startup-delay-ms)
+
+      ;; Start the process
+      (let [host (:device (state/get-stream-state stream-type))
+            parent-pid (process/get-current-pid)]
+        (or (some? (process/spawn-process stream-type host parent-pid))
+            (do
+              ;; Clean up IPC if process fails
+              (stop-ipc-server stream-type)
+              false))))
+    false)) 
+ (m/=> cold-start [:=> [:cat :keyword :int] :boolean])
+
 (defn start-stream
-  "Start a stream (IPC + process)"
+  "Start a stream (IPC + process), binding its warm standby when there is one"
   [stream-type]
-  (if (state/stream-running? stream-type)
+  (cond
+    (state/stream-running? stream-type)
     (do
       (logging/log-warn {:id :stream/already-running
                         :stream stream-type})
       true)
+
+    ;; The heat stream is already shown by the combined process
+    (and (= :heat stream-type)
+         (state/stream-combined-layout config/combined-stream-type))
     (do
-      ;; Clear any previous errors
-      (state/clear-stream-error! stream-type)
-      
-      ;; Start IPC server first
-      (if-let [ipc-server (start-ipc-server stream-type)]
-        (do
-          ;; Small delay to ensure IPC is ready
-          (Thread/sleep ipc-startup-delay-ms)
-          
-          ;; Start the process
-          (let [host (config/get-stream-host)
-                parent-pid (process/get-current-pid)]
-            (if (process/spawn-process stream-type host parent-pid)
-              true
-              (do
-                ;; Clean up IPC if process fails
-                (stop-ipc-server stream-type)
-                false))))
-        false)))) 
+      (logging/log-warn {:id :stream/shown-in-combined
+                        :stream stream-type})
+      false)
+
+    :else
+    (let [toggle-ms (System/currentTimeMillis)
+          ;; Only the claim is under the lock; starting keeps replenish-standby! away
+          standby (locking standby-lock
+                    (swap! starting conj stream-type)
+                    (claim-standby! stream-type))]
+      (try
+        ;; Clear any previous errors
+        (state/clear-stream-error! stream-type)
+        (let [started? (or (and standby (activate-standby stream-type standby toggle-ms))
+                           (cold-start stream-type toggle-ms))]
+          (when started?
+            ;; Shrink the other streams' share of the cores
+            (budget/rebalance!))
+          started?)
+        (finally
+          (swap! starting disj stream-type)))))) 
  (m/=> start-stream [:=> [:cat :keyword] :boolean])
 
 (defn stop-stream
@@ -129,7 +314,13 @@
     (stop-ipc-server stream-type)
     
     ;; Reset state
-    (state/reset-stream-state! stream-type))
+    (state/reset-stream-state! stream-type)
+
+    ;; Hand the freed decode threads to the remaining streams
+    (budget/rebalance!)
+
+    ;; Have a warm process ready for the next start
+    (replenish-standby! stream-type))
   nil) 
  (m/=> stop-stream [:=> [:cat :keyword] :nil])
 
@@ -191,6 +382,196 @@
   (send-command stream-type :close-request {:stream-type stream-type})) 
  (m/=> send-close-request [:=> [:cat :keyword] :boolean])
 
+(defn pause-stream
+  "Pause a stream's pipeline without tearing down the process"
+  [stream-type]
+  (send-command stream-type :pause {})) 
+ (m/=> pause-stream [:=> [:cat :keyword] :boolean])
+
+(defn resume-stream
+  "Resume a paused stream at the next keyframe"
+  [stream-type]
+  (send-command stream-type :play {})) 
+ (m/=> resume-stream [:=> [:cat :keyword] :boolean])
+
+(defn reconnect-stream
+  "Reconnect a stream's WebSocket in place, keeping process and pipeline"
+  [stream-type]
+  (send-command stream-type :reconnect {})) 
+ (m/=> reconnect-stream [:=> [:cat :keyword] :boolean])
+
+(defn restart-pipeline
+  "Rebuild a stream's GStreamer pipeline, keeping process and WebSocket"
+  [stream-type]
+  (send-command stream-type :restart-pipeline {})) 
+ (m/=> restart-pipeline [:=> [:cat :keyword] :boolean])
+
+(defn export-recording
+  "Ask a stream process to export the last seconds of its DVR ring to path.
+   A heat stream shown by the combined process is exported from there."
+  [stream-type path seconds]
+  (let [combined? (and (= :heat stream-type)
+                       (state/stream-combined-layout config/combined-stream-type))]
+    (send-command (if combined? config/combined-stream-type stream-type)
+                  :export-dvr
+                  (cond-> {:path path :seconds seconds}
+                    combined? (assoc :stream "heat"))))) 
+ (m/=> export-recording [:=> [:cat :keyword :string pos-int?] :boolean])
+
+(defn showing-process
+  "Process showing stream-type: the combined process for heat when combined"
+  [stream-type]
+  (if (and (= :heat stream-type)
+           (state/stream-combined-layout config/combined-stream-type))
+    config/combined-stream-type
+    stream-type)) 
+ (m/=> showing-process [:=> [:cat :keyword] :keyword])
+
+(defn request-snapshot
+  "Ask the process showing a stream to save its next decoded frame to path.
+   In combined mode the snapshot is of the composited canvas."
+  [stream-type path]
+  (send-command (showing-process stream-type) :snapshot {:path path})) 
+ (m/=> request-snapshot [:=> [:cat :keyword :string] :boolean])
+
+(defn set-thumbnails
+  "Start (fps > 0) or stop (fps 0) live thumbnails of a stream"
+  [stream-type fps width]
+  (send-command (showing-process stream-type) :thumbnails {:fps fps :width width})) 
+ (m/=> set-thumbnails [:=> [:cat :keyword nat-int? pos-int?] :boolean])
+
+;; ============================================================================
+;; Combined Mode
+;; ============================================================================
+
+(defn send-layout
+  "Switch the layout of a running combined process"
+  [layout]
+  (state/set-stream-combined! config/combined-stream-type layout)
+  (send-command config/combined-stream-type :set-layout {:layout (name layout)})) 
+ (m/=> send-layout [:=> [:cat :keyword] :boolean])
+
+(defn start-combined-stream
+  "Show heat and day in one process and window with the given layout.
+   Separate stream processes are stopped first; a running combined
+   process only switches its layout."
+  [layout]
+  (let [stream-type config/combined-stream-type]
+    (if (and (state/stream-combined-layout stream-type)
+             (state/stream-running? stream-type))
+      (send-layout layout)
+      (do
+        (stop-stream :heat)
+        (stop-stream :day)
+        (state/set-stream-combined! stream-type layout)
+        (or (start-stream stream-type)
+            (do
+              (state/set-stream-combined! stream-type nil)
+              false)))))) 
+ (m/=> start-combined-stream [:=> [:cat :keyword] :boolean])
+
+(defn respawn-stream
+  "Replace a stream's process with a new one. A combined process comes
+  back with its layout."
+  [stream-type]
+  (if-let [layout (state/stream-combined-layout stream-type)]
+    (do
+      (stop-stream stream-type)
+      (Thread/sleep stream-restart-delay-ms)
+      (start-combined-stream layout))
+    (restart-stream stream-type))) 
+ (m/=> respawn-stream [:=> [:cat :keyword] :boolean])
+
+;; ============================================================================
+;; Devices
+;; ============================================================================
+
+;; Switching devices parks the streams of the device left: process, WebSocket
+;; and IPC server keep running paused, out of the stream slots. Switching back
+;; puts them back in their slots and resumes them.
+
+(defonce ^:private parked
+  ;; device -> stream-type -> slot state from state/take-stream-state!
+  (atom {}))
+
+(defn- stop-parked!
+  "Stop the process and IPC server of a parked stream"
+  [{:keys [info]}]
+  (when-let [process (:process info)]
+    (.destroy ^Process process)
+    (when-not (.waitFor ^Process process 5 TimeUnit/SECONDS)
+      (.destroyForcibly ^Process process)))
+  (when-let [server (:ipc-server info)]
+    (ipc/stop-server server))
+  nil) 
+ (m/=> stop-parked! [:=> [:cat :map] :nil])
+
+(defn- park-stream!
+  "Pause the stream in stream-type's slot and move it out of the slot,
+   parked for the device it shows"
+  [stream-type]
+  (let [device (:device (state/get-stream-state stream-type))]
+    (pause-stream stream-type)
+    (let [slot (state/take-stream-state! stream-type)]
+      (if device
+        (swap! parked assoc-in [device stream-type] slot)
+        (stop-parked! slot)))
+    (logging/log-info {:id :stream/parked
+                       :stream stream-type
+                       :device device}))
+  nil) 
+ (m/=> park-stream! [:=> [:cat :keyword] :nil])
+
+(defn- restore-stream!
+  "Put the stream parked for device back in stream-type's slot and resume
+   it. Returns false, with the stream gone, when its process has died."
+  [device stream-type]
+  (let [slot (get-in @parked [device stream-type])]
+    (swap! parked update device dissoc stream-type)
+    (if (process/process-alive? (get-in slot [:info :process]))
+      (do
+        (state/put-stream-state! stream-type slot)
+        (resume-stream stream-type)
+        (logging/log-info {:id :stream/restored
+                           :stream stream-type
+                           :device device})
+        true)
+      (do
+        (stop-parked! slot)
+        false)))) 
+ (m/=> restore-stream! [:=> [:cat :string :keyword] :boolean])
+
+(defn switch-device!
+  "Show the streams of device instead of the ones shown now, which are
+   parked. Parked streams of device are resumed; stream types shown before
+   that device has no live stream for are started for it."
+  [device]
+  (let [shown (remove #(or (state/stream-stopped? %)
+                           (= device (:device (state/get-stream-state %))))
+                      config/stream-types)
+        layout (when (some #{config/combined-stream-type} shown)
+                 (state/stream-combined-layout config/combined-stream-type))]
+    (run! park-stream! shown)
+    (let [restored (set (filter #(restore-stream! device %) (keys (get @parked device))))]
+      (swap! parked dissoc device)
+      (if (and layout (empty? restored))
+        (start-combined-stream layout)
+        (run! start-stream (remove restored shown))))
+    ;; The processes in the slots changed
+    (budget/rebalance!)
+    (run! replenish-standby! config/stream-types))
+  nil) 
+ (m/=> switch-device! [:=> [:cat :string] :nil])
+
+(defn forget-device!
+  "Stop the streams parked for a device, e.g. once it is removed"
+  [device]
+  (let [slots (get @parked device)]
+    (swap! parked dissoc device)
+    (run! stop-parked! (vals slots)))
+  nil) 
+ (m/=> forget-device! [:=> [:cat :string] :nil])
+
 ;; ============================================================================
 ;; Initialization
 ;; ============================================================================
@@ -200,6 +581,9 @@
   []
   (logging/log-info {:id :stream/coordinator-init})
   (state/reset-all-states!)
+  (reset! standby-enabled? (and (config/get-warm-standby?)
+                                (= :subprocess (config/get-stream-mode))))
+  (run! replenish-standby! config/stream-types)
   nil) 
  (m/=> initialize [:=> [:cat] :nil])
 
@@ -207,6 +591,10 @@
   "Shutdown all streams and cleanup"
   []
   (logging/log-info {:id :stream/coordinator-shutdown})
+  (reset! standby-enabled? false)
+  (locking standby-lock
+    (run! discard-standby! (keys @standbys)))
+  (run! forget-device! (keys @parked))
   (stop-all-streams)
   nil) 
  (m/=> shutdown [:=> [:cat] :nil])
\ No newline at end of file
@@ -5,7 +5,8 @@
     [potatoclient.logging :as logging]
     [potatoclient.streams.config :as config]
     [potatoclient.streams.coordinator :as coordinator]
-    [potatoclient.streams.state :as state]))
+    [potatoclient.streams.state :as state]
+    [potatoclient.streams.watchdog :as watchdog]))
 
 ;; ============================================================================
 ;; Stream Control
@@ -141,6 +142,73 @@
   (state/get-stream-state stream-type)) 
  (m/=> get-stream-info [:=> [:cat :keyword] [:maybe :map]])
 
+(defn toggle-latency
+  "Time from the last toggle of a running stream to its first frame
+  
+  Parameters:
+    stream-type - :heat or :day
+  
+  Returns map with :ms and :path, :standby when a warm standby process was
+  bound or :cold-spawn when a new process had to start; nil before the
+  first frame"
+  [stream-type]
+  (when-let [{:keys [ms path]} (state/get-stream-metric stream-type "toggle-ttff")]
+    {:ms ms
+     :path (keyword path)})) 
+ (m/=> toggle-latency [:=> [:cat :keyword] [:maybe [:map [:ms nat-int?] [:path :keyword]]]])
+
+(defn startup-report
+  "How a running stream process started, to compare runs with and without
+  the AppCDS archive of the stream-runtime build task
+  
+  Parameters:
+    stream-type - :heat or :day
+  
+  Returns map with :path (:cold-spawn or :standby), :cds-archive?,
+  :jvm-uptime-ms and :classes-loaded at the start of streaming, :start-ms
+  from the toggle (cold spawns only), :toggle-ms to the first frame and
+  the process :rss-bytes; nil before the process reported"
+  [stream-type]
+  (when-let [startup (state/get-stream-metric stream-type "startup")]
+    (cond-> {:path (keyword (:path startup))
+             :cds-archive? (boolean (:cds-archive startup))
+             :jvm-uptime-ms (:jvm-uptime-ms startup)
+             :classes-loaded (:classes-loaded startup)}
+      (:start-ms startup) (assoc :start-ms (:start-ms startup))
+      (toggle-latency stream-type) (assoc :toggle-ms (:ms (toggle-latency stream-type)))
+      (state/get-stream-metric stream-type "process-memory")
+      (assoc :rss-bytes (:rss-bytes (state/get-stream-metric stream-type "process-memory")))))) 
+ (m/=> startup-report [:=> [:cat :keyword] [:maybe :map]])
+
+;; ============================================================================
+;; Stall Recovery
+;; ============================================================================
+
+(defn stall-report
+  "Stalls the watchdog saw on a stream and how long recovery took
+  
+  Parameters:
+    stream-type - :heat or :day
+  
+  Returns map with :stalls, :recovered, :mean-ms and :max-ms over the
+  recovered ones, and :episodes, the last stalls oldest first, each with
+  :cause (:no-data, :no-frames or :no-heartbeat), the :step that ended it
+  (:reconnect, :restart-pipeline or :respawn), :recovered?, :ms and :at"
+  [stream-type]
+  (let [episodes (watchdog/recovery-history stream-type)
+        times (keep #(when (:recovered? %) (:ms %)) episodes)]
+    {:stalls (count episodes)
+     :recovered (count times)
+     :mean-ms (if (seq times) (quot (reduce + 0 times) (count times)) 0)
+     :max-ms (reduce max 0 times)
+     :episodes episodes})) 
+ (m/=> stall-report [:=> [:cat :keyword] [:map
+                                        [:stalls nat-int?]
+                                        [:recovered nat-int?]
+                                        [:mean-ms nat-int?]
+                                        [:max-ms nat-int?]
+                                        [:episodes [:sequential :map]]]])
+
 ;; ============================================================================
 ;; Control Messages
 ;; ============================================================================
@@ -170,6 +238,217 @@
   (coordinator/send-close-request stream-type)) 
  (m/=> request-stream-close [:=> [:cat :keyword] :boolean])
 
+(defn pause-stream
+  "Pause a running stream without killing its process
+  
+  Parameters:
+    stream-type - :heat or :day"
+  [stream-type]
+  (if (state/stream-running? stream-type)
+    (coordinator/pause-stream stream-type)
+    false)) 
+ (m/=> pause-stream [:=> [:cat :keyword] :boolean])
+
+(defn resume-stream
+  "Resume a paused stream (warm path, playback restarts at next keyframe)
+  
+  Parameters:
+    stream-type - :heat or :day"
+  [stream-type]
+  (if (state/stream-running? stream-type)
+    (coordinator/resume-stream stream-type)
+    false)) 
+ (m/=> resume-stream [:=> [:cat :keyword] :boolean])
+
+(defn reconnect-stream
+  "Reconnect a stream's WebSocket without respawning the process.
+  Unlike restart-stream this keeps the JVM and GStreamer pipeline alive.
+  
+  Parameters:
+    stream-type - :heat or :day"
+  [stream-type]
+  (if (state/stream-running? stream-type)
+    (coordinator/reconnect-stream stream-type)
+    false)) 
+ (m/=> reconnect-stream [:=> [:cat :keyword] :boolean])
+
+(defn- stream-shown?
+  "Whether a process is showing stream-type, on its own or combined"
+  [stream-type]
+  (or (state/stream-running? stream-type)
+      (and (= :heat stream-type)
+           (some? (state/stream-combined-layout config/combined-stream-type))))) 
+ (m/=> stream-shown? [:=> [:cat :keyword] :boolean])
+
+(defn export-recent-video
+  "Export the last seconds of a stream to a file in the background
+  
+  Parameters:
+    stream-type - :heat or :day
+    seconds - How much to export, up to the DVR ring length
+    format - :mp4 or :mkv
+  
+  The stream keeps playing. The result arrives as the \"dvr-export\"
+  metric of the stream. Returns the target path, or nil if the stream
+  is not running."
+  [stream-type seconds format]
+  (when (stream-shown? stream-type)
+    (let [path (.getAbsolutePath ^java.io.File (config/get-export-file stream-type (name format)))]
+      (when (coordinator/export-recording stream-type path seconds)
+        path)))) 
+ (m/=> export-recent-video [:=> [:cat :keyword pos-int? [:enum :mp4 :mkv]] [:maybe :string]])
+
+;; ============================================================================
+;; Frame Capture
+;; ============================================================================
+
+(defn take-snapshot
+  "Save the next decoded frame of a stream as an image
+  
+  Parameters:
+    stream-type - :heat or :day
+    format - :png or :jpeg
+  
+  Encoding happens in the stream process off its video threads. The
+  result arrives as the \"snapshot\" metric of the process showing the
+  stream. Returns the target path, or nil if the stream is not shown."
+  [stream-type format]
+  (when (stream-shown? stream-type)
+    (let [extension (if (= :jpeg format) "jpg" "png")
+          path (.getAbsolutePath ^java.io.File (config/get-snapshot-file stream-type extension))]
+      (when (coordinator/request-snapshot stream-type path)
+        path)))) 
+ (m/=> take-snapshot [:=> [:cat :keyword [:enum :png :jpeg]] [:maybe :string]])
+
+(defn set-thumbnails
+  "Start or stop live thumbnails of a stream
+  
+  Parameters:
+    stream-type - :heat or :day
+    fps - Thumbnails per second (at most 10), 0 to stop
+    width - Thumbnail width in pixels
+  
+  Frames are only captured while thumbnails are on. Read the latest
+  with thumbnail-image. Returns true if the request was sent."
+  [stream-type fps width]
+  (and (stream-shown? stream-type)
+       (coordinator/set-thumbnails stream-type fps width))) 
+ (m/=> set-thumbnails [:=> [:cat :keyword nat-int? pos-int?] :boolean])
+
+(defn thumbnail-image
+  "Latest thumbnail of the process showing a stream as a BufferedImage,
+  or nil if none has arrived"
+  [stream-type]
+  (let [process (coordinator/showing-process stream-type)]
+    (when-let [{:keys [width height pixels]} (state/get-stream-metric process "thumbnail")]
+      (let [^bytes pixels pixels
+            image (java.awt.image.BufferedImage. width height java.awt.image.BufferedImage/TYPE_INT_RGB)
+            rgb (int-array (* width height))]
+        ;; Packed RGB24 rows, as sent by the stream process
+        (dotimes [i (alength rgb)]
+          (let [at (* 3 i)]
+            (aset rgb i (unchecked-int
+                          (bit-or (bit-shift-left (bit-and (aget pixels at) 0xff) 16)
+                                  (bit-shift-left (bit-and (aget pixels (inc at)) 0xff) 8)
+                                  (bit-and (aget pixels (+ at 2)) 0xff))))))
+        (.setRGB image 0 0 width height rgb 0 width)
+        image)))) 
+ (m/=> thumbnail-image [:=> [:cat :keyword] :any])
+
+;; ============================================================================
+;; Combined Mode
+;; ============================================================================
+
+(defn start-combined-stream
+  "Show heat and day composited in one process and window
+  
+  Parameters:
+    layout - :side-by-side, :pip, :day or :heat
+  
+  Separate heat/day processes are stopped first. If the combined
+  process is already running only its layout changes.
+  Returns true if successful, false otherwise."
+  [layout]
+  (if (config/valid-layout? layout)
+    (coordinator/start-combined-stream layout)
+    (do
+      (logging/log-error {:id :stream/invalid-layout
+                         :layout layout})
+      false))) 
+ (m/=> start-combined-stream [:=> [:cat :keyword] :boolean])
+
+(defn set-combined-layout
+  "Switch the layout of the running combined stream
+  
+  Parameters:
+    layout - :side-by-side, :pip, :day or :heat"
+  [layout]
+  (if (and (config/valid-layout? layout)
+           (state/stream-combined-layout config/combined-stream-type)
+           (state/stream-running? config/combined-stream-type))
+    (coordinator/send-layout layout)
+    false)) 
+ (m/=> set-combined-layout [:=> [:cat :keyword] :boolean])
+
+(defn resource-usage
+  "CPU and memory of all running stream processes, as last reported.
+  Compare it with the streams started separately and combined to see
+  what the combined mode saves.
+  
+  In-process streams all report the main JVM's figures, which are counted
+  once. :total-rss-bytes adds this JVM to the stream processes, so the
+  subprocess and in-process stream modes can be compared directly.
+  
+  Returns map with :processes, :streams, :cores-used, :rss-bytes,
+  :heap-used-bytes and :total-rss-bytes"
+  []
+  (let [running (filter state/stream-running? config/stream-types)
+        separate (fn [metrics]
+                   (let [{shared true own false} (group-by #(boolean (:in-process %)) metrics)]
+                     (concat own (take 1 shared))))
+        memory (keep #(state/get-stream-metric % "process-memory") running)
+        cpu (keep #(state/get-stream-metric % "decode-cpu") running)
+        rss-bytes (reduce + 0 (keep :rss-bytes (separate memory)))
+        main-rss (get (.sample potatoclient.kotlin.ProcessMemory/INSTANCE) "rss-bytes")]
+    {:processes (count (distinct (keep #(:pid (state/get-stream-state %)) running)))
+     :streams (reduce + 0 (map #(:streams % 1) memory))
+     :cores-used (reduce + 0.0 (keep :cores-used (separate cpu)))
+     :rss-bytes rss-bytes
+     :heap-used-bytes (reduce + 0 (keep :heap-used-bytes (separate memory)))
+     :total-rss-bytes (+ (or main-rss 0)
+                         (reduce + 0 (keep :rss-bytes (remove :in-process memory))))})) 
+ (m/=> resource-usage [:=> [:cat] [:map
+                                  [:processes nat-int?]
+                                  [:streams nat-int?]
+                                  [:cores-used number?]
+                                  [:rss-bytes nat-int?]
+                                  [:heap-used-bytes nat-int?]
+                                  [:total-rss-bytes nat-int?]]])
+
+;; ============================================================================
+;; Devices
+;; ============================================================================
+
+(defn switch-device!
+  "Show the streams of another device. The streams shown now keep running
+  paused in the background, with their own IPC sockets, and are resumed
+  when their device is switched back to.
+  
+  Parameters:
+    device - Domain of the device switched to"
+  [device]
+  (coordinator/switch-device! device)) 
+ (m/=> switch-device! [:=> [:cat :string] :nil])
+
+(defn forget-device!
+  "Stop the background streams of a device, e.g. once it is removed
+  
+  Parameters:
+    device - Domain of the device"
+  [device]
+  (coordinator/forget-device! device)) 
+ (m/=> forget-device! [:=> [:cat :string] :nil])
+
 ;; ============================================================================
 ;; Lifecycle
 ;; ============================================================================
@@ -177,11 +456,13 @@
 (defn initialize
   "Initialize the stream system"
   []
-  (coordinator/initialize)) 
+  (coordinator/initialize)
+  (watchdog/start!)) 
  (m/=> initialize [:=> [:cat] :nil])
 
 (defn shutdown
   "Shutdown all streams and cleanup resources"
   []
+  (watchdog/stop!)
   (coordinator/shutdown)) 
  (m/=> shutdown [:=> [:cat] :nil])
\ No newline at end of file
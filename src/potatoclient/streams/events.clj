@@ -3,6 +3,7 @@
   (:require
     [malli.core :as m]
     [potatoclient.logging :as logging]
+    [potatoclient.streams.budget :as budget]
     [potatoclient.streams.state :as state]
     [potatoclient.streams.specs :as specs]
     [potatoclient.ui.status-bar.messages :as status-msg]))
@@ -77,7 +78,12 @@
   (when (and (= action :window-move) x y)
     (state/set-stream-window-position! stream-type x y))
   (when (and (= action :resize) width height)
-    (state/set-stream-window-size! stream-type width height)))
+    (state/set-stream-window-size! stream-type width height))
+  ;; Minimized streams give their decode threads to the visible ones
+  (case action
+    :minimize (budget/set-visible! stream-type false)
+    (:restore :maximize) (budget/set-visible! stream-type true)
+    nil))
 
 ;; ============================================================================
 ;; Error Events
@@ -178,10 +184,15 @@
                                   :msg message}))
 
         :metric (let [{:keys [name value timestamp]} message]
-                  (logging/log-debug {:id :stream/metric
-                                      :stream stream-type
-                                      :metric name
-                                      :value value}))
+                  ;; Thumbnails arrive a few times a second and carry pixels,
+                  ;; heartbeats every second
+                  (when-not (#{"thumbnail" "heartbeat"} name)
+                    (logging/log-debug {:id :stream/metric
+                                        :stream stream-type
+                                        :metric name
+                                        :value value}))
+                  ;; Keep the latest aggregate so it can be inspected from the UI
+                  (state/set-stream-metric! stream-type name (normalize-keys value)))
 
         :command (logging/log-debug {:id :stream/command
                                      :stream stream-type
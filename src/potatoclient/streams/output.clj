@@ -0,0 +1,299 @@
+(ns potatoclient.streams.output
+  "Shared reader for the stdout/stderr of stream subprocesses.
+
+  One daemon thread polls every registered pipe without blocking and cuts
+  the bytes into lines itself. It exits once no pipes are left and starts
+  again with the next registered process. Each line passes its pipe's rate limit and
+  gets a level from its raw bytes before any log map is built; the line is
+  only decoded when Telemere lets a signal of that level through."
+  (:require
+    [malli.core :as m]
+    [potatoclient.logging :as logging])
+  (:import
+    (java.io ByteArrayOutputStream InputStream IOException)
+    (java.nio.charset StandardCharsets)))
+
+;; ============================================================================
+;; Constants
+;; ============================================================================
+
+(def ^:private poll-interval-ms
+  "Pause of the reader thread after a pass in which no pipe had data."
+  20)
+
+(def ^:private read-buffer-bytes
+  "Bytes read from a pipe at once."
+  8192)
+
+(def ^:private max-line-bytes
+  "Longer lines are cut at this length."
+  4096)
+
+(def ^:private level-scan-bytes
+  "Only the start of a line is searched for a level token; GStreamer puts
+   it in its fixed-width header."
+  96)
+
+(def ^:private lines-per-second
+  "Sustained lines logged per pipe; the rest are counted and dropped."
+  50.0)
+
+(def ^:private burst-lines
+  "Lines a pipe may log at once before the rate limit applies."
+  200.0)
+
+;; ============================================================================
+;; Line Classification
+;; ============================================================================
+
+(def ^:private level-tokens
+  "Level for a token found at the start of a line, most severe first"
+  (mapv (fn [[token level]] [(.getBytes ^String token StandardCharsets/US_ASCII) level])
+        [["CRITICAL" :error]
+         ["ERROR" :error]
+         ["Exception" :error]
+         ["WARN" :warn]
+         ["FIXME" :warn]
+         ["INFO" :info]
+         ["DEBUG" :debug]
+         ["LOG" :debug]
+         ["TRACE" :debug]]))
+
+(defn- contains-token?
+  "Check if token occurs in bytes between start and end"
+  [^bytes bytes start end ^bytes token]
+  (let [last-start (- end (alength token))]
+    (loop [i start]
+      (cond
+        (> i last-start) false
+        (loop [j 0]
+          (cond
+            (= j (alength token)) true
+            (= (aget bytes (+ i j)) (aget token j)) (recur (inc j))
+            :else false)) true
+        :else (recur (inc i))))))
+ (m/=> contains-token? [:=> [:cat :any :int :int :any] :boolean])
+
+(defn- line-level
+  "Level of a line from the tokens at its start; untagged stdout is debug
+   output and untagged stderr a warning, as before"
+  [kind ^bytes bytes start end]
+  (let [scan-end (min end (+ start level-scan-bytes))]
+    (or (some (fn [[token level]]
+                (when (contains-token? bytes start scan-end token)
+                  level))
+              level-tokens)
+        (if (= kind :stdout) :debug :warn))))
+ (m/=> line-level [:=> [:cat :keyword :any :int :int] :keyword])
+
+;; ============================================================================
+;; Rate Limiting
+;; ============================================================================
+
+(defn- admit!
+  "Take a token from the pipe's bucket. Returns the number of lines dropped
+   since the last admitted one, or nil when this line is dropped too."
+  [{:keys [tokens refilled-ns dropped]} now-ns]
+  (let [elapsed-s (/ (- now-ns @refilled-ns) 1e9)
+        available (min burst-lines (+ @tokens (* elapsed-s lines-per-second)))]
+    (vreset! refilled-ns now-ns)
+    (if (>= available 1.0)
+      (let [missed @dropped]
+        (vreset! tokens (dec available))
+        (vreset! dropped 0)
+        missed)
+      (do
+        (vreset! tokens available)
+        (vswap! dropped inc)
+        nil))))
+ (m/=> admit! [:=> [:cat :map :int] [:maybe :int]])
+
+;; ============================================================================
+;; Line Handling
+;; ============================================================================
+
+(defn- log-line!
+  "Log the line in bytes between start and end, subject to the rate limit"
+  [{:keys [stream-type kind] :as source} ^bytes bytes start end]
+  (let [end (if (and (> end start) (= 13 (aget bytes (dec end)))) (dec end) end)
+        end (min end (+ start max-line-bytes))]
+    (when (> end start)
+      (when-let [missed (admit! source (System/nanoTime))]
+        (when (pos? missed)
+          (logging/log-warn {:id :stream/output-suppressed
+                             :stream stream-type
+                             :pipe kind
+                             :lines missed}))
+        (let [id (if (= kind :stdout) :stream/stdout :stream/stderr)
+              decode #(String. bytes (int start) (int (- end start)) StandardCharsets/UTF_8)]
+          ;; The signal map, and with it the decoded line, is only built if the level is enabled
+          (case (line-level kind bytes start end)
+            :error (logging/log-error {:id id :stream stream-type :output (decode)})
+            :warn (logging/log-warn {:id id :stream stream-type :output (decode)})
+            :info (logging/log-info {:id id :stream stream-type :output (decode)})
+            :debug (logging/log-debug {:id id :stream stream-type :output (decode)}))))))
+  nil)
+ (m/=> log-line! [:=> [:cat :map :any :int :int] :nil])
+
+(defn- split-lines!
+  "Log the complete lines among the first n bytes of the read buffer and
+   keep the unterminated rest for the next read"
+  [{:keys [^bytes buffer ^ByteArrayOutputStream pending] :as source} n]
+  (loop [start 0
+         i 0]
+    (cond
+      (= i n)
+      (when (< start n)
+        (.write pending buffer (int start) (int (- n start))))
+
+      (= 10 (aget buffer i))
+      (do
+        (if (zero? (.size pending))
+          (log-line! source buffer start i)
+          ;; The line began in an earlier read
+          (do
+            (.write pending buffer (int start) (int (- i start)))
+            (let [line (.toByteArray pending)]
+              (.reset pending)
+              (log-line! source line 0 (alength line)))))
+        (recur (inc i) (inc i)))
+
+      :else
+      (recur start (inc i))))
+  (when (> (.size pending) max-line-bytes)
+    (let [line (.toByteArray pending)]
+      (.reset pending)
+      (log-line! source line 0 (alength line))))
+  nil)
+ (m/=> split-lines! [:=> [:cat :map :int] :nil])
+
+(defn- flush-pending!
+  "Log an unterminated last line of a closed pipe"
+  [{:keys [^ByteArrayOutputStream pending] :as source}]
+  (when (pos? (.size pending))
+    (let [line (.toByteArray pending)]
+      (.reset pending)
+      (log-line! source line 0 (alength line))))
+  nil)
+ (m/=> flush-pending! [:=> [:cat :map] :nil])
+
+;; ============================================================================
+;; Reader Thread
+;; ============================================================================
+
+(defonce ^:private sources
+  ;; Open pipes of all stream processes
+  (atom []))
+
+(defonce ^:private reader-thread (atom nil))
+
+(defn- read-source!
+  "Read what one pipe has without blocking. Returns :read, :idle or :closed."
+  [{:keys [^InputStream in ^Process process ^bytes buffer] :as source}]
+  ;; Checked before available: whatever an exited process wrote is in the pipe by then.
+  ;; Never block on a pipe a child of the process may still hold open.
+  (let [alive? (.isAlive process)
+        available (.available in)]
+    (cond
+      (pos? available)
+      (let [n (.read in buffer 0 (int (min available (alength buffer))))]
+        (if (neg? n)
+          :closed
+          (do
+            (split-lines! source n)
+            :read)))
+
+      alive? :idle
+
+      :else :closed)))
+ (m/=> read-source! [:=> [:cat :map] [:enum :read :idle :closed]])
+
+(defn- close-source!
+  "Stop reading a pipe"
+  [source]
+  (flush-pending! source)
+  (swap! sources (fn [current] (filterv #(not (identical? % source)) current)))
+  (try
+    (.close ^InputStream (:in source))
+    (catch IOException _))
+  nil)
+ (m/=> close-source! [:=> [:cat :map] :nil])
+
+(defn- keep-reading?
+  "Whether the reader has pipes left. Without any it gives up the reader
+   slot, so register! starts a new reader; a pipe registered meanwhile
+   keeps this one going unless a new reader already took over."
+  []
+  (or (boolean (seq @sources))
+      (do
+        (reset! reader-thread nil)
+        (and (boolean (seq @sources))
+             (compare-and-set! reader-thread nil (Thread/currentThread))))))
+ (m/=> keep-reading? [:=> [:cat] :boolean])
+
+(defn- run-reader
+  "Poll all pipes until none are left, pausing after passes without data"
+  []
+  (loop []
+    (let [read-any? (reduce (fn [read-any? source]
+                              (case (try
+                                      (read-source! source)
+                                      (catch IOException _ :closed))
+                                :read true
+                                :closed (do (close-source! source) read-any?)
+                                :idle read-any?))
+                            false
+                            @sources)]
+      (when (keep-reading?)
+        (when-not read-any?
+          (Thread/sleep (long poll-interval-ms)))
+        (recur)))))
+ (m/=> run-reader [:=> [:cat] :nil])
+
+(defn- ensure-reader!
+  "Start the shared reader thread unless one is running"
+  []
+  (when (compare-and-set! reader-thread nil ::starting)
+    (let [thread (doto (Thread. ^Runnable (fn []
+                                            (try
+                                              (run-reader)
+                                              (catch InterruptedException _
+                                                (reset! reader-thread nil))
+                                              (catch Throwable t
+                                                (logging/log-error {:id :stream/output-reader-failed
+                                                                    :error (.getMessage t)})
+                                                (reset! reader-thread nil))))
+                                "stream-output")
+                   (.setDaemon true))]
+      (reset! reader-thread thread)
+      (.start thread)))
+  nil)
+ (m/=> ensure-reader! [:=> [:cat] :nil])
+
+;; ============================================================================
+;; Public API
+;; ============================================================================
+
+(defn- pipe-source
+  "Reader state of one pipe of a process"
+  [stream-type kind process in]
+  {:stream-type stream-type
+   :kind kind
+   :process process
+   :in in
+   :buffer (byte-array read-buffer-bytes)
+   :pending (ByteArrayOutputStream.)
+   :tokens (volatile! burst-lines)
+   :refilled-ns (volatile! (System/nanoTime))
+   :dropped (volatile! 0)})
+ (m/=> pipe-source [:=> [:cat :keyword :keyword :any :any] :map])
+
+(defn register!
+  "Log a stream process's stdout and stderr from the shared reader thread
+   until the process exits"
+  [stream-type ^Process process]
+  (swap! sources conj
+         (pipe-source stream-type :stdout process (.getInputStream process))
+         (pipe-source stream-type :stderr process (.getErrorStream process)))
+  (ensure-reader!))
+ (m/=> register! [:=> [:cat :keyword :any] :nil])
@@ -5,103 +5,117 @@
     [clojure.java.io :as io]
     [clojure.string :as str]
     [potatoclient.logging :as logging]
+    [potatoclient.streams.budget :as budget]
     [potatoclient.streams.config :as config]
+    [potatoclient.streams.output :as output]
     [potatoclient.streams.state :as state])
   (:import
-    (java.io BufferedReader InputStreamReader)
     (java.lang Process ProcessBuilder)
-    (java.util.concurrent TimeUnit)))
+    (java.util.concurrent TimeUnit)
+    (potatoclient.kotlin InProcessStream)))
 
 ;; ============================================================================
 ;; Process Building
 ;; ============================================================================
 
-(defn- build-command
-  "Build command to spawn VideoStreamManager"
+(defn stream-properties
+  "Per-stream settings read by VideoStreamManager: system properties of a
+   spawned process, sent along when a standby or in-process stream starts"
+  [stream-type]
+  (let [combined-layout (state/stream-combined-layout stream-type)
+        ipc-channel (:ipc-channel (state/get-stream-state stream-type))
+        jitter (config/get-jitter-budget)]
+    (cond-> {"potatoclient.config.dir" (config/get-config-dir-path)
+             ;; Lets the stream report the time from the toggle to its first frame
+             "potatoclient.spawn-time-ms" (str (or (:toggled-at (state/get-stream-state stream-type))
+                                                   (System/currentTimeMillis)))
+             ;; Initial share of the cores; rebalanced live over IPC
+             "potatoclient.decode-threads" (str (budget/initial-threads stream-type))}
+      (config/get-debug-flag) (assoc "potatoclient.debug" "true")
+      combined-layout (assoc "potatoclient.composite.layout" (name combined-layout))
+      ;; IPC socket of the device the stream is started for
+      ipc-channel (assoc "potatoclient.ipc.channel" ipc-channel)
+      ;; Pace playback by frame timestamps within this budget
+      jitter (assoc "potatoclient.jitter.min-ms" (str (:min-ms jitter))
+                    "potatoclient.jitter.max-ms" (str (:max-ms jitter)))))) 
+ (m/=> stream-properties [:=> [:cat :keyword] [:map-of :string :string]])
+
+(defn- stream-args
+  "VideoStreamManager arguments: stream id, URL, host, parent PID and,
+   for the combined process, the heat URL to composite into its window"
   [stream-type host parent-pid]
-  (let [java-cmd (config/get-java-command)
-        classpath (config/get-classpath)
-        main-class (config/get-main-class)
-        stream-url (config/build-stream-url stream-type)]
-    (cond-> [java-cmd
-             "-cp" classpath
-             "-Djava.awt.headless=false"
-             "-Dgstreamer.plugin.path=/usr/lib/x86_64-linux-gnu/gstreamer-1.0"
-             "--enable-native-access=ALL-UNNAMED"]
-      (config/get-debug-flag) (concat ["-Dpotatoclient.debug=true"])
-      true (concat [main-class
-                    (name stream-type)
-                    stream-url
-                    host
-                    (str parent-pid)])))) 
- (m/=> build-command [:=> [:cat :keyword :string :int] [:sequential :string]])
-
-;; ============================================================================
-;; Output Handling
-;; ============================================================================
+  (cond-> [(name stream-type)
+           (config/build-stream-url stream-type)
+           host
+           (str parent-pid)]
+    (state/stream-combined-layout stream-type) (conj (config/build-stream-url :heat)))) 
+ (m/=> stream-args [:=> [:cat :keyword :string :int] [:vector :string]])
 
-(defn- create-output-handler
-  "Create thread to handle process output"
-  [stream-type stream output-type]
-  (fn []
-    (try
-      (let [reader (BufferedReader. (InputStreamReader. stream))]
-        (loop []
-          (when-let [line (.readLine reader)]
-            (case output-type
-              :stdout (logging/log-debug {:id :stream/stdout
-                                          :stream stream-type
-                                          :output line})
-              :stderr (logging/log-warn {:id :stream/stderr
-                                         :stream stream-type
-                                         :error line}))
-            (recur))))
-      (catch Exception e
-        (when-not (instance? java.io.IOException e)
-          (logging/log-error {:id :stream/output-error
-                              :stream stream-type
-                              :error (.getMessage e)})))))) 
- (m/=> create-output-handler [:=> [:cat :keyword :any :keyword] fn?])
-
-(defn- start-output-handlers
-  "Start threads to handle process output"
-  [stream-type process]
-  (let [stdout-handler (create-output-handler stream-type
-                                              (.getInputStream process)
-                                              :stdout)
-        stderr-handler (create-output-handler stream-type
-                                              (.getErrorStream process)
-                                              :stderr)]
-    (.start (Thread. stdout-handler (str (name stream-type) "-stdout")))
-    (.start (Thread. stderr-handler (str (name stream-type) "-stderr"))))
-  nil) 
- (m/=> start-output-handlers [:=> [:cat :keyword :any] :nil])
+(defn- build-command
+  "Build command to run main-class with args, passing properties as
+   system properties"
+  [main-class args properties]
+  (let [{:keys [classpath cds-archive]} (config/get-stream-runtime)]
+    (concat [(config/get-java-command)
+             "-cp" classpath]
+            ;; Class data of the trimmed classpath, mapped instead of loaded
+            (when cds-archive
+              [(str "-XX:SharedArchiveFile=" cds-archive) "-Xshare:auto"])
+            ["-Djava.awt.headless=false"
+             "-Dgstreamer.plugin.path=/usr/lib/x86_64-linux-gnu/gstreamer-1.0"]
+            (for [[k v] properties]
+              (str "-D" k "=" v))
+            ["--enable-native-access=ALL-UNNAMED"
+             main-class]
+            args))) 
+ (m/=> build-command [:=> [:cat :string [:sequential :string] [:map-of :string :string]] [:sequential :string]])
 
 ;; ============================================================================
 ;; Process Lifecycle
 ;; ============================================================================
 
+(defn- start-subprocess
+  "Launch main-class with args and system properties in its own JVM"
+  [stream-type main-class args properties]
+  (let [command (build-command main-class args properties)
+        project-root (io/file (System/getProperty "user.dir"))
+        _ (logging/log-debug {:id :stream/command
+                              :stream stream-type
+                              :command (str/join " " command)
+                              :working-dir (.getAbsolutePath project-root)})
+        pb (doto (ProcessBuilder. ^java.util.List command)
+             (.directory project-root))
+        process (.start pb)]
+    ;; Logged from the shared output reader, no threads of its own
+    (output/register! stream-type process)
+    process)) 
+ (m/=> start-subprocess [:=> [:cat :keyword :string [:sequential :string] [:map-of :string :string]] :any])
+
+(defn- start-in-process
+  "Run VideoStreamManager on a thread of this JVM. The returned Process
+   shares this JVM's PID and writes to its stdout/stderr."
+  [stream-type host parent-pid]
+  (InProcessStream/start (into-array String (stream-args stream-type host parent-pid))
+                         (stream-properties stream-type))) 
+ (m/=> start-in-process [:=> [:cat :keyword :string :int] :any])
+
 (defn spawn-process
-  "Spawn a VideoStreamManager process"
+  "Spawn a VideoStreamManager process, or start one in this JVM in
+   :in-process stream mode"
   [stream-type host parent-pid]
   (try
     (logging/log-info {:id :stream/spawning-process
                        :stream stream-type
-                       :host host})
-
-    (let [command (build-command stream-type host parent-pid)
-          project-root (io/file (System/getProperty "user.dir"))
-          _ (logging/log-debug {:id :stream/command
-                                :stream stream-type
-                                :command (str/join " " command)
-                                :working-dir (.getAbsolutePath project-root)})
-          pb (doto (ProcessBuilder. ^java.util.List command)
-               (.directory project-root))
-          process (.start pb)
-          pid (.pid (.toHandle process))]
-
-      ;; Start output handlers
-      (start-output-handlers stream-type process)
+                       :host host
+                       :mode (config/get-stream-mode)})
+
+    (let [process (if (= :in-process (config/get-stream-mode))
+                    (start-in-process stream-type host parent-pid)
+                    (start-subprocess stream-type
+                                      (config/get-main-class)
+                                      (stream-args stream-type host parent-pid)
+                                      (stream-properties stream-type)))
+          pid (.pid ^Process process)]
 
       ;; Store process info in app state
       (state/set-stream-status! stream-type :starting pid)
@@ -121,6 +135,28 @@
       nil))) 
  (m/=> spawn-process [:=> [:cat :keyword :string :int] [:maybe :any]])
 
+(defn spawn-standby
+  "Spawn a standby stream process that warms up and waits for an activate
+  command on the IPC socket of channel. Unlike spawn-process it leaves the
+  stream state alone; the coordinator owns standbys until it binds one."
+  [stream-type parent-pid channel]
+  (try
+    (let [process (start-subprocess stream-type
+                                    (config/get-standby-main-class)
+                                    [(name stream-type) (str parent-pid)]
+                                    (assoc (stream-properties stream-type)
+                                           "potatoclient.ipc.channel" channel))]
+      (logging/log-info {:id :stream/standby-spawned
+                         :stream stream-type
+                         :pid (.pid ^Process process)})
+      process)
+    (catch Exception e
+      (logging/log-warn {:id :stream/standby-spawn-failed
+                         :stream stream-type
+                         :error (.getMessage e)})
+      nil))) 
+ (m/=> spawn-standby [:=> [:cat :keyword :int :string] [:maybe :any]])
+
 (defn process-alive?
   "Check if process is alive"
   [process]
@@ -128,6 +128,12 @@
   (get-in (app-state/get-stream-process stream-type) [:ipc-server])) 
  (m/=> get-stream-ipc [:=> [:cat :keyword] [:maybe :any]])
 
+(defn stream-ipc-channel
+  "IPC channel of the process in a stream's slot, nil when none"
+  [stream-type]
+  (get (app-state/get-stream-process stream-type) :ipc-channel)) 
+ (m/=> stream-ipc-channel [:=> [:cat :keyword] [:maybe :string]])
+
 (defn set-stream-process!
   "Store Java Process object for a stream"
   [stream-type process]
@@ -170,6 +176,58 @@
   (get-in (app-state/get-stream-process stream-type) [:window])) 
  (m/=> get-stream-window-info [:=> [:cat :keyword] [:maybe :map]])
 
+;; ============================================================================
+;; Stream Visibility
+;; ============================================================================
+
+(defn set-stream-visible!
+  "Record whether a stream's window is visible (not minimized)"
+  [stream-type visible?]
+  (update-stream-process-info! stream-type {:visible? visible?})
+  nil) 
+ (m/=> set-stream-visible! [:=> [:cat :keyword :boolean] :nil])
+
+(defn stream-visible?
+  "Check if a stream's window is visible; streams start out visible"
+  [stream-type]
+  (get (app-state/get-stream-process stream-type) :visible? true)) 
+ (m/=> stream-visible? [:=> [:cat :keyword] :boolean])
+
+;; ============================================================================
+;; Combined Mode
+;; ============================================================================
+
+(defn set-stream-combined!
+  "Record the layout a stream process composites the heat stream with,
+  or nil for a plain single-stream process"
+  [stream-type layout]
+  (update-stream-process-info! stream-type {:combined-layout layout})
+  nil) 
+ (m/=> set-stream-combined! [:=> [:cat :keyword [:maybe :keyword]] :nil])
+
+(defn stream-combined-layout
+  "Layout of a combined stream process, nil when not combined"
+  [stream-type]
+  (get (app-state/get-stream-process stream-type) :combined-layout)) 
+ (m/=> stream-combined-layout [:=> [:cat :keyword] [:maybe :keyword]])
+
+;; ============================================================================
+;; Stream Metrics
+;; ============================================================================
+
+(defn set-stream-metric!
+  "Store the latest aggregated metric reported by a stream process"
+  [stream-type metric-name value]
+  (swap! app-state/app-state assoc-in [:streams stream-type :metrics metric-name] value)
+  nil) 
+ (m/=> set-stream-metric! [:=> [:cat :keyword :string :any] :nil])
+
+(defn get-stream-metric
+  "Get the latest aggregated metric reported by a stream process"
+  [stream-type metric-name]
+  (get-in @app-state/app-state [:streams stream-type :metrics metric-name])) 
+ (m/=> get-stream-metric [:=> [:cat :keyword :string] :any])
+
 ;; ============================================================================
 ;; State Reset
 ;; ============================================================================
@@ -179,10 +237,31 @@
   [stream-type]
   (let [process-key (config/get-process-key stream-type)]
     (app-state/update-process-status! process-key nil :stopped)
-    (app-state/remove-stream-process! stream-type))
+    (app-state/remove-stream-process! stream-type)
+    (swap! app-state/app-state update-in [:streams stream-type] dissoc :metrics))
   nil) 
  (m/=> reset-stream-state! [:=> [:cat :keyword] :nil])
 
+(defn take-stream-state!
+  "Empty a stream's slot, returning what was in it for put-stream-state!.
+  The process and its IPC server are left running. Metrics are dropped;
+  the process reports fresh ones once back."
+  [stream-type]
+  (let [process-key (config/get-process-key stream-type)
+        taken {:process (app-state/get-process-state process-key)
+               :info (app-state/get-stream-process stream-type)}]
+    (reset-stream-state! stream-type)
+    taken)) 
+ (m/=> take-stream-state! [:=> [:cat :keyword] :map])
+
+(defn put-stream-state!
+  "Fill a stream's slot with what take-stream-state! returned"
+  [stream-type {:keys [process info]}]
+  (set-stream-process-info! stream-type info)
+  (set-stream-status! stream-type (:status process) (:pid process))
+  nil) 
+ (m/=> put-stream-state! [:=> [:cat :keyword :map] :nil])
+
 (defn reset-all-states!
   "Reset all stream states"
   []
@@ -0,0 +1,284 @@
+(ns potatoclient.streams.watchdog
+  "Stall watchdog for running streams.
+
+  Each stream process sends a heartbeat every second with its frame and
+  byte counters and the age of the last frame and the last data. A stream
+  is watched once frames flow. When data stops, frames stop or the
+  heartbeats stop, the watchdog escalates step by step until frames flow
+  again. It reconnects the WebSocket, then rebuilds the pipeline, then
+  respawns the process. A stall with no data starts at the reconnect, one
+  with data but no frames at the pipeline, and a silent process at the
+  respawn. The time from detection to recovery is kept per stream."
+  (:require
+    [malli.core :as m]
+    [potatoclient.logging :as logging]
+    [potatoclient.streams.config :as config]
+    [potatoclient.streams.coordinator :as coordinator]
+    [potatoclient.streams.state :as state]))
+
+;; ============================================================================
+;; Constants
+;; ============================================================================
+
+(def ^:private check-interval-ms
+  "Pause between two checks of all streams"
+  500)
+
+(def ^:private history-size
+  "Stall episodes kept per stream"
+  20)
+
+(def ^:private recovery-steps
+  "Recovery actions, least disruptive first"
+  [:reconnect :restart-pipeline :respawn])
+
+(def ^:private first-step
+  "Index of the first recovery step for each stall cause"
+  {:no-data 0
+   :no-frames 1
+   :no-heartbeat 2})
+
+(def ^:private heartbeat-metric
+  "Heartbeat metric of a stream process. Counters are since start, ages
+  -1 before the first frame or data."
+  [:map
+   [:frames-rendered {:optional true} :int]
+   [:bytes-received {:optional true} :int]
+   [:last-frame-age-ms {:optional true} :int]
+   [:last-data-age-ms {:optional true} :int]
+   [:paused {:optional true} :boolean]])
+
+;; ============================================================================
+;; State
+;; ============================================================================
+
+(defonce ^:private watched
+  ;; Per stream: last heartbeat seen and when, whether frames flowed since
+  ;; the last (re)start or resume, and the stall being recovered
+  (atom {}))
+
+(defonce ^:private history
+  ;; Per stream: the last stall episodes, oldest first
+  (atom {}))
+
+(defonce ^:private watchdog-thread (atom nil))
+
+;; ============================================================================
+;; Stall Detection
+;; ============================================================================
+
+(defn- stall-cause
+  "Why a stream with this heartbeat looks stalled, or nil"
+  [heartbeat heartbeat-age-ms {:keys [stall-ms heartbeat-timeout-ms]}]
+  (cond
+    (> heartbeat-age-ms heartbeat-timeout-ms) :no-heartbeat
+    (> (:last-data-age-ms heartbeat -1) stall-ms) :no-data
+    (> (:last-frame-age-ms heartbeat -1) stall-ms) :no-frames)) 
+ (m/=> stall-cause [:=> [:cat heartbeat-metric :int :map] [:maybe :keyword]])
+
+(defn- rendering?
+  "Check if the heartbeat shows a recent frame"
+  [heartbeat {:keys [stall-ms]}]
+  (<= 0 (:last-frame-age-ms heartbeat -1) stall-ms)) 
+ (m/=> rendering? [:=> [:cat heartbeat-metric :map] :boolean])
+
+;; ============================================================================
+;; Recovery
+;; ============================================================================
+
+(defn- record-episode!
+  "Add a finished stall episode to the stream's history"
+  [stream-type episode]
+  (swap! history update stream-type
+         (fn [episodes]
+           (let [episodes (conj (or episodes []) episode)]
+             (if (> (count episodes) history-size)
+               (subvec episodes (- (count episodes) history-size))
+               episodes))))
+  nil) 
+ (m/=> record-episode! [:=> [:cat :keyword :map] :nil])
+
+(defn- run-step!
+  "Run one recovery step. A respawn stops and starts the stream, so it
+  runs off the watchdog thread."
+  [stream-type step]
+  (logging/log-warn {:id :stream/stall-recovery-step
+                     :stream stream-type
+                     :step step})
+  (case step
+    :reconnect (coordinator/reconnect-stream stream-type)
+    :restart-pipeline (coordinator/restart-pipeline stream-type)
+    :respawn (future
+               (try
+                 (coordinator/respawn-stream stream-type)
+                 (catch Exception e
+                   (logging/log-error {:id :stream/stall-respawn-failed
+                                       :stream stream-type
+                                       :error (.getMessage e)})))))
+  nil) 
+ (m/=> run-step! [:=> [:cat :keyword :keyword] :nil])
+
+(defn- escalate
+  "Stall of a stream after this check: starts the recovery of a new stall,
+  or takes the next step once the current one had its time. Returns nil
+  when the last step did not help."
+  [stream-type stall cause now {:keys [step-ms respawn-ms]}]
+  (cond
+    (nil? stall)
+    (let [step (first-step cause)]
+      (logging/log-warn {:id :stream/stall-detected
+                         :stream stream-type
+                         :cause cause
+                         :frames-rendered (:frames-rendered (state/get-stream-metric stream-type "heartbeat"))})
+      (run-step! stream-type (recovery-steps step))
+      {:cause cause :since now :step step :acted-at now})
+
+    (< (- now (:acted-at stall))
+       (if (= :respawn (recovery-steps (:step stall))) respawn-ms step-ms))
+    stall
+
+    (= (:step stall) (dec (count recovery-steps)))
+    (do
+      (logging/log-error {:id :stream/stall-unrecovered
+                          :stream stream-type
+                          :cause (:cause stall)
+                          :ms (- now (:since stall))})
+      (record-episode! stream-type {:cause (:cause stall)
+                                    :step :respawn
+                                    :recovered? false
+                                    :ms (- now (:since stall))
+                                    :at (:since stall)})
+      nil)
+
+    :else
+    (let [step (max (inc (:step stall)) (first-step cause))]
+      (run-step! stream-type (recovery-steps step))
+      (assoc stall :step step :acted-at now)))) 
+ (m/=> escalate [:=> [:cat :keyword [:maybe :map] :keyword :int :map] [:maybe :map]])
+
+(defn- recovered
+  "Close a stall episode once frames flow again"
+  [stream-type stall now]
+  (let [ms (- now (:since stall))
+        step (recovery-steps (:step stall))]
+    (logging/log-info {:id :stream/stall-recovered
+                       :stream stream-type
+                       :cause (:cause stall)
+                       :step step
+                       :ms ms})
+    (record-episode! stream-type {:cause (:cause stall)
+                                  :step step
+                                  :recovered? true
+                                  :ms ms
+                                  :at (:since stall)}))
+  nil) 
+ (m/=> recovered [:=> [:cat :keyword :map :int] :nil])
+
+;; ============================================================================
+;; Checks
+;; ============================================================================
+
+(defn- check-stream
+  "Watch entry of a running stream after looking at its latest heartbeat"
+  [stream-type entry now limits]
+  (let [heartbeat (state/get-stream-metric stream-type "heartbeat")
+        seen-at (if (identical? heartbeat (:heartbeat entry))
+                  (:seen-at entry now)
+                  now)
+        {:keys [armed? stall]} entry
+        entry (assoc entry :heartbeat heartbeat :seen-at seen-at)]
+    (cond
+      ;; Paused streams render nothing on purpose; watch again once frames flow
+      (:paused heartbeat)
+      (assoc entry :armed? false :stall nil)
+
+      (and heartbeat (rendering? heartbeat limits))
+      (do
+        (when stall
+          (recovered stream-type stall now))
+        (assoc entry :armed? true :stall nil))
+
+      ;; A respawned process may not have reported or rendered yet
+      stall
+      (let [cause (or (and heartbeat (stall-cause heartbeat (- now seen-at) limits))
+                      (:cause stall))
+            stall (escalate stream-type stall cause now limits)]
+        (assoc entry :stall stall :armed? (some? stall)))
+
+      :else
+      (if-let [cause (and armed? heartbeat (stall-cause heartbeat (- now seen-at) limits))]
+        (assoc entry :stall (escalate stream-type nil cause now limits))
+        entry)))) 
+ (m/=> check-stream [:=> [:cat :keyword [:maybe :map] :int :map] :map])
+
+(defn- check-streams!
+  "Check every stream once. A stream that is not running is forgotten,
+  unless it is being respawned."
+  [limits]
+  (let [now (System/currentTimeMillis)]
+    (doseq [stream-type config/stream-types]
+      (let [entry (get @watched stream-type)
+            stall (:stall entry)]
+        (cond
+          (state/stream-running? stream-type)
+          (swap! watched assoc stream-type (check-stream stream-type entry now limits))
+
+          (and stall (= :respawn (recovery-steps (:step stall))))
+          (when-not (escalate stream-type stall (:cause stall) now limits)
+            (swap! watched dissoc stream-type))
+
+          :else
+          (swap! watched dissoc stream-type)))))
+  nil) 
+ (m/=> check-streams! [:=> [:cat :map] :nil])
+
+(defn- watch-loop
+  "Check all streams with the given limits until stopped"
+  [limits]
+  (while (= (Thread/currentThread) @watchdog-thread)
+    (try
+      (check-streams! limits)
+      (Thread/sleep (long check-interval-ms))
+      ;; stop! clears watchdog-thread before interrupting
+      (catch InterruptedException _)
+      (catch Exception e
+        (logging/log-error {:id :stream/watchdog-error
+                            :error (.getMessage e)})
+        (Thread/sleep (long check-interval-ms)))))
+  nil) 
+ (m/=> watch-loop [:=> [:cat :map] :nil])
+
+;; ============================================================================
+;; Public API
+;; ============================================================================
+
+(defn start!
+  "Start watching the running streams. The settings are read once here;
+  a disabled watchdog starts no thread."
+  []
+  (let [limits (config/get-stall-watchdog)]
+    (when (and (:enabled limits) (not @watchdog-thread))
+      (let [thread (Thread. ^Runnable #(watch-loop limits) "stream-watchdog")]
+        (.setDaemon thread true)
+        (reset! watchdog-thread thread)
+        (.start thread))))
+  nil) 
+ (m/=> start! [:=> [:cat] :nil])
+
+(defn stop!
+  "Stop the watchdog"
+  []
+  (when-let [^Thread thread @watchdog-thread]
+    (reset! watchdog-thread nil)
+    (.interrupt thread))
+  (reset! watched {})
+  nil) 
+ (m/=> stop! [:=> [:cat] :nil])
+
+(defn recovery-history
+  "Stall episodes of a stream, oldest first. Each has the :cause, the last
+  recovery :step, :recovered?, :ms from detection to frames flowing (or to
+  giving up) and :at, the detection time."
+  [stream-type]
+  (get @history stream-type [])) 
+ (m/=> recovery-history [:=> [:cat :keyword] [:sequential :map]])
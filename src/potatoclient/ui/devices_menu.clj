@@ -0,0 +1,94 @@
+(ns potatoclient.ui.devices-menu
+  "Devices menu: connect further devices and switch between them."
+  (:require
+    [malli.core :as m]
+    [potatoclient.i18n :as i18n]
+    [potatoclient.logging :as logging]
+    [potatoclient.state.server.core :as state-server]
+    [potatoclient.streams.core :as streams]
+    [potatoclient.theme :as theme]
+    [potatoclient.ui.status-bar.messages :as status-msg]
+    [potatoclient.url-parser :as url-parser]
+    [seesaw.core :as seesaw])
+  (:import (javax.swing BorderFactory JFrame JMenu JMenuItem JSeparator)
+           (javax.swing.event MenuListener)))
+
+(defn- switch-device!
+  "Make a device the active one. The streams move to it; those of the
+   device left keep running in the background, unless it was removed."
+  ([domain]
+   (switch-device! domain nil))
+  ([domain removed]
+   (when (state-server/activate-device! domain)
+     (status-msg/set-connected! domain)
+     (future
+       (try
+         (streams/switch-device! domain)
+         (when removed
+           (streams/forget-device! removed))
+         (catch Exception e
+           (logging/log-error {:msg "Failed to move streams to the active device"
+                               :domain domain
+                               :error (.getMessage e)})))))
+   nil)) 
+ (m/=> switch-device! [:function [:=> [:cat :string] :nil] [:=> [:cat :string [:maybe :string]] :nil]])
+
+(defn- add-device!
+  "Ask for a device, connect it and switch to it"
+  [parent]
+  (when-let [input (seesaw/input parent (i18n/tr :devices-add-prompt)
+                                 :title (i18n/tr :menu-devices-add))]
+    (let [{:keys [valid domain error]} (url-parser/validate-url-input input)]
+      (if valid
+        (do
+          (state-server/add-device! {:domain domain})
+          (switch-device! domain))
+        (seesaw/alert parent (i18n/tr error)))))
+  nil) 
+ (m/=> add-device! [:=> [:cat [:fn {:error/message "must be a JFrame"} (partial instance? JFrame)]] :nil])
+
+(defn- device-item
+  "Menu item of a connected device, selected when it is active"
+  [{:keys [domain active? connected?]}]
+  (let [item (seesaw/radio-menu-item
+               :text (if connected?
+                       domain
+                       (str domain " (" (i18n/tr :devices-connecting) ")"))
+               :selected? active?
+               :listen [:action (fn [_] (when-not active? (switch-device! domain)))])]
+    (.setBorder item (BorderFactory/createEmptyBorder 5 10 5 10))
+    item)) 
+ (m/=> device-item [:=> [:cat :map] [:fn (partial instance? JMenuItem)]])
+
+(defn- fill-menu!
+  "Rebuild the menu from the connected devices"
+  [^JMenu menu parent]
+  (let [devices (state-server/devices)
+        active (some #(when (:active? %) (:domain %)) devices)]
+    (.removeAll menu)
+    (doseq [device devices]
+      (.add menu ^JMenuItem (device-item device)))
+    (.add menu (JSeparator.))
+    (.add menu ^JMenuItem (seesaw/menu-item :text (i18n/tr :menu-devices-add)
+                                            :listen [:action (fn [_] (add-device! parent))]))
+    (.add menu ^JMenuItem (seesaw/menu-item :text (i18n/tr :menu-devices-remove)
+                                            :enabled? (and (some? active) (> (count devices) 1))
+                                            :listen [:action (fn [_]
+                                                               (when-let [next-domain (state-server/remove-device! active)]
+                                                                 (switch-device! next-domain active)))])))
+  nil) 
+ (m/=> fill-menu! [:=> [:cat [:fn (partial instance? JMenu)] any?] :nil])
+
+(defn create-devices-menu
+  "Create the Devices menu. It lists the connected devices, the active one
+   selected, each time it opens."
+  [parent]
+  (let [menu (seesaw/menu :text (i18n/tr :menu-devices)
+                          :icon (theme/key->icon :actions-group-menu))]
+    (.addMenuListener menu
+                      (reify MenuListener
+                        (menuSelected [_ _] (fill-menu! menu parent))
+                        (menuDeselected [_ _])
+                        (menuCanceled [_ _])))
+    menu)) 
+ (m/=> create-devices-menu [:=> [:cat [:fn {:error/message "must be a JFrame"} (partial instance? JFrame)]] [:fn (partial instance? JMenu)]])
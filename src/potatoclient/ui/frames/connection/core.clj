@@ -6,6 +6,7 @@
     [potatoclient.config :as config]
     [potatoclient.i18n :as i18n]
     [potatoclient.logging :as logging]
+    [potatoclient.proto.warmup :as warmup]
     [potatoclient.state :as state]
     [potatoclient.state.server.core :as state-server]
     [potatoclient.ui.menu-bar :as menu-bar]
@@ -446,6 +447,9 @@
     ; Store dialog reference
     (reset! (:dialog timers) dialog)
 
+    ; Warm the command and state paths up while the server is pinged
+    (warmup/start!)
+
     ; Create and start timers
     (reset! (:ping-timer timers)
             (timer/timer (fn [_] (do-ping!))
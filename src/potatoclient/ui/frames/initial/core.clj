@@ -8,6 +8,7 @@
     [potatoclient.i18n :as i18n]
     [potatoclient.logging :as logging]
     [potatoclient.state :as state]
+    [potatoclient.state.server.probe :as probe]
     [potatoclient.ui.menu-bar :as menu-bar]
     [potatoclient.url-parser :as url-parser]
     [seesaw.action :as action]
@@ -23,6 +24,48 @@
   (callback :reload)) 
  (m/=> reload-dialog! [:=> [:cat [:fn {:error/message "must be a JFrame"} (partial instance? JFrame)] :ifn] :nil])
 
+(defn- probe-text
+  "Line of the recent servers list: the url and how it answered"
+  [url result]
+  (str url "  —  "
+       (cond
+         (nil? result) (i18n/tr :probe-probing)
+         (:reachable? result) (i18n/tr :probe-latency [(:total-ms result) (:tcp-ms result)])
+         :else (i18n/tr :probe-unreachable)))) 
+ (m/=> probe-text [:=> [:cat :string [:maybe :map]] :string])
+
+(defn- create-servers-list
+  "List of the recent servers, ranked by latency as probes answer.
+   Picking one puts it into the url box."
+  [recent-urls url-combobox]
+  (let [results (atom {})
+        refreshing? (atom false)
+        ranked #(mapv first (probe/rank (mapv (juxt identity @results) recent-urls)))
+        servers-list (seesaw/listbox
+                       :id :recent-servers
+                       :model (ranked)
+                       :renderer (fn [renderer {:keys [value]}]
+                                   (seesaw/config! renderer :text (probe-text value (get @results value)))))]
+    (seesaw/listen servers-list :selection
+                   (fn [_]
+                     (when-let [url (and (not @refreshing?) (seesaw/selection servers-list))]
+                       (seesaw/value! url-combobox url))))
+    (probe/probe-urls! recent-urls
+                       (fn [url result]
+                         (swap! results assoc url result)
+                         (seesaw/invoke-later
+                           ;; Keep the pick across reordering without copying it to the url box again
+                           (let [selected (seesaw/selection servers-list)]
+                             (reset! refreshing? true)
+                             (try
+                               (seesaw/config! servers-list :model (ranked))
+                               (when selected
+                                 (seesaw/selection! servers-list selected))
+                               (finally
+                                 (reset! refreshing? false)))))))
+    servers-list)) 
+ (m/=> create-servers-list [:=> [:cat [:vector :string] any?] any?])
+
 (defn- create-content-panel
   "Create the main content panel for the initial frame."
   [saved-url]
@@ -41,9 +84,13 @@
       (seesaw/value! url-combobox saved-url))
     (mig/mig-panel
       :constraints ["wrap 1, insets 20, gap 10" "[grow, fill]" "[]"]
-      :items [[url-label ""]
-              [url-combobox "growx, h 40!"]
-              [(seesaw/separator) "growx, gaptop 10, gapbottom 10"]]))) 
+      :items (cond-> [[url-label ""]
+                      [url-combobox "growx, h 40!"]]
+               (seq recent-urls)
+               (into [[(seesaw/label :text (i18n/tr :startup-recent-servers) :font {:size 14}) "gaptop 10"]
+                      [(seesaw/scrollable (create-servers-list recent-urls url-combobox)) "growx, h 150!"]])
+               :always
+               (conj [(seesaw/separator) "growx, gaptop 10, gapbottom 10"]))))) 
  (m/=> create-content-panel [:=> [:cat [:maybe string?]] [:fn {:error/message "must be a Swing panel"} (partial instance? JPanel)]])
 
 (defn show
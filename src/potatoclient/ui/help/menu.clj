@@ -5,6 +5,7 @@
             [potatoclient.i18n :as i18n]
             [potatoclient.theme :as theme]
             [potatoclient.ui.help.about :as about]
+            [potatoclient.ui.help.startup-timeline :as startup-timeline]
             [potatoclient.ui.log-viewer :as log-viewer]
             [seesaw.action :as action]
             [seesaw.core :as seesaw])
@@ -86,6 +87,13 @@
                                    (fn [_] (log-viewer/show-log-viewer))))
       (add-separator menu))
 
+    ;; Startup timeline of this run (always included)
+    (.add menu (create-menu-item :menu-help-startup-timeline
+                                 :actions-group-menu
+                                 (fn [_] (when parent
+                                           (startup-timeline/show-startup-timeline-dialog parent)))))
+    (add-separator menu)
+
     ;; About dialog (always included)
     (.add menu (create-menu-item :menu-help-about
                                  (get-main-app-icon)
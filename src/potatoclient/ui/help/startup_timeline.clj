@@ -0,0 +1,76 @@
+(ns potatoclient.ui.help.startup-timeline
+  "Startup timeline dialog."
+  (:require
+            [malli.core :as m]
+            [potatoclient.i18n :as i18n]
+            [potatoclient.startup :as startup]
+            [potatoclient.theme :as theme]
+            [seesaw.core :as seesaw]
+            [seesaw.table :as table])
+  (:import (java.awt BorderLayout Dimension)
+           (javax.swing BorderFactory JDialog JFrame JPanel JTable)))
+
+(defn- phase-name
+  "Readable name of a phase; namespace loads keep their namespace"
+  [phase]
+  (subs (str phase) 1)) 
+ (m/=> phase-name [:=> [:cat :keyword] :string])
+
+(defn- create-timeline-table
+  "Create the table of startup phases, earliest first."
+  [entries]
+  (seesaw/table
+    :model (table/table-model
+             :columns [{:key :phase :text (i18n/tr :startup-timeline-column-phase)}
+                       {:key :start-ms :text (i18n/tr :startup-timeline-column-start)}
+                       {:key :ms :text (i18n/tr :startup-timeline-column-duration)}
+                       {:key :thread :text (i18n/tr :startup-timeline-column-thread)}]
+             :rows (mapv (fn [entry]
+                           (cond-> (update entry :phase phase-name)
+                             (not (:ok? entry)) (update :phase str " (" (i18n/tr :startup-timeline-failed) ")")))
+                         entries))
+    :show-grid? true)) 
+ (m/=> create-timeline-table [:=> [:cat [:sequential :map]] [:fn (partial instance? JTable)]])
+
+(defn- create-summary-label
+  "Label with the time from JVM start to the end of the last phase."
+  [entries]
+  (let [ready-ms (reduce max 0 (map #(+ (:start-ms %) (:ms %)) entries))
+        label (seesaw/label :text (str (i18n/tr :startup-timeline-total) ": " ready-ms " ms"))]
+    (.setBorder label (BorderFactory/createEmptyBorder 10 10 10 10))
+    label)) 
+ (m/=> create-summary-label [:=> [:cat [:sequential :map]] :any])
+
+(defn- create-button-panel
+  "Create the button panel with OK button."
+  [dialog]
+  (let [panel (seesaw/flow-panel :align :center
+                                 :hgap 10
+                                 :vgap 10)]
+    (.add panel (seesaw/button :text (i18n/tr :ok)
+                               :icon (theme/key->icon :check-icon)
+                               :listen [:action (fn [_] (seesaw/dispose! dialog))]))
+    panel)) 
+ (m/=> create-button-panel [:=> [:cat [:fn (partial instance? JDialog)]] [:fn (partial instance? JPanel)]])
+
+(defn show-startup-timeline-dialog
+  "Show the phases of this run's startup and how long each took."
+  [parent]
+  (let [dialog (JDialog. parent (i18n/tr :startup-timeline-title) true)
+        entries (startup/get-timeline)
+        scroll (seesaw/scrollable (create-timeline-table entries))]
+    (.setDefaultCloseOperation dialog JDialog/DISPOSE_ON_CLOSE)
+    (.setPreferredSize scroll (Dimension. 640 320))
+
+    (let [content-pane (.getContentPane dialog)]
+      (.setLayout content-pane (BorderLayout.))
+      (.add content-pane (create-summary-label entries) BorderLayout/NORTH)
+      (.add content-pane scroll BorderLayout/CENTER)
+      (.add content-pane (create-button-panel dialog) BorderLayout/SOUTH))
+
+    (.pack dialog)
+    (.setLocationRelativeTo dialog parent)
+
+    (seesaw/invoke-later
+      (.setVisible dialog true)))) 
+ (m/=> show-startup-timeline-dialog [:=> [:cat [:fn {:error/message "must be a JFrame"} (partial instance? JFrame)]] :nil])
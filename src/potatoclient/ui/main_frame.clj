@@ -11,6 +11,7 @@
             [potatoclient.runtime :as runtime]
             [potatoclient.state :as state]
             [potatoclient.theme :as theme]
+            [potatoclient.ui.devices-menu :as devices-menu]
             [potatoclient.ui.menu-bar :as menu-bar]
             [potatoclient.ui.status-bar.core :as status-bar-core]
             [potatoclient.ui.status-bar.messages :as status-bar]
@@ -141,7 +142,8 @@
                                 :include-stream-buttons? true
                                 :include-help? true
                                 :include-theme? true
-                                :include-language? true}))
+                                :include-language? true
+                                :menus [(devices-menu/create-devices-menu frame)]}))
 
     (add-window-close-handler! frame)
 
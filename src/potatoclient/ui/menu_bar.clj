@@ -167,10 +167,11 @@
   - :include-stream-buttons? - Whether to include stream toggle buttons (default: false)
   - :include-help? - Whether to include the Help menu (default: true)
   - :include-theme? - Whether to include the Theme menu (default: true)
-  - :include-language? - Whether to include the Language menu (default: true)"
+  - :include-language? - Whether to include the Language menu (default: true)
+  - :menus - Further menus, placed before the Help menu (optional)"
   [opts]
   (let [{:keys [reload-fn parent include-stream-buttons? include-help?
-                include-theme? include-language?]
+                include-theme? include-language? menus]
          :or {include-help? true
               include-theme? true
               include-language? true
@@ -178,6 +179,7 @@
         items (cond-> []
                 include-theme? (conj (create-theme-menu reload-fn))
                 include-language? (conj (create-language-menu reload-fn))
+                (seq menus) (into menus)
                 (and include-help? parent) (conj (help-menu/create-help-menu {:parent parent
                                                                                 :include-logs? true})))
         menubar (if include-stream-buttons?
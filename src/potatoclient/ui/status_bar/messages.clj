@@ -7,7 +7,9 @@
     [potatoclient.runtime :as runtime]
     [potatoclient.state :as state]
     [potatoclient.ui.status-bar.helpers :as helpers]
-    [seesaw.invoke :as invoke]))
+    [seesaw.invoke :as invoke])
+  (:import (java.time Instant ZoneId)
+           (java.time.format DateTimeFormatter)))
 
 ;; ============================================================================
 ;; Core Status Updates
@@ -134,6 +136,20 @@
   (set-info! (i18n/tr :status-ready))) 
  (m/=> set-ready! [:=> [:cat] :map])
 
+(defn set-stale-state!
+  "Set status for a last known state shown until live state arrives."
+  [received-at]
+  (let [time (.format (DateTimeFormatter/ofPattern "yyyy-MM-dd HH:mm:ss")
+                      (.atZone (Instant/ofEpochMilli received-at) (ZoneId/systemDefault)))]
+    (set-warning! (i18n/tr :status-stale-state [time])))) 
+ (m/=> set-stale-state! [:=> [:cat pos-int?] :map])
+
+(defn set-live-state!
+  "Set status for live state replacing a stale one."
+  []
+  (set-info! (i18n/tr :status-live-state))) 
+ (m/=> set-live-state! [:=> [:cat] :map])
+
 ;; ============================================================================
 ;; Error Handling
 ;; ============================================================================
@@ -4,15 +4,16 @@
     [malli.core :as m]
     [malli.error :as me]
     [potatoclient.logging :as logging]
+    [potatoclient.malli.registry :as registry]
     [potatoclient.ui.status-bar.messages :as msg]))
 
 (defn- resolve-schema
   "Resolve a spec to a Malli schema.
-   If spec is a keyword, looks it up in the registry.
+   If spec is a keyword, looks it up in the registry (compiled once).
    Otherwise returns the spec as-is (assuming it's already a schema)."
   [spec]
   (if (keyword? spec)
-    (m/schema spec)
+    (registry/cached-schema spec)
     spec)) 
  (m/=> resolve-schema [:=> [:cat :any] :any])
 
@@ -72,13 +72,36 @@
   "Collection of URL history entries"
   [:sequential url-history-entry])
 
+(def jitter-buffer
+  "Latency budget of the timestamp-paced video playout"
+  [:map
+   [:min-ms nat-int?]
+   [:max-ms pos-int?]])
+
+(def stream-mode
+  "Whether video streams run in their own JVM or in the main one"
+  [:enum :subprocess :in-process])
+
+(def stall-watchdog
+  "Thresholds of the stream stall watchdog, in ms"
+  [:map
+   [:enabled {:optional true} :boolean]
+   [:stall-ms {:optional true} pos-int?]
+   [:heartbeat-timeout-ms {:optional true} pos-int?]
+   [:step-ms {:optional true} pos-int?]
+   [:respawn-ms {:optional true} pos-int?]])
+
 (def config
   "Application configuration"
   [:map
    [:theme {:optional true} theme-key]
    [:domain {:optional true} domain]
    [:locale {:optional true} locale]
-   [:url-history {:optional true} url-history]])
+   [:url-history {:optional true} url-history]
+   [:jitter-buffer {:optional true} jitter-buffer]
+   [:stream-mode {:optional true} stream-mode]
+   [:warm-standby {:optional true} :boolean]
+   [:stall-watchdog {:optional true} stall-watchdog]])
 
 ;; -----------------------------------------------------------------------------
 ;; UI Component Schemas
@@ -203,6 +226,9 @@
   (registry/register-spec! ::config-key config-key)
   (registry/register-spec! ::url-history-entry url-history-entry)
   (registry/register-spec! ::url-history url-history)
+  (registry/register-spec! ::jitter-buffer jitter-buffer)
+  (registry/register-spec! ::stream-mode stream-mode)
+  (registry/register-spec! ::stall-watchdog stall-watchdog)
   (registry/register-spec! ::config config)
 
   ;; UI Component schemas
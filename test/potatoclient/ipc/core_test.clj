@@ -87,6 +87,15 @@
       (is (not (ipc/server-running? server1)))
       (is (ipc/server-running? server2))))
 
+  (testing "Servers on other channels of a stream type keep running"
+    (let [server1 (ipc/create-and-register-server :heat :channel "heat-a")
+          server2 (ipc/create-and-register-server :heat :channel "heat-b")]
+      (is (not= (:socket-path server1) (:socket-path server2)))
+      (is (ipc/server-running? server1))
+      (is (ipc/server-running? server2))
+      (is (= server1 (ipc/get-server "heat-a")))
+      (is (= server2 (ipc/get-server "heat-b")))))
+
   (testing "Stop all servers"
     (ipc/create-and-register-server :heat)
     (ipc/create-and-register-server :day)
@@ -0,0 +1,29 @@
+(ns potatoclient.startup-test
+  "Tests for the startup phase runner."
+  (:require [clojure.test :refer [deftest is testing]]
+            [potatoclient.startup :as startup]))
+
+(deftest run-phases-test
+  (testing "a phase starts only after the phases it depends on"
+    (let [order (atom [])]
+      (startup/run-phases!
+        [{:phase ::first :run #(do (Thread/sleep 50) (swap! order conj ::first))}
+         {:phase ::second :after #{::first} :run #(swap! order conj ::second)}])
+      (is (= [::first ::second] @order))))
+
+  (testing "independent phases overlap"
+    (let [both-running (java.util.concurrent.CountDownLatch. 2)
+          met (atom [])
+          meet #(do (.countDown both-running)
+                    (swap! met conj (.await both-running 2 java.util.concurrent.TimeUnit/SECONDS)))]
+      (startup/run-phases! [{:phase ::left :run meet}
+                            {:phase ::right :run meet}])
+      (is (= [true true] @met))))
+
+  (testing "a failure is rethrown once all phases ended and is recorded"
+    (is (thrown-with-msg? Exception #"boom"
+          (startup/run-phases! [{:phase ::fails :run #(throw (Exception. "boom"))}
+                                {:phase ::fine :run (constantly nil)}])))
+    (let [phases (into {} (map (juxt :phase :ok?)) (startup/get-timeline))]
+      (is (false? (::fails phases)))
+      (is (true? (::fine phases))))))
@@ -0,0 +1,39 @@
+(ns potatoclient.state.server.core-test
+  "Tests for concurrently connected devices"
+  (:require [clojure.test :refer [deftest is testing]]
+            [potatoclient.cmd.core :as cmd]
+            [potatoclient.state :as state]
+            [potatoclient.state.server.core :as state-server]
+            [potatoclient.state.server.ingress :as ingress]))
+
+(deftest test-multiple-devices
+  (state/reset-state!)
+  (try
+    (state-server/initialize! {:domain "unit-a.local"})
+    ;; Keep the added device from opening its WebSocket
+    (with-redefs [ingress/start identity]
+      (state-server/add-device! {:domain "unit-b.local"}))
+
+    (testing "The first device stays active when another is added"
+      (is (= ["unit-a.local" "unit-b.local"] (mapv :domain (state-server/devices))))
+      (is (= "unit-a.local" (state/get-active-device)))
+      (is (= "unit-a.local" @cmd/active-device)))
+
+    (testing "Switching moves state and commands to the other device"
+      (is (true? (state-server/activate-device! "unit-b.local")))
+      (is (= "unit-b.local" (state/get-active-device)))
+      (is (= "unit-b.local" @cmd/active-device))
+      (is (= [false true] (mapv :active? (state-server/devices)))))
+
+    (testing "Unknown devices cannot be activated"
+      (is (false? (state-server/activate-device! "unknown.local")))
+      (is (= "unit-b.local" (state/get-active-device))))
+
+    (testing "Removing the active device activates the remaining one"
+      (is (= "unit-a.local" (state-server/remove-device! "unit-b.local")))
+      (is (= ["unit-a.local"] (mapv :domain (state-server/devices))))
+      (is (nil? (get @cmd/device-queues "unit-b.local"))))
+
+    (finally
+      (state-server/shutdown!)
+      (state/reset-state!))))
@@ -0,0 +1,26 @@
+(ns potatoclient.state.server.probe-test
+  "Tests for server latency probing"
+  (:require [clojure.test :refer [deftest is testing]]
+            [potatoclient.state.server.probe :as probe])
+  (:import [java.net InetAddress ServerSocket]))
+
+(deftest test-rank
+  (testing "Reachable servers by latency, then unreachable, then pending"
+    (let [reachable (fn [ms] {:domain "d" :reachable? true :total-ms ms :probed-at 1})
+          unreachable {:domain "d" :reachable? false :probed-at 1}]
+      (is (= ["fast" "slow" "down" "pending"]
+             (mapv first (probe/rank [["pending" nil]
+                                      ["down" unreachable]
+                                      ["slow" (reachable 80)]
+                                      ["fast" (reachable 20)]])))))))
+
+(deftest test-probe-domain
+  (testing "A server refusing the connection is reported unreachable"
+    ;; A port just released by an ephemeral server socket has no listener
+    (let [port (with-open [socket (ServerSocket. 0 1 (InetAddress/getByName "127.0.0.1"))]
+                 (.getLocalPort socket))
+          domain (str "127.0.0.1:" port)
+          result (probe/probe-domain domain)]
+      (is (= domain (:domain result)))
+      (is (false? (:reachable? result)))
+      (is (string? (:error result))))))
@@ -0,0 +1,41 @@
+(ns potatoclient.state.server.snapshot-test
+  "Tests for the last known state snapshot"
+  (:require [clojure.test :refer [deftest is testing]]
+            [potatoclient.config :as config]
+            [potatoclient.state.server.snapshot :as snapshot])
+  (:import [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
+
+(defn- temp-dir []
+  (.toFile (Files/createTempDirectory "snapshot-test" (make-array FileAttribute 0))))
+
+(deftest test-snapshot-round-trip
+  (with-redefs [config/get-config-dir (constantly (temp-dir))]
+    (testing "No snapshot before the first write"
+      (is (nil? (snapshot/read-snapshot "unit.local"))))
+
+    (testing "Only the latest recorded state is written"
+      (snapshot/record! "unit.local" (byte-array [1 2 3]) 1000)
+      (snapshot/record! "unit.local" (byte-array [4 5]) 2000)
+      (snapshot/flush!)
+      (let [{:keys [bytes received-at]} (snapshot/read-snapshot "unit.local")]
+        (is (= [4 5] (vec bytes)))
+        (is (= 2000 received-at))))
+
+    (testing "Snapshots are kept per domain"
+      (is (nil? (snapshot/read-snapshot "other.local:8443")))
+      (snapshot/record! "other.local:8443" (byte-array [7]) 3000)
+      (snapshot/flush!)
+      (is (= [7] (vec (:bytes (snapshot/read-snapshot "other.local:8443")))))
+      (is (= [4 5] (vec (:bytes (snapshot/read-snapshot "unit.local"))))))
+
+    (testing "States of several domains recorded before a write are all written"
+      (snapshot/record! "unit.local" (byte-array [8]) 4000)
+      (snapshot/record! "other.local:8443" (byte-array [9]) 5000)
+      (snapshot/flush!)
+      (is (= 4000 (:received-at (snapshot/read-snapshot "unit.local"))))
+      (is (= 5000 (:received-at (snapshot/read-snapshot "other.local:8443")))))
+
+    (testing "A snapshot in another format is ignored"
+      (spit (snapshot/snapshot-file "unit.local") "not a snapshot")
+      (is (nil? (snapshot/read-snapshot "unit.local"))))))
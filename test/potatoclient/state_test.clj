@@ -212,4 +212,32 @@
               (str "Watcher key should match pattern bindable-atom-watcherXXXX, got: " key-str))))
 
       ;; Clean up
-      (state/cleanup-seesaw-bindings!))))
\ No newline at end of file
+      (state/cleanup-seesaw-bindings!))))
+
+(deftest test-stale-server-state
+  (testing "A restored state is stale until live state replaces it"
+    (state/reset-state!)
+    (try
+      (is (true? (state/restore-server-state! {:system {:cpu-load 1.0}} 1000)))
+      (is (= 1000 (state/get-stale-state-at)))
+      (is (false? (state/restore-server-state! {:system {:cpu-load 2.0}} 2000))
+          "A state already shown is not replaced by a snapshot")
+      (is (true? (state/set-live-server-state! {:system {:cpu-load 3.0}}))
+          "Live state reports that it replaced a stale one")
+      (is (nil? (state/get-stale-state-at)))
+      (is (false? (state/set-live-server-state! {:system {:cpu-load 4.0}})))
+      (finally
+        (state/reset-state!))))
+
+  (testing "A live state turns stale once, keeping its receive time"
+    (state/reset-state!)
+    (try
+      (is (false? (state/mark-server-state-stale! 1000))
+          "Nothing shown, nothing to mark")
+      (state/set-live-server-state! {:system {:cpu-load 1.0}})
+      (is (true? (state/mark-server-state-stale! 1000)))
+      (is (false? (state/mark-server-state-stale! 2000)))
+      (is (= 1000 (state/get-stale-state-at)))
+      (is (= {:cpu-load 1.0} (state/get-subsystem-state :system)))
+      (finally
+        (state/reset-state!)))))
@@ -0,0 +1,27 @@
+(ns potatoclient.streams.budget-test
+  "Tests for the cross-stream decode-thread budget."
+  (:require [clojure.test :refer [deftest is testing]]
+            [potatoclient.streams.budget :as budget]))
+
+(deftest decode-thread-budget-test
+  (testing "one core is kept for the UI"
+    (is (= {:day 7} (budget/decode-thread-budget {:day {:visible? true}} 8))))
+
+  (testing "visible streams share the cores by resolution"
+    (let [result (budget/decode-thread-budget {:heat {:visible? true}
+                                               :day {:visible? true}} 8)]
+      (is (= 7 (+ (:heat result) (:day result))))
+      (is (> (:day result) (:heat result)))))
+
+  (testing "a minimized stream gets a single thread"
+    (is (= {:heat 1 :day 6}
+           (budget/decode-thread-budget {:heat {:visible? false}
+                                         :day {:visible? true}} 8))))
+
+  (testing "every stream gets at least one thread on small machines"
+    (is (= {:heat 1 :day 1}
+           (budget/decode-thread-budget {:heat {:visible? true}
+                                         :day {:visible? true}} 1))))
+
+  (testing "no active streams means no budget"
+    (is (= {} (budget/decode-thread-budget {} 8)))))
@@ -0,0 +1,101 @@
+(ns potatoclient.streams.soak-test
+  "Headless soak of the real video path against the synthetic source:
+  WebSocketClientBuiltIn -> FragmentChain -> GStreamerPipeline -> fakesink.
+
+  Opt-in because it needs GStreamer with x264enc and takes a while:
+    POTATOCLIENT_SOAK_SECONDS=60 clojure -M:test -n potatoclient.streams.soak-test"
+  (:require [clojure.test :refer [deftest is testing]]
+            [potatoclient.streams.video-source :as source])
+  (:import (java.lang.management BufferPoolMXBean ManagementFactory)
+           (java.net URI)
+           (java.util.concurrent.atomic AtomicLong)
+           (kotlin Unit)
+           (kotlin.jvm.functions Function2)
+           (potatoclient.kotlin FragmentChain GStreamerPipeline GStreamerPipeline$EventCallback
+                                LatencyTracker WebSocketClientBuiltIn)))
+
+(def ^:private soak-seconds
+  (some-> (System/getenv "POTATOCLIENT_SOAK_SECONDS") parse-long))
+
+(def ^:private soak-options
+  {:host "127.0.0.1" :port 0 :fps 30 :frames 150 :fragment-size 16384})
+
+(defn- direct-memory-used
+  []
+  (->> (ManagementFactory/getPlatformMXBeans BufferPoolMXBean)
+       (filter #(= "direct" (.getName ^BufferPoolMXBean %)))
+       (map #(.getMemoryUsed ^BufferPoolMXBean %))
+       first))
+
+(defn- heap-used
+  []
+  (let [rt (Runtime/getRuntime)]
+    (- (.totalMemory rt) (.freeMemory rt))))
+
+(defn- pipeline-callback
+  [errors]
+  (reify GStreamerPipeline$EventCallback
+    (onLog [_ level message]
+      (when (#{"ERROR" "WARN"} level)
+        (println "[soak]" level message)))
+    (onPipelineError [_ message]
+      (swap! errors conj message))
+    (isRunning [_] true)
+    (onFirstFrame [_ path ttff-ms]
+      (println "[soak] first frame" path ttff-ms "ms"))))
+
+(defn- run-soak
+  "Stream one endpoint for seconds and return the collected counters."
+  [seconds]
+  (System/setProperty GStreamerPipeline/VIDEO_SINK_PROPERTY "fakesink")
+  (let [{:keys [port stats stop]} (source/start! soak-options)
+        tracker (LatencyTracker.)
+        errors (atom [])
+        pipeline (GStreamerPipeline. (pipeline-callback errors) tracker)
+        received (AtomicLong.)
+        on-message (reify Function2
+                     (invoke [_ data arrival-ns]
+                       (let [^FragmentChain data data]
+                         (.incrementAndGet received)
+                         (when (>= (.size data) 16)
+                           (.pushVideoData pipeline data (int 16) (long arrival-ns))))
+                       Unit/INSTANCE))
+        client (WebSocketClientBuiltIn.
+                 (URI. (str "ws://127.0.0.1:" port "/ws/ws_rec_video_day"))
+                 {}
+                 on-message
+                 nil nil nil)
+        heap-before (heap-used)
+        direct-before (direct-memory-used)]
+    (try
+      (.initialize pipeline nil)
+      (.connect client)
+      (Thread/sleep (* 1000 seconds))
+      (let [latency (.snapshotAndReset tracker)]
+        {:seconds seconds
+         :server @stats
+         :received (.get received)
+         :pushed (get latency "frames-pushed")
+         :rendered (get latency "frames-rendered")
+         :glass (get latency "glass")
+         :websocket (into {} (.snapshotAndReset (.getStats client)))
+         :errors @errors
+         :heap-delta (- (heap-used) heap-before)
+         :direct-delta (- (direct-memory-used) direct-before)})
+      (finally
+        (.close client)
+        (.stop pipeline)
+        (stop)))))
+
+(deftest ^:soak sustained-playback-test
+  (if-not soak-seconds
+    (println "Skipping soak test; set POTATOCLIENT_SOAK_SECONDS to run it")
+    (let [{:keys [seconds server received rendered errors] :as report} (run-soak soak-seconds)
+          fps (double (/ rendered seconds))]
+      (println "[soak]" (pr-str (assoc report :fps fps)))
+      (testing "no pipeline errors"
+        (is (empty? errors)))
+      (testing "every sent frame is received"
+        (is (>= received (* 0.99 (:sent server)))))
+      (testing "sustained frame rate"
+        (is (>= fps (* 0.9 (:fps soak-options))))))))
@@ -0,0 +1,294 @@
+(ns potatoclient.streams.video-source
+  "Synthetic stand-in for the device's video WebSocket endpoints.
+
+  Serves /ws/ws_rec_video_heat and /ws/ws_rec_video_day with the same
+  framing the video subprocess expects: a 16-byte little-endian header
+  (timestamp ms, duration ms) followed by one H.264 Annex-B access unit.
+
+  The elementary stream is either replayed from a recorded .h264 file
+  (:file) or generated once at startup with videotestsrc ! x264enc.
+  Pacing, fragmentation, jitter and loss are configurable so the real
+  WebSocket -> pool -> GStreamer path can be soaked without hardware.
+
+  Run from the command line:
+    clojure -M:video-source --port 8443 --fps 30 --fragment-size 16384 --jitter-ms 5 --loss 0.01
+
+  TLS is optional: pass --keystore/--keystore-password with a JKS created by
+    keytool -genkeypair -keyalg RSA -keystore source.jks -dname CN=localhost"
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str])
+  (:import (java.io FileInputStream)
+           (java.net InetSocketAddress)
+           (java.nio ByteBuffer ByteOrder)
+           (java.security KeyStore)
+           (java.util.concurrent ThreadLocalRandom)
+           (java.util.concurrent.locks LockSupport)
+           (javax.net.ssl KeyManagerFactory SSLContext)
+           (org.freedesktop.gstreamer Bin Gst Pipeline)
+           (org.freedesktop.gstreamer.elements AppSink)
+           (org.java_websocket WebSocket)
+           (org.java_websocket.enums Opcode)
+           (org.java_websocket.handshake ClientHandshake)
+           (org.java_websocket.server DefaultSSLWebSocketServerFactory WebSocketServer)))
+
+(def endpoints
+  "Endpoint path -> stream dimensions (mirrors the real device)."
+  {"/ws/ws_rec_video_heat" {:width 900 :height 720}
+   "/ws/ws_rec_video_day" {:width 1920 :height 1080}})
+
+(def default-options
+  {:host "127.0.0.1"
+   :port 8443
+   :fps 30
+   :bitrate-kbps 4000
+   :keyframe-interval 30
+   :frames 300
+   :fragment-size 0
+   :jitter-ms 0
+   :loss 0.0
+   :file nil
+   :keystore nil
+   :keystore-password nil})
+
+(def ^:private header-size 16)
+
+;; ============================================================================
+;; Elementary stream sources
+;; ============================================================================
+
+(defn- start-code-length
+  "Length of the Annex-B start code at index i, or 0."
+  [^bytes data i]
+  (let [n (alength data)]
+    (cond
+      (and (< (+ i 2) n) (zero? (aget data i)) (zero? (aget data (inc i)))
+           (= 1 (aget data (+ i 2)))) 3
+      (and (< (+ i 3) n) (zero? (aget data i)) (zero? (aget data (inc i)))
+           (zero? (aget data (+ i 2))) (= 1 (aget data (+ i 3)))) 4
+      :else 0)))
+
+(defn- nal-offsets
+  "Offsets of every start code in an Annex-B stream."
+  [^bytes data]
+  (let [n (alength data)]
+    (loop [i 0 acc (transient [])]
+      (if (>= i (- n 3))
+        (persistent! acc)
+        (let [sc (start-code-length data i)]
+          (if (pos? sc)
+            (recur (+ i sc) (conj! acc i))
+            (recur (inc i) acc)))))))
+
+(defn- access-unit-start?
+  "True if the NAL at offset starts a new access unit after a slice was seen.
+  AUD/SPS/PPS/SEI always do; a slice does when first_mb_in_slice is 0."
+  [^bytes data offset]
+  (let [header (+ offset (start-code-length data offset))
+        nal-type (bit-and (aget data header) 0x1F)]
+    (cond
+      (#{6 7 8 9} nal-type) true
+      (<= 1 nal-type 5) (and (< (inc header) (alength data))
+                             (bit-test (aget data (inc header)) 7))
+      :else false)))
+
+(defn split-access-units
+  "Split an Annex-B byte array into access units (vector of byte arrays)."
+  [^bytes data]
+  (let [offsets (nal-offsets data)
+        slice? (fn [offset]
+                 (<= 1 (bit-and (aget data (+ offset (start-code-length data offset))) 0x1F) 5))]
+    (loop [[offset & more] offsets
+           au-start (first offsets)
+           seen-slice? false
+           aus (transient [])]
+      (cond
+        (nil? offset)
+        (persistent! (cond-> aus
+                       au-start (conj! (java.util.Arrays/copyOfRange data (int au-start) (alength data)))))
+
+        (and seen-slice? (access-unit-start? data offset))
+        (recur more offset (slice? offset)
+               (conj! aus (java.util.Arrays/copyOfRange data (int au-start) (int offset))))
+
+        :else
+        (recur more au-start (or seen-slice? (slice? offset)) aus)))))
+
+(defn read-access-units
+  "Load a recorded H.264 elementary stream and split it into access units."
+  [path]
+  (let [out (java.io.ByteArrayOutputStream.)]
+    (with-open [in (io/input-stream path)]
+      (io/copy in out))
+    (split-access-units (.toByteArray out))))
+
+(defn generate-access-units
+  "Encode a videotestsrc clip with x264enc into a vector of access units."
+  [{:keys [width height fps bitrate-kbps keyframe-interval frames]}]
+  (when-not (Gst/isInitialized)
+    (Gst/init "video-source" (into-array String [])))
+  (let [description (format (str "videotestsrc num-buffers=%d pattern=ball "
+                                 "! video/x-raw,width=%d,height=%d,framerate=%d/1 "
+                                 "! x264enc tune=zerolatency speed-preset=ultrafast bitrate=%d key-int-max=%d "
+                                 "! video/x-h264,stream-format=byte-stream,alignment=au "
+                                 "! appsink name=sink sync=false")
+                            frames width height fps bitrate-kbps keyframe-interval)
+        ^Pipeline pipeline (Gst/parseLaunch description)
+        ^AppSink sink (.getElementByName ^Bin pipeline "sink")]
+    (.play pipeline)
+    (try
+      (loop [aus (transient [])]
+        (if-let [sample (.pullSample sink)]
+          (let [buffer (.getBuffer sample)
+                mapped (.map buffer false)
+                bytes (byte-array (.remaining mapped))]
+            (.get mapped bytes)
+            (.unmap buffer)
+            (.dispose sample)
+            (recur (conj! aus bytes)))
+          (persistent! aus)))
+      (finally
+        (.stop pipeline)
+        (.dispose pipeline)))))
+
+;; ============================================================================
+;; Sending
+;; ============================================================================
+
+(defn- frame-message
+  "Prefix an access unit with the 16-byte timestamp/duration header."
+  ^ByteBuffer [^bytes au duration-ms]
+  (doto (ByteBuffer/allocate (+ header-size (alength au)))
+    (.order ByteOrder/LITTLE_ENDIAN)
+    (.putLong (System/currentTimeMillis))
+    (.putLong duration-ms)
+    (.put au)
+    (.flip)))
+
+(defn- send-message!
+  "Send a frame either whole or as continuation fragments of fragment-size bytes."
+  [^WebSocket conn ^ByteBuffer message fragment-size]
+  (if (and (pos? fragment-size) (> (.remaining message) fragment-size))
+    (loop []
+      (let [n (min fragment-size (.remaining message))
+            chunk (.slice (doto (.duplicate message) (.limit (+ (.position message) n))))]
+        (.position message (+ (.position message) n))
+        (.sendFragmentedFrame conn Opcode/BINARY chunk (not (.hasRemaining message)))
+        (when (.hasRemaining message)
+          (recur))))
+    (.send conn message)))
+
+(defn- stream-loop
+  "Pace access units to one client until it disconnects.
+  Frames are scheduled on a fixed grid; jitter delays each send by a random
+  amount without drifting the grid, loss drops whole frames."
+  [^WebSocket conn aus {:keys [fps fragment-size jitter-ms loss]} stats]
+  (let [interval-ns (long (/ 1e9 fps))
+        duration-ms (long (/ 1000 fps))
+        jitter-ns (long (* jitter-ms 1000000))
+        start (System/nanoTime)
+        n (count aus)]
+    (loop [i 0]
+      (when (.isOpen conn)
+        (let [rnd (ThreadLocalRandom/current)
+              target (+ start (* i interval-ns)
+                        (if (pos? jitter-ns) (.nextLong rnd jitter-ns) 0))
+              wait (- target (System/nanoTime))]
+          (when (pos? wait)
+            (LockSupport/parkNanos wait))
+          (if (< (.nextDouble rnd) loss)
+            (swap! stats update :dropped inc)
+            (try
+              (send-message! conn (frame-message (nth aus (mod i n)) duration-ms) fragment-size)
+              (swap! stats update :sent inc)
+              (catch Exception _
+                (swap! stats update :send-errors inc))))
+          (recur (inc i)))))))
+
+;; ============================================================================
+;; Server
+;; ============================================================================
+
+(defn- ssl-context
+  [keystore password]
+  (let [chars (.toCharArray (str password))
+        ks (doto (KeyStore/getInstance "JKS")
+             (.load (FileInputStream. (str keystore)) chars))
+        kmf (doto (KeyManagerFactory/getInstance (KeyManagerFactory/getDefaultAlgorithm))
+              (.init ks chars))]
+    (doto (SSLContext/getInstance "TLS")
+      (.init (.getKeyManagers kmf) nil nil))))
+
+(defn- load-streams
+  "Access units per endpoint, generated or replayed once up front."
+  [{:keys [file] :as options}]
+  (let [streams (if file
+                  (let [aus (read-access-units file)]
+                    (into {} (map (fn [path] [path aus])) (keys endpoints)))
+                  (into {}
+                        (map (fn [[path dims]]
+                               [path (generate-access-units (merge options dims))]))
+                        endpoints))]
+    (when (some empty? (vals streams))
+      (throw (ex-info "No access units to serve" {:file file})))
+    streams))
+
+(defn start!
+  "Start the synthetic source. Returns a map with :server, :port, :stats and
+  :stop (a no-arg function). :stats is an atom of {:clients :sent :dropped :send-errors}."
+  [options]
+  (let [{:keys [host port keystore keystore-password] :as options} (merge default-options options)
+        streams (load-streams options)
+        stats (atom {:clients 0 :sent 0 :dropped 0 :send-errors 0})
+        started (promise)
+        server (proxy [WebSocketServer] [(InetSocketAddress. ^String host (int port))]
+                 (onOpen [^WebSocket conn ^ClientHandshake handshake]
+                   (let [path (first (str/split (.getResourceDescriptor handshake) #"\?"))]
+                     (if-let [aus (get streams path)]
+                       (do
+                         (swap! stats update :clients inc)
+                         (doto (Thread. ^Runnable #(stream-loop conn aus options stats)
+                                        (str "video-source" path))
+                           (.setDaemon true)
+                           (.start)))
+                       (.close conn 1008 (str "Unknown endpoint: " path)))))
+                 (onClose [_conn _code _reason _remote]
+                   (swap! stats update :clients dec))
+                 (onMessage [_conn _message])
+                 (onError [_conn ^Exception e]
+                   (when-not (realized? started)
+                     (deliver started e)))
+                 (onStart []
+                   (deliver started :ok)))]
+    (when keystore
+      (.setWebSocketFactory server (DefaultSSLWebSocketServerFactory. (ssl-context keystore keystore-password))))
+    (.setReuseAddr server true)
+    (.start server)
+    (let [result (deref started 10000 :timeout)]
+      (when-not (= :ok result)
+        (.stop server 1000)
+        (throw (ex-info "Synthetic video source failed to start" {:result result}))))
+    {:server server
+     :port (.getPort server)
+     :stats stats
+     :stop #(.stop server 1000)}))
+
+(defn- parse-args
+  "Parse --key value pairs; values are read as EDN when they look numeric."
+  [args]
+  (into {}
+        (map (fn [[k v]]
+               [(keyword (str/replace k #"^--" ""))
+                (if (re-matches #"-?\d+(\.\d+)?" v) (read-string v) v)]))
+        (partition 2 args)))
+
+(defn -main
+  [& args]
+  (let [options (merge default-options (parse-args args))
+        {:keys [port stats]} (start! options)]
+    (println (format "Synthetic video source on %s://%s:%d %s"
+                     (if (:keystore options) "wss" "ws") (:host options) port
+                     (str/join " " (keys endpoints))))
+    (loop []
+      (Thread/sleep 5000)
+      (println (pr-str @stats))
+      (recur))))